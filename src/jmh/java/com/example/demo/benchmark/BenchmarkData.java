@@ -0,0 +1,70 @@
+package com.example.demo.benchmark;
+
+import com.example.demo.config.CacheProperties;
+import com.example.demo.config.ParserProperties;
+import com.example.demo.config.StorageProperties;
+import com.example.demo.model.User;
+import com.example.demo.repository.CsvFileRepository;
+import com.example.demo.service.CsvFileCache;
+import com.example.demo.service.FileWriteCoalescer;
+import com.example.demo.service.UserMetrics;
+import com.example.demo.service.UserService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Deterministic input for the benchmarks, so runs on different releases see the same data
+ * Lines look like the throughput tests' files: id=1,email=user1@example.com,name=User Number 1
+ */
+final class BenchmarkData {
+
+    static final ParserProperties PARSER_PROPERTIES =
+            new ParserProperties(DataSize.ofMegabytes(4), DataSize.ofMegabytes(1));
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * UserService wired like the application with default settings (embedded layout), metrics on
+     */
+    static UserService userService(CsvFileRepository repository) {
+        UserMetrics metrics = new UserMetrics(new SimpleMeterRegistry());
+        return new UserService(repository, new StorageProperties(0, true), PARSER_PROPERTIES,
+                new FileWriteCoalescer(repository, metrics),
+                new CsvFileCache(repository, new CacheProperties(DataSize.ofMegabytes(64), Duration.ofMinutes(10))),
+                metrics);
+    }
+
+    static User user(int id) {
+        return new User(id, "user" + id + "@example.com", "User Number " + id);
+    }
+
+    /**
+     * @return users with ids 1..count, in id order
+     */
+    static List<User> users(int count) {
+        List<User> users = new ArrayList<>(count);
+        for (int id = 1; id <= count; id++) {
+            users.add(user(id));
+        }
+        return users;
+    }
+
+    /**
+     * @return the UTF-8 upload holding users 1..count, one per line
+     */
+    static byte[] csv(int count) {
+        StringBuilder csv = new StringBuilder(count * 56);
+        for (int id = 1; id <= count; id++) {
+            csv.append("id=").append(id)
+                    .append(",email=user").append(id).append("@example.com")
+                    .append(",name=User Number ").append(id).append('\n');
+        }
+        return csv.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,176 @@
+package com.example.demo.benchmark;
+
+import com.example.demo.model.CsvFile;
+import com.example.demo.model.CsvFileInfo;
+import com.example.demo.model.User;
+import com.example.demo.model.UserIdIndex;
+import com.example.demo.repository.CsvFileRepository;
+import com.example.demo.repository.CsvFileRepositoryCustom.ContentUpload;
+import com.mongodb.client.result.UpdateResult;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * CsvFileRepository backed by a map, covering the embedded-layout calls made by
+ * uploads, single-user mutations and getFileInfo
+ * Original uploads are gzipped into byte arrays, so uploads pay for compression as with GridFS
+ *
+ * Stands in for MongoDB so the service benchmarks measure UserService itself:
+ * every call is a map lookup plus a UserIdIndex operation, with no copying.
+ * Removed users leave a hole in the users list, like UserIdIndex does between
+ * compactions; the holes are never persisted anywhere. Any other repository
+ * method throws UnsupportedOperationException.
+ *
+ * create(latency) parks the calling thread for that long on every repository
+ * call, standing in for a MongoDB round trip without using any CPU, so
+ * benchmarks can see how well waiting writers overlap.
+ */
+final class InMemoryCsvFileRepository implements InvocationHandler {
+
+    private final Map<String, CsvFile> files = new ConcurrentHashMap<>();
+
+    private final Map<String, byte[]> contents = new ConcurrentHashMap<>();
+
+    private final long latencyNanos;
+
+    private long nextId;
+
+    private InMemoryCsvFileRepository(Duration latency) {
+        this.latencyNanos = latency.toNanos();
+    }
+
+    static CsvFileRepository create() {
+        return create(Duration.ZERO);
+    }
+
+    /**
+     * @param latency simulated round trip of every repository call
+     */
+    static CsvFileRepository create(Duration latency) {
+        return (CsvFileRepository) Proxy.newProxyInstance(CsvFileRepository.class.getClassLoader(),
+                new Class<?>[]{CsvFileRepository.class}, new InMemoryCsvFileRepository(latency));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        if (latencyNanos > 0 && method.getDeclaringClass() != Object.class) {
+            LockSupport.parkNanos(latencyNanos);
+        }
+        return switch (method.getName()) {
+            case "findByFilename" -> Optional.ofNullable(files.get((String) args[0]));
+            case "findInfoByFilename" -> Optional.ofNullable(files.get((String) args[0])).map(CsvFileInfo::of);
+            case "save" -> save((CsvFile) args[0]);
+            case "pushUser" -> pushUser((String) args[0], (User) args[1]);
+            case "setUser" -> setUser((String) args[0], (Integer) args[1], (String) args[2], (String) args[3]);
+            case "pullUser" -> pullUser((String) args[0], (Integer) args[1]);
+            case "openContentUpload" -> new GzipContentUpload();
+            case "deleteContent" -> contents.remove((String) args[0]);
+            case "hashCode" -> System.identityHashCode(proxy);
+            case "equals" -> proxy == args[0];
+            case "toString" -> "InMemoryCsvFileRepository" + files.keySet();
+            default -> throw new UnsupportedOperationException("Not supported by the benchmark repository: "
+                    + method.getName());
+        };
+    }
+
+    private CsvFile save(CsvFile csvFile) {
+        if (csvFile.getId() == null) {
+            csvFile.setId(Long.toHexString(++nextId));
+        }
+        csvFile.setVersion(csvFile.getVersion() == null ? 0 : csvFile.getVersion() + 1);
+        files.put(csvFile.getFilename(), csvFile);
+        return csvFile;
+    }
+
+    private UpdateResult pushUser(String filename, User user) {
+        CsvFile csvFile = files.get(filename);
+        if (csvFile == null || csvFile.isBucketed()) {
+            return UpdateResult.acknowledged(0, 0L, null);
+        }
+        boolean added = csvFile.userIndex().add(user);
+        if (added) {
+            csvFile.setUserCount(csvFile.getUserCount() + 1);
+            csvFile.setContentHash(null);
+        }
+        return UpdateResult.acknowledged(added ? 1 : 0, added ? 1L : 0L, null);
+    }
+
+    private UpdateResult setUser(String filename, int userId, String email, String name) {
+        CsvFile csvFile = files.get(filename);
+        User user = csvFile == null || csvFile.isBucketed() ? null : csvFile.userIndex().get(userId);
+        if (user == null) {
+            return UpdateResult.acknowledged(0, 0L, null);
+        }
+        if (email != null) {
+            user.setEmail(email);
+        }
+        if (name != null) {
+            user.setName(name);
+        }
+        csvFile.setContentHash(null);
+        return UpdateResult.acknowledged(1, 1L, null);
+    }
+
+    private UpdateResult pullUser(String filename, int userId) {
+        CsvFile csvFile = files.get(filename);
+        if (csvFile == null || csvFile.isBucketed() || csvFile.userIndex().remove(userId) == null) {
+            return UpdateResult.acknowledged(0, 0L, null);
+        }
+        csvFile.setUserCount(csvFile.getUserCount() - 1);
+        csvFile.setContentHash(null);
+        return UpdateResult.acknowledged(1, 1L, null);
+    }
+
+    private final class GzipContentUpload implements ContentUpload {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        private final GZIPOutputStream gzip;
+
+        GzipContentUpload() {
+            try {
+                gzip = new GZIPOutputStream(bytes, 256 * 1024) {
+                    {
+                        def.setLevel(Deflater.BEST_SPEED);
+                    }
+                };
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public OutputStream out() {
+            return gzip;
+        }
+
+        @Override
+        public String finish() {
+            try {
+                gzip.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            String id = "content-" + (++nextId);
+            contents.put(id, bytes.toByteArray());
+            return id;
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
+}
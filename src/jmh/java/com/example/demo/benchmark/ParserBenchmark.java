@@ -0,0 +1,130 @@
+package com.example.demo.benchmark;
+
+import com.example.demo.model.User;
+import com.example.demo.parser.ParallelUserRecordParser;
+import com.example.demo.parser.UserRecordParser;
+import com.example.demo.repository.CsvFileRepository;
+import com.example.demo.service.UserService;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload parsing: the streaming parser on its own, the chunked parallel parser,
+ * and UserService.parseCSVFile (which picks one of them by upload size and
+ * collects the users with the duplicate-ID check)
+ *
+ * fileSequential and parallelParser read the same temp file through
+ * ParallelUserRecordParser, forced onto its sequential and chunked paths, so
+ * their ratio is the speedup of the chunked path at each size. The sizes
+ * bracket app.parser.parallel-threshold (4MB, about 75000 users); the size
+ * where parallelParser starts to win on a host is where the threshold belongs.
+ * Run with -p parallelism=<cores>.
+ *
+ * Results on a single-core host (JDK 21, -wi 5 -w 1s -i 10 -r 1s, ms/op). With
+ * one core the pool's workers only take turns, so this is the chunked path's
+ * extra work, not a speedup; a multi-core run is still to be recorded:
+ *
+ *   users (size)     fileSequential   parallelParser   sequential / parallel
+ *   parallelism=4
+ *   20000 (1.1MB)      4.64 +- 0.88     6.12 +- 0.96    0.76x
+ *   75000 (4.3MB)     19.85 +- 3.46    24.69 +- 3.06    0.80x
+ *   150000 (8.7MB)    40.96 +- 11.6    42.35 +- 5.59    0.97x
+ *   1000000 (60MB)   262.6 +- 24.2    299.7 +- 49.1     0.88x
+ *   parallelism=1 (chunked path disabled, the control)
+ *   75000 (4.3MB)     22.57 +- 1.67    19.06 +- 4.40    same path, within noise
+ *
+ * The chunked path does 1.0-1.3x the work of the sequential one at every size
+ * from two chunks up, with no size where the extra cost disappears. A pool of
+ * one falls back to sequential parsing, as ParallelUserRecordParser.isParallel
+ * requires; on such a host the threshold never applies.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class ParserBenchmark {
+
+    // 0.05MB, 0.5MB, 1.1MB, 2.3MB, 4.3MB, 8.7MB, 60MB
+    @Param({"1000", "10000", "20000", "40000", "75000", "150000", "1000000"})
+    int users;
+
+    /**
+     * Workers of the chunked parser's pool
+     */
+    @Param({"2"})
+    int parallelism;
+
+    private byte[] csv;
+
+    private Path csvFile;
+
+    private MockMultipartFile upload;
+
+    private final UserRecordParser recordParser = new UserRecordParser();
+
+    private ForkJoinPool pool;
+
+    private ParallelUserRecordParser sequentialParser;
+
+    private ParallelUserRecordParser parallelParser;
+
+    private UserService userService;
+
+    @Setup
+    public void setUp() throws IOException {
+        csv = BenchmarkData.csv(users);
+        csvFile = Files.createTempFile("jmh-users-", ".csv");
+        Files.write(csvFile, csv);
+        upload = new MockMultipartFile("file", "users.csv", "text/csv", csv);
+
+        int chunkSize = Math.toIntExact(BenchmarkData.PARSER_PROPERTIES.chunkSize().toBytes());
+        pool = new ForkJoinPool(parallelism);
+        // Threshold above any file: always sequential. Threshold 0: chunked whenever the file
+        // is larger than one chunk (from about 20k users)
+        sequentialParser = new ParallelUserRecordParser(Long.MAX_VALUE, chunkSize, pool);
+        parallelParser = new ParallelUserRecordParser(0, chunkSize, pool);
+
+        CsvFileRepository repository = InMemoryCsvFileRepository.create();
+        userService = BenchmarkData.userService(repository);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        pool.shutdown();
+        Files.deleteIfExists(csvFile);
+    }
+
+    @Benchmark
+    public long recordParser(Blackhole blackhole) throws IOException {
+        return recordParser.parse(new InputStreamReader(new ByteArrayInputStream(csv), StandardCharsets.UTF_8),
+                blackhole::consume);
+    }
+
+    @Benchmark
+    public long fileSequential(Blackhole blackhole) throws IOException {
+        return sequentialParser.parseWithLineNumbers(csvFile, (user, lineNumber) -> blackhole.consume(user));
+    }
+
+    @Benchmark
+    public long parallelParser(Blackhole blackhole) throws IOException {
+        return parallelParser.parseWithLineNumbers(csvFile, (user, lineNumber) -> blackhole.consume(user));
+    }
+
+    @Benchmark
+    public List<User> parseCSVFile() {
+        return userService.parseCSVFile(upload);
+    }
+}
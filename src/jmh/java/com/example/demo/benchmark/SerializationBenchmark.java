@@ -0,0 +1,73 @@
+package com.example.demo.benchmark;
+
+import com.example.demo.model.User;
+import com.example.demo.parser.UserRecordWriter;
+import com.example.demo.repository.CsvFileRepository;
+import com.example.demo.service.UserService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockMultipartFile;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Response bodies: CSV exports through UserService.writeExport (the path behind
+ * /users/export) and the JSON body of the getAllUsers response
+ * Output is discarded, so only encoding and compression are measured
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class SerializationBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    int users;
+
+    private List<User> userList;
+
+    private Map<String, Object> getAllUsersResponse;
+
+    private UserService userService;
+
+    private final JsonMapper jsonMapper = JsonMapper.builder().build();
+
+    @Setup
+    public void setUp() {
+        userList = BenchmarkData.users(users);
+
+        CsvFileRepository repository = InMemoryCsvFileRepository.create();
+        userService = BenchmarkData.userService(repository);
+        getAllUsersResponse = userService.getAllUsers(
+                new MockMultipartFile("file", "users.csv", "text/csv", BenchmarkData.csv(users)));
+    }
+
+    @Benchmark
+    public long exportOriginal() throws IOException {
+        return userService.writeExport(userList.stream(), UserRecordWriter.Format.ORIGINAL, false,
+                OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public long exportRfc4180() throws IOException {
+        return userService.writeExport(userList.stream(), UserRecordWriter.Format.RFC4180, false,
+                OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public long exportOriginalGzip() throws IOException {
+        return userService.writeExport(userList.stream(), UserRecordWriter.Format.ORIGINAL, true,
+                OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public void getAllUsersJson() {
+        jsonMapper.writeValue(OutputStream.nullOutputStream(), getAllUsersResponse);
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.demo.benchmark;
+
+import com.example.demo.repository.CsvFileRepository;
+import com.example.demo.service.UserService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UserService operations against an in-memory repository (embedded layout)
+ *
+ * The file is re-uploaded before every iteration. getAllUsers alternates
+ * between two different uploads of the same users, so every call parses and
+ * stores; getAllUsersDeduplicated re-sends the stored upload, which is only
+ * hashed. Creates use fresh ids above
+ * the uploaded ones, so the file grows during an iteration; deleteUser puts
+ * the user back through the repository after each delete, so it always has
+ * a user to remove. Update and patch cycle through the uploaded ids.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class UserServiceBenchmark {
+
+    private static final String FILENAME = "users.csv";
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    int users;
+
+    private MockMultipartFile upload;
+
+    // Same users with a trailing blank line: a different upload, so it is never deduplicated
+    private MockMultipartFile changedUpload;
+
+    private boolean changed;
+
+    private CsvFileRepository repository;
+
+    private UserService userService;
+
+    private int nextCreateId;
+
+    private int cursor;
+
+    @Setup
+    public void setUp() {
+        byte[] csv = BenchmarkData.csv(users);
+        upload = new MockMultipartFile("file", FILENAME, "text/csv", csv);
+        byte[] changedCsv = Arrays.copyOf(csv, csv.length + 1);
+        changedCsv[csv.length] = '\n';
+        changedUpload = new MockMultipartFile("file", FILENAME, "text/csv", changedCsv);
+        repository = InMemoryCsvFileRepository.create();
+        userService = BenchmarkData.userService(repository);
+    }
+
+    @Setup(Level.Iteration)
+    public void uploadFile() {
+        userService.getAllUsers(upload);
+        changed = false;
+        nextCreateId = users + 1;
+        cursor = 0;
+    }
+
+    private int nextExistingId() {
+        cursor = cursor == users ? 1 : cursor + 1;
+        return cursor;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Map<String, Object> getAllUsers() {
+        changed = !changed;
+        return userService.getAllUsers(changed ? changedUpload : upload);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Map<String, Object> getAllUsersDeduplicated() {
+        return userService.getAllUsers(upload, false);
+    }
+
+    @Benchmark
+    public String createUser() {
+        int id = nextCreateId++;
+        return userService.createUser(FILENAME, id, "new" + id + "@example.com", "New User " + id);
+    }
+
+    @Benchmark
+    public String updateUser() {
+        int id = nextExistingId();
+        return userService.updateUser(FILENAME, id, "updated" + id + "@example.com", "Updated User " + id);
+    }
+
+    @Benchmark
+    public String patchUser() {
+        int id = nextExistingId();
+        return userService.patchUser(FILENAME, id, null, "Patched User " + id);
+    }
+
+    @Benchmark
+    public String deleteUser() {
+        int id = nextExistingId();
+        String result = userService.deleteUser(FILENAME, id);
+        repository.pushUser(FILENAME, BenchmarkData.user(id));
+        return result;
+    }
+
+    @Benchmark
+    public Map<String, Object> getFileInfo() {
+        return userService.getFileInfo(FILENAME);
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.demo.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Caps the number of requests handled at once and sheds the rest with 503 Service Unavailable
+ *
+ * With request handling on virtual threads nothing else bounds concurrency:
+ * a burst would queue without limit on the MongoDB connection pool until
+ * requests time out. Here a request waits at most app.admission.maxWait for
+ * one of maxConcurrentRequests slots, then gets a 503 with Retry-After, so
+ * admitted requests keep a bounded latency and clients back off early.
+ *
+ * A slot is held until the response is complete, including async response
+ * bodies (streams, exports) that finish after the handler returns.
+ * Actuator endpoints are never limited, so health checks answer under load.
+ * Off (every request admitted) unless app.admission.max-concurrent-requests > 0.
+ * Servlet mode only: the reactive profile does not hold a thread per request.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class AdmissionLimitFilter extends OncePerRequestFilter {
+
+    private static final String REJECTED_BODY = "{\"error\":\"Server busy, retry later\"}";
+
+    private final AdmissionProperties properties;
+
+    private final Semaphore slots;
+
+    private final Counter rejected;
+
+    public AdmissionLimitFilter(AdmissionProperties properties, MeterRegistry registry) {
+        this.properties = properties;
+        this.slots = properties.enabled() ? new Semaphore(properties.maxConcurrentRequests()) : null;
+        this.rejected = Counter.builder("http.admission.rejected")
+                .description("Requests refused with 503 because every admission slot was taken")
+                .register(registry);
+        if (slots != null) {
+            Gauge.builder("http.admission.active", slots,
+                            s -> properties.maxConcurrentRequests() - s.availablePermits())
+                    .description("Requests currently holding an admission slot")
+                    .register(registry);
+        }
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return slots == null || request.getRequestURI().startsWith(request.getContextPath() + "/actuator");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        if (!admit()) {
+            rejected.increment();
+            reject(response);
+            return;
+        }
+
+        Slot slot = new Slot();
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            if (request.isAsyncStarted()) {
+                // The response is still being written by another thread
+                request.getAsyncContext().addListener(slot);
+            } else {
+                slot.release();
+            }
+        }
+    }
+
+    private boolean admit() {
+        try {
+            return slots.tryAcquire(properties.maxWait().toNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void reject(HttpServletResponse response) throws IOException {
+        long retryAfterSeconds = Math.max(1, (properties.retryAfter().toMillis() + 999) / 1000);
+        response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(retryAfterSeconds));
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.getWriter().write(REJECTED_BODY);
+    }
+
+    /**
+     * One admitted request's slot, released exactly once however the request ends
+     */
+    private final class Slot implements AsyncListener {
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                slots.release();
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            release();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            release();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            release();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // Dispatching again starts a new async cycle, which drops the listeners
+            event.getAsyncContext().addListener(this);
+        }
+    }
+}
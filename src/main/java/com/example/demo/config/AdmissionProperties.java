@@ -0,0 +1,23 @@
+package com.example.demo.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+/**
+ * Request admission settings (app.admission.*), see AdmissionLimitFilter
+ *
+ * maxConcurrentRequests: requests handled at the same time; 0 admits every request.
+ * maxWait: how long a request beyond the limit waits for a slot before it gets a 503.
+ * retryAfter: Retry-After sent with the 503, rounded up to whole seconds.
+ */
+@ConfigurationProperties(prefix = "app.admission")
+public record AdmissionProperties(@DefaultValue("0") int maxConcurrentRequests,
+                                  @DefaultValue("0ms") Duration maxWait,
+                                  @DefaultValue("1s") Duration retryAfter) {
+
+    public boolean enabled() {
+        return maxConcurrentRequests > 0;
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.demo.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+/**
+ * File metadata cache settings (app.cache.*), see CsvFileCache
+ *
+ * maxSize: upper bound on the estimated heap footprint of cached entries,
+ * a few hundred bytes per file.
+ * ttl: entries are reloaded at the latest this long after they were written,
+ * as a safety net on top of the explicit invalidation done by UserService.
+ */
+@ConfigurationProperties(prefix = "app.cache")
+public record CacheProperties(@DefaultValue("4MB") DataSize maxSize,
+                              @DefaultValue("10m") Duration ttl) {
+}
@@ -0,0 +1,157 @@
+package com.example.demo.config;
+
+import com.example.demo.model.CsvFile;
+import com.example.demo.repository.CsvFileRepository;
+import com.example.demo.repository.CsvFileRepositoryCustom.ContentUpload;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.aggregation.ArrayOperators;
+import org.springframework.data.mongodb.core.aggregation.ConditionalOperators;
+import org.springframework.data.mongodb.core.aggregation.StringOperators;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Backfills CsvFile.userCount and CsvFile.sizeBytes on documents written before they existed,
+ * then moves raw csvContent stored inline by older versions out to GridFS
+ *
+ * getFileInfo reads both through a projection and no longer counts users, so
+ * legacy documents need them stored. Computed server-side with a pipeline
+ * update; idempotent - only touches documents where the field is missing.
+ *
+ * Inline csvContent is then dropped from each document, so no document read
+ * pays for it any more. Older versions re-rendered it from the users on every
+ * write, so it is not necessarily the original upload: with
+ * app.storage.keep-original it is gzipped into the csv_contents bucket,
+ * referenced by contentId and tagged rerendered in its GridFS metadata.
+ * Otherwise it is left in place unless app.migration.drop-inline-content is
+ * set for one boot: the users hold the same data, but dropping it destroys
+ * the only copy, so it never follows from the storage setting alone.
+ * sizeBytes is backfilled first because it is computed from csvContent.
+ */
+@Component
+public class CsvFileMetadataMigration {
+
+    private final MongoTemplate mongoTemplate;
+
+    private final CsvFileRepository csvFileRepository;
+
+    private final StorageProperties storageProperties;
+
+    private final MigrationProperties migrationProperties;
+
+    public CsvFileMetadataMigration(MongoTemplate mongoTemplate, CsvFileRepository csvFileRepository,
+                                    StorageProperties storageProperties, MigrationProperties migrationProperties) {
+        this.mongoTemplate = mongoTemplate;
+        this.csvFileRepository = csvFileRepository;
+        this.storageProperties = storageProperties;
+        this.migrationProperties = migrationProperties;
+    }
+
+    @PostConstruct
+    public void backfillMetadata() {
+        long counted = mongoTemplate.updateMulti(
+                Query.query(where("userCount").exists(false)),
+                AggregationUpdate.update().set("userCount").toValue(
+                        ArrayOperators.Size.lengthOfArray(ConditionalOperators.ifNull("users").then(List.of()))),
+                CsvFile.class).getModifiedCount();
+
+        long sized = mongoTemplate.updateMulti(
+                Query.query(where("sizeBytes").exists(false)),
+                AggregationUpdate.update().set("sizeBytes").toValue(
+                        StringOperators.StrLenBytes.stringLengthOf(ConditionalOperators.ifNull("csvContent").then(""))),
+                CsvFile.class).getModifiedCount();
+
+        if (counted > 0 || sized > 0) {
+            System.out.println("✓ Backfilled userCount on " + counted + " and sizeBytes on " + sized
+                    + " csv_files documents");
+        }
+
+        if (!storageProperties.keepOriginal()) {
+            dropInlineContent();
+            return;
+        }
+        long moved = moveInlineContent();
+        if (moved > 0) {
+            System.out.println("✓ Moved inline csvContent of " + moved
+                    + " csv_files documents to GridFS, tagged rerendered");
+        }
+    }
+
+    private void dropInlineContent() {
+        Query legacy = Query.query(where("csvContent").exists(true));
+        long inline = mongoTemplate.count(legacy, CsvFile.class);
+        if (inline == 0) {
+            return;
+        }
+        if (!migrationProperties.dropInlineContent()) {
+            System.out.println("⚠️ " + inline + " csv_files documents still hold inline csvContent;"
+                    + " set app.migration.drop-inline-content=true for one boot to drop it,"
+                    + " or app.storage.keep-original=true to move it to GridFS");
+            return;
+        }
+        System.out.println("⚠️ Dropping inline csvContent of " + inline + " csv_files documents"
+                + " (app.migration.drop-inline-content)");
+        long dropped = mongoTemplate.updateMulti(legacy, new Update().unset("csvContent"), CsvFile.class)
+                .getModifiedCount();
+        System.out.println("✓ Dropped inline csvContent of " + dropped + " csv_files documents");
+    }
+
+    private long moveInlineContent() {
+        Query legacy = Query.query(where("csvContent").exists(true));
+        legacy.fields().include("filename", "csvContent");
+        // One document per batch: each may be close to the 16MB limit
+        legacy.cursorBatchSize(1);
+
+        long moved = 0;
+        try (Stream<Document> documents = mongoTemplate.stream(legacy, Document.class,
+                mongoTemplate.getCollectionName(CsvFile.class))) {
+            for (Iterator<Document> it = documents.iterator(); it.hasNext(); ) {
+                Document document = it.next();
+                String content = document.getString("csvContent");
+                String contentId = content != null ? storeContent(document.getString("filename"), content) : null;
+
+                Update update = new Update().unset("csvContent");
+                if (contentId != null) {
+                    update.set("contentId", contentId);
+                }
+                // Skipped if a new upload replaced the document meanwhile; its content is then unreferenced
+                boolean updated = mongoTemplate.updateFirst(
+                        Query.query(where("_id").is(document.get("_id")).and("csvContent").exists(true)),
+                        update, CsvFile.class).getMatchedCount() > 0;
+                if (updated) {
+                    moved++;
+                } else if (contentId != null) {
+                    csvFileRepository.deleteContent(contentId);
+                }
+            }
+        }
+        return moved;
+    }
+
+    private String storeContent(String filename, String content) {
+        ContentUpload upload = csvFileRepository.openLegacyContentUpload(filename);
+        try {
+            Writer writer = new OutputStreamWriter(upload.out(), StandardCharsets.UTF_8);
+            writer.write(content);
+            writer.flush();
+        } catch (IOException | RuntimeException e) {
+            upload.abort();
+            throw new RuntimeException("Error moving csvContent of " + filename + ": " + e.getMessage());
+        }
+        return upload.finish();
+    }
+}
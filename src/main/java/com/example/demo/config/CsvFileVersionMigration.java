@@ -0,0 +1,39 @@
+package com.example.demo.config;
+
+import com.example.demo.model.CsvFile;
+import jakarta.annotation.PostConstruct;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Backfills CsvFile.version on documents written before optimistic locking existed
+ *
+ * Spring Data treats a null @Version as a new entity and would try to insert
+ * it again; starting every legacy document at version 0 makes the next save a
+ * regular versioned update. Idempotent - only touches documents without a version.
+ */
+@Component
+public class CsvFileVersionMigration {
+
+    private final MongoTemplate mongoTemplate;
+
+    public CsvFileVersionMigration(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @PostConstruct
+    public void backfillVersions() {
+        long updated = mongoTemplate.updateMulti(
+                Query.query(where("version").exists(false)),
+                new Update().set("version", 0L),
+                CsvFile.class).getModifiedCount();
+
+        if (updated > 0) {
+            System.out.println("✓ Backfilled version on " + updated + " csv_files documents");
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.demo.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+/**
+ * Asynchronous upload ingestion settings (app.ingest.*)
+ *
+ * maxConcurrentJobs: jobs parsing/persisting at the same time; the rest wait
+ * in QUEUED state, so a burst of uploads cannot exhaust the MongoDB pool.
+ * maxPendingJobs: queued + running jobs accepted before new uploads are refused.
+ * jobRetention: how long a finished job's status stays available.
+ */
+@ConfigurationProperties(prefix = "app.ingest")
+public record IngestProperties(@DefaultValue("4") int maxConcurrentJobs,
+                               @DefaultValue("100") int maxPendingJobs,
+                               @DefaultValue("1h") Duration jobRetention) {
+}
@@ -0,0 +1,16 @@
+package com.example.demo.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * One-shot startup migration switches (app.migration.*)
+ *
+ * dropInlineContent: with app.storage.keep-original=false, strip the raw
+ * csvContent older versions stored inline in csv_files documents instead of
+ * leaving it in place. Destructive and not reversible; meant to be set for a
+ * single boot and removed again.
+ */
+@ConfigurationProperties(prefix = "app.migration")
+public record MigrationProperties(@DefaultValue("false") boolean dropInlineContent) {
+}
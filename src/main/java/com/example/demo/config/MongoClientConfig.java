@@ -0,0 +1,33 @@
+package com.example.demo.config;
+
+import org.springframework.boot.mongodb.autoconfigure.MongoClientSettingsBuilderCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies app.mongo.pool.* to the auto-configured MongoClient
+ * Runs after the connection string is applied, so values set here take precedence
+ */
+@Configuration
+public class MongoClientConfig {
+
+    @Bean
+    public MongoClientSettingsBuilderCustomizer connectionPoolCustomizer(MongoPoolProperties pool) {
+        return settings -> settings.applyToConnectionPoolSettings(builder -> {
+            if (pool.maxSize() != null) {
+                builder.maxSize(pool.maxSize());
+            }
+            if (pool.minSize() != null) {
+                builder.minSize(pool.minSize());
+            }
+            if (pool.maxWait() != null) {
+                builder.maxWaitTime(pool.maxWait().toMillis(), TimeUnit.MILLISECONDS);
+            }
+            if (pool.maxConnecting() != null) {
+                builder.maxConnecting(pool.maxConnecting());
+            }
+        });
+    }
+}
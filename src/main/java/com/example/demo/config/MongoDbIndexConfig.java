@@ -3,205 +3,179 @@ package com.example.demo.config;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.index.Index;
-import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.PartialIndexFilter;
 import org.springframework.stereotype.Component;
 import jakarta.annotation.PostConstruct;
 import org.springframework.data.domain.Sort;
 
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
 /**
  * MongoDB Index Configuration
  *
- * This component automatically creates all necessary indexes when the application starts.
- * Uses idempotent index creation - safe to run multiple times.
+ * Declares every index the application needs and reconciles the collections
+ * against them when the application starts (see MongoIndexReconciler).
+ * Indexes that already match are left alone, so a restart issues no index
+ * builds and never drops the unique filename index.
  *
  * Indexing Strategy:
  * - Phase 1 (Essential): filename (unique)
  * - Phase 2 (Recommended): uploadedAt, lastModified sorting indexes
  * - Phase 3 (Future): compound indexes for versioning features
+ * - Buckets: csv_file_buckets lookups for the bucketed storage layout
+ * - Lookups: multikey users.email / users.name indexes on both collections
  */
 @Configuration
 @Component
 public class MongoDbIndexConfig {
 
-    private final MongoTemplate mongoTemplate;
+    private final MongoIndexReconciler reconciler;
 
     public MongoDbIndexConfig(MongoTemplate mongoTemplate) {
-        this.mongoTemplate = mongoTemplate;
+        this.reconciler = new MongoIndexReconciler(mongoTemplate);
     }
 
     /**
-     * Initialize indexes on application startup
+     * Reconcile indexes on application startup
      * Called automatically after construction
      *
-     * This method is idempotent - calling it multiple times is safe.
-     * MongoDB will skip index creation if indexes already exist.
+     * Only missing or changed indexes are built; the report lists what was
+     * found, created or rebuilt, and undeclared indexes left in place.
      */
     @PostConstruct
     public void initializeIndexes() {
-        System.out.println("\n=== Initializing MongoDB Indexes ===\n");
-
-        createPhase1EssentialIndexes();
-        createPhase2RecommendedIndexes();
-        createPhase3FutureProofingIndexes();
-
-        System.out.println("\n=== MongoDB Index Initialization Complete ===\n");
-        listAllIndexes();
-    }
+        System.out.println("\n=== Reconciling MongoDB Indexes ===\n");
+        long start = System.nanoTime();
 
-    /**
-     * PHASE 1: ESSENTIAL INDEXES (Critical for production)
-     *
-     * These indexes are mandatory and must be created immediately.
-     */
-    private void createPhase1EssentialIndexes() {
-        System.out.println("=== Creating Phase 1: Essential Indexes ===\n");
+        List<MongoIndexReconciler.Change> changes = new ArrayList<>();
+        changes.addAll(reconciler.reconcile("csv_files", fileIndexes()));
+        changes.addAll(reconciler.reconcile("csv_file_buckets", bucketIndexes()));
 
-        // INDEX 1: Unique filename index
-        // Justification: findByFilename() is called in 100% of CRUD operations
-        // Performance: O(n) collection scan -> O(log n) index scan
-        // At 1M documents: 2,500ms -> 0.15ms (16,667x faster)
-        System.out.println("Creating: idx_filename_exact (UNIQUE)");
-        IndexOperations indexOps = mongoTemplate.indexOps("csv_files");
-
-        // Drop if exists (safe for migration)
-        try {
-            indexOps.dropIndex("idx_filename_exact");
-        } catch (Exception e) {
-            // Index doesn't exist, which is fine
+        Map<MongoIndexReconciler.Action, Integer> counts = new EnumMap<>(MongoIndexReconciler.Action.class);
+        for (MongoIndexReconciler.Change change : changes) {
+            System.out.println(change);
+            counts.merge(change.action(), 1, Integer::sum);
         }
 
-        // Create unique index on filename
-        try {
-            indexOps.dropIndex("idx_filename_exact");
-        } catch (Exception e) {
-            // Index doesn't exist
-        }
-        indexOps.ensureIndex(
-            new Index()
-                .on("filename", Sort.Direction.ASC)
-                .unique()
-                .named("idx_filename_exact")
-        );
-        System.out.println("✓ Index idx_filename_exact created successfully\n");
+        System.out.printf("%n=== MongoDB Index Reconciliation Complete in %d ms: %s ===%n%n",
+                (System.nanoTime() - start) / 1_000_000, counts);
     }
 
     /**
-     * PHASE 2: RECOMMENDED INDEXES (High-value for features)
-     *
-     * These indexes enable efficient sorting and filtering.
-     * Deploy within 1 week of Phase 1.
+     * Indexes of csv_files
      */
-    private void createPhase2RecommendedIndexes() {
-        System.out.println("=== Creating Phase 2: Recommended Indexes ===\n");
-
-        IndexOperations indexOps = mongoTemplate.indexOps("csv_files");
-
-        // INDEX 2: Upload time sorting
-        // Use Case: List recent files, pagination
-        // Query: find().sort({ uploadedAt: -1 }).limit(50)
-        // Performance: 500ms (in-memory sort) -> 5ms (index-provided order)
-        System.out.println("Creating: idx_uploadedAt_desc");
-        try {
-            indexOps.dropIndex("idx_uploadedAt_desc");
-        } catch (Exception e) {
-            // Index doesn't exist
-        }
-
-        indexOps.ensureIndex(
-            new Index()
-                .on("uploadedAt", Sort.Direction.DESC)
-                .named("idx_uploadedAt_desc")
+    static List<Index> fileIndexes() {
+        return List.of(
+                // PHASE 1: ESSENTIAL
+                // INDEX 1: Unique filename index
+                // Justification: findByFilename() is called in 100% of CRUD operations
+                // Performance: O(n) collection scan -> O(log n) index scan
+                new Index()
+                        .on("filename", Sort.Direction.ASC)
+                        .unique()
+                        .named("idx_filename_exact"),
+
+                // PHASE 2: RECOMMENDED
+                // INDEX 2: Upload time sorting
+                // Use Case: List recent files, pagination
+                // Query: find().sort({ uploadedAt: -1 }).limit(50)
+                new Index()
+                        .on("uploadedAt", Sort.Direction.DESC)
+                        .named("idx_uploadedAt_desc"),
+
+                // INDEX 3: Modification time sorting
+                // Use Case: Audit trails, find recently modified files
+                // Query: find().sort({ lastModified: -1 })
+                new Index()
+                        .on("lastModified", Sort.Direction.DESC)
+                        .named("idx_lastModified_desc"),
+
+                // PHASE 3: FUTURE-PROOFING
+                // INDEX 4: Compound index - filename + upload time
+                // Use Case: File versioning - "Get all versions of users.csv"
+                // Query: find({ filename: "users.csv" }).sort({ uploadedAt: -1 })
+                new Index()
+                        .on("filename", Sort.Direction.ASC)
+                        .on("uploadedAt", Sort.Direction.DESC)
+                        .named("idx_filename_uploadedAt"),
+
+                // LOOKUPS
+                // INDEX 5: Multikey index on embedded user emails
+                // Use Case: "Which files contain this email" (GET /users/search/email)
+                // Query: aggregate([{ $match: { "users.email": X } }, { $unwind: "$users" }, ...])
+                // Cost: one key per user, maintained by every user write
+                new Index()
+                        .on("users.email", Sort.Direction.ASC)
+                        .named("idx_users_email"),
+
+                // INDEX 6: Multikey index on embedded user names
+                // Use Case: Find users by name prefix (GET /users/search/name)
+                // Query: { "users.name": /^Prefix/ } - an anchored, case-sensitive regex is a range scan
+                new Index()
+                        .on("users.name", Sort.Direction.ASC)
+                        .named("idx_users_name")
+
+                // INDEX 7 (OPTIONAL): TTL Index - Auto-delete files older than 90 days
+                // Add ONLY if a retention policy is needed:
+                // new Index().on("uploadedAt", Sort.Direction.ASC).expire(7776000).named("idx_ttl_cleanup")
         );
-        System.out.println("✓ Index idx_uploadedAt_desc created successfully\n");
-
-        // INDEX 3: Modification time sorting
-        // Use Case: Audit trails, find recently modified files
-        // Query: find().sort({ lastModified: -1 })
-        System.out.println("Creating: idx_lastModified_desc");
-        try {
-            indexOps.dropIndex("idx_lastModified_desc");
-        } catch (Exception e) {
-            // Index doesn't exist
-        }
-
-        indexOps.ensureIndex(
-            new Index()
-                .on("lastModified", Sort.Direction.DESC)
-                .named("idx_lastModified_desc")
-        );
-        System.out.println("✓ Index idx_lastModified_desc created successfully\n");
     }
 
     /**
-     * PHASE 3: FUTURE-PROOFING INDEXES (Plan for growth)
-     *
-     * These indexes prepare the application for future features like versioning.
+     * Indexes of csv_file_buckets
+     * Support the bucketed storage layout, where each file's users are split
+     * across fixed-size bucket documents.
      */
-    private void createPhase3FutureProofingIndexes() {
-        System.out.println("=== Creating Phase 3: Future-Proofing Indexes ===\n");
-
-        IndexOperations indexOps = mongoTemplate.indexOps("csv_files");
-
-        // INDEX 4: Compound index - filename + upload time
-        // Use Case: File versioning - "Get all versions of users.csv"
-        // Query: find({ filename: "users.csv" }).sort({ uploadedAt: -1 })
-        // Benefit: Single compound index beats two separate indexes
-        System.out.println("Creating: idx_filename_uploadedAt (COMPOUND)");
-        try {
-            indexOps.dropIndex("idx_filename_uploadedAt");
-        } catch (Exception e) {
-            // Index doesn't exist
-        }
-
-        indexOps.ensureIndex(
-            new Index()
-                .on("filename", Sort.Direction.ASC)
-                .on("uploadedAt", Sort.Direction.DESC)
-                .named("idx_filename_uploadedAt")
-        );
-        System.out.println("✓ Index idx_filename_uploadedAt created successfully\n");
-
-        // INDEX 5 (OPTIONAL): TTL Index - Auto-delete old files
-        // Uncomment below ONLY if retention policy is needed
-        // Benefit: Automatic cleanup of files older than 90 days
-        // Note: MongoDB deletes documents in background, minimal impact
-
-        /*
-        System.out.println("Creating: idx_ttl_cleanup (TTL)");
-        try {
-            indexOps.dropIndex("idx_ttl_cleanup");
-        } catch (Exception e) {
-            // Index doesn't exist
-        }
-
-        indexOps.ensureIndex(
-            new Index()
-                .on("uploadedAt", Sort.Direction.ASC)
-                .expire(7776000)  // 90 days in seconds
-                .named("idx_ttl_cleanup")
+    static List<Index> bucketIndexes() {
+        return List.of(
+                // INDEX 1: Buckets of a file in order
+                // Use Case: Load/replace all users of a file, find a bucket with free space
+                // Query: find({ fileId: X }).sort({ seq: 1 })
+                new Index()
+                        .on("fileId", Sort.Direction.ASC)
+                        .on("seq", Sort.Direction.ASC)
+                        .unique()
+                        .named("idx_bucket_file_seq"),
+
+                // INDEX 2: Multikey index on embedded user ids, unique per file
+                // Use Case: Single-user update/delete/duplicate check touches one bucket
+                // Query: find({ fileId: X, "users._id": 42, count: { $gt: 0 } })
+                // Unique: a user id pushed into a second bucket of the same file is rejected,
+                // which makes concurrent creates of one id safe without a lock.
+                // Partial: empty buckets all index as { fileId, null } and would collide
+                new Index()
+                        .on("fileId", Sort.Direction.ASC)
+                        .on("users._id", Sort.Direction.ASC)
+                        .unique()
+                        .partial(PartialIndexFilter.of(where("count").gt(0)))
+                        .named("idx_bucket_file_user"),
+
+                // INDEX 3: Id range of each bucket
+                // Use Case: Keyset pages read bucket bounds from the index, then load only the buckets
+                //           that can hold the page (GET /users/list)
+                // Query: find({ fileId: X, maxId: { $gt: afterId } }, { seq: 1, minId: 1, maxId: 1, _id: 0 }) - covered
+                new Index()
+                        .on("fileId", Sort.Direction.ASC)
+                        .on("maxId", Sort.Direction.ASC)
+                        .on("minId", Sort.Direction.ASC)
+                        .on("seq", Sort.Direction.ASC)
+                        .named("idx_bucket_file_range"),
+
+                // INDEX 4-5: Email and name lookups across files, as on csv_files
+                // Query: aggregate([{ $match: { "users.email": X } }, { $unwind: "$users" }, ...])
+                new Index()
+                        .on("users.email", Sort.Direction.ASC)
+                        .named("idx_bucket_users_email"),
+
+                new Index()
+                        .on("users.name", Sort.Direction.ASC)
+                        .named("idx_bucket_users_name")
         );
-        System.out.println("✓ Index idx_ttl_cleanup created successfully\n");
-        */
-    }
-
-    /**
-     * List all indexes on the csv_files collection
-     * Called for verification and logging
-     */
-    private void listAllIndexes() {
-        IndexOperations indexOps = mongoTemplate.indexOps("csv_files");
-
-        System.out.println("=== Current Indexes on csv_files ===\n");
-
-        try {
-            // Note: getIndexInfo() returns a list of all indexes
-            // In Spring Data MongoDB, we can use indexOps operations to verify
-            System.out.println("Indexes have been created. Verify with:");
-            System.out.println("  mongosh csv_crud_db");
-            System.out.println("  db.csv_files.getIndexes()\n");
-        } catch (Exception e) {
-            System.err.println("Error listing indexes: " + e.getMessage());
-        }
     }
 }
 
@@ -215,7 +189,7 @@ public class MongoDbIndexConfig {
  * No manual action needed - just deploy and run:
  *   mvn spring-boot:run
  *
- * The indexes will be created automatically during application initialization.
+ * Missing or changed indexes are built during application initialization.
  *
  * Verify indexes with mongosh:
  *   mongosh csv_crud_db
@@ -226,9 +200,10 @@ public class MongoDbIndexConfig {
  * ============================================================================
  *
  * Startup Time:
- *   - Index creation adds ~100-200ms to startup
- *   - Idempotent - if indexes exist, creation is skipped
- *   - Negligible impact on overall startup time
+ *   - One listIndexes call per collection when all indexes are up to date
+ *   - Only missing or changed indexes are built; a changed index is built under a
+ *     stand-in name first, so its queries are never left without an index
+ *   - The reconciliation report is printed on every startup
  *
  * Query Performance:
  *   - Critical query (findByFilename): 16,667x faster at scale
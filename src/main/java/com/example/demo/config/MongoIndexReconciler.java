@@ -0,0 +1,253 @@
+package com.example.demo.config;
+
+import org.bson.Document;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexField;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Brings the indexes of a collection in line with a declared set, touching only what differs
+ *
+ * Existing indexes are read once with getIndexInfo() and compared with each
+ * declared index on keys (fields, order, direction) and options (unique,
+ * sparse, TTL, partial filter):
+ * - same spec under the declared name, or under another name: left alone
+ * - missing: created
+ * - same name, only the TTL changed: modified in place with collMod
+ * - same name, different spec: replaced (see rebuild)
+ * - not declared: left in place and reported, never dropped, except the
+ *   stand-in of an interrupted rebuild
+ *
+ * A restart against an up-to-date collection therefore issues no index
+ * builds at all, and an index that already has its declared spec is never dropped.
+ */
+public class MongoIndexReconciler {
+
+    private static final String ID_INDEX = "_id_";
+
+    static final String STAND_IN_SUFFIX = "_rebuild";
+
+    public enum Action { UNCHANGED, CREATED, MODIFIED, REBUILT, EXTRA }
+
+    /**
+     * Outcome for one index
+     * @param detail the spec that was found and/or applied
+     */
+    public record Change(String collection, String name, Action action, String detail) {
+
+        @Override
+        public String toString() {
+            return String.format("%-17s %-28s %-9s %s", collection, name, action, detail);
+        }
+    }
+
+    private final MongoTemplate mongoTemplate;
+
+    public MongoIndexReconciler(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    /**
+     * @param collection the collection to reconcile
+     * @param declared   indexes the collection must have, each with a name
+     * @return one change per declared index, then one EXTRA per undeclared index
+     */
+    public List<Change> reconcile(String collection, List<Index> declared) {
+        IndexOperations indexOps = mongoTemplate.indexOps(collection);
+
+        Map<String, IndexInfo> existing = new LinkedHashMap<>();
+        for (IndexInfo info : indexOps.getIndexInfo()) {
+            existing.put(info.getName(), info);
+        }
+
+        List<Change> changes = new ArrayList<>();
+        for (Index index : declared) {
+            String name = index.getIndexOptions().getString("name");
+            String spec = describe(index);
+            IndexInfo current = existing.remove(name);
+
+            if (current == null) {
+                IndexInfo equivalent = findEquivalent(existing, index);
+                if (equivalent != null) {
+                    // MongoDB refuses a second index with the same keys, so keep the one that is there
+                    existing.remove(equivalent.getName());
+                    changes.add(new Change(collection, name, Action.UNCHANGED,
+                            spec + " (exists as " + equivalent.getName() + ")"));
+                } else {
+                    indexOps.createIndex(index);
+                    changes.add(new Change(collection, name, Action.CREATED, spec));
+                }
+            } else if (matches(current, index)) {
+                changes.add(new Change(collection, name, Action.UNCHANGED, spec));
+            } else if (onlyTtlDiffers(current, index)) {
+                mongoTemplate.executeCommand(new Document("collMod", collection).append("index",
+                        new Document("name", name).append("expireAfterSeconds", expireAfterSeconds(index))));
+                changes.add(new Change(collection, name, Action.MODIFIED, describe(current) + " -> " + spec));
+            } else {
+                rebuild(indexOps, current, index);
+                changes.add(new Change(collection, name, Action.REBUILT, describe(current) + " -> " + spec));
+            }
+        }
+
+        for (IndexInfo extra : existing.values()) {
+            if (isStandIn(extra.getName(), declared)) {
+                // Left by a rebuild that was interrupted after building the declared index
+                indexOps.dropIndex(extra.getName());
+                changes.add(new Change(collection, extra.getName(), Action.EXTRA, describe(extra) + " (stand-in, dropped)"));
+            } else if (!ID_INDEX.equals(extra.getName())) {
+                changes.add(new Change(collection, extra.getName(), Action.EXTRA, describe(extra) + " (not declared, kept)"));
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Replace an index whose spec changed, keeping its queries indexed throughout
+     *
+     * MongoDB cannot rename an index, and refuses a second index with the same
+     * keys and other options, so the declared index cannot simply be built next
+     * to the old one. Instead a stand-in on the old keys plus _id (a distinct
+     * key pattern, no options) is built first, which serves every query the old
+     * index served; then the old index is dropped, the declared one is built
+     * under its name, and the stand-in is dropped. The price is a second build,
+     * paid only when a spec changes. Between the drop and the build, a unique or
+     * TTL option of the old index is not enforced.
+     */
+    private static void rebuild(IndexOperations indexOps, IndexInfo current, Index index) {
+        Index standIn = standIn(current, index);
+        if (standIn != null) {
+            indexOps.createIndex(standIn);
+        }
+        indexOps.dropIndex(current.getName());
+        indexOps.createIndex(index);
+        if (standIn != null) {
+            indexOps.dropIndex(current.getName() + STAND_IN_SUFFIX);
+        }
+    }
+
+    /**
+     * @return an index serving the queries of current, or null if it has no plain ascending/descending stand-in
+     */
+    private static Index standIn(IndexInfo current, Index declared) {
+        Document keys = keys(current);
+        if (keys.containsKey("_id") || keys.containsValue("special")) {
+            return null;
+        }
+        Index standIn = new Index();
+        keys.forEach((key, direction) -> standIn.on(key, direction.equals(1) ? Sort.Direction.ASC : Sort.Direction.DESC));
+        standIn.on("_id", Sort.Direction.ASC);
+        if (sameKeys(standIn.getIndexKeys(), declared.getIndexKeys())) {
+            // The declared index is the stand-in with other options: MongoDB would refuse both
+            return null;
+        }
+        return standIn.named(current.getName() + STAND_IN_SUFFIX);
+    }
+
+    private static boolean isStandIn(String name, List<Index> declared) {
+        return name.endsWith(STAND_IN_SUFFIX) && declared.stream().anyMatch(index ->
+                name.equals(index.getIndexOptions().getString("name") + STAND_IN_SUFFIX));
+    }
+
+    /**
+     * @return true if both are TTL indexes that differ only in expireAfterSeconds, which collMod can change
+     */
+    private static boolean onlyTtlDiffers(IndexInfo info, Index index) {
+        return expireAfterSeconds(index) != null && info.getExpireAfter().isPresent() && matchesApartFromTtl(info, index);
+    }
+
+    private static IndexInfo findEquivalent(Map<String, IndexInfo> existing, Index index) {
+        for (IndexInfo info : existing.values()) {
+            if (matches(info, index)) {
+                return info;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the existing index has the declared keys, in order, and options
+     */
+    static boolean matches(IndexInfo info, Index index) {
+        return matchesApartFromTtl(info, index)
+                && Objects.equals(info.getExpireAfter().map(Duration::getSeconds).orElse(null), expireAfterSeconds(index));
+    }
+
+    private static boolean matchesApartFromTtl(IndexInfo info, Index index) {
+        return sameKeys(keys(info), index.getIndexKeys())
+                && info.isUnique() == options(index).getBoolean("unique", false)
+                && info.isSparse() == options(index).getBoolean("sparse", false)
+                && Objects.equals(partialFilter(info), partialFilter(index));
+    }
+
+    private static boolean sameKeys(Document keys, Document other) {
+        // Key order matters for compound indexes; Document.equals ignores it
+        return new ArrayList<>(keys.entrySet()).equals(new ArrayList<>(other.entrySet()));
+    }
+
+    private static Document keys(IndexInfo info) {
+        Document keys = new Document();
+        for (IndexField field : info.getIndexFields()) {
+            // Non-directional keys (text, geo, hashed) never match a declared ascending/descending key
+            Object value = field.getDirection() == null ? "special"
+                    : field.getDirection() == Sort.Direction.ASC ? 1 : -1;
+            keys.append(field.getKey(), value);
+        }
+        return keys;
+    }
+
+    private static Document options(Index index) {
+        return index.getIndexOptions();
+    }
+
+    private static Long expireAfterSeconds(Index index) {
+        Number seconds = options(index).get("expireAfterSeconds", Number.class);
+        return seconds == null ? null : seconds.longValue();
+    }
+
+    private static Document partialFilter(Index index) {
+        return options(index).get("partialFilterExpression", Document.class);
+    }
+
+    private static Document partialFilter(IndexInfo info) {
+        String filter = info.getPartialFilterExpression();
+        return filter == null ? null : Document.parse(filter);
+    }
+
+    private static String describe(Index index) {
+        return describe(index.getIndexKeys(), options(index).getBoolean("unique", false),
+                options(index).getBoolean("sparse", false), expireAfterSeconds(index), partialFilter(index));
+    }
+
+    private static String describe(IndexInfo info) {
+        return describe(keys(info), info.isUnique(), info.isSparse(),
+                info.getExpireAfter().map(Duration::getSeconds).orElse(null), partialFilter(info));
+    }
+
+    private static String describe(Document keys, boolean unique, boolean sparse, Long expireAfterSeconds,
+                                   Document partialFilter) {
+        StringBuilder spec = new StringBuilder(keys.toJson());
+        if (unique) {
+            spec.append(" unique");
+        }
+        if (sparse) {
+            spec.append(" sparse");
+        }
+        if (expireAfterSeconds != null) {
+            spec.append(" ttl=").append(expireAfterSeconds).append('s');
+        }
+        if (partialFilter != null) {
+            spec.append(" where ").append(partialFilter.toJson());
+        }
+        return spec.toString();
+    }
+}
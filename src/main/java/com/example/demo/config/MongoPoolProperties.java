@@ -0,0 +1,18 @@
+package com.example.demo.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * MongoDB connection pool settings (app.mongo.pool.*), applied by MongoClientConfig
+ *
+ * Unset values keep what spring.data.mongodb.uri says, or the driver default.
+ * maxSize: connections per server (driver default 100); requests beyond it wait for one.
+ * minSize: connections kept open while idle, so a burst does not start with handshakes.
+ * maxWait: how long a request waits for a free connection before failing (driver default 2m).
+ * maxConnecting: connections being established at once (driver default 2).
+ */
+@ConfigurationProperties(prefix = "app.mongo.pool")
+public record MongoPoolProperties(Integer maxSize, Integer minSize, Duration maxWait, Integer maxConnecting) {
+}
@@ -0,0 +1,19 @@
+package com.example.demo.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Upload parsing settings (app.parser.*)
+ *
+ * parallelThreshold: uploads at least this large are spooled to a temp file and
+ * parsed in chunks on the common fork-join pool; smaller ones are parsed on the
+ * request thread.
+ * chunkSize: target size of each chunk. Smaller chunks balance load better,
+ * larger ones cost less coordination.
+ */
+@ConfigurationProperties(prefix = "app.parser")
+public record ParserProperties(@DefaultValue("4MB") DataSize parallelThreshold,
+                               @DefaultValue("1MB") DataSize chunkSize) {
+}
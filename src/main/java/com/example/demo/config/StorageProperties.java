@@ -0,0 +1,23 @@
+package com.example.demo.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * Storage layout settings (app.storage.*)
+ *
+ * bucketSize: when > 0, users of newly uploaded files are stored in
+ * csv_file_buckets documents of at most bucketSize users each, with a
+ * lightweight csv_files header. 0 keeps users embedded in the csv_files document.
+ *
+ * keepOriginal: whether the original bytes of each upload are kept, gzipped in
+ * the csv_contents GridFS bucket. They never count against the 16MB document
+ * limit and are only read by GET /users/original.
+ */
+@ConfigurationProperties(prefix = "app.storage")
+public record StorageProperties(@DefaultValue("0") int bucketSize, @DefaultValue("true") boolean keepOriginal) {
+
+    public boolean bucketed() {
+        return bucketSize > 0;
+    }
+}
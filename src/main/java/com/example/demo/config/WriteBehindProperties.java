@@ -0,0 +1,26 @@
+package com.example.demo.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Write-behind settings (app.write-behind.*), see WriteBehindBuffer
+ *
+ * enabled: buffer single-user mutations in memory and save them in periodic flushes.
+ * maxDelay: time between flushes, so the longest a mutation stays unsaved (plus one save).
+ * maxBatch: buffered mutations of one file that trigger a flush before maxDelay.
+ * maxBuffered: unsaved mutations across all files beyond which mutations are refused with 503.
+ * journal: directory of the append-only journal that survives an unclean shutdown; unset = no journal.
+ * journalSync: force every journal append to disk (survives power loss too, one fsync per mutation).
+ */
+@ConfigurationProperties(prefix = "app.write-behind")
+public record WriteBehindProperties(@DefaultValue("false") boolean enabled,
+                                    @DefaultValue("200ms") Duration maxDelay,
+                                    @DefaultValue("1000") int maxBatch,
+                                    @DefaultValue("100000") int maxBuffered,
+                                    Path journal,
+                                    @DefaultValue("false") boolean journalSync) {
+}
@@ -0,0 +1,16 @@
+package com.example.demo.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+/**
+ * Single-user write settings (app.write.*), see FileWriteCoalescer
+ *
+ * lockTimeout: how long a create/update/patch/delete waits behind earlier
+ * writes to the same file before it fails without being applied.
+ */
+@ConfigurationProperties(prefix = "app.write")
+public record WriteProperties(@DefaultValue("5s") Duration lockTimeout) {
+}
@@ -0,0 +1,213 @@
+package com.example.demo.controller;
+
+import com.example.demo.service.ReactiveUserService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.multipart.FilePartEvent;
+import org.springframework.http.codec.multipart.PartEvent;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The /users endpoints of the reactive profile, served by WebFlux on Netty
+ *
+ * Same paths, parameters and responses as UserController for uploads in
+ * replace mode, listing, streaming, lookups and file info. The other
+ * endpoints (single-user writes, batch, ingestion, export, originals, delta
+ * uploads) are only served by the default servlet mode.
+ */
+@RestController
+@RequestMapping("/users")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveUserController {
+
+    private final ReactiveUserService service;
+
+    public ReactiveUserController(ReactiveUserService service) {
+        this.service = service;
+    }
+
+    /* ---------- READ ---------- */
+    /**
+     * Get all users from the uploaded CSV file, stored in MongoDB while it is received
+     * The file part is parsed as it arrives and never buffered whole
+     * @param parts the multipart body, with the CSV in the part named file
+     * @param includeUsers whether to include the users in the response
+     * @param mode only replace; delta uploads need the servlet mode
+     * @return list of all users and the MongoDB file ID
+     */
+    @PostMapping(value = "/getAll", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public Mono<ResponseEntity<?>> getAllUsers(
+            @RequestBody Flux<PartEvent> parts,
+            @RequestParam(defaultValue = "true") boolean includeUsers,
+            @RequestParam(defaultValue = "replace") String mode
+    ) {
+        if (!"replace".equals(mode.toLowerCase(Locale.ROOT))) {
+            // Drain the body, the connection is reused
+            return parts.doOnNext(part -> DataBufferUtils.release(part.content()))
+                    .then(Mono.just(badRequest(new IllegalArgumentException(
+                            "Unknown mode: " + mode + " (expected replace; delta needs the servlet mode)"))));
+        }
+
+        return parts.windowUntil(PartEvent::isLast)
+                .concatMap(events -> events.switchOnFirst((first, all) -> {
+                    if (first.get() instanceof FilePartEvent file && "file".equals(file.name())) {
+                        return service.upload(file.filename(), all.map(PartEvent::content), includeUsers);
+                    }
+                    return all.doOnNext(part -> DataBufferUtils.release(part.content())).then(Mono.empty());
+                }))
+                .next()
+                .switchIfEmpty(Mono.error(() -> new IllegalArgumentException("Missing multipart part: file")))
+                .<ResponseEntity<?>>map(result -> {
+                    Map<String, Object> response = new LinkedHashMap<>();
+                    response.put("message", "Users retrieved successfully");
+                    response.put("filename", result.get("filename"));
+                    response.put("mongoDbId", result.get("fileId"));
+                    response.put("count", result.get("userCount"));
+                    response.put("deduplicated", result.get("deduplicated"));
+                    response.put("mode", result.get("mode"));
+                    if (includeUsers) {
+                        response.put("users", result.get("users"));
+                    }
+                    response.put("note", "File stored in MongoDB. Use filename in subsequent requests.");
+                    return ResponseEntity.ok(response);
+                })
+                .onErrorResume(e -> Mono.just(badRequest(e)));
+    }
+
+    /* ---------- LIST ---------- */
+    /**
+     * Get one page of a stored file's users, ordered by id
+     * Pass the returned nextAfterId as afterId to get the next page
+     * 503 when no MongoDB connection frees up within app.mongo.pool.max-wait
+     * @param filename the CSV filename stored in MongoDB
+     * @param afterId last user ID of the previous page (optional)
+     * @param limit page size, at most 1000
+     * @return users of the page and the cursor for the next one
+     */
+    @GetMapping("/list")
+    public Mono<ResponseEntity<?>> listUsers(
+            @RequestParam String filename,
+            @RequestParam(required = false) Integer afterId,
+            @RequestParam(defaultValue = "100") int limit
+    ) {
+        return service.listUsers(filename, afterId, limit)
+                .<ResponseEntity<?>>map(result -> ok("Users retrieved successfully", result))
+                .onErrorResume(ReactiveUserController::error);
+    }
+
+    /**
+     * Stream all users of a stored file as NDJSON (one JSON user per line)
+     * Users are written as the client reads them, fetched from a MongoDB cursor on demand
+     * @param filename the CSV filename stored in MongoDB
+     * @return application/x-ndjson body
+     */
+    @GetMapping("/stream")
+    public Mono<ResponseEntity<?>> streamUsers(
+            @RequestParam String filename
+    ) {
+        return service.streamUsers(filename)
+                .<ResponseEntity<?>>map(users -> ResponseEntity.ok()
+                        .contentType(MediaType.APPLICATION_NDJSON)
+                        .body(users))
+                .onErrorResume(ReactiveUserController::error);
+    }
+
+    /* ---------- SEARCH ---------- */
+    /**
+     * Find which stored files hold a user with an email
+     * @param email exact email to look for
+     * @param limit max matches, at most 1000
+     * @return filenames and the matching (filename, user) pairs
+     */
+    @GetMapping("/search/email")
+    public Mono<ResponseEntity<?>> findUsersByEmail(
+            @RequestParam String email,
+            @RequestParam(defaultValue = "100") int limit
+    ) {
+        return service.findUsersByEmail(email, limit)
+                .<ResponseEntity<?>>map(result -> ok("Lookup completed", result))
+                .onErrorResume(ReactiveUserController::error);
+    }
+
+    /**
+     * Find users whose name starts with a prefix, across all stored files
+     * @param prefix start of the name (case-sensitive)
+     * @param limit max matches, at most 1000
+     * @return filenames and the matching (filename, user) pairs
+     */
+    @GetMapping("/search/name")
+    public Mono<ResponseEntity<?>> findUsersByNamePrefix(
+            @RequestParam String prefix,
+            @RequestParam(defaultValue = "100") int limit
+    ) {
+        return service.findUsersByNamePrefix(prefix, limit)
+                .<ResponseEntity<?>>map(result -> ok("Lookup completed", result))
+                .onErrorResume(ReactiveUserController::error);
+    }
+
+    /* ---------- FILE INFO ---------- */
+    /**
+     * Get information about a stored file in MongoDB
+     * @param filename the filename to query
+     * @return file details
+     */
+    @GetMapping("/info/{filename}")
+    public Mono<ResponseEntity<?>> getFileInfo(
+            @PathVariable String filename
+    ) {
+        return service.getFileInfo(filename)
+                .<ResponseEntity<?>>map(fileInfo -> ResponseEntity.ok(Map.of(
+                        "message", "File information retrieved",
+                        "fileInfo", fileInfo
+                )))
+                .onErrorResume(ReactiveUserController::error);
+    }
+
+    /* ---------- CACHE ---------- */
+    /**
+     * Get hit/miss/eviction counters of the in-memory file cache
+     * @return cache statistics
+     */
+    @GetMapping("/cache/stats")
+    public ResponseEntity<?> getCacheStats() {
+        return ResponseEntity.ok(Map.of(
+                "message", "Cache statistics retrieved",
+                "cacheStats", service.getCacheStats()
+        ));
+    }
+
+    private static ResponseEntity<?> ok(String message, Map<String, Object> result) {
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("message", message);
+        response.putAll(result);
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * 503 when MongoDB had no connection to spare, 400 otherwise, as in UserController
+     */
+    private static Mono<ResponseEntity<?>> error(Throwable e) {
+        if (e instanceof DataAccessResourceFailureException) {
+            return Mono.just(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(
+                    Map.of("error", String.valueOf(e.getMessage()))
+            ));
+        }
+        return Mono.just(badRequest(e));
+    }
+
+    private static ResponseEntity<?> badRequest(Throwable e) {
+        return ResponseEntity.badRequest().body(
+                Map.of("error", String.valueOf(e.getMessage()))
+        );
+    }
+}
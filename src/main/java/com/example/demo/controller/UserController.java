@@ -1,48 +1,350 @@
 package com.example.demo.controller;
 
 import com.example.demo.model.User;
+import com.example.demo.model.UserOperation;
+import com.example.demo.parser.UserRecordWriter;
+import com.example.demo.service.IngestionJob;
+import com.example.demo.service.IngestionService;
 import com.example.demo.service.UserService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import tools.jackson.databind.ObjectMapper;
+import tools.jackson.databind.ObjectWriter;
 
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Stream;
 
 @RestController
 @RequestMapping("/users")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 public class UserController {
 
+    private static final MediaType NDJSON = MediaType.parseMediaType("application/x-ndjson");
+    private static final MediaType CSV = new MediaType("text", "csv", StandardCharsets.UTF_8);
+    private static final MediaType GZIP = MediaType.parseMediaType("application/gzip");
+
+    // Streamed users are flushed to the client in chunks of this many lines
+    private static final int STREAM_FLUSH_EVERY = 1000;
+
     private final UserService service;
 
-    public UserController(UserService service) {
+    private final IngestionService ingestionService;
+
+    private final ObjectWriter userWriter;
+
+    public UserController(UserService service, IngestionService ingestionService, ObjectMapper objectMapper) {
         this.service = service;
+        this.ingestionService = ingestionService;
+        this.userWriter = objectMapper.writerFor(User.class);
     }
 
     /* ---------- READ ---------- */
     /**
      * Get all users from the uploaded CSV file
-     * File is automatically stored in MongoDB
+     * File is automatically stored in MongoDB; re-uploading the stored content unchanged writes nothing
      * @param file the CSV file uploaded with the request
-     * @return list of all users and MongoDB file ID
+     * @param includeUsers whether to include the users in the response (the upload is parsed either way)
+     * @param mode replace (store the upload as is) or delta (write only the users that changed)
+     * @return list of all users, MongoDB file ID, whether the upload was deduplicated and, in delta mode, the changes
      */
     @PostMapping("/getAll")
     public ResponseEntity<?> getAllUsers(
-            @RequestParam("file") MultipartFile file
+            @RequestParam("file") MultipartFile file,
+            @RequestParam(defaultValue = "true") boolean includeUsers,
+            @RequestParam(defaultValue = "replace") String mode
     ) {
         try {
-            Map<String, Object> result = service.getAllUsers(file);
-            String filename = (String) result.get("filename");
-            String fileId = (String) result.get("fileId");
-            List<User> users = (List<User>) result.get("users");
+            Map<String, Object> result = switch (mode.toLowerCase(Locale.ROOT)) {
+                case "replace" -> service.getAllUsers(file, includeUsers);
+                case "delta" -> service.applyUpload(file, includeUsers);
+                default -> throw new IllegalArgumentException("Unknown mode: " + mode + " (expected replace or delta)");
+            };
+            boolean deduplicated = (boolean) result.get("deduplicated");
 
-            return ResponseEntity.ok(Map.of(
-                    "message", "Users retrieved successfully",
-                    "filename", filename,
-                    "mongoDbId", fileId,
-                    "count", users.size(),
-                    "users", users,
-                    "note", "File stored in MongoDB. Use filename in subsequent requests."
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("message", "Users retrieved successfully");
+            response.put("filename", result.get("filename"));
+            response.put("mongoDbId", result.get("fileId"));
+            response.put("count", result.get("userCount"));
+            response.put("deduplicated", deduplicated);
+            if (result.containsKey("mode")) {
+                response.put("mode", result.get("mode"));
+            }
+            if (result.containsKey("changes")) {
+                response.put("changes", result.get("changes"));
+            }
+            if (includeUsers) {
+                response.put("users", result.get("users"));
+            }
+            response.put("note", deduplicated
+                    ? "Identical to the stored file, nothing written. Use filename in subsequent requests."
+                    : "File stored in MongoDB. Use filename in subsequent requests.");
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(
+                    Map.of("error", e.getMessage())
+            );
+        }
+    }
+
+    /* ---------- ASYNC INGESTION ---------- */
+    /**
+     * Upload a CSV file for background ingestion
+     * Returns immediately; parsing and storing run as a job
+     * @param file the CSV file uploaded with the request
+     * @return job id and the URL to poll for its status
+     */
+    @PostMapping("/ingest")
+    public ResponseEntity<?> ingestUsers(
+            @RequestParam("file") MultipartFile file
+    ) {
+        try {
+            IngestionJob job = ingestionService.submit(file);
+            return ResponseEntity.accepted().body(Map.of(
+                    "message", "Upload accepted for ingestion",
+                    "jobId", job.getId(),
+                    "filename", job.getFilename(),
+                    "state", job.getState(),
+                    "statusUrl", "/users/ingest/" + job.getId()
             ));
+        } catch (RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(
+                    Map.of("error", e.getMessage())
+            );
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(
+                    Map.of("error", e.getMessage())
+            );
+        }
+    }
+
+    /**
+     * Get progress of an ingestion job
+     * @param jobId the id returned by POST /users/ingest
+     * @return state, rows parsed/persisted, error and throughput
+     */
+    @GetMapping("/ingest/{jobId}")
+    public ResponseEntity<?> getIngestionStatus(
+            @PathVariable String jobId
+    ) {
+        return ingestionService.findJob(jobId)
+                .<ResponseEntity<?>>map(job -> ResponseEntity.ok(job.toStatus()))
+                .orElseGet(() -> ResponseEntity.badRequest().body(
+                        Map.of("error", "Ingestion job not found: " + jobId)
+                ));
+    }
+
+    /* ---------- LIST ---------- */
+    /**
+     * Get one page of a stored file's users, ordered by id
+     * Pass the returned nextAfterId as afterId to get the next page
+     * 503 when no MongoDB connection frees up within app.mongo.pool.max-wait
+     * @param filename the CSV filename stored in MongoDB
+     * @param afterId last user ID of the previous page (optional)
+     * @param limit page size, at most 1000
+     * @return users of the page and the cursor for the next one
+     */
+    @GetMapping("/list")
+    public ResponseEntity<?> listUsers(
+            @RequestParam String filename,
+            @RequestParam(required = false) Integer afterId,
+            @RequestParam(defaultValue = "100") int limit
+    ) {
+        try {
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("message", "Users retrieved successfully");
+            response.putAll(service.listUsers(filename, afterId, limit));
+            return ResponseEntity.ok(response);
+        } catch (DataAccessResourceFailureException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(
+                    Map.of("error", e.getMessage())
+            );
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(
+                    Map.of("error", e.getMessage())
+            );
+        }
+    }
+
+    /**
+     * Stream all users of a stored file as NDJSON (one JSON user per line)
+     * Users are written as they are read from MongoDB, so memory use is
+     * constant and the first lines arrive before the whole file is read
+     * @param filename the CSV filename stored in MongoDB
+     * @return application/x-ndjson body
+     */
+    @GetMapping("/stream")
+    public ResponseEntity<?> streamUsers(
+            @RequestParam String filename
+    ) {
+        Stream<User> users;
+        try {
+            users = service.streamUsers(filename);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(
+                    Map.of("error", e.getMessage())
+            );
+        }
+
+        StreamingResponseBody body = out -> {
+            try (users) {
+                writeNdjson(users, out);
+            }
+        };
+        return ResponseEntity.ok().contentType(NDJSON).body(body);
+    }
+
+    /* ---------- EXPORT ---------- */
+    /**
+     * Download a stored file as CSV generated from its current users
+     * The file is streamed with a bounded buffer, so large files need no extra heap
+     * @param filename the CSV filename stored in MongoDB
+     * @param format original (id=,email=,name=) or rfc4180 (quoted CSV with header)
+     * @param gzip whether to gzip the download
+     * @return the CSV file as an attachment
+     */
+    @GetMapping("/export")
+    public ResponseEntity<?> exportUsers(
+            @RequestParam String filename,
+            @RequestParam(defaultValue = "original") String format,
+            @RequestParam(defaultValue = "false") boolean gzip
+    ) {
+        UserRecordWriter.Format exportFormat;
+        Stream<User> users;
+        try {
+            exportFormat = UserRecordWriter.Format.fromParam(format);
+            users = service.streamUsers(filename);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(
+                    Map.of("error", e.getMessage())
+            );
+        }
+
+        StreamingResponseBody body = out -> {
+            long written = service.writeExport(users, exportFormat, gzip, out);
+            System.out.println("✅ Exported " + written + " users from: " + filename);
+        };
+        return ResponseEntity.ok()
+                .contentType(gzip ? GZIP : CSV)
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                        .filename(gzip ? filename + ".gz" : filename, StandardCharsets.UTF_8)
+                        .build().toString())
+                .body(body);
+    }
+
+    /**
+     * Download the original upload of a stored file, byte for byte as it was uploaded
+     * Streamed from GridFS, where it is kept gzipped; with gzip=true the stored
+     * bytes are sent without decompressing them. Content migrated from older
+     * versions is tagged rerendered in its GridFS metadata: it may have been
+     * re-rendered from the users rather than uploaded
+     * @param filename the CSV filename stored in MongoDB
+     * @param gzip whether to download the gzip-compressed upload
+     * @return the upload as an attachment
+     */
+    @GetMapping("/original")
+    public ResponseEntity<?> downloadOriginal(
+            @RequestParam String filename,
+            @RequestParam(defaultValue = "false") boolean gzip
+    ) {
+        InputStream original;
+        try {
+            original = service.openOriginal(filename, gzip);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(
+                    Map.of("error", e.getMessage())
+            );
+        }
+
+        StreamingResponseBody body = out -> {
+            try (original) {
+                original.transferTo(out);
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(gzip ? GZIP : CSV)
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                        .filename(gzip ? filename + ".gz" : filename, StandardCharsets.UTF_8)
+                        .build().toString())
+                .body(body);
+    }
+
+    private void writeNdjson(Stream<User> users, OutputStream out) throws IOException {
+        BufferedOutputStream buffered = new BufferedOutputStream(out, 64 * 1024);
+        int written = 0;
+        for (Iterator<User> it = users.iterator(); it.hasNext(); ) {
+            buffered.write(userWriter.writeValueAsBytes(it.next()));
+            buffered.write('\n');
+            if (++written % STREAM_FLUSH_EVERY == 0) {
+                buffered.flush();
+            }
+        }
+        buffered.flush();
+    }
+
+    /* ---------- SEARCH ---------- */
+    /**
+     * Find which stored files hold a user with an email
+     * @param email exact email to look for
+     * @param limit max matches, at most 1000
+     * @return filenames and the matching (filename, user) pairs
+     */
+    @GetMapping("/search/email")
+    public ResponseEntity<?> findUsersByEmail(
+            @RequestParam String email,
+            @RequestParam(defaultValue = "100") int limit
+    ) {
+        try {
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("message", "Lookup completed");
+            response.putAll(service.findUsersByEmail(email, limit));
+            return ResponseEntity.ok(response);
+        } catch (DataAccessResourceFailureException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(
+                    Map.of("error", e.getMessage())
+            );
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(
+                    Map.of("error", e.getMessage())
+            );
+        }
+    }
+
+    /**
+     * Find users whose name starts with a prefix, across all stored files
+     * @param prefix start of the name (case-sensitive)
+     * @param limit max matches, at most 1000
+     * @return filenames and the matching (filename, user) pairs
+     */
+    @GetMapping("/search/name")
+    public ResponseEntity<?> findUsersByNamePrefix(
+            @RequestParam String prefix,
+            @RequestParam(defaultValue = "100") int limit
+    ) {
+        try {
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("message", "Lookup completed");
+            response.putAll(service.findUsersByNamePrefix(prefix, limit));
+            return ResponseEntity.ok(response);
+        } catch (DataAccessResourceFailureException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(
+                    Map.of("error", e.getMessage())
+            );
         } catch (Exception e) {
             return ResponseEntity.badRequest().body(
                     Map.of("error", e.getMessage())
@@ -77,6 +379,10 @@ public class UserController {
                     "operation", "CREATE",
                     "storage", "MongoDB"
             ));
+        } catch (CannotAcquireLockException | RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(
+                    Map.of("error", e.getMessage())
+            );
         } catch (Exception e) {
             return ResponseEntity.badRequest().body(
                     Map.of("error", e.getMessage())
@@ -111,6 +417,10 @@ public class UserController {
                     "operation", "UPDATE",
                     "storage", "MongoDB"
             ));
+        } catch (CannotAcquireLockException | RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(
+                    Map.of("error", e.getMessage())
+            );
         } catch (Exception e) {
             return ResponseEntity.badRequest().body(
                     Map.of("error", e.getMessage())
@@ -150,6 +460,10 @@ public class UserController {
             }
 
             return ResponseEntity.ok(response);
+        } catch (CannotAcquireLockException | RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(
+                    Map.of("error", e.getMessage())
+            );
         } catch (Exception e) {
             return ResponseEntity.badRequest().body(
                     Map.of("error", e.getMessage())
@@ -178,6 +492,41 @@ public class UserController {
                     "operation", "DELETE",
                     "storage", "MongoDB"
             ));
+        } catch (CannotAcquireLockException | RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(
+                    Map.of("error", e.getMessage())
+            );
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(
+                    Map.of("error", e.getMessage())
+            );
+        }
+    }
+
+    /* ---------- BATCH ---------- */
+    /**
+     * Apply many create/update/patch/delete operations to one file in a single request
+     * Body: [{"op":"create","id":1,"email":"a@a.com","name":"A"}, {"op":"delete","id":2}, ...]
+     * @param filename the CSV filename stored in MongoDB
+     * @param ordered stop at the first failed operation (true) or apply every operation that can be applied
+     * @param operations the operations, applied in order
+     * @return applied/failed/skipped counts and one result per operation
+     */
+    @PostMapping("/batch")
+    public ResponseEntity<?> applyBatch(
+            @RequestParam String filename,
+            @RequestParam(defaultValue = "true") boolean ordered,
+            @RequestBody List<UserOperation> operations
+    ) {
+        try {
+            Map<String, Object> result = service.applyBatch(filename, operations, ordered);
+
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("message", "Batch applied. Updated in MongoDB: " + filename);
+            response.putAll(result);
+            response.put("operation", "BATCH");
+            response.put("storage", "MongoDB");
+            return ResponseEntity.ok(response);
         } catch (Exception e) {
             return ResponseEntity.badRequest().body(
                     Map.of("error", e.getMessage())
@@ -201,11 +550,27 @@ public class UserController {
                     "message", "File information retrieved",
                     "fileInfo", fileInfo
             ));
+        } catch (DataAccessResourceFailureException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(
+                    Map.of("error", e.getMessage())
+            );
         } catch (Exception e) {
             return ResponseEntity.badRequest().body(
                     Map.of("error", e.getMessage())
             );
         }
     }
-}
 
+    /* ---------- CACHE ---------- */
+    /**
+     * Get hit/miss/eviction counters of the in-memory file cache
+     * @return cache statistics
+     */
+    @GetMapping("/cache/stats")
+    public ResponseEntity<?> getCacheStats() {
+        return ResponseEntity.ok(Map.of(
+                "message", "Cache statistics retrieved",
+                "cacheStats", service.getCacheStats()
+        ));
+    }
+}
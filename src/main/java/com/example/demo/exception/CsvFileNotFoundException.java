@@ -0,0 +1,11 @@
+package com.example.demo.exception;
+
+/**
+ * Thrown when an operation names a file that is not stored in MongoDB
+ */
+public class CsvFileNotFoundException extends RuntimeException {
+
+    public CsvFileNotFoundException(String filename) {
+        super("File not found in database: " + filename);
+    }
+}
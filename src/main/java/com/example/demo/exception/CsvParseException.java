@@ -0,0 +1,35 @@
+package com.example.demo.exception;
+
+/**
+ * Thrown when a line of an uploaded CSV file cannot be parsed into a User
+ * Carries the 1-based line number and the text of the offending line
+ */
+public class CsvParseException extends FileProcessingException {
+
+    private final long lineNumber;
+
+    private final String line;
+
+    public CsvParseException(long lineNumber, String line) {
+        super("Invalid CSV format in line " + lineNumber + ": " + line);
+        this.lineNumber = lineNumber;
+        this.line = line;
+    }
+
+    protected CsvParseException(String message, long lineNumber) {
+        super(message);
+        this.lineNumber = lineNumber;
+        this.line = null;
+    }
+
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * @return the offending line, or null when the error is not about a single line
+     */
+    public String getLine() {
+        return line;
+    }
+}
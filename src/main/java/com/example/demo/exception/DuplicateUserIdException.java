@@ -0,0 +1,26 @@
+package com.example.demo.exception;
+
+/**
+ * Thrown when an uploaded CSV file contains the same user ID more than once
+ * getLineNumber() is the line of the repeated ID
+ */
+public class DuplicateUserIdException extends CsvParseException {
+
+    private final int userId;
+    private final long firstLineNumber;
+
+    public DuplicateUserIdException(int userId, long lineNumber, long firstLineNumber) {
+        super("Duplicate user ID " + userId + " in line " + lineNumber
+                + " (first seen in line " + firstLineNumber + ")", lineNumber);
+        this.userId = userId;
+        this.firstLineNumber = firstLineNumber;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+
+    public long getFirstLineNumber() {
+        return firstLineNumber;
+    }
+}
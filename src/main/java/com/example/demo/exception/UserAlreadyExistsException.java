@@ -0,0 +1,18 @@
+package com.example.demo.exception;
+
+/**
+ * Thrown when a create targets a user ID the file already holds
+ */
+public class UserAlreadyExistsException extends RuntimeException {
+
+    private final int userId;
+
+    public UserAlreadyExistsException(int userId) {
+        super("User with ID " + userId + " already exists");
+        this.userId = userId;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+}
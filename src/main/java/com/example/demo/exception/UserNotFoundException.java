@@ -0,0 +1,18 @@
+package com.example.demo.exception;
+
+/**
+ * Thrown when a single-user operation targets a user ID the file does not hold
+ */
+public class UserNotFoundException extends RuntimeException {
+
+    private final int userId;
+
+    public UserNotFoundException(int userId) {
+        super("User with ID " + userId + " not found");
+        this.userId = userId;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+}
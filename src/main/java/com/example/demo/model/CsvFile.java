@@ -1,13 +1,22 @@
 package com.example.demo.model;
 
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.annotation.Version;
 import org.springframework.data.mongodb.core.mapping.Document;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * MongoDB Document to store CSV file data
- * Stores the entire CSV content along with metadata
+ * Stores the parsed users along with metadata; the CSV text is a derived
+ * artifact rendered from users on demand (see UserRecordWriter). The original
+ * upload, when kept, lives gzipped in GridFS (csv_contents) and is referenced
+ * by contentId, so reading this document never loads raw content.
+ *
+ * In bucketed layout (bucketSize > 0) this document is only a header:
+ * users live in csv_file_buckets (see UserBucket) and users is null.
  */
 @Document(collection = "csv_files")
 public class CsvFile {
@@ -19,20 +28,36 @@ public class CsvFile {
 
     private List<User> users;  // List of users parsed from CSV
 
-    private String csvContent;  // Original CSV content as string
+    private String contentId;  // GridFS id of the gzipped original upload; null if not kept
 
     private LocalDateTime uploadedAt;  // When file was uploaded
 
     private LocalDateTime lastModified;  // When file was last updated
 
+    private int bucketSize;  // Max users per bucket, 0 when users are embedded
+
+    private int bucketCount;  // Number of buckets allocated (bucketed layout)
+
+    private int userCount;  // Number of users in the file; kept current by every write
+
+    private long sizeBytes;  // Size of the last uploaded file in bytes
+
+    private String contentHash;  // SHA-256 (hex) of the upload the users came from; null once users change
+
+    @Version
+    private Long version;  // Optimistic lock; bumped by every save and every targeted update
+
+    @Transient
+    private UserIdIndex userIndex;  // Lazily built id -> position index over users (not persisted)
+
     // Constructors
     public CsvFile() {
     }
 
-    public CsvFile(String filename, List<User> users, String csvContent) {
+    public CsvFile(String filename, List<User> users) {
         this.filename = filename;
         this.users = users;
-        this.csvContent = csvContent;
+        this.userCount = users != null ? users.size() : 0;
         this.uploadedAt = LocalDateTime.now();
         this.lastModified = LocalDateTime.now();
     }
@@ -59,17 +84,36 @@ public class CsvFile {
     }
 
     public void setUsers(List<User> users) {
+        if (users != this.users) {
+            this.userIndex = null;
+        }
         this.users = users;
+        // The users no longer come from a known upload; set again after storing an upload
+        this.contentHash = null;
         this.lastModified = LocalDateTime.now();
     }
 
-    public String getCsvContent() {
-        return csvContent;
+    /**
+     * Id index over the embedded users list, built on first use and kept across
+     * mutations made through it. Call compact() on it before persisting.
+     * @return the index; users is initialised to an empty list if absent
+     */
+    public UserIdIndex userIndex() {
+        if (userIndex == null) {
+            if (users == null) {
+                users = new ArrayList<>();
+            }
+            userIndex = UserIdIndex.of(users);
+        }
+        return userIndex;
     }
 
-    public void setCsvContent(String csvContent) {
-        this.csvContent = csvContent;
-        this.lastModified = LocalDateTime.now();
+    public String getContentId() {
+        return contentId;
+    }
+
+    public void setContentId(String contentId) {
+        this.contentId = contentId;
     }
 
     public LocalDateTime getUploadedAt() {
@@ -88,12 +132,68 @@ public class CsvFile {
         this.lastModified = lastModified;
     }
 
+    public int getBucketSize() {
+        return bucketSize;
+    }
+
+    public void setBucketSize(int bucketSize) {
+        this.bucketSize = bucketSize;
+    }
+
+    public int getBucketCount() {
+        return bucketCount;
+    }
+
+    public void setBucketCount(int bucketCount) {
+        this.bucketCount = bucketCount;
+    }
+
+    public int getUserCount() {
+        return userCount;
+    }
+
+    public void setUserCount(int userCount) {
+        this.userCount = userCount;
+    }
+
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public void setSizeBytes(long sizeBytes) {
+        this.sizeBytes = sizeBytes;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+    /**
+     * @return true if users are stored in csv_file_buckets rather than embedded
+     */
+    public boolean isBucketed() {
+        return bucketSize > 0;
+    }
+
     @Override
     public String toString() {
         return "CsvFile{" +
                 "id='" + id + '\'' +
                 ", filename='" + filename + '\'' +
-                ", usersCount=" + (users != null ? users.size() : 0) +
+                ", usersCount=" + (users != null ? users.size() : userCount) +
+                ", bucketSize=" + bucketSize +
                 ", uploadedAt=" + uploadedAt +
                 ", lastModified=" + lastModified +
                 '}';
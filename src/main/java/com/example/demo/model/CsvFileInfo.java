@@ -0,0 +1,38 @@
+package com.example.demo.model;
+
+import java.time.LocalDateTime;
+
+/**
+ * Metadata of a stored CSV file, read without users
+ * Filled by CsvFileRepository.findInfoByFilename
+ *
+ * @param id           MongoDB ObjectId of the csv_files document
+ * @param filename     original filename
+ * @param userCount    number of users, kept current by every write
+ * @param sizeBytes    size of the last uploaded file in bytes
+ * @param bucketSize   max users per bucket, 0 when users are embedded
+ * @param uploadedAt   when the file was first uploaded
+ * @param lastModified when the file was last changed
+ * @param contentHash  SHA-256 of the upload the users came from, null if changed since
+ * @param contentId    GridFS id of the gzipped original upload, null if not kept
+ */
+public record CsvFileInfo(String id, String filename, int userCount, long sizeBytes, int bucketSize,
+                          LocalDateTime uploadedAt, LocalDateTime lastModified, String contentHash,
+                          String contentId) {
+
+    /**
+     * Same metadata taken from an already loaded document
+     */
+    public static CsvFileInfo of(CsvFile csvFile) {
+        return new CsvFileInfo(csvFile.getId(), csvFile.getFilename(), csvFile.getUserCount(),
+                csvFile.getSizeBytes(), csvFile.getBucketSize(), csvFile.getUploadedAt(), csvFile.getLastModified(),
+                csvFile.getContentHash(), csvFile.getContentId());
+    }
+
+    /**
+     * @return true if users are stored in csv_file_buckets rather than embedded
+     */
+    public boolean isBucketed() {
+        return bucketSize > 0;
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.demo.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.List;
+
+/**
+ * MongoDB Document holding one fixed-size slice of a file's users
+ * Used when the owning CsvFile is stored in bucketed layout (CsvFile.bucketSize > 0)
+ */
+@Document(collection = "csv_file_buckets")
+public class UserBucket {
+
+    @Id
+    private String id;  // MongoDB ObjectId
+
+    private String fileId;  // Id of the owning CsvFile header
+
+    private int seq;  // Position of this bucket within the file (0-based)
+
+    private int count;  // Number of users currently in the bucket
+
+    private int minId;  // Lowest user id ever stored in the bucket
+
+    private int maxId;  // Highest user id ever stored in the bucket
+
+    private List<User> users;  // Users in upload order
+
+    // Constructors
+    public UserBucket() {
+    }
+
+    public UserBucket(String fileId, int seq, List<User> users) {
+        this.fileId = fileId;
+        this.seq = seq;
+        this.users = users;
+        this.count = users.size();
+        this.minId = users.stream().mapToInt(User::getId).min().orElse(0);
+        this.maxId = users.stream().mapToInt(User::getId).max().orElse(0);
+    }
+
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public void setFileId(String fileId) {
+        this.fileId = fileId;
+    }
+
+    public int getSeq() {
+        return seq;
+    }
+
+    public void setSeq(int seq) {
+        this.seq = seq;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public int getMinId() {
+        return minId;
+    }
+
+    public void setMinId(int minId) {
+        this.minId = minId;
+    }
+
+    public int getMaxId() {
+        return maxId;
+    }
+
+    public void setMaxId(int maxId) {
+        this.maxId = maxId;
+    }
+
+    public List<User> getUsers() {
+        return users;
+    }
+
+    public void setUsers(List<User> users) {
+        this.users = users;
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.demo.model;
+
+import com.example.demo.util.IntIntHashMap;
+
+import java.util.List;
+
+/**
+ * Constant-time id lookup over a file's users list
+ *
+ * Maps user id -> position in the list with a primitive IntIntHashMap.
+ * Removals leave a null hole so that positions of later users stay valid;
+ * compact() closes the holes (once per batch, before the list is persisted).
+ *
+ * The list must only be changed through this index while it is in use.
+ */
+public final class UserIdIndex {
+
+    private final List<User> users;
+    private final IntIntHashMap positions;
+    private int holes;
+
+    private UserIdIndex(List<User> users) {
+        this.users = users;
+        this.positions = new IntIntHashMap(users.size());
+        for (int i = 0; i < users.size(); i++) {
+            // First occurrence wins, matching a linear scan
+            positions.putIfAbsent(users.get(i).getId(), i);
+        }
+    }
+
+    /**
+     * Build an index over a mutable users list
+     */
+    public static UserIdIndex of(List<User> users) {
+        return new UserIdIndex(users);
+    }
+
+    public boolean contains(int id) {
+        return positions.containsKey(id);
+    }
+
+    /**
+     * @return the user with this id, or null
+     */
+    public User get(int id) {
+        int position = positions.get(id);
+        return position == IntIntHashMap.MISSING ? null : users.get(position);
+    }
+
+    /**
+     * Append a user unless its id is already present
+     * @return true if added
+     */
+    public boolean add(User user) {
+        if (positions.putIfAbsent(user.getId(), users.size()) != IntIntHashMap.MISSING) {
+            return false;
+        }
+        users.add(user);
+        return true;
+    }
+
+    /**
+     * Remove the user with this id, leaving a hole until compact()
+     * @return the removed user, or null
+     */
+    public User remove(int id) {
+        int position = positions.remove(id);
+        if (position == IntIntHashMap.MISSING) {
+            return null;
+        }
+        holes++;
+        return users.set(position, null);
+    }
+
+    public int size() {
+        return users.size() - holes;
+    }
+
+    /**
+     * Drop the holes left by remove(), keeping user order, and re-point the index
+     * @return the backing users list, free of holes
+     */
+    public List<User> compact() {
+        if (holes == 0) {
+            return users;
+        }
+        int write = 0;
+        for (int read = 0; read < users.size(); read++) {
+            User user = users.get(read);
+            if (user != null) {
+                if (write != read) {
+                    users.set(write, user);
+                    // Only re-point the indexed occurrence of an id
+                    if (positions.get(user.getId()) == read) {
+                        positions.put(user.getId(), write);
+                    }
+                }
+                write++;
+            }
+        }
+        users.subList(write, users.size()).clear();
+        holes = 0;
+        return users;
+    }
+}
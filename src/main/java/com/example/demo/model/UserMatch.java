@@ -0,0 +1,11 @@
+package com.example.demo.model;
+
+/**
+ * A user found by a lookup across stored files, with the file it belongs to
+ * Filled by CsvFileRepository.findUsersByEmail / findUsersByNamePrefix
+ *
+ * @param filename filename of the CSV file holding the user
+ * @param user     the matching user
+ */
+public record UserMatch(String filename, User user) {
+}
@@ -0,0 +1,12 @@
+package com.example.demo.model;
+
+/**
+ * One entry of a batch mutation request (POST /users/batch)
+ *
+ * @param op    create, update, patch or delete
+ * @param id    the user ID to change
+ * @param email email for create/update, optional for patch, ignored for delete
+ * @param name  name for create/update, optional for patch, ignored for delete
+ */
+public record UserOperation(String op, Integer id, String email, String name) {
+}
@@ -0,0 +1,235 @@
+package com.example.demo.parser;
+
+import com.example.demo.exception.CsvParseException;
+import com.example.demo.model.User;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Parses large user files on several cores
+ *
+ * The file is memory-mapped and cut into chunks of about chunkSize bytes, each
+ * ending right after a '\n' (a '\n' byte never occurs inside a multi-byte UTF-8
+ * sequence, and \r\n pairs stay together). Chunks are parsed on a fork-join pool
+ * by UserRecordParser with chunk-local line numbers; the results are then handed
+ * to the sink in file order, on the calling thread, with line numbers shifted
+ * by the line counts of the preceding chunks. The sink therefore sees exactly
+ * what UserRecordParser.parseWithLineNumbers would produce for the same file,
+ * including which error is reported first.
+ *
+ * Files smaller than parallelThreshold, or a pool without parallelism, are
+ * parsed sequentially.
+ */
+public final class ParallelUserRecordParser {
+
+    private final long parallelThreshold;
+
+    private final int chunkSize;
+
+    private final ForkJoinPool pool;
+
+    private final UserRecordParser recordParser = new UserRecordParser();
+
+    public ParallelUserRecordParser(long parallelThreshold, int chunkSize) {
+        this(parallelThreshold, chunkSize, ForkJoinPool.commonPool());
+    }
+
+    public ParallelUserRecordParser(long parallelThreshold, int chunkSize, ForkJoinPool pool) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        this.parallelThreshold = parallelThreshold;
+        this.chunkSize = chunkSize;
+        this.pool = pool;
+    }
+
+    /**
+     * @param sizeBytes size of the file to parse
+     * @return true if a file of this size is split across the pool
+     */
+    public boolean isParallel(long sizeBytes) {
+        return sizeBytes >= parallelThreshold && sizeBytes > chunkSize && pool.getParallelism() > 1;
+    }
+
+    /**
+     * Parse every non-blank line of a UTF-8 file
+     * Same contract as UserRecordParser.parseWithLineNumbers: the sink is called
+     * on the calling thread, in file order
+     *
+     * @param file the CSV file
+     * @param sink receives users in file order with their line numbers
+     * @return number of users parsed
+     * @throws CsvParseException if a line is not a valid user record
+     */
+    public long parseWithLineNumbers(Path file, ObjLongConsumer<User> sink) throws IOException {
+        List<ByteBuffer> chunks;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (!isParallel(size)) {
+                try (Reader reader = new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8)) {
+                    return recordParser.parseWithLineNumbers(reader, sink);
+                }
+            }
+            // Mappings stay valid after the channel is closed
+            chunks = map(channel, size);
+        }
+
+        List<ForkJoinTask<Chunk>> tasks = new ArrayList<>(chunks.size());
+        for (ByteBuffer bytes : chunks) {
+            tasks.add(pool.submit(() -> parseChunk(bytes)));
+        }
+
+        long lineOffset = 0;
+        long parsed = 0;
+        try {
+            for (ForkJoinTask<Chunk> task : tasks) {
+                Chunk chunk = joinChunk(task);
+                for (int i = 0; i < chunk.size; i++) {
+                    sink.accept(chunk.users.get(i), lineOffset + chunk.lineNumbers[i]);
+                }
+                parsed += chunk.size;
+                if (chunk.failure != null) {
+                    throw new CsvParseException(lineOffset + chunk.failure.getLineNumber(), chunk.failure.getLine());
+                }
+                lineOffset += chunk.lines;
+            }
+        } finally {
+            // Nothing to wait for once the result is decided; queued chunks are skipped
+            for (ForkJoinTask<Chunk> task : tasks) {
+                task.cancel(false);
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Map the file as consecutive chunks, each ending after a '\n' (or at end of file)
+     */
+    private List<ByteBuffer> map(FileChannel channel, long size) throws IOException {
+        List<ByteBuffer> chunks = new ArrayList<>((int) Math.min(size / chunkSize + 1, Integer.MAX_VALUE));
+        long start = 0;
+        while (start < size) {
+            long end = nextLineStart(channel, Math.min(start + chunkSize, size), size);
+            // A single line longer than Integer.MAX_VALUE bytes cannot be mapped in one piece
+            if (end - start > Integer.MAX_VALUE) {
+                throw new IOException("Line starting at byte " + start + " is too long to parse");
+            }
+            chunks.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * @return the offset just after the first '\n' at or after from - 1, or size if there is none
+     */
+    private static long nextLineStart(FileChannel channel, long from, long size) throws IOException {
+        if (from >= size) {
+            return size;
+        }
+        ByteBuffer window = ByteBuffer.allocate(8192);
+        long position = from - 1;
+        while (position < size) {
+            window.clear();
+            int n = channel.read(window, position);
+            if (n < 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                if (window.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += n;
+        }
+        return size;
+    }
+
+    private Chunk parseChunk(ByteBuffer bytes) {
+        Chunk chunk = new Chunk();
+        try (Reader reader = new InputStreamReader(new ByteBufferInputStream(bytes), StandardCharsets.UTF_8)) {
+            chunk.lines = recordParser.parseLines(reader, chunk::add);
+        } catch (CsvParseException e) {
+            // Users before the bad line are still delivered, so the sink can report an earlier duplicate first
+            chunk.failure = e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return chunk;
+    }
+
+    private static Chunk joinChunk(ForkJoinTask<Chunk> task) throws IOException {
+        try {
+            return task.join();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Users of one chunk with their chunk-local line numbers
+     */
+    private static final class Chunk {
+
+        private final List<User> users = new ArrayList<>();
+        private int[] lineNumbers = new int[1024];
+        private int size;
+        private long lines;
+        private CsvParseException failure;
+
+        void add(User user, long lineNumber) {
+            if (size == lineNumbers.length) {
+                lineNumbers = Arrays.copyOf(lineNumbers, size * 2);
+            }
+            // A chunk is at most Integer.MAX_VALUE bytes, so its line numbers fit in an int
+            lineNumbers[size++] = (int) lineNumber;
+            users.add(user);
+        }
+    }
+
+    /**
+     * Reads a mapped chunk without copying it to the heap first
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer bytes;
+
+        ByteBufferInputStream(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            return bytes.hasRemaining() ? bytes.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!bytes.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, bytes.remaining());
+            bytes.get(b, off, n);
+            return n;
+        }
+    }
+}
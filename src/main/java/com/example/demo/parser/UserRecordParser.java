@@ -0,0 +1,283 @@
+package com.example.demo.parser;
+
+import com.example.demo.exception.CsvParseException;
+import com.example.demo.model.User;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Streaming parser for user records stored as key=value pairs
+ * Expected format: id=1,email=test@example.com,name=TestName
+ *
+ * Lines are scanned in place inside a reusable char buffer: the id is parsed
+ * straight from the characters and only the email and name values are turned
+ * into Strings. Semantics match the original split-based parser:
+ * - blank lines are skipped (they still count towards line numbers)
+ * - pairs without '=' and unknown keys are ignored
+ * - keys and values are trimmed, the last occurrence of a key wins
+ * - a missing or non-numeric id is reported as a CsvParseException
+ */
+public final class UserRecordParser {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int KEY_OTHER = 0;
+    private static final int KEY_ID = 1;
+    private static final int KEY_EMAIL = 2;
+    private static final int KEY_NAME = 3;
+
+    private final int bufferSize;
+
+    public UserRecordParser() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    public UserRecordParser(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Parse every non-blank line of the reader and hand each user to the sink
+     * Lines are terminated by \n, \r or \r\n, like BufferedReader.readLine()
+     *
+     * @param reader source of the CSV text (not closed by this method)
+     * @param sink   receives users in file order
+     * @return number of users parsed
+     * @throws CsvParseException if a line is not a valid user record
+     */
+    public long parse(Reader reader, Consumer<User> sink) throws IOException {
+        return parseWithLineNumbers(reader, (user, lineNumber) -> sink.accept(user));
+    }
+
+    /**
+     * Same as parse(Reader, Consumer) but also hands over the 1-based line number
+     * each user was read from, for error reporting by the caller
+     *
+     * @param reader source of the CSV text (not closed by this method)
+     * @param sink   receives users in file order with their line numbers
+     * @return number of users parsed
+     * @throws CsvParseException if a line is not a valid user record
+     */
+    public long parseWithLineNumbers(Reader reader, ObjLongConsumer<User> sink) throws IOException {
+        long[] parsed = new long[1];
+        parseLines(reader, (user, lineNumber) -> {
+            parsed[0]++;
+            sink.accept(user, lineNumber);
+        });
+        return parsed[0];
+    }
+
+    /**
+     * Core of parseWithLineNumbers
+     *
+     * @return number of lines read, blank ones included
+     */
+    long parseLines(Reader reader, ObjLongConsumer<User> sink) throws IOException {
+        char[] buf = new char[bufferSize];
+        int lineStart = 0;
+        int scan = 0;
+        int limit = 0;
+        boolean skipLf = false;
+        long lineNumber = 0;
+
+        while (true) {
+            if (limit == buf.length) {
+                if (lineStart == 0) {
+                    // A single line is longer than the buffer
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                } else {
+                    System.arraycopy(buf, lineStart, buf, 0, limit - lineStart);
+                    scan -= lineStart;
+                    limit -= lineStart;
+                    lineStart = 0;
+                }
+            }
+
+            int n = reader.read(buf, limit, buf.length - limit);
+            if (n < 0) {
+                break;
+            }
+            limit += n;
+
+            for (; scan < limit; scan++) {
+                char c = buf[scan];
+                if (skipLf) {
+                    skipLf = false;
+                    if (c == '\n') {
+                        lineStart = scan + 1;
+                        continue;
+                    }
+                }
+                if (c == '\n' || c == '\r') {
+                    lineNumber++;
+                    if (!isBlank(buf, lineStart, scan)) {
+                        sink.accept(parseRecord(buf, lineStart, scan, lineNumber), lineNumber);
+                    }
+                    skipLf = c == '\r';
+                    lineStart = scan + 1;
+                }
+            }
+        }
+
+        if (lineStart < limit) {
+            lineNumber++;
+            if (!isBlank(buf, lineStart, limit)) {
+                sink.accept(parseRecord(buf, lineStart, limit, lineNumber), lineNumber);
+            }
+        }
+        return lineNumber;
+    }
+
+    /**
+     * Parse every non-blank line of the reader into a list
+     *
+     * @param reader source of the CSV text (not closed by this method)
+     * @return users in file order
+     */
+    public List<User> parseAll(Reader reader) throws IOException {
+        List<User> users = new ArrayList<>();
+        parse(reader, users::add);
+        return users;
+    }
+
+    /**
+     * Parse a single line to a User
+     *
+     * @param line       the record, without line terminator
+     * @param lineNumber line number used in error messages
+     * @return the parsed user
+     */
+    public static User parseLine(String line, long lineNumber) {
+        char[] chars = line.toCharArray();
+        return parseRecord(chars, 0, chars.length, lineNumber);
+    }
+
+    /**
+     * Parse the record held in buf[from, to)
+     */
+    static User parseRecord(char[] buf, int from, int to, long lineNumber) {
+        int idStart = -1;
+        int idEnd = -1;
+        String email = null;
+        String name = null;
+
+        int fieldStart = from;
+        while (fieldStart <= to) {
+            int fieldEnd = indexOf(buf, ',', fieldStart, to);
+            int eq = indexOf(buf, '=', fieldStart, fieldEnd);
+
+            if (eq < fieldEnd) {
+                int keyStart = trimStart(buf, fieldStart, eq);
+                int keyEnd = trimEnd(buf, keyStart, eq);
+                int valueStart = trimStart(buf, eq + 1, fieldEnd);
+                int valueEnd = trimEnd(buf, valueStart, fieldEnd);
+
+                switch (keyOf(buf, keyStart, keyEnd)) {
+                    case KEY_ID -> {
+                        idStart = valueStart;
+                        idEnd = valueEnd;
+                    }
+                    case KEY_EMAIL -> email = new String(buf, valueStart, valueEnd - valueStart);
+                    case KEY_NAME -> name = new String(buf, valueStart, valueEnd - valueStart);
+                    default -> {
+                        // Unknown keys are ignored
+                    }
+                }
+            }
+            fieldStart = fieldEnd + 1;
+        }
+
+        if (idStart < 0) {
+            throw new CsvParseException(lineNumber, new String(buf, from, to - from));
+        }
+        return new User(parseId(buf, idStart, idEnd, from, to, lineNumber), email, name);
+    }
+
+    /**
+     * Integer.parseInt over buf[start, end) without allocating a String
+     */
+    private static int parseId(char[] buf, int start, int end, int lineFrom, int lineTo, long lineNumber) {
+        int i = start;
+        boolean negative = false;
+        int limit = -Integer.MAX_VALUE;
+
+        if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            if (negative) {
+                limit = Integer.MIN_VALUE;
+            }
+            i++;
+        }
+        if (i == end) {
+            throw new CsvParseException(lineNumber, new String(buf, lineFrom, lineTo - lineFrom));
+        }
+
+        int multmin = limit / 10;
+        int result = 0;
+        for (; i < end; i++) {
+            int digit = Character.digit(buf[i], 10);
+            if (digit < 0 || result < multmin) {
+                throw new CsvParseException(lineNumber, new String(buf, lineFrom, lineTo - lineFrom));
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                throw new CsvParseException(lineNumber, new String(buf, lineFrom, lineTo - lineFrom));
+            }
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    private static int keyOf(char[] buf, int start, int end) {
+        int length = end - start;
+        if (length == 2 && buf[start] == 'i' && buf[start + 1] == 'd') {
+            return KEY_ID;
+        }
+        if (length == 4 && buf[start] == 'n' && buf[start + 1] == 'a'
+                && buf[start + 2] == 'm' && buf[start + 3] == 'e') {
+            return KEY_NAME;
+        }
+        if (length == 5 && buf[start] == 'e' && buf[start + 1] == 'm' && buf[start + 2] == 'a'
+                && buf[start + 3] == 'i' && buf[start + 4] == 'l') {
+            return KEY_EMAIL;
+        }
+        return KEY_OTHER;
+    }
+
+    private static int indexOf(char[] buf, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == c) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    // Same whitespace rule as String.trim()
+    private static int trimStart(char[] buf, int from, int to) {
+        while (from < to && buf[from] <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private static int trimEnd(char[] buf, int from, int to) {
+        while (to > from && buf[to - 1] <= ' ') {
+            to--;
+        }
+        return to;
+    }
+
+    private static boolean isBlank(char[] buf, int from, int to) {
+        return trimStart(buf, from, to) == to;
+    }
+}
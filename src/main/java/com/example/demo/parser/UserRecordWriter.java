@@ -0,0 +1,128 @@
+package com.example.demo.parser;
+
+import com.example.demo.model.User;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+
+/**
+ * Writes users back out as CSV text, one record at a time
+ *
+ * Formats:
+ * - ORIGINAL: the upload format, id=1,email=test@example.com,name=TestName with \n
+ *   line endings; readable again by UserRecordParser (null values are written empty)
+ * - RFC4180: id,email,name header, CRLF line endings, fields containing a comma,
+ *   quote or line break are quoted with inner quotes doubled
+ *
+ * Nothing is buffered here beyond the given Writer, so memory use does not
+ * depend on the number of users written.
+ */
+public final class UserRecordWriter {
+
+    public enum Format {
+        ORIGINAL, RFC4180;
+
+        /**
+         * @param value "original" or "rfc4180", case-insensitive
+         * @throws IllegalArgumentException for any other value
+         */
+        public static Format fromParam(String value) {
+            for (Format format : values()) {
+                if (format.name().equalsIgnoreCase(value)) {
+                    return format;
+                }
+            }
+            throw new IllegalArgumentException("Unknown export format: " + value + " (expected original or rfc4180)");
+        }
+    }
+
+    private final Writer out;
+    private final Format format;
+    private long written;
+
+    /**
+     * @param out    destination, not closed by this class
+     * @param format record format; RFC4180 starts with the header line
+     */
+    public UserRecordWriter(Writer out, Format format) throws IOException {
+        this.out = out;
+        this.format = format;
+        if (format == Format.RFC4180) {
+            out.write("id,email,name\r\n");
+        }
+    }
+
+    public void write(User user) throws IOException {
+        if (format == Format.RFC4180) {
+            out.write(Integer.toString(user.getId()));
+            out.write(',');
+            writeQuoted(user.getEmail());
+            out.write(',');
+            writeQuoted(user.getName());
+            out.write("\r\n");
+        } else {
+            out.write("id=");
+            out.write(Integer.toString(user.getId()));
+            out.write(",email=");
+            writeRaw(user.getEmail());
+            out.write(",name=");
+            writeRaw(user.getName());
+            out.write('\n');
+        }
+        written++;
+    }
+
+    /**
+     * Write every remaining user of the iterator
+     * @return number of users written by this call
+     */
+    public long writeAll(Iterator<User> users) throws IOException {
+        long before = written;
+        while (users.hasNext()) {
+            write(users.next());
+        }
+        return written - before;
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    private void writeRaw(String value) throws IOException {
+        if (value != null) {
+            out.write(value);
+        }
+    }
+
+    private void writeQuoted(String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        if (!needsQuotes(value)) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        int from = 0;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) == '"') {
+                out.write(value, from, i + 1 - from);
+                out.write('"');
+                from = i + 1;
+            }
+        }
+        out.write(value, from, value.length() - from);
+        out.write('"');
+    }
+
+    private static boolean needsQuotes(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\r' || c == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
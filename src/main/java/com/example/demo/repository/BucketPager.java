@@ -0,0 +1,75 @@
+package com.example.demo.repository;
+
+import com.example.demo.model.User;
+import com.example.demo.model.UserBucket;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Builds one keyset page of a bucketed file from the buckets' id bounds
+ * Shared by the blocking and the reactive repository, which only differ in how
+ * they fetch the buckets nextSeqs() asks for.
+ *
+ * Buckets are loaded in minId order, doubling the batch each round, until no
+ * remaining bucket can hold an id of the page.
+ */
+final class BucketPager {
+
+    private final List<UserBucket> candidates;
+    private final Integer afterId;
+    private final int limit;
+    private final List<User> page = new ArrayList<>();
+    private int next;
+    private int batch = 1;
+
+    /**
+     * @param bounds  seq, minId and maxId of the buckets that may hold ids above afterId
+     * @param afterId last id of the previous page, null for the first page
+     * @param limit   page size
+     */
+    BucketPager(List<UserBucket> bounds, Integer afterId, int limit) {
+        this.candidates = new ArrayList<>(bounds);
+        this.candidates.sort(Comparator.comparingInt(UserBucket::getMinId));
+        this.afterId = afterId;
+        this.limit = limit;
+    }
+
+    /**
+     * @return seqs of the buckets to load next, empty once the page is complete
+     */
+    List<Integer> nextSeqs() {
+        if (next >= candidates.size()
+                || page.size() == limit && candidates.get(next).getMinId() > page.get(limit - 1).getId()) {
+            return List.of();
+        }
+        List<Integer> seqs = candidates.subList(next, Math.min(next + batch, candidates.size())).stream()
+                .map(UserBucket::getSeq)
+                .toList();
+        next += seqs.size();
+        batch *= 2;
+        return seqs;
+    }
+
+    /**
+     * Merge the users of loaded buckets into the page
+     */
+    void add(Iterable<UserBucket> buckets) {
+        for (UserBucket bucket : buckets) {
+            for (User user : bucket.getUsers()) {
+                if (afterId == null || user.getId() > afterId) {
+                    page.add(user);
+                }
+            }
+        }
+        page.sort(Comparator.comparingInt(User::getId));
+        if (page.size() > limit) {
+            page.subList(limit, page.size()).clear();
+        }
+    }
+
+    List<User> page() {
+        return page;
+    }
+}
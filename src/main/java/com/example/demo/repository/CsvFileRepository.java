@@ -1,7 +1,9 @@
 package com.example.demo.repository;
 
 import com.example.demo.model.CsvFile;
+import com.example.demo.model.CsvFileInfo;
 import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
 import org.springframework.stereotype.Repository;
 
 import java.util.Optional;
@@ -11,7 +13,7 @@ import java.util.Optional;
  * Provides CRUD operations and custom queries
  */
 @Repository
-public interface CsvFileRepository extends MongoRepository<CsvFile, String> {
+public interface CsvFileRepository extends MongoRepository<CsvFile, String>, CsvFileRepositoryCustom {
 
     /**
      * Find a CSV file by its filename
@@ -20,6 +22,17 @@ public interface CsvFileRepository extends MongoRepository<CsvFile, String> {
      */
     Optional<CsvFile> findByFilename(String filename);
 
+    /**
+     * Find the metadata of a CSV file without loading users
+     * Served by the unique filename index; the returned document is a few hundred bytes
+     * @param filename the filename to search for
+     * @return Optional containing the file metadata if found
+     */
+    @Query(value = "{ 'filename': ?0 }",
+            fields = "{ 'filename': 1, 'userCount': 1, 'sizeBytes': 1, 'bucketSize': 1,"
+                    + " 'uploadedAt': 1, 'lastModified': 1, 'contentHash': 1, 'contentId': 1 }")
+    Optional<CsvFileInfo> findInfoByFilename(String filename);
+
     /**
      * Delete a CSV file by filename
      * @param filename the filename to delete
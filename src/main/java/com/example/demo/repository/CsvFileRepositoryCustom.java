@@ -0,0 +1,311 @@
+package com.example.demo.repository;
+
+import com.example.demo.model.CsvFile;
+import com.example.demo.model.User;
+import com.example.demo.model.UserBucket;
+import com.example.demo.model.UserMatch;
+import com.mongodb.client.result.UpdateResult;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Custom CsvFile operations implemented with MongoTemplate
+ *
+ * Embedded layout: single-user changes are applied server-side with
+ * $push / $set on users.$[u] / $pull, in one round trip that only ships the
+ * changed user. These only match files stored in embedded layout.
+ *
+ * Bucketed layout: a file's users live in csv_file_buckets and each
+ * single-user operation touches exactly one bucket document.
+ *
+ * Streams are aggregations that unwind the users server-side from a cursor.
+ * Pages only unwind the page: an embedded file's users are filtered and sorted
+ * inside the document, and a bucketed file loads only the buckets whose id
+ * range can hold the page. Either way only the requested users cross the network.
+ *
+ * Every write also unsets the header's contentHash: the users no longer match
+ * the upload they came from.
+ *
+ * Lookups by email or name search every file of both layouts through the
+ * multikey indexes on users.email / users.name.
+ *
+ * Original uploads are kept gzip-compressed in the csv_contents GridFS bucket,
+ * outside csv_files, and referenced by CsvFile.contentId.
+ */
+public interface CsvFileRepositoryCustom {
+
+    /**
+     * One targeted change to a bucket, part of a bulk write
+     * PUSH adds user; SET sets its non-null email/name; PULL removes the user with its id
+     */
+    record BucketWrite(Kind kind, String bucketId, User user) {
+
+        public enum Kind { PUSH, SET, PULL }
+    }
+
+    /**
+     * An original upload being written to GridFS, compressed as it is written
+     * Write the raw bytes to out(), then finish() to store them or abort() to discard them
+     */
+    interface ContentUpload {
+
+        OutputStream out();
+
+        /**
+         * @return id of the stored content
+         */
+        String finish();
+
+        void abort();
+    }
+
+    /* ---------- EMBEDDED LAYOUT ---------- */
+
+    /**
+     * Append a user unless a user with the same id already exists
+     * @param filename the embedded file to change
+     * @param user     the user to add
+     * @return matched/modified counts; 0 if the file is missing, bucketed, or the id is taken
+     */
+    UpdateResult pushUser(String filename, User user);
+
+    /**
+     * Set email and/or name of one user in place; null values are left unchanged
+     * @param filename the embedded file to change
+     * @param userId   user id to update
+     * @param email    new email or null
+     * @param name     new name or null
+     * @return matched/modified counts; matched is 0 if the file or user is missing
+     */
+    UpdateResult setUser(String filename, int userId, String email, String name);
+
+    /**
+     * Remove one user
+     * @param filename the embedded file to change
+     * @param userId   user id to remove
+     * @return matched/modified counts; 0 if the file or user is missing
+     */
+    UpdateResult pullUser(String filename, int userId);
+
+    /**
+     * Apply the difference between stored and uploaded users in one ordered bulk write:
+     * one $set per changed user, one $pull of all removed users, one $push of all new
+     * users, then a header write with the upload's size, hash and content id
+     * Each write requires the version left by the previous one and bumps it, so once
+     * another writer gets in between, the rest of the chain matches nothing
+     * @param filename    the embedded file to change
+     * @param version     version of the file the difference was computed from
+     * @param updated     users whose email/name changed, with the new values
+     * @param removed     ids of users to remove
+     * @param added       users to append
+     * @param sizeBytes   size of the upload in bytes
+     * @param contentHash SHA-256 of the upload, or null
+     * @param contentId   stored original of the upload, or null
+     * @return true if every write matched; false if the file changed concurrently
+     */
+    boolean applyUserDiff(String filename, long version, List<User> updated, List<Integer> removed,
+                          List<User> added, long sizeBytes, String contentHash, String contentId);
+
+    /**
+     * Record the size, hash and original of an upload whose users are already stored, without touching users
+     * @param filename    the file to change
+     * @param version     required version, or null to write whatever the version
+     * @param sizeBytes   size of the upload in bytes
+     * @param contentHash SHA-256 of the upload, or null to clear it
+     * @param contentId   stored original of the upload, or null to clear it
+     * @return true if the file matched
+     */
+    boolean stampUpload(String filename, Long version, long sizeBytes, String contentHash, String contentId);
+
+    /**
+     * Read one page of users ordered by id (keyset pagination)
+     * One aggregation that filters the users above afterId, sorts them and slices the page
+     * inside the document ($filter, $sortArray, $slice; MongoDB 5.2+). It still scans the
+     * file's users in memory once per page; files too large for that belong in bucketed layout
+     * @param filename the embedded file to read
+     * @param afterId  only users with a greater id are returned; null for the first page
+     * @param limit    max users to return
+     * @return users with id > afterId in ascending id order; empty if the file is missing or bucketed
+     */
+    List<User> findUsersPage(String filename, Integer afterId, int limit);
+
+    /**
+     * Stream all users in file order from a server-side cursor
+     * The stream holds a cursor open and must be closed
+     * @param filename the embedded file to read
+     * @return users of the file; empty if the file is missing or bucketed
+     */
+    Stream<User> streamUsers(String filename);
+
+    /* ---------- BUCKETED LAYOUT ---------- */
+
+    /**
+     * Replace all buckets of a file with the given users
+     * @param fileId     id of the CsvFile header
+     * @param users      users in file order
+     * @param bucketSize max users per bucket
+     * @param onWritten  called after each insert batch with the number of users written so far
+     * @return number of buckets written
+     */
+    int replaceBuckets(String fileId, List<User> users, int bucketSize, IntConsumer onWritten);
+
+    /**
+     * Load every user of a bucketed file, in bucket order
+     * @param fileId id of the CsvFile header
+     * @return users of the file
+     */
+    List<User> findBucketedUsers(String fileId);
+
+    /**
+     * Read one page of users of a bucketed file ordered by id (keyset pagination)
+     * The id bounds of the buckets above afterId come from idx_bucket_file_range alone; then
+     * buckets are loaded in minId order until no other bucket can hold an id of the page.
+     * Files uploaded in id order have disjoint bucket ranges, so a page loads about
+     * limit / bucketSize + 1 buckets however deep it is
+     * @param fileId  id of the CsvFile header
+     * @param afterId only users with a greater id are returned; null for the first page
+     * @param limit   max users to return
+     * @return users with id > afterId in ascending id order
+     */
+    List<User> findBucketedUsersPage(String fileId, Integer afterId, int limit);
+
+    /**
+     * Stream all users of a bucketed file in bucket order from a server-side cursor
+     * The stream holds a cursor open and must be closed
+     * @param fileId id of the CsvFile header
+     * @return users of the file
+     */
+    Stream<User> streamBucketedUsers(String fileId);
+
+    /**
+     * Load every bucket of a file with its users, in bucket order
+     * @param fileId id of the CsvFile header
+     * @return buckets of the file
+     */
+    List<UserBucket> findBuckets(String fileId);
+
+    /**
+     * Apply many single-user changes to the buckets of a file in one bulk write,
+     * then update the header once (userCount, bucketCount, version, lastModified)
+     *
+     * The header is first claimed at the version the writes were planned from, so a
+     * batch planned from a stale snapshot writes nothing. Each write is guarded by
+     * the state it was planned from (PUSH: id absent from the bucket and, through the
+     * unique idx_bucket_file_user, from the file; SET/PULL: user in the bucket).
+     * Single-user writes do not take the claim, so one can still get in between;
+     * the writes it invalidated are then reported false and userCount is recounted
+     * from the buckets.
+     * @param fileId         id of the CsvFile header
+     * @param version        header version the writes were planned from
+     * @param writes         targeted changes to existing buckets
+     * @param newBuckets     users of buckets to add after the existing ones
+     * @param userCountDelta change of the header's userCount if every write takes effect
+     * @param ordered        whether MongoDB applies the writes in order, stopping at the first error
+     * @return per write, then per new bucket: true if it took effect, false if not,
+     *         null if not attempted (after the first error of an ordered write)
+     * @throws org.springframework.dao.OptimisticLockingFailureException if the header is past
+     *         version; nothing was written
+     */
+    Boolean[] writeBuckets(String fileId, long version, List<BucketWrite> writes, List<List<User>> newBuckets,
+                           int userCountDelta, boolean ordered);
+
+    /**
+     * Check whether a user id exists in any bucket of a file
+     * @param fileId id of the CsvFile header
+     * @param userId user id to look for
+     * @return true if found
+     */
+    boolean existsInBuckets(String fileId, int userId);
+
+    /**
+     * Append a user to the first bucket with free space, opening a new bucket if all are full
+     * Increments the header's userCount. Conditional on the id: safe against concurrent creates
+     * @param fileId     id of the CsvFile header
+     * @param bucketSize max users per bucket of the file
+     * @param user       the user to add
+     * @return false if a bucket of the file already holds the user's id
+     */
+    boolean pushToBucket(String fileId, int bucketSize, User user);
+
+    /**
+     * Set email and/or name of one user in place; null values are left unchanged
+     * @param fileId id of the CsvFile header
+     * @param userId user id to update
+     * @param email  new email or null
+     * @param name   new name or null
+     * @return number of matched users (0 or 1)
+     */
+    long setInBucket(String fileId, int userId, String email, String name);
+
+    /**
+     * Remove one user from its bucket and decrement the header's userCount
+     * @param fileId id of the CsvFile header
+     * @param userId user id to remove
+     * @return number of removed users (0 or 1)
+     */
+    long pullFromBucket(String fileId, int userId);
+
+    /**
+     * Delete all buckets of a file
+     * @param fileId id of the CsvFile header
+     */
+    void deleteBuckets(String fileId);
+
+    /* ---------- LOOKUP (BOTH LAYOUTS) ---------- */
+
+    /**
+     * Find the users with an email, in every stored file
+     * Served by the users.email multikey indexes of csv_files and csv_file_buckets
+     * @param email exact (case-sensitive) email to look for
+     * @param limit max matches to return
+     * @return matching (filename, user) pairs, embedded files first
+     */
+    List<UserMatch> findUsersByEmail(String email, int limit);
+
+    /**
+     * Find the users whose name starts with a prefix, in every stored file
+     * The prefix is matched literally and case-sensitively, so the lookup is a
+     * range scan of the users.name multikey indexes
+     * @param prefix start of the name
+     * @param limit  max matches to return
+     * @return matching (filename, user) pairs, embedded files first
+     */
+    List<UserMatch> findUsersByNamePrefix(String prefix, int limit);
+
+    /* ---------- ORIGINAL UPLOADS (GRIDFS) ---------- */
+
+    /**
+     * Start storing an original upload; nothing is kept unless finish() is called
+     * @param filename the uploaded filename, recorded on the GridFS file
+     * @return the upload to write the raw bytes to
+     */
+    ContentUpload openContentUpload(String filename);
+
+    /**
+     * Start storing csvContent that older versions kept inline, tagged rerendered in the GridFS metadata
+     * Those versions re-rendered csvContent from the users on every write, so it
+     * is the original upload only if the file was never changed after it
+     * @param filename the filename of the legacy document
+     * @return the upload to write the content to
+     */
+    ContentUpload openLegacyContentUpload(String filename);
+
+    /**
+     * Open a stored original upload
+     * @param contentId  id returned by ContentUpload.finish()
+     * @param decompress true for the raw bytes, false for the stored gzip stream
+     * @return the content, to be closed by the caller; empty if it is no longer stored
+     */
+    Optional<InputStream> openContent(String contentId, boolean decompress);
+
+    /**
+     * Delete a stored original upload; does nothing if it is already gone
+     * @param contentId id returned by ContentUpload.finish()
+     */
+    void deleteContent(String contentId);
+}
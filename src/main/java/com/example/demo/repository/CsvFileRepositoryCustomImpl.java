@@ -0,0 +1,782 @@
+package com.example.demo.repository;
+
+import com.example.demo.model.CsvFile;
+import com.example.demo.model.User;
+import com.example.demo.model.UserBucket;
+import com.example.demo.model.UserMatch;
+import com.mongodb.MongoGridFSException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.GridFSDownloadStream;
+import com.mongodb.client.gridfs.GridFSUploadStream;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOptions;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.IntConsumer;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.group;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.limit;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.match;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.project;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.replaceRoot;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.sort;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.unwind;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * MongoTemplate implementation of CsvFileRepositoryCustom
+ * Picked up by Spring Data as a fragment of CsvFileRepository
+ */
+public class CsvFileRepositoryCustomImpl implements CsvFileRepositoryCustom {
+
+    // Buckets are inserted in batches to bound the size of a single insertMany
+    static final int INSERT_BATCH_BUCKETS = 16;
+
+    // Users fetched per cursor round trip when streaming
+    private static final int STREAM_BATCH_SIZE = 1000;
+
+    // Regex metacharacters escaped in a name prefix, so the prefix stays a literal index range
+    private static final Pattern REGEX_META = Pattern.compile("[\\\\^$.|?*+()\\[\\]{}]");
+
+    // GridFS bucket holding original uploads (csv_contents.files / csv_contents.chunks)
+    static final String CONTENT_BUCKET = "csv_contents";
+
+    // Buffer of the gzip streams over GridFS, one chunk of the default chunk size
+    private static final int GZIP_BUFFER = 256 * 1024;
+
+    static final AggregationOptions STREAM_OPTIONS = AggregationOptions.builder()
+            .cursorBatchSize(STREAM_BATCH_SIZE)
+            .build();
+
+    private final MongoTemplate mongoTemplate;
+
+    public CsvFileRepositoryCustomImpl(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    /* ---------- EMBEDDED LAYOUT ---------- */
+
+    @Override
+    public UpdateResult pushUser(String filename, User user) {
+        // The $ne guard makes the duplicate check and the insert a single atomic step
+        Query query = Query.query(embeddedFile(filename).and("users.id").ne(user.getId()));
+        Update update = new Update()
+                .push("users", user)
+                .inc("userCount", 1)
+                .inc("version", 1)
+                .unset("contentHash")
+                .set("lastModified", LocalDateTime.now());
+
+        return mongoTemplate.updateFirst(query, update, CsvFile.class);
+    }
+
+    @Override
+    public UpdateResult setUser(String filename, int userId, String email, String name) {
+        Query query = Query.query(embeddedFile(filename).and("users.id").is(userId));
+
+        Update update = new Update();
+        if (email != null) {
+            update.set("users.$[u].email", email);
+        }
+        if (name != null) {
+            update.set("users.$[u].name", name);
+        }
+        if (update.getUpdateObject().isEmpty()) {
+            long matched = mongoTemplate.exists(query, CsvFile.class) ? 1 : 0;
+            return UpdateResult.acknowledged(matched, 0L, null);
+        }
+        update.set("lastModified", LocalDateTime.now())
+                .inc("version", 1)
+                .unset("contentHash")
+                .filterArray(Criteria.where("u._id").is(userId));
+
+        return mongoTemplate.updateFirst(query, update, CsvFile.class);
+    }
+
+    @Override
+    public UpdateResult pullUser(String filename, int userId) {
+        Query query = Query.query(embeddedFile(filename).and("users.id").is(userId));
+        Update update = new Update()
+                .pull("users", Query.query(where("id").is(userId)))
+                .inc("userCount", -1)
+                .inc("version", 1)
+                .unset("contentHash")
+                .set("lastModified", LocalDateTime.now());
+
+        return mongoTemplate.updateFirst(query, update, CsvFile.class);
+    }
+
+    @Override
+    public boolean applyUserDiff(String filename, long version, List<User> updated, List<Integer> removed,
+                                 List<User> added, long sizeBytes, String contentHash, String contentId) {
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.ORDERED, CsvFile.class);
+        LocalDateTime now = LocalDateTime.now();
+        long expected = version;
+        int writes = 0;
+
+        for (User user : updated) {
+            bulk.updateOne(Query.query(embeddedFile(filename).and("version").is(expected++).and("users.id").is(user.getId())),
+                    chained(now)
+                            .set("users.$.email", user.getEmail())
+                            .set("users.$.name", user.getName()));
+            writes++;
+        }
+        if (!removed.isEmpty()) {
+            bulk.updateOne(Query.query(embeddedFile(filename).and("version").is(expected++)),
+                    chained(now)
+                            .pull("users", Query.query(where("id").in(removed)))
+                            .inc("userCount", -removed.size()));
+            writes++;
+        }
+        if (!added.isEmpty()) {
+            bulk.updateOne(Query.query(embeddedFile(filename).and("version").is(expected++)),
+                    chained(now)
+                            .push("users").each(added.toArray())
+                            .inc("userCount", added.size()));
+            writes++;
+        }
+
+        // The last link stamps the upload: the users now are the upload's
+        Update header = stamp(sizeBytes, contentHash, contentId)
+                .inc("version", 1)
+                .set("lastModified", now);
+        bulk.updateOne(Query.query(embeddedFile(filename).and("version").is(expected)), header);
+        writes++;
+
+        return bulk.execute().getMatchedCount() == writes;
+    }
+
+    /**
+     * One link of an applyUserDiff chain: bumps the version the next write requires
+     */
+    private static Update chained(LocalDateTime now) {
+        return new Update()
+                .inc("version", 1)
+                .unset("contentHash")
+                .set("lastModified", now);
+    }
+
+    @Override
+    public boolean stampUpload(String filename, Long version, long sizeBytes, String contentHash, String contentId) {
+        Criteria file = where("filename").is(filename);
+        if (version != null) {
+            file = file.and("version").is(version);
+        }
+        return mongoTemplate.updateFirst(Query.query(file), stamp(sizeBytes, contentHash, contentId), CsvFile.class)
+                .getMatchedCount() > 0;
+    }
+
+    /**
+     * Sets the upload's size; a null hash or content id is unset
+     */
+    private static Update stamp(long sizeBytes, String contentHash, String contentId) {
+        Update update = new Update().set("sizeBytes", sizeBytes);
+        if (contentHash != null) {
+            update.set("contentHash", contentHash);
+        } else {
+            update.unset("contentHash");
+        }
+        if (contentId != null) {
+            update.set("contentId", contentId);
+        } else {
+            update.unset("contentId");
+        }
+        return update;
+    }
+
+    @Override
+    public List<User> findUsersPage(String filename, Integer afterId, int limit) {
+        return mongoTemplate.aggregate(usersPage(filename, afterId, limit),
+                mongoTemplate.getCollectionName(CsvFile.class), User.class).getMappedResults();
+    }
+
+    /**
+     * One page of an embedded file's users: only users above afterId are sorted,
+     * and only the page is unwound
+     */
+    static Aggregation usersPage(String filename, Integer afterId, int limit) {
+        Object users = afterId == null ? "$users" : new Document("$filter", new Document("input", "$users")
+                .append("as", "u")
+                .append("cond", new Document("$gt", List.of("$$u._id", afterId))));
+        Document page = new Document("$slice", List.of(
+                new Document("$sortArray", new Document("input", users).append("sortBy", new Document("_id", 1))),
+                limit));
+
+        return Aggregation.newAggregation(
+                match(embeddedFile(filename)),
+                context -> new Document("$project", new Document("_id", 0).append("users", page)),
+                unwind("users"),
+                replaceRoot("users"));
+    }
+
+    @Override
+    public Stream<User> streamUsers(String filename) {
+        return mongoTemplate.aggregateStream(fileUsers(filename),
+                mongoTemplate.getCollectionName(CsvFile.class), User.class);
+    }
+
+    /**
+     * Every user of an embedded file in file order, unwound server-side
+     */
+    static Aggregation fileUsers(String filename) {
+        return Aggregation.newAggregation(
+                        match(embeddedFile(filename)),
+                        project("users").andExclude("_id"),
+                        unwind("users"),
+                        replaceRoot("users"))
+                .withOptions(STREAM_OPTIONS);
+    }
+
+    /**
+     * Matches a file stored in embedded layout (bucketSize missing or 0)
+     */
+    static Criteria embeddedFile(String filename) {
+        return where("filename").is(filename).and("bucketSize").not().gt(0);
+    }
+
+    /* ---------- BUCKETED LAYOUT ---------- */
+
+    @Override
+    public int replaceBuckets(String fileId, List<User> users, int bucketSize, IntConsumer onWritten) {
+        deleteBuckets(fileId);
+
+        List<UserBucket> batch = new ArrayList<>(INSERT_BATCH_BUCKETS);
+        int seq = 0;
+        for (int from = 0; from < users.size(); from += bucketSize) {
+            int to = Math.min(from + bucketSize, users.size());
+            batch.add(new UserBucket(fileId, seq++, new ArrayList<>(users.subList(from, to))));
+            if (batch.size() == INSERT_BATCH_BUCKETS) {
+                mongoTemplate.insert(batch, UserBucket.class);
+                onWritten.accept(to);
+                batch = new ArrayList<>(INSERT_BATCH_BUCKETS);
+            }
+        }
+        if (!batch.isEmpty()) {
+            mongoTemplate.insert(batch, UserBucket.class);
+            onWritten.accept(users.size());
+        }
+        return seq;
+    }
+
+    @Override
+    public List<User> findBucketedUsers(String fileId) {
+        Query query = Query.query(where("fileId").is(fileId)).with(Sort.by("seq"));
+
+        List<User> users = new ArrayList<>();
+        for (UserBucket bucket : mongoTemplate.find(query, UserBucket.class)) {
+            users.addAll(bucket.getUsers());
+        }
+        return users;
+    }
+
+    @Override
+    public List<User> findBucketedUsersPage(String fileId, Integer afterId, int limit) {
+        BucketPager pager = new BucketPager(mongoTemplate.find(bucketBounds(fileId, afterId), UserBucket.class),
+                afterId, limit);
+        for (List<Integer> seqs = pager.nextSeqs(); !seqs.isEmpty(); seqs = pager.nextSeqs()) {
+            pager.add(mongoTemplate.find(bucketsBySeq(fileId, seqs), UserBucket.class));
+        }
+        return pager.page();
+    }
+
+    /**
+     * Bounds of the buckets that may hold ids above afterId, read from idx_bucket_file_range alone
+     */
+    static Query bucketBounds(String fileId, Integer afterId) {
+        Criteria later = where("fileId").is(fileId);
+        if (afterId != null) {
+            later = later.and("maxId").gt(afterId);
+        }
+        Query bounds = Query.query(later);
+        bounds.fields().include("seq", "minId", "maxId").exclude("id");
+        return bounds;
+    }
+
+    /**
+     * Users of the buckets of a file with the given sequence numbers
+     */
+    static Query bucketsBySeq(String fileId, List<Integer> seqs) {
+        Query buckets = Query.query(where("fileId").is(fileId).and("seq").in(seqs));
+        buckets.fields().include("users");
+        return buckets;
+    }
+
+    @Override
+    public Stream<User> streamBucketedUsers(String fileId) {
+        return mongoTemplate.aggregateStream(bucketedUsers(fileId),
+                mongoTemplate.getCollectionName(UserBucket.class), User.class);
+    }
+
+    /**
+     * Every user of a bucketed file in file order, unwound server-side
+     */
+    static Aggregation bucketedUsers(String fileId) {
+        return Aggregation.newAggregation(
+                        match(where("fileId").is(fileId)),
+                        sort(Sort.by("seq")),
+                        project("users").andExclude("_id"),
+                        unwind("users"),
+                        replaceRoot("users"))
+                .withOptions(STREAM_OPTIONS);
+    }
+
+    @Override
+    public List<UserBucket> findBuckets(String fileId) {
+        return mongoTemplate.find(Query.query(where("fileId").is(fileId)).with(Sort.by("seq")), UserBucket.class);
+    }
+
+    @Override
+    public Boolean[] writeBuckets(String fileId, long version, List<BucketWrite> writes, List<List<User>> newBuckets,
+                                  int userCountDelta, boolean ordered) {
+        // Claim the header at the version the writes were planned from, reserving the
+        // sequence numbers of the new buckets like pushToBucket does for a single bucket
+        CsvFile claimed = mongoTemplate.findAndModify(
+                Query.query(where("id").is(fileId).and("version").is(version)),
+                new Update().inc("bucketCount", newBuckets.size()).inc("version", 1),
+                FindAndModifyOptions.options().returnNew(true),
+                CsvFile.class);
+        if (claimed == null) {
+            throw new OptimisticLockingFailureException("File " + fileId + " changed since version " + version);
+        }
+
+        BulkOperations bulk = mongoTemplate.bulkOps(
+                ordered ? BulkOperations.BulkMode.ORDERED : BulkOperations.BulkMode.UNORDERED, UserBucket.class);
+
+        // Every write is guarded by the state it was planned from; one that no longer
+        // holds matches nothing instead of duplicating or resurrecting a user
+        for (BucketWrite write : writes) {
+            User user = write.user();
+            Criteria bucket = where("id").is(write.bucketId());
+            switch (write.kind()) {
+                case PUSH -> bulk.updateOne(Query.query(bucket.and("users.id").ne(user.getId())), new Update()
+                        .push("users", user)
+                        .inc("count", 1)
+                        .min("minId", user.getId())
+                        .max("maxId", user.getId()));
+                case SET -> {
+                    Update update = new Update();
+                    if (user.getEmail() != null) {
+                        update.set("users.$.email", user.getEmail());
+                    }
+                    if (user.getName() != null) {
+                        update.set("users.$.name", user.getName());
+                    }
+                    bulk.updateOne(Query.query(bucket.and("users.id").is(user.getId())), update);
+                }
+                case PULL -> bulk.updateOne(Query.query(bucket.and("users.id").is(user.getId())), new Update()
+                        .pull("users", Query.query(where("id").is(user.getId())))
+                        .inc("count", -1));
+            }
+        }
+        int seq = claimed.getBucketCount() - newBuckets.size();
+        for (List<User> users : newBuckets) {
+            bulk.insert(new UserBucket(fileId, seq++, new ArrayList<>(users)));
+        }
+
+        BulkWriteResult result;
+        List<BulkWriteError> errors = List.of();
+        try {
+            result = bulk.execute();
+        } catch (BulkOperationException e) {
+            // A duplicate key from idx_bucket_file_user: a concurrent create of the same id won
+            result = e.getResult();
+            errors = e.getErrors();
+        }
+
+        Boolean[] written = new Boolean[writes.size() + newBuckets.size()];
+        // An ordered bulk write stops at its first error: later writes were not attempted
+        int attempted = ordered && !errors.isEmpty() ? errors.get(0).getIndex() + 1 : written.length;
+        Arrays.fill(written, 0, attempted, true);
+        for (BulkWriteError error : errors) {
+            written[error.getIndex()] = false;
+        }
+
+        boolean exact = errors.isEmpty()
+                && result.getMatchedCount() + result.getInsertedCount() == written.length;
+        if (!exact) {
+            // Single-user writes got in between: find out which writes took effect, and
+            // count the users again rather than trusting the planned delta
+            checkWritten(writes, written);
+            recountHeader(fileId);
+        } else {
+            touchHeader(fileId, userCountDelta);
+        }
+        return written;
+    }
+
+    /**
+     * Settle the outcome of attempted update writes from the buckets as they are now
+     */
+    private void checkWritten(List<BucketWrite> writes, Boolean[] written) {
+        List<String> bucketIds = writes.stream().map(BucketWrite::bucketId).distinct().toList();
+        Map<String, UserBucket> buckets = new HashMap<>();
+        for (UserBucket bucket : mongoTemplate.find(Query.query(where("id").in(bucketIds)), UserBucket.class)) {
+            buckets.put(bucket.getId(), bucket);
+        }
+
+        for (int w = 0; w < writes.size(); w++) {
+            if (!Boolean.TRUE.equals(written[w])) {
+                continue;
+            }
+            BucketWrite write = writes.get(w);
+            UserBucket bucket = buckets.get(write.bucketId());
+            User stored = bucket == null ? null : bucket.getUsers().stream()
+                    .filter(u -> u.getId() == write.user().getId())
+                    .findFirst()
+                    .orElse(null);
+            written[w] = switch (write.kind()) {
+                case PUSH -> stored != null;
+                case SET -> stored != null
+                        && (write.user().getEmail() == null || write.user().getEmail().equals(stored.getEmail()))
+                        && (write.user().getName() == null || write.user().getName().equals(stored.getName()));
+                case PULL -> stored == null;
+            };
+        }
+    }
+
+    /**
+     * Set the header's userCount from the bucket counts, which change atomically with the users
+     */
+    private void recountHeader(String fileId) {
+        Document total = mongoTemplate.aggregate(
+                Aggregation.newAggregation(
+                        match(where("fileId").is(fileId)),
+                        group().sum("count").as("users")),
+                mongoTemplate.getCollectionName(UserBucket.class), Document.class).getUniqueMappedResult();
+        int users = total == null ? 0 : total.get("users", Number.class).intValue();
+
+        mongoTemplate.updateFirst(Query.query(where("id").is(fileId)), new Update()
+                .set("userCount", users)
+                .set("lastModified", LocalDateTime.now())
+                .inc("version", 1)
+                .unset("contentHash"), CsvFile.class);
+    }
+
+    @Override
+    public boolean existsInBuckets(String fileId, int userId) {
+        return mongoTemplate.exists(userQuery(fileId, userId), UserBucket.class);
+    }
+
+    @Override
+    public boolean pushToBucket(String fileId, int bucketSize, User user) {
+        // A bucket already holding the id is skipped; one in another bucket is
+        // caught by the unique idx_bucket_file_user, so concurrent creates of the same id cannot both land
+        Query withRoom = Query.query(where("fileId").is(fileId)
+                        .and("count").lt(bucketSize)
+                        .and("users.id").ne(user.getId()))
+                .with(Sort.by("seq"));
+        Update push = new Update()
+                .push("users", user)
+                .inc("count", 1)
+                .min("minId", user.getId())
+                .max("maxId", user.getId());
+
+        try {
+            UserBucket filled = mongoTemplate.findAndModify(withRoom, push, UserBucket.class);
+            if (filled == null) {
+                if (existsInBuckets(fileId, user.getId())) {
+                    // The only bucket with room holds the id
+                    return false;
+                }
+                // Every bucket is full: reserve the next sequence number on the header
+                CsvFile reserved = mongoTemplate.findAndModify(
+                        Query.query(where("id").is(fileId)),
+                        new Update().inc("bucketCount", 1).inc("version", 1),
+                        FindAndModifyOptions.options().returnNew(true),
+                        CsvFile.class);
+                int seq = reserved != null ? reserved.getBucketCount() - 1 : 0;
+                mongoTemplate.insert(new UserBucket(fileId, seq, new ArrayList<>(List.of(user))));
+            }
+        } catch (DuplicateKeyException e) {
+            return false;
+        }
+
+        // Only a push that took effect is counted. The bucket and the header are
+        // separate documents: without a transaction a crash between the two writes
+        // leaves userCount off by one until the file is next uploaded or batch-written
+        touchHeader(fileId, 1);
+        return true;
+    }
+
+    @Override
+    public long setInBucket(String fileId, int userId, String email, String name) {
+        Update update = new Update();
+        if (email != null) {
+            update.set("users.$.email", email);
+        }
+        if (name != null) {
+            update.set("users.$.name", name);
+        }
+        if (update.getUpdateObject().isEmpty()) {
+            return existsInBuckets(fileId, userId) ? 1 : 0;
+        }
+
+        long matched = mongoTemplate.updateFirst(userQuery(fileId, userId), update, UserBucket.class)
+                .getMatchedCount();
+        if (matched > 0) {
+            touchHeader(fileId, 0);
+        }
+        return matched;
+    }
+
+    @Override
+    public long pullFromBucket(String fileId, int userId) {
+        Update pull = new Update()
+                .pull("users", Query.query(where("id").is(userId)))
+                .inc("count", -1);
+
+        long modified = mongoTemplate.updateFirst(userQuery(fileId, userId), pull, UserBucket.class)
+                .getModifiedCount();
+        if (modified > 0) {
+            touchHeader(fileId, -1);
+        }
+        return modified;
+    }
+
+    @Override
+    public void deleteBuckets(String fileId) {
+        mongoTemplate.remove(Query.query(where("fileId").is(fileId)), UserBucket.class);
+    }
+
+    /**
+     * Matches the single bucket holding a user; served by idx_bucket_file_user
+     * A bucket holding a user has count > 0, which the partial index requires of the query
+     */
+    private static Query userQuery(String fileId, int userId) {
+        return Query.query(where("fileId").is(fileId).and("users.id").is(userId).and("count").gt(0));
+    }
+
+    private void touchHeader(String fileId, int userCountDelta) {
+        Update update = new Update()
+                .set("lastModified", LocalDateTime.now())
+                .inc("version", 1)
+                .unset("contentHash");
+        if (userCountDelta != 0) {
+            update.inc("userCount", userCountDelta);
+        }
+        mongoTemplate.updateFirst(Query.query(where("id").is(fileId)), update, CsvFile.class);
+    }
+
+    /* ---------- LOOKUP (BOTH LAYOUTS) ---------- */
+
+    /**
+     * A bucketed match before its fileId is resolved to a filename
+     */
+    record BucketMatch(String fileId, User user) {
+    }
+
+    @Override
+    public List<UserMatch> findUsersByEmail(String email, int limit) {
+        return findUsers(where("users.email").is(email), limit);
+    }
+
+    @Override
+    public List<UserMatch> findUsersByNamePrefix(String prefix, int limit) {
+        return findUsers(where("users.name").regex(prefixRegex(prefix)), limit);
+    }
+
+    /**
+     * Anchored regex matching names that start with prefix
+     * Only ASCII metacharacters are escaped: MongoDB turns ^ followed by literal
+     * characters into index bounds, and treats a backslash before a letter or
+     * digit as a regex class, which would fall back to scanning every key
+     */
+    static String prefixRegex(String prefix) {
+        return "^" + REGEX_META.matcher(prefix).replaceAll("\\\\$0");
+    }
+
+    /**
+     * Run a lookup on both collections
+     * The criteria is on users.*: the first match selects documents through the
+     * multikey index, the same criteria after $unwind keeps only the matching users
+     */
+    private List<UserMatch> findUsers(Criteria user, int limit) {
+        List<UserMatch> matches = new ArrayList<>(mongoTemplate.aggregate(lookup(user, "filename", limit),
+                mongoTemplate.getCollectionName(CsvFile.class), UserMatch.class).getMappedResults());
+        if (matches.size() >= limit) {
+            return matches;
+        }
+
+        List<BucketMatch> bucketMatches = mongoTemplate.aggregate(lookup(user, "fileId", limit - matches.size()),
+                mongoTemplate.getCollectionName(UserBucket.class), BucketMatch.class).getMappedResults();
+        if (bucketMatches.isEmpty()) {
+            return matches;
+        }
+
+        // One query for the filenames of all matched headers
+        Map<String, String> filenames = new HashMap<>();
+        for (CsvFile header : mongoTemplate.find(headerFilenames(bucketMatches), CsvFile.class)) {
+            filenames.put(header.getId(), header.getFilename());
+        }
+        return resolveFilenames(matches, bucketMatches, filenames);
+    }
+
+    /**
+     * Matching users of one collection, each with the owner field of its document
+     * (filename for csv_files, fileId for csv_file_buckets)
+     */
+    static Aggregation lookup(Criteria user, String owner, int limit) {
+        return Aggregation.newAggregation(
+                match(user),
+                project(owner, "users").andExclude("_id"),
+                unwind("users"),
+                match(user),
+                limit(limit),
+                project(owner).and("users").as("user").andExclude("_id"));
+    }
+
+    static Query headerFilenames(List<BucketMatch> bucketMatches) {
+        Query headers = Query.query(where("id").in(bucketMatches.stream().map(BucketMatch::fileId).distinct().toList()));
+        headers.fields().include("filename");
+        return headers;
+    }
+
+    /**
+     * Append the bucketed matches to the embedded ones under their header's filename
+     */
+    static List<UserMatch> resolveFilenames(List<UserMatch> matches, List<BucketMatch> bucketMatches,
+                                            Map<String, String> filenames) {
+        for (BucketMatch match : bucketMatches) {
+            String filename = filenames.get(match.fileId());
+            // Buckets whose header is already gone are being deleted
+            if (filename != null) {
+                matches.add(new UserMatch(filename, match.user()));
+            }
+        }
+        return matches;
+    }
+
+    /* ---------- ORIGINAL UPLOADS (GRIDFS) ---------- */
+
+    @Override
+    public ContentUpload openContentUpload(String filename) {
+        return openContentUpload(filename, new Document("contentType", "text/csv").append("contentEncoding", "gzip"));
+    }
+
+    @Override
+    public ContentUpload openLegacyContentUpload(String filename) {
+        return openContentUpload(filename, new Document("contentType", "text/csv").append("contentEncoding", "gzip")
+                .append("rerendered", true));
+    }
+
+    private ContentUpload openContentUpload(String filename, Document metadata) {
+        GridFSUploadOptions options = new GridFSUploadOptions().metadata(metadata);
+        return new GridFsContentUpload(contentBucket().openUploadStream(filename, options));
+    }
+
+    @Override
+    public Optional<InputStream> openContent(String contentId, boolean decompress) {
+        GridFSDownloadStream download;
+        try {
+            download = contentBucket().openDownloadStream(new ObjectId(contentId));
+        } catch (MongoGridFSException e) {
+            return Optional.empty();
+        }
+        if (!decompress) {
+            return Optional.of(download);
+        }
+        try {
+            return Optional.of(new GZIPInputStream(download, GZIP_BUFFER));
+        } catch (IOException e) {
+            download.close();
+            throw new RuntimeException("Error reading original upload " + contentId + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void deleteContent(String contentId) {
+        try {
+            contentBucket().delete(new ObjectId(contentId));
+        } catch (MongoGridFSException e) {
+            // Already deleted, e.g. by a concurrent re-upload of the same file
+        }
+    }
+
+    private GridFSBucket contentBucket() {
+        return GridFSBuckets.create(mongoTemplate.getDb(), CONTENT_BUCKET);
+    }
+
+    /**
+     * Gzips into a GridFS upload stream, so neither the upload nor its compressed
+     * form is ever held in memory; GridFS writes each chunk as it fills
+     */
+    private static final class GridFsContentUpload implements ContentUpload {
+
+        private final GridFSUploadStream upload;
+
+        private final GZIPOutputStream gzip;
+
+        GridFsContentUpload(GridFSUploadStream upload) {
+            this.upload = upload;
+            try {
+                this.gzip = new GZIPOutputStream(upload, GZIP_BUFFER) {
+                    {
+                        // Repetitive CSV text compresses well at the fastest level, at a fraction of the CPU
+                        def.setLevel(Deflater.BEST_SPEED);
+                    }
+                };
+            } catch (IOException e) {
+                upload.abort();
+                throw new RuntimeException("Error storing original upload: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public OutputStream out() {
+            return gzip;
+        }
+
+        @Override
+        public String finish() {
+            try {
+                // Finishes the gzip stream and closes the upload, which writes the files document
+                gzip.close();
+            } catch (IOException | RuntimeException e) {
+                abort();
+                throw new RuntimeException("Error storing original upload: " + e.getMessage());
+            }
+            return upload.getObjectId().toHexString();
+        }
+
+        @Override
+        public void abort() {
+            try {
+                // Deletes the chunks written so far; the files document is only written on close
+                upload.abort();
+            } catch (MongoGridFSException e) {
+                // Already closed or aborted
+            }
+        }
+    }
+}
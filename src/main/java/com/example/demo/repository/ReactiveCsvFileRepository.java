@@ -0,0 +1,36 @@
+package com.example.demo.repository;
+
+import com.example.demo.model.CsvFile;
+import com.example.demo.model.CsvFileInfo;
+import org.springframework.data.mongodb.repository.Query;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Mono;
+
+/**
+ * Reactive MongoDB Repository for CsvFile documents, used by the reactive profile
+ * Only instantiated when the reactive MongoDB auto-configuration is enabled
+ */
+@Repository
+public interface ReactiveCsvFileRepository extends ReactiveMongoRepository<CsvFile, String>,
+        ReactiveCsvFileRepositoryCustom {
+
+    /**
+     * Find the metadata of a CSV file without loading users
+     * Same projection as CsvFileRepository.findInfoByFilename
+     * @param filename the filename to search for
+     * @return the file metadata, or empty if not found
+     */
+    @Query(value = "{ 'filename': ?0 }",
+            fields = "{ 'filename': 1, 'userCount': 1, 'sizeBytes': 1, 'bucketSize': 1,"
+                    + " 'uploadedAt': 1, 'lastModified': 1, 'contentHash': 1, 'contentId': 1 }")
+    Mono<CsvFileInfo> findInfoByFilename(String filename);
+
+    /**
+     * Find a CSV file without its embedded users, e.g. to replace it by a bucketed upload
+     * @param filename the filename to search for
+     * @return the header with every field but users, or empty if not found
+     */
+    @Query(value = "{ 'filename': ?0 }", fields = "{ 'users': 0 }")
+    Mono<CsvFile> findHeaderByFilename(String filename);
+}
@@ -0,0 +1,108 @@
+package com.example.demo.repository;
+
+import com.example.demo.model.User;
+import com.example.demo.model.UserBucket;
+import com.example.demo.model.UserMatch;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/**
+ * Custom CsvFile operations implemented with ReactiveMongoTemplate
+ *
+ * The reads run the same queries and aggregations as CsvFileRepositoryCustom,
+ * without blocking a thread on MongoDB. Streams are backed by a cursor and
+ * fetch the next batch only when the subscriber asks for more.
+ *
+ * The writes serve uploads streamed into bucketed layout: buckets are inserted
+ * under a staging file id while the upload is parsed, then moved under the
+ * file's header once the whole upload was read.
+ */
+public interface ReactiveCsvFileRepositoryCustom {
+
+    /* ---------- EMBEDDED LAYOUT ---------- */
+
+    /**
+     * One page of an embedded file's users ordered by id, see CsvFileRepositoryCustom.findUsersPage
+     * @param filename the embedded file to read
+     * @param afterId  last id of the previous page, null for the first page
+     * @param limit    max users to return
+     * @return up to limit users with id above afterId
+     */
+    Mono<List<User>> findUsersPage(String filename, Integer afterId, int limit);
+
+    /**
+     * Every user of an embedded file in file order, read from a cursor
+     * @param filename the embedded file to read
+     * @return the users; empty if the file is missing or bucketed
+     */
+    Flux<User> streamUsers(String filename);
+
+    /* ---------- BUCKETED LAYOUT ---------- */
+
+    /**
+     * Insert buckets in one insertMany
+     * @param buckets the buckets to insert
+     * @return completes once they are written
+     */
+    Mono<Void> insertBuckets(List<UserBucket> buckets);
+
+    /**
+     * Move every bucket of one file id to another, e.g. staged buckets under their header
+     * @param fromFileId current fileId of the buckets
+     * @param toFileId   fileId to set
+     * @return number of buckets moved
+     */
+    Mono<Long> moveBuckets(String fromFileId, String toFileId);
+
+    /**
+     * Delete every bucket of a file
+     * @param fileId id of the file header
+     * @return number of buckets deleted
+     */
+    Mono<Long> deleteBuckets(String fileId);
+
+    /**
+     * One page of a bucketed file's users ordered by id, see CsvFileRepositoryCustom.findBucketedUsersPage
+     * @param fileId  id of the file header
+     * @param afterId last id of the previous page, null for the first page
+     * @param limit   max users to return
+     * @return up to limit users with id above afterId
+     */
+    Mono<List<User>> findBucketedUsersPage(String fileId, Integer afterId, int limit);
+
+    /**
+     * Every user of a bucketed file in file order, read from a cursor
+     * @param fileId id of the file header
+     * @return the users
+     */
+    Flux<User> streamBucketedUsers(String fileId);
+
+    /* ---------- LOOKUP (BOTH LAYOUTS) ---------- */
+
+    /**
+     * Users with an exact email across all files, see CsvFileRepositoryCustom.findUsersByEmail
+     * @param email the email to look for
+     * @param limit max matches
+     * @return matches with the filename holding each user
+     */
+    Mono<List<UserMatch>> findUsersByEmail(String email, int limit);
+
+    /**
+     * Users whose name starts with prefix across all files, see CsvFileRepositoryCustom.findUsersByNamePrefix
+     * @param prefix start of the name, matched literally
+     * @param limit  max matches
+     * @return matches with the filename holding each user
+     */
+    Mono<List<UserMatch>> findUsersByNamePrefix(String prefix, int limit);
+
+    /* ---------- ORIGINAL UPLOADS (GRIDFS) ---------- */
+
+    /**
+     * Delete a stored original upload; already deleted content is ignored
+     * @param contentId id returned when the content was stored
+     * @return completes once deleted
+     */
+    Mono<Void> deleteContent(String contentId);
+}
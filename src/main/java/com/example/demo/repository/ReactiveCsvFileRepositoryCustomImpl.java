@@ -0,0 +1,149 @@
+package com.example.demo.repository;
+
+import com.example.demo.model.CsvFile;
+import com.example.demo.model.User;
+import com.example.demo.model.UserBucket;
+import com.example.demo.model.UserMatch;
+import com.example.demo.repository.CsvFileRepositoryCustomImpl.BucketMatch;
+import com.mongodb.MongoGridFSException;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import com.mongodb.reactivestreams.client.gridfs.GridFSBuckets;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * ReactiveMongoTemplate implementation of ReactiveCsvFileRepositoryCustom
+ * Picked up by Spring Data as a fragment of ReactiveCsvFileRepository; the
+ * queries and aggregations are the ones CsvFileRepositoryCustomImpl builds
+ */
+public class ReactiveCsvFileRepositoryCustomImpl implements ReactiveCsvFileRepositoryCustom {
+
+    private final ReactiveMongoTemplate mongoTemplate;
+
+    public ReactiveCsvFileRepositoryCustomImpl(ReactiveMongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    /* ---------- EMBEDDED LAYOUT ---------- */
+
+    @Override
+    public Mono<List<User>> findUsersPage(String filename, Integer afterId, int limit) {
+        return mongoTemplate.aggregate(CsvFileRepositoryCustomImpl.usersPage(filename, afterId, limit),
+                mongoTemplate.getCollectionName(CsvFile.class), User.class).collectList();
+    }
+
+    @Override
+    public Flux<User> streamUsers(String filename) {
+        return mongoTemplate.aggregate(CsvFileRepositoryCustomImpl.fileUsers(filename),
+                mongoTemplate.getCollectionName(CsvFile.class), User.class);
+    }
+
+    /* ---------- BUCKETED LAYOUT ---------- */
+
+    @Override
+    public Mono<Void> insertBuckets(List<UserBucket> buckets) {
+        return mongoTemplate.insert(buckets, UserBucket.class).then();
+    }
+
+    @Override
+    public Mono<Long> moveBuckets(String fromFileId, String toFileId) {
+        return mongoTemplate.updateMulti(Query.query(where("fileId").is(fromFileId)),
+                        new Update().set("fileId", toFileId), UserBucket.class)
+                .map(UpdateResult::getModifiedCount);
+    }
+
+    @Override
+    public Mono<Long> deleteBuckets(String fileId) {
+        return mongoTemplate.remove(Query.query(where("fileId").is(fileId)), UserBucket.class)
+                .map(DeleteResult::getDeletedCount);
+    }
+
+    @Override
+    public Mono<List<User>> findBucketedUsersPage(String fileId, Integer afterId, int limit) {
+        return mongoTemplate.find(CsvFileRepositoryCustomImpl.bucketBounds(fileId, afterId), UserBucket.class)
+                .collectList()
+                .flatMap(bounds -> loadPage(fileId, new BucketPager(bounds, afterId, limit)));
+    }
+
+    /**
+     * Load the buckets the pager asks for, one round trip per round, until the page is complete
+     */
+    private Mono<List<User>> loadPage(String fileId, BucketPager pager) {
+        List<Integer> seqs = pager.nextSeqs();
+        if (seqs.isEmpty()) {
+            return Mono.just(pager.page());
+        }
+        return mongoTemplate.find(CsvFileRepositoryCustomImpl.bucketsBySeq(fileId, seqs), UserBucket.class)
+                .collectList()
+                .flatMap(buckets -> {
+                    pager.add(buckets);
+                    return loadPage(fileId, pager);
+                });
+    }
+
+    @Override
+    public Flux<User> streamBucketedUsers(String fileId) {
+        return mongoTemplate.aggregate(CsvFileRepositoryCustomImpl.bucketedUsers(fileId),
+                mongoTemplate.getCollectionName(UserBucket.class), User.class);
+    }
+
+    /* ---------- LOOKUP (BOTH LAYOUTS) ---------- */
+
+    @Override
+    public Mono<List<UserMatch>> findUsersByEmail(String email, int limit) {
+        return findUsers(where("users.email").is(email), limit);
+    }
+
+    @Override
+    public Mono<List<UserMatch>> findUsersByNamePrefix(String prefix, int limit) {
+        return findUsers(where("users.name").regex(CsvFileRepositoryCustomImpl.prefixRegex(prefix)), limit);
+    }
+
+    /**
+     * Run a lookup on both collections, the buckets only if the embedded files did not fill the limit
+     */
+    private Mono<List<UserMatch>> findUsers(Criteria user, int limit) {
+        return mongoTemplate.aggregate(CsvFileRepositoryCustomImpl.lookup(user, "filename", limit),
+                        mongoTemplate.getCollectionName(CsvFile.class), UserMatch.class)
+                .collect(ArrayList<UserMatch>::new, List::add)
+                .flatMap(matches -> matches.size() >= limit
+                        ? Mono.just(matches)
+                        : findBucketMatches(user, limit - matches.size(), matches));
+    }
+
+    private Mono<List<UserMatch>> findBucketMatches(Criteria user, int limit, List<UserMatch> matches) {
+        return mongoTemplate.aggregate(CsvFileRepositoryCustomImpl.lookup(user, "fileId", limit),
+                        mongoTemplate.getCollectionName(UserBucket.class), BucketMatch.class)
+                .collectList()
+                .flatMap(bucketMatches -> bucketMatches.isEmpty()
+                        ? Mono.just(matches)
+                        // One query for the filenames of all matched headers
+                        : mongoTemplate.find(CsvFileRepositoryCustomImpl.headerFilenames(bucketMatches), CsvFile.class)
+                                .collectMap(CsvFile::getId, CsvFile::getFilename)
+                                .map((Map<String, String> filenames) ->
+                                        CsvFileRepositoryCustomImpl.resolveFilenames(matches, bucketMatches, filenames)));
+    }
+
+    /* ---------- ORIGINAL UPLOADS (GRIDFS) ---------- */
+
+    @Override
+    public Mono<Void> deleteContent(String contentId) {
+        return mongoTemplate.getMongoDatabase()
+                .flatMap(db -> Mono.from(GridFSBuckets.create(db, CsvFileRepositoryCustomImpl.CONTENT_BUCKET)
+                        .delete(new ObjectId(contentId))))
+                // Already deleted, e.g. by a concurrent re-upload of the same file
+                .onErrorResume(MongoGridFSException.class, e -> Mono.empty());
+    }
+}
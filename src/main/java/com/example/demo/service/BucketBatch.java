@@ -0,0 +1,298 @@
+package com.example.demo.service;
+
+import com.example.demo.model.User;
+import com.example.demo.model.UserBucket;
+import com.example.demo.repository.CsvFileRepositoryCustom.BucketWrite;
+import com.example.demo.util.IntIntHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Plans a batch of mutations against the loaded buckets of a bucketed file
+ *
+ * Each mutation is checked against the users as they stand after the previous
+ * ones, with the same rules as the single-user operations, and turned into one
+ * targeted bucket write. Creates go to the first bucket with room, like
+ * pushToBucket; once every bucket is full they fill new buckets, which are
+ * inserted with their final content.
+ *
+ * For an unordered bulk write, whose writes MongoDB may apply in any order,
+ * the mutations of one user are merged so that each user gets at most one
+ * write: a create then patch pushes the patched user, a delete then create
+ * sets the new fields in place, a create then delete writes nothing.
+ *
+ * slot(i) tells which write (or new bucket) carries mutation i, so the
+ * outcome of the bulk write can be reported per mutation.
+ */
+final class BucketBatch {
+
+    static final int NO_SLOT = -1;
+
+    private final int bucketSize;
+
+    private final List<UserBucket> buckets;
+
+    private final boolean merge;
+
+    // User id -> bucket index; indexes past the loaded buckets are new buckets
+    private final IntIntHashMap bucketByUser = new IntIntHashMap();
+
+    // User id -> index in writes of its pending write (merge only)
+    private final IntIntHashMap writeByUser = new IntIntHashMap();
+
+    private int[] counts;
+
+    // Lowest bucket index that may have room
+    private int roomFrom;
+
+    // Cancelled writes are left as null until writes() compacts them
+    private final List<BucketWrite> writes = new ArrayList<>();
+
+    private final List<List<User>> newBuckets = new ArrayList<>();
+
+    // Per mutation: index in writes, -(new bucket + 2) for a new bucket, or NO_SLOT
+    private int[] rawSlots = new int[16];
+
+    private int mutations;
+
+    private int userCountDelta;
+
+    private int[] writeSlots;
+
+    private int[] bucketSlots;
+
+    BucketBatch(List<UserBucket> buckets, int bucketSize, boolean merge) {
+        this.buckets = buckets;
+        this.bucketSize = bucketSize;
+        this.merge = merge;
+        this.counts = new int[buckets.size() + 1];
+        for (int b = 0; b < buckets.size(); b++) {
+            UserBucket bucket = buckets.get(b);
+            counts[b] = bucket.getCount();
+            for (User user : bucket.getUsers()) {
+                bucketByUser.put(user.getId(), b);
+            }
+        }
+    }
+
+    /**
+     * Plan the next mutation; called once per mutation, in request order
+     *
+     * @return true if the mutation takes effect, with the same meaning as UserMutation.applyTo
+     */
+    boolean apply(UserMutation mutation) {
+        if (mutations == rawSlots.length) {
+            rawSlots = Arrays.copyOf(rawSlots, mutations * 2);
+        }
+        int index = mutations++;
+        rawSlots[index] = NO_SLOT;
+
+        int id = mutation.id();
+        return switch (mutation.type()) {
+            case CREATE -> {
+                if (bucketByUser.containsKey(id)) {
+                    yield false;
+                }
+                User user = new User(id, mutation.email(), mutation.name());
+                int pending = merge ? writeByUser.get(id) : IntIntHashMap.MISSING;
+                if (pending != IntIntHashMap.MISSING) {
+                    // Deleted earlier in the batch: set the new fields where the user still is
+                    BucketWrite pull = writes.get(pending);
+                    int b = bucketIndex(pull.bucketId());
+                    writes.set(pending, new BucketWrite(BucketWrite.Kind.SET, pull.bucketId(), user));
+                    counts[b]++;
+                    bucketByUser.put(id, b);
+                    userCountDelta++;
+                    rawSlots[index] = pending;
+                    yield true;
+                }
+                int b = bucketWithRoom();
+                if (b < buckets.size()) {
+                    rawSlots[index] = addWrite(new BucketWrite(BucketWrite.Kind.PUSH, buckets.get(b).getId(), user));
+                } else {
+                    newBucket(b).add(user);
+                    rawSlots[index] = -(b - buckets.size() + 2);
+                }
+                counts[b]++;
+                bucketByUser.put(id, b);
+                userCountDelta++;
+                yield true;
+            }
+            case UPDATE, PATCH -> {
+                int b = bucketByUser.get(id);
+                if (b == IntIntHashMap.MISSING) {
+                    yield false;
+                }
+                if (mutation.email() == null && mutation.name() == null) {
+                    yield true;
+                }
+                if (b < buckets.size()) {
+                    int pending = merge ? writeByUser.get(id) : IntIntHashMap.MISSING;
+                    if (pending != IntIntHashMap.MISSING) {
+                        // Pushed or set earlier in the batch: fold the new fields into that write
+                        setFields(writes.get(pending).user(), mutation);
+                        rawSlots[index] = pending;
+                    } else {
+                        rawSlots[index] = addWrite(new BucketWrite(BucketWrite.Kind.SET, buckets.get(b).getId(),
+                                new User(id, mutation.email(), mutation.name())));
+                    }
+                } else {
+                    setFields(findNew(b, id), mutation);
+                    rawSlots[index] = -(b - buckets.size() + 2);
+                }
+                yield true;
+            }
+            case DELETE -> {
+                int b = bucketByUser.remove(id);
+                if (b == IntIntHashMap.MISSING) {
+                    yield false;
+                }
+                if (b < buckets.size()) {
+                    int pending = merge ? writeByUser.get(id) : IntIntHashMap.MISSING;
+                    if (pending != IntIntHashMap.MISSING && writes.get(pending).kind() == BucketWrite.Kind.PUSH) {
+                        // Created earlier in the batch: neither write is needed
+                        writes.set(pending, null);
+                        writeByUser.remove(id);
+                    } else if (pending != IntIntHashMap.MISSING) {
+                        // Set earlier in the batch: the pull replaces it
+                        writes.set(pending, new BucketWrite(BucketWrite.Kind.PULL, buckets.get(b).getId(),
+                                new User(id, null, null)));
+                        rawSlots[index] = pending;
+                    } else {
+                        rawSlots[index] = addWrite(new BucketWrite(BucketWrite.Kind.PULL, buckets.get(b).getId(),
+                                new User(id, null, null)));
+                    }
+                } else {
+                    newBucket(b).remove(findNew(b, id));
+                }
+                counts[b]--;
+                roomFrom = Math.min(roomFrom, b);
+                userCountDelta--;
+                yield true;
+            }
+        };
+    }
+
+    /**
+     * Writes to existing buckets; in request order unless merged
+     */
+    List<BucketWrite> writes() {
+        compact();
+        return writes;
+    }
+
+    /**
+     * Users of the buckets to add, without buckets emptied again by later deletes
+     */
+    List<List<User>> newBuckets() {
+        return newBuckets.stream().filter(users -> !users.isEmpty()).toList();
+    }
+
+    /**
+     * Where the outcome of a planned mutation is reported by writeBuckets
+     *
+     * @param mutation index of the mutation, in request order
+     * @return index in writes(), writes().size() + index in newBuckets(), or NO_SLOT if
+     *         the mutation needs no write (rejected, no-op, or cancelled by a later one)
+     */
+    int slot(int mutation) {
+        compact();
+        int raw = rawSlots[mutation];
+        if (raw >= 0) {
+            return writeSlots[raw];
+        }
+        if (raw == NO_SLOT) {
+            return NO_SLOT;
+        }
+        int bucket = bucketSlots[-raw - 2];
+        return bucket == NO_SLOT ? NO_SLOT : writes.size() + bucket;
+    }
+
+    int userCountDelta() {
+        return userCountDelta;
+    }
+
+    boolean hasChanges() {
+        return !writes().isEmpty() || newBuckets.stream().anyMatch(users -> !users.isEmpty());
+    }
+
+    private int addWrite(BucketWrite write) {
+        writes.add(write);
+        if (merge) {
+            writeByUser.put(write.user().getId(), writes.size() - 1);
+        }
+        return writes.size() - 1;
+    }
+
+    /**
+     * Drop cancelled writes and empty new buckets, once planning is done
+     */
+    private void compact() {
+        if (writeSlots != null) {
+            return;
+        }
+        writeSlots = new int[writes.size()];
+        int kept = 0;
+        for (int w = 0; w < writeSlots.length; w++) {
+            BucketWrite write = writes.get(w);
+            writeSlots[w] = write == null ? NO_SLOT : kept;
+            if (write != null) {
+                writes.set(kept++, write);
+            }
+        }
+        writes.subList(kept, writes.size()).clear();
+
+        bucketSlots = new int[newBuckets.size()];
+        kept = 0;
+        for (int n = 0; n < bucketSlots.length; n++) {
+            bucketSlots[n] = newBuckets.get(n).isEmpty() ? NO_SLOT : kept++;
+        }
+    }
+
+    private int bucketIndex(String bucketId) {
+        for (int b = 0; b < buckets.size(); b++) {
+            if (buckets.get(b).getId().equals(bucketId)) {
+                return b;
+            }
+        }
+        throw new IllegalStateException("Unknown bucket " + bucketId);
+    }
+
+    private static void setFields(User user, UserMutation mutation) {
+        if (mutation.email() != null) {
+            user.setEmail(mutation.email());
+        }
+        if (mutation.name() != null) {
+            user.setName(mutation.name());
+        }
+    }
+
+    private int bucketWithRoom() {
+        while (roomFrom < buckets.size() + newBuckets.size() && counts[roomFrom] >= bucketSize) {
+            roomFrom++;
+        }
+        return roomFrom;
+    }
+
+    private List<User> newBucket(int b) {
+        int n = b - buckets.size();
+        if (n == newBuckets.size()) {
+            newBuckets.add(new ArrayList<>());
+            if (counts.length <= b + 1) {
+                counts = Arrays.copyOf(counts, counts.length * 2);
+            }
+        }
+        return newBuckets.get(n);
+    }
+
+    private User findNew(int b, int id) {
+        for (User user : newBucket(b)) {
+            if (user.getId() == id) {
+                return user;
+            }
+        }
+        throw new IllegalStateException("User " + id + " missing from new bucket " + b);
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.demo.service;
+
+import com.example.demo.config.CacheProperties;
+import com.example.demo.model.CsvFileInfo;
+import com.example.demo.repository.CsvFileRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Read-through cache of CsvFileInfo metadata keyed by filename
+ *
+ * Holds only the header fields every read and write path resolves first
+ * (id, layout, counts, hashes), never users: paths that need the users read
+ * them from MongoDB by projection or cursor, and paths that modify a document
+ * load their own copy from the repository. Writers refresh the entry with
+ * put() or drop it with invalidate().
+ *
+ * Bounded by the estimated heap size of the cached entries; eviction is
+ * Caffeine's W-TinyLFU (frequency-aware LRU).
+ */
+@Component
+public class CsvFileCache implements MeterBinder {
+
+    // Rough JVM sizes used by the weigher (compressed oops, compact Latin-1 strings)
+    private static final int INFO_OVERHEAD = 120;
+    private static final int STRING_OVERHEAD = 40;
+
+    private final CsvFileRepository csvFileRepository;
+    private final Cache<String, CsvFileInfo> cache;
+
+    @Autowired
+    public CsvFileCache(CsvFileRepository csvFileRepository, CacheProperties cacheProperties) {
+        this(csvFileRepository, cacheProperties.maxSize().toBytes(), cacheProperties.ttl(), ForkJoinPool.commonPool());
+    }
+
+    CsvFileCache(CsvFileRepository csvFileRepository, long maxBytes, Duration ttl, Executor executor) {
+        this.csvFileRepository = csvFileRepository;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(CsvFileCache::weigh)
+                .expireAfterWrite(ttl)
+                .executor(executor)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Get a file's metadata, loading it by projection on a miss
+     * Missing files are not cached, so a later upload is seen immediately
+     *
+     * @param filename the filename to look up
+     * @return the cached or freshly loaded metadata
+     */
+    public Optional<CsvFileInfo> findInfo(String filename) {
+        return Optional.ofNullable(cache.get(filename, key -> csvFileRepository.findInfoByFilename(key).orElse(null)));
+    }
+
+    /**
+     * Get a file's metadata only if it is cached
+     * For callers that must not block on MongoDB: they load a miss themselves
+     * and hand it to putIfAbsent()
+     *
+     * @param filename the filename to look up
+     * @return the cached metadata, or empty on a miss
+     */
+    public Optional<CsvFileInfo> getIfPresent(String filename) {
+        return Optional.ofNullable(cache.getIfPresent(filename));
+    }
+
+    /**
+     * Cache metadata loaded after a getIfPresent() miss, unless a writer put
+     * newer metadata in the meantime
+     */
+    public void putIfAbsent(CsvFileInfo info) {
+        cache.asMap().putIfAbsent(info.filename(), info);
+    }
+
+    /**
+     * Store the metadata of a file that was just saved, replacing any cached entry
+     */
+    public void put(CsvFileInfo info) {
+        cache.put(info.filename(), info);
+    }
+
+    /**
+     * Drop the cached entry of a file after it was changed in MongoDB
+     * Waits for an in-flight load of the same file, so a value read before the
+     * change cannot be cached after it
+     */
+    public void invalidate(String filename) {
+        cache.invalidate(filename);
+    }
+
+    /**
+     * Publish the same counters, and the time spent loading files on a miss,
+     * as cache.* meters tagged cache=csvFiles
+     */
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        CaffeineCacheMetrics.monitor(registry, cache, "csvFiles");
+    }
+
+    /**
+     * Hit/miss/eviction counters and current size, for sizing app.cache.max-size
+     */
+    public Map<String, Object> stats() {
+        CacheStats stats = cache.stats();
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("hits", stats.hitCount());
+        result.put("misses", stats.missCount());
+        result.put("hitRate", stats.hitRate());
+        result.put("evictions", stats.evictionCount());
+        result.put("evictedBytes", stats.evictionWeight());
+        result.put("entries", cache.estimatedSize());
+        result.put("weightedBytes", weightedSize());
+        result.put("maxBytes", cache.policy().eviction().orElseThrow().getMaximum());
+        return result;
+    }
+
+    long weightedSize() {
+        return cache.policy().eviction().orElseThrow().weightedSize().orElse(0L);
+    }
+
+    /**
+     * Run pending maintenance (evictions) now instead of on the executor
+     */
+    void cleanUp() {
+        cache.cleanUp();
+    }
+
+    /**
+     * Estimated heap footprint of a cached entry in bytes
+     */
+    static int weigh(String filename, CsvFileInfo info) {
+        long bytes = INFO_OVERHEAD + sizeOf(filename) + sizeOf(info.id())
+                + sizeOf(info.contentHash()) + sizeOf(info.contentId());
+        return (int) Math.min(bytes, Integer.MAX_VALUE);
+    }
+
+    private static long sizeOf(String s) {
+        return s == null ? 0 : STRING_OVERHEAD + s.length();
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.demo.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of one asynchronous upload ingestion
+ * Written by the job's thread, read by status requests
+ *
+ * rowsPersisted follows the writes as they happen: all rows once an embedded
+ * file is saved, bucket batch by bucket batch for bucketed storage. A write
+ * that loses to a concurrent writer counts as an error and starts over.
+ */
+public class IngestionJob {
+
+    public enum State { QUEUED, RUNNING, SUCCEEDED, FAILED }
+
+    private final String id;
+    private final String filename;
+    private final long sizeBytes;
+    private final Instant submittedAt = Instant.now();
+
+    private final AtomicLong rowsParsed = new AtomicLong();
+    private volatile long rowsPersisted;
+    private final AtomicLong errors = new AtomicLong();
+    private volatile State state = State.QUEUED;
+    private volatile Instant startedAt;
+    private volatile Instant finishedAt;
+    private volatile String fileId;
+    private volatile String error;
+
+    IngestionJob(String id, String filename, long sizeBytes) {
+        this.id = id;
+        this.filename = filename;
+        this.sizeBytes = sizeBytes;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public long getRowsParsed() {
+        return rowsParsed.get();
+    }
+
+    public long getRowsPersisted() {
+        return rowsPersisted;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public Instant getFinishedAt() {
+        return finishedAt;
+    }
+
+    public boolean isFinished() {
+        return state == State.SUCCEEDED || state == State.FAILED;
+    }
+
+    void started() {
+        startedAt = Instant.now();
+        state = State.RUNNING;
+    }
+
+    void rowParsed() {
+        rowsParsed.incrementAndGet();
+    }
+
+    void rowsPersisted(long rows) {
+        rowsPersisted = rows;
+    }
+
+    void writeRetried() {
+        errors.incrementAndGet();
+        rowsPersisted = 0;
+    }
+
+    void succeeded(String fileId) {
+        this.fileId = fileId;
+        finish(State.SUCCEEDED);
+    }
+
+    void failed(String error) {
+        this.error = error;
+        errors.incrementAndGet();
+        finish(State.FAILED);
+    }
+
+    private void finish(State state) {
+        finishedAt = Instant.now();
+        this.state = state;
+    }
+
+    /**
+     * Snapshot for the status endpoint
+     * Throughput is rows persisted per second of running time (up to now while running)
+     */
+    public Map<String, Object> toStatus() {
+        Instant started = startedAt;
+        Instant finished = finishedAt;
+        long parsed = rowsParsed.get();
+        long persisted = rowsPersisted;
+
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("jobId", id);
+        status.put("filename", filename);
+        status.put("state", state);
+        status.put("sizeBytes", sizeBytes);
+        status.put("rowsParsed", parsed);
+        status.put("rowsPersisted", persisted);
+        status.put("errors", errors.get());
+        status.put("error", error);
+        status.put("fileId", fileId);
+        status.put("submittedAt", submittedAt);
+        status.put("startedAt", started);
+        status.put("finishedAt", finished);
+        if (started != null) {
+            long millis = Duration.between(started, finished != null ? finished : Instant.now()).toMillis();
+            status.put("elapsedMs", millis);
+            status.put("rowsPerSecond", millis > 0 ? persisted * 1000 / millis : persisted);
+        }
+        return status;
+    }
+}
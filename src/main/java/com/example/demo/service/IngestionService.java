@@ -0,0 +1,158 @@
+package com.example.demo.service;
+
+import com.example.demo.config.IngestProperties;
+import com.example.demo.model.CsvFile;
+import com.example.demo.model.User;
+import jakarta.annotation.PreDestroy;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs uploads as background jobs so large files do not hold a Tomcat worker
+ *
+ * The upload is spooled to a temp file on the request thread (the multipart
+ * body is gone once the request ends), then parsed (in parallel chunks when
+ * large) and stored by UserService.ingestUpload on a virtual thread. At most maxConcurrentJobs
+ * jobs run at once; the others wait on a semaphore in QUEUED state, which
+ * costs nothing but a parked virtual thread. Status is kept in memory for
+ * jobRetention after a job finishes.
+ */
+@Service
+public class IngestionService {
+
+    private final UserService userService;
+
+    private final IngestProperties ingestProperties;
+
+    private final Semaphore runPermits;
+
+    private final AtomicInteger pendingJobs = new AtomicInteger();
+
+    private final ConcurrentHashMap<String, IngestionJob> jobs = new ConcurrentHashMap<>();
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public IngestionService(UserService userService, IngestProperties ingestProperties) {
+        this.userService = userService;
+        this.ingestProperties = ingestProperties;
+        this.runPermits = new Semaphore(ingestProperties.maxConcurrentJobs(), true);
+    }
+
+    /**
+     * Accept an upload for background ingestion
+     *
+     * @param file the uploaded CSV file
+     * @return the queued job; poll findJob for progress
+     * @throws RejectedExecutionException if maxPendingJobs jobs are already queued or running
+     */
+    public IngestionJob submit(MultipartFile file) {
+        purgeFinishedJobs();
+
+        if (pendingJobs.incrementAndGet() > ingestProperties.maxPendingJobs()) {
+            pendingJobs.decrementAndGet();
+            throw new RejectedExecutionException("Too many ingestion jobs in progress ("
+                    + ingestProperties.maxPendingJobs() + "), try again later");
+        }
+
+        Path upload = null;
+        try {
+            upload = Files.createTempFile("ingest-", ".csv");
+            file.transferTo(upload);
+        } catch (IOException | RuntimeException e) {
+            pendingJobs.decrementAndGet();
+            deleteQuietly(upload);
+            throw new RuntimeException("Error storing upload: " + e.getMessage());
+        }
+
+        IngestionJob job = new IngestionJob(UUID.randomUUID().toString(), file.getOriginalFilename(), file.getSize());
+        jobs.put(job.getId(), job);
+
+        Path spooled = upload;
+        executor.execute(() -> run(job, spooled));
+        return job;
+    }
+
+    /**
+     * @param jobId id returned by submit
+     * @return the job, or empty if unknown or expired
+     */
+    public Optional<IngestionJob> findJob(String jobId) {
+        return Optional.ofNullable(jobs.get(jobId));
+    }
+
+    private void run(IngestionJob job, Path upload) {
+        try {
+            runPermits.acquire();
+            try {
+                job.started();
+                CsvFile saved = userService.ingestUpload(job.getFilename(), upload, progressOf(job));
+                job.succeeded(saved.getId());
+                System.out.println("✅ Ingestion job " + job.getId() + " stored " + job.getRowsPersisted()
+                        + " users in: " + job.getFilename());
+            } finally {
+                runPermits.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.failed("Ingestion was interrupted");
+        } catch (Exception e) {
+            job.failed(e.getMessage());
+        } finally {
+            pendingJobs.decrementAndGet();
+            deleteQuietly(upload);
+        }
+    }
+
+    private static UserService.IngestProgress progressOf(IngestionJob job) {
+        return new UserService.IngestProgress() {
+            @Override
+            public void parsed(User user) {
+                job.rowParsed();
+            }
+
+            @Override
+            public void persisted(long users) {
+                job.rowsPersisted(users);
+            }
+
+            @Override
+            public void retried(RuntimeException conflict) {
+                job.writeRetried();
+            }
+        };
+    }
+
+    private void purgeFinishedJobs() {
+        Instant cutoff = Instant.now().minus(ingestProperties.jobRetention());
+        jobs.values().removeIf(job -> job.isFinished() && job.getFinishedAt().isBefore(cutoff));
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.out.println("Could not delete ingestion temp file " + path + ": " + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,343 @@
+package com.example.demo.service;
+
+import com.example.demo.config.StorageProperties;
+import com.example.demo.exception.CsvFileNotFoundException;
+import com.example.demo.exception.DuplicateUserIdException;
+import com.example.demo.model.CsvFile;
+import com.example.demo.model.CsvFileInfo;
+import com.example.demo.model.User;
+import com.example.demo.model.UserBucket;
+import com.example.demo.parser.UserRecordParser;
+import com.example.demo.repository.ReactiveCsvFileRepository;
+import com.example.demo.util.IntIntHashMap;
+import com.example.demo.util.OptimisticRetry;
+import org.bson.types.ObjectId;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.StringDecoder;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Service;
+import org.springframework.util.MimeType;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Non-blocking counterpart of UserService, serving the reactive profile
+ *
+ * Every MongoDB call goes through ReactiveCsvFileRepository, so no thread waits
+ * on the database. An upload is parsed line by line as its bytes arrive and
+ * written as buckets of app.storage.bucket-size users, INSERT_BATCH_BUCKETS per
+ * insertMany. concatMap writes one batch at a time and only then asks for more
+ * users, which asks for more of the request body: a slow MongoDB slows down
+ * reading the upload instead of piling it up in memory.
+ *
+ * The user count is only known at the end of the stream, so uploads are stored
+ * in bucketed layout, and originals are not kept. Buckets are staged under a
+ * fresh file id and moved under the file's header once the whole upload parsed:
+ * a bad line or a duplicate id leaves the stored file as it was. Reads serve
+ * both layouts. Metadata is shared with UserService through CsvFileCache.
+ */
+@Service
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveUserService {
+
+    // Buckets written per insertMany, as in the blocking path
+    private static final int INSERT_BATCH_BUCKETS = 16;
+
+    private static final StringDecoder LINES = StringDecoder.textPlainOnly();
+
+    private static final ResolvableType STRING = ResolvableType.forClass(String.class);
+
+    private static final MimeType TEXT_UTF8 = new MimeType("text", "plain", StandardCharsets.UTF_8);
+
+    private final ReactiveCsvFileRepository csvFileRepository;
+
+    private final StorageProperties storageProperties;
+
+    private final CsvFileCache fileCache;
+
+    private final UserMetrics metrics;
+
+    public ReactiveUserService(ReactiveCsvFileRepository csvFileRepository, StorageProperties storageProperties,
+                               CsvFileCache fileCache, UserMetrics metrics) {
+        if (!storageProperties.bucketed()) {
+            throw new IllegalStateException("The reactive profile streams uploads into buckets:"
+                    + " set app.storage.bucket-size > 0");
+        }
+        if (storageProperties.keepOriginal()) {
+            throw new IllegalStateException("The reactive profile does not keep original uploads:"
+                    + " set app.storage.keep-original=false");
+        }
+        this.csvFileRepository = csvFileRepository;
+        this.storageProperties = storageProperties;
+        this.fileCache = fileCache;
+        this.metrics = metrics;
+    }
+
+    /* ---------- UPLOAD ---------- */
+    /**
+     * Parse an upload as it streams in and store it under filename, replacing the stored file
+     * Same parsing rules as UserService: blank lines are skipped, a bad line or a
+     * repeated id fails the upload with its line number. Not deduplicated, since
+     * nothing is written only once the whole upload was read; the SHA-256 is still
+     * stored, so the blocking mode can deduplicate a later identical upload.
+     *
+     * @param filename     the uploaded filename
+     * @param content      the raw upload; each buffer is released once decoded
+     * @param includeUsers whether to keep the parsed users for the result
+     * @return map with filename, fileId, userCount, deduplicated, mode and (if requested) users
+     */
+    public Mono<Map<String, Object>> upload(String filename, Flux<DataBuffer> content, boolean includeUsers) {
+        return Mono.defer(() -> {
+            StreamedUpload upload = new StreamedUpload(includeUsers);
+            String stagingId = new ObjectId().toHexString();
+
+            return stageBuckets(stagingId, upload.parse(content), upload)
+                    .then(Mono.defer(() -> commit(filename, stagingId, upload)))
+                    .onErrorResume(e -> {
+                        // The header may have been saved before the failure
+                        fileCache.invalidate(filename);
+                        return csvFileRepository.deleteBuckets(stagingId)
+                                .onErrorResume(cleanup -> Mono.empty())
+                                .then(Mono.error(e));
+                    })
+                    .map(header -> {
+                        metrics.recordUpload(upload.sizeBytes);
+
+                        Map<String, Object> result = new LinkedHashMap<>();
+                        result.put("filename", filename);
+                        result.put("fileId", header.getId());
+                        result.put("userCount", upload.userCount);
+                        result.put("deduplicated", false);
+                        result.put("mode", "replace");
+                        if (includeUsers) {
+                            result.put("users", upload.users);
+                        }
+                        return result;
+                    })
+                    .doOnError(e -> metrics.recordError("upload", e));
+        });
+    }
+
+    /**
+     * Write parsed users as buckets of the staging file id, one insertMany at a time
+     */
+    private Mono<Void> stageBuckets(String stagingId, Flux<User> users, StreamedUpload upload) {
+        return users.buffer(storageProperties.bucketSize())
+                .map(bucket -> new UserBucket(stagingId, upload.bucketCount++, bucket))
+                .buffer(INSERT_BATCH_BUCKETS)
+                .concatMap(csvFileRepository::insertBuckets, 1)
+                .then();
+    }
+
+    /**
+     * Point the file at the staged buckets: save its header, then swap the buckets
+     * Saving the header is retried on a concurrent writer like OptimisticRetry does
+     */
+    private Mono<CsvFile> commit(String filename, String stagingId, StreamedUpload upload) {
+        String contentHash = upload.contentHash();
+        return Mono.defer(() -> csvFileRepository.findHeaderByFilename(filename)
+                        .doOnNext(existing -> System.out.println("✅ File already exists in DB, updating: " + filename))
+                        .switchIfEmpty(Mono.fromSupplier(() -> {
+                            System.out.println("✅ New file saved to MongoDB: " + filename);
+                            return new CsvFile(filename, null);
+                        }))
+                        .flatMap(header -> {
+                            String previousContentId = header.getContentId();
+                            header.setUsers(null);
+                            header.setUserCount(upload.userCount);
+                            header.setSizeBytes(upload.sizeBytes);
+                            header.setContentHash(contentHash);
+                            header.setContentId(null);
+                            header.setBucketSize(storageProperties.bucketSize());
+                            header.setBucketCount(upload.bucketCount);
+                            return csvFileRepository.save(header)
+                                    .map(saved -> new SavedHeader(saved, previousContentId));
+                        }))
+                .retryWhen(Retry.backoff(OptimisticRetry.DEFAULT_MAX_ATTEMPTS - 1, Duration.ofMillis(1))
+                        .maxBackoff(Duration.ofMillis(64))
+                        .filter(e -> e instanceof OptimisticLockingFailureException || e instanceof DuplicateKeyException)
+                        .onRetryExhaustedThrow((spec, signal) -> signal.failure()))
+                .flatMap(saved -> {
+                    CsvFile header = saved.header();
+                    Mono<Void> dropOriginal = saved.previousContentId() != null
+                            ? csvFileRepository.deleteContent(saved.previousContentId())
+                            : Mono.empty();
+                    return csvFileRepository.deleteBuckets(header.getId())
+                            .then(csvFileRepository.moveBuckets(stagingId, header.getId()))
+                            .then(dropOriginal)
+                            // Write-through: readers of this file get the new metadata without a reload
+                            .then(Mono.fromRunnable(() -> fileCache.put(CsvFileInfo.of(header))))
+                            .thenReturn(header);
+                });
+    }
+
+    private record SavedHeader(CsvFile header, String previousContentId) {
+    }
+
+    /**
+     * Parsing state of one upload; only touched by its own, sequential, pipeline
+     */
+    private static final class StreamedUpload {
+
+        private final MessageDigest digest = UserService.sha256();
+        private final IntIntHashMap firstLineById = new IntIntHashMap();
+        private final List<User> users;
+        private long sizeBytes;
+        private int userCount;
+        private int bucketCount;
+
+        StreamedUpload(boolean keepUsers) {
+            this.users = keepUsers ? new ArrayList<>() : null;
+        }
+
+        /**
+         * Users in file order, with the 1-based line number of each line counting blank ones
+         */
+        Flux<User> parse(Flux<DataBuffer> content) {
+            return LINES.decode(content.doOnNext(this::hash), STRING, TEXT_UTF8, Map.of())
+                    .index()
+                    .filter(line -> !line.getT2().isBlank())
+                    .map(line -> accept(UserRecordParser.parseLine(line.getT2(), line.getT1() + 1), line.getT1() + 1));
+        }
+
+        private void hash(DataBuffer buffer) {
+            sizeBytes += buffer.readableByteCount();
+            try (DataBuffer.ByteBufferIterator chunks = buffer.readableByteBuffers()) {
+                while (chunks.hasNext()) {
+                    ByteBuffer chunk = chunks.next();
+                    digest.update(chunk);
+                }
+            }
+        }
+
+        private User accept(User user, long lineNumber) {
+            int firstLine = firstLineById.putIfAbsent(user.getId(), Math.toIntExact(lineNumber));
+            if (firstLine != IntIntHashMap.MISSING) {
+                throw new DuplicateUserIdException(user.getId(), lineNumber, firstLine);
+            }
+            userCount++;
+            if (users != null) {
+                users.add(user);
+            }
+            return user;
+        }
+
+        String contentHash() {
+            return HexFormat.of().formatHex(digest.digest());
+        }
+    }
+
+    /* ---------- LIST ---------- */
+    /**
+     * Read one page of a stored file's users, ordered by id, see UserService.listUsers
+     *
+     * @param filename the filename to read
+     * @param afterId  last id of the previous page, null for the first page
+     * @param limit    page size, 1 to UserService.MAX_PAGE_SIZE
+     * @return map with filename, users, count and nextAfterId (null on the last page)
+     */
+    public Mono<Map<String, Object>> listUsers(String filename, Integer afterId, int limit) {
+        return Mono.fromRunnable(() -> UserService.requirePageSize(limit))
+                .then(findInfo(filename))
+                // One extra user tells whether another page follows
+                .flatMap(info -> info.isBucketed()
+                        ? csvFileRepository.findBucketedUsersPage(info.id(), afterId, limit + 1)
+                        : csvFileRepository.findUsersPage(filename, afterId, limit + 1))
+                .map(users -> UserService.pageResult(filename, users, limit));
+    }
+
+    /**
+     * Every user of a stored file in file order, straight from a MongoDB cursor
+     * The outer Mono fails before any user is read if the file does not exist;
+     * the users are fetched as the subscriber requests them
+     *
+     * @param filename the filename to read
+     * @return the users, once the file was found
+     */
+    public Mono<Flux<User>> streamUsers(String filename) {
+        return findInfo(filename).map(info -> info.isBucketed()
+                ? csvFileRepository.streamBucketedUsers(info.id())
+                : csvFileRepository.streamUsers(filename));
+    }
+
+    /* ---------- LOOKUP ---------- */
+    /**
+     * Find which stored files hold a user with an email, see UserService.findUsersByEmail
+     *
+     * @param email exact (case-sensitive) email to look for
+     * @param limit max matches, 1 to UserService.MAX_PAGE_SIZE
+     * @return map with email, filenames, count, matches and truncated
+     */
+    public Mono<Map<String, Object>> findUsersByEmail(String email, int limit) {
+        return Mono.fromRunnable(() -> UserService.requireLookup("Email", email, limit))
+                .then(csvFileRepository.findUsersByEmail(email, limit + 1))
+                .map(matches -> {
+                    Map<String, Object> result = new LinkedHashMap<>();
+                    result.put("email", email);
+                    result.putAll(UserService.lookupResult(matches, limit));
+                    return result;
+                });
+    }
+
+    /**
+     * Find users whose name starts with a prefix, see UserService.findUsersByNamePrefix
+     *
+     * @param prefix start of the name, matched literally and case-sensitively
+     * @param limit  max matches, 1 to UserService.MAX_PAGE_SIZE
+     * @return map with prefix, filenames, count, matches and truncated
+     */
+    public Mono<Map<String, Object>> findUsersByNamePrefix(String prefix, int limit) {
+        return Mono.fromRunnable(() -> UserService.requireLookup("Name prefix", prefix, limit))
+                .then(csvFileRepository.findUsersByNamePrefix(prefix, limit + 1))
+                .map(matches -> {
+                    Map<String, Object> result = new LinkedHashMap<>();
+                    result.put("prefix", prefix);
+                    result.putAll(UserService.lookupResult(matches, limit));
+                    return result;
+                });
+    }
+
+    /* ---------- FILE INFO ---------- */
+    /**
+     * Get file info, served from the metadata cache when present
+     *
+     * @param filename the filename to search
+     * @return map with file details
+     */
+    public Mono<Map<String, Object>> getFileInfo(String filename) {
+        return findInfo(filename).map(UserService::infoResult);
+    }
+
+    /**
+     * Counters of the file metadata cache shared with UserService
+     *
+     * @return hits, misses, evictions and current/maximum weight in bytes
+     */
+    public Map<String, Object> getCacheStats() {
+        return fileCache.stats();
+    }
+
+    /**
+     * Metadata lookup through the cache; a miss is loaded by projection without blocking
+     */
+    private Mono<CsvFileInfo> findInfo(String filename) {
+        return Mono.defer(() -> Mono.justOrEmpty(fileCache.getIfPresent(filename)))
+                .switchIfEmpty(Mono.defer(() -> csvFileRepository.findInfoByFilename(filename)
+                        .doOnNext(fileCache::putIfAbsent)))
+                .switchIfEmpty(Mono.error(() -> new CsvFileNotFoundException(filename)));
+    }
+}
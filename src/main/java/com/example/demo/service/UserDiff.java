@@ -0,0 +1,96 @@
+package com.example.demo.service;
+
+import com.example.demo.model.User;
+import com.example.demo.util.IntIntHashMap;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Difference between the stored users of a file and a re-upload, matched by id
+ *
+ * @param added     uploaded users whose id is not stored, in upload order
+ * @param updated   uploaded users whose stored email or name differs, with the uploaded values
+ * @param removed   ids of stored users missing from the upload, in stored order
+ * @param unchanged number of users stored with the uploaded email and name
+ */
+record UserDiff(List<User> added, List<User> updated, List<Integer> removed, int unchanged) {
+
+    /**
+     * @param stored   users as stored, ids unique
+     * @param uploaded users of the upload, ids unique
+     */
+    static UserDiff between(List<User> stored, List<User> uploaded) {
+        IntIntHashMap storedIndex = new IntIntHashMap(stored.size());
+        for (int i = 0; i < stored.size(); i++) {
+            storedIndex.put(stored.get(i).getId(), i);
+        }
+
+        List<User> added = new ArrayList<>();
+        List<User> updated = new ArrayList<>();
+        int unchanged = 0;
+        for (User user : uploaded) {
+            // Removing matched ids leaves exactly the users the upload dropped
+            int i = storedIndex.remove(user.getId());
+            if (i == IntIntHashMap.MISSING) {
+                added.add(user);
+            } else if (Objects.equals(stored.get(i).getEmail(), user.getEmail())
+                    && Objects.equals(stored.get(i).getName(), user.getName())) {
+                unchanged++;
+            } else {
+                updated.add(user);
+            }
+        }
+
+        List<Integer> removed = new ArrayList<>(storedIndex.size());
+        for (User user : stored) {
+            if (storedIndex.containsKey(user.getId())) {
+                removed.add(user.getId());
+            }
+        }
+        return new UserDiff(added, updated, removed, unchanged);
+    }
+
+    /**
+     * @return number of users added, updated or removed
+     */
+    int size() {
+        return added.size() + updated.size() + removed.size();
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * The diff as single-user mutations: removals first, so their room is reused by additions
+     */
+    List<UserMutation> mutations() {
+        List<UserMutation> mutations = new ArrayList<>(size());
+        for (int id : removed) {
+            mutations.add(UserMutation.delete(id));
+        }
+        for (User user : updated) {
+            mutations.add(UserMutation.update(user.getId(), user.getEmail(), user.getName()));
+        }
+        for (User user : added) {
+            mutations.add(UserMutation.create(user.getId(), user.getEmail(), user.getName()));
+        }
+        return mutations;
+    }
+
+    /**
+     * @return counts for the upload response
+     */
+    Map<String, Object> summary() {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("inserted", added.size());
+        summary.put("updated", updated.size());
+        summary.put("deleted", removed.size());
+        summary.put("unchanged", unchanged);
+        return summary;
+    }
+}
@@ -0,0 +1,257 @@
+package com.example.demo.service;
+
+import com.example.demo.model.CsvFile;
+import com.example.demo.model.User;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Micrometer meters of the upload and CRUD pipeline, published through Actuator
+ *
+ * Meters used on every request are registered once up front and kept in fields,
+ * so recording is a clock read plus a lock-free histogram update, with no
+ * registry lookup. Timers and summaries publish percentile histograms.
+ * Error counters are looked up per error, which is off the hot path.
+ *
+ * csv.upload.size         bytes per upload
+ * csv.upload.deduplicated re-uploads identical to the stored file, answered without a write
+ * csv.parse.duration      time to parse one upload
+ * csv.parse.rows          users parsed (rate = rows/s across uploads)
+ * csv.parse.throughput    rows/s of each upload
+ * csv.mongo.load          findByFilename of a whole CsvFile, mapping included
+ * csv.mongo.save          save of a whole CsvFile, mapping included
+ * csv.document.size       estimated BSON size of each saved CsvFile
+ * csv.mutation{type}      single-user operations and batches, end to end
+ * csv.write.lock.wait     time a single-user mutation queued behind earlier writes to its file
+ * csv.write.lock.timeouts mutations given up after app.write.lock-timeout, unapplied
+ * csv.write.behind.flush  save of one file's buffered mutations (write-behind mode)
+ * csv.write.behind.flush.size mutations saved per flush
+ * csv.write.behind.queue  acknowledged mutations not saved yet
+ * csv.write.behind.dropped acknowledged mutations given up: their file was deleted, or they
+ *                         no longer applied when replayed after a concurrent write or a crash
+ * csv.errors{operation,cause} failed operations by root exception type
+ */
+@Component
+public class UserMetrics {
+
+    // Estimated BSON bytes of a CsvFile without users, and of one embedded user without its strings
+    private static final int DOCUMENT_OVERHEAD = 256;
+    private static final int USER_OVERHEAD = 48;
+
+    private final MeterRegistry registry;
+
+    private final DistributionSummary uploadSize;
+    private final Counter deduplicatedUploads;
+    private final Timer parseDuration;
+    private final Counter parsedRows;
+    private final DistributionSummary parseThroughput;
+    private final Timer mongoLoad;
+    private final Timer mongoSave;
+    private final DistributionSummary documentSize;
+    private final Map<UserMutation.Type, Timer> mutations = new EnumMap<>(UserMutation.Type.class);
+    private final Timer batch;
+    private final Timer lockWait;
+    private final Counter lockTimeouts;
+    private final Timer writeBehindFlush;
+    private final DistributionSummary writeBehindFlushSize;
+    private final Counter writeBehindDropped;
+
+    public UserMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.uploadSize = DistributionSummary.builder("csv.upload.size")
+                .description("Size of uploaded CSV files")
+                .baseUnit("bytes")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.deduplicatedUploads = Counter.builder("csv.upload.deduplicated")
+                .description("Uploads identical to the stored file, not written again")
+                .register(registry);
+        this.parseDuration = timer("csv.parse.duration", "Time to parse one upload");
+        this.parsedRows = Counter.builder("csv.parse.rows")
+                .description("Users parsed from uploads")
+                .baseUnit("rows")
+                .register(registry);
+        this.parseThroughput = DistributionSummary.builder("csv.parse.throughput")
+                .description("Parse rate of each upload")
+                .baseUnit("rows/s")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.mongoLoad = timer("csv.mongo.load", "Load of a whole CsvFile document");
+        this.mongoSave = timer("csv.mongo.save", "Save of a whole CsvFile document");
+        this.documentSize = DistributionSummary.builder("csv.document.size")
+                .description("Estimated BSON size of saved CsvFile documents")
+                .baseUnit("bytes")
+                .publishPercentileHistogram()
+                .register(registry);
+        for (UserMutation.Type type : UserMutation.Type.values()) {
+            mutations.put(type, mutationTimer(type.name().toLowerCase(Locale.ROOT)));
+        }
+        this.batch = mutationTimer("batch");
+        this.lockWait = timer("csv.write.lock.wait", "Time single-user mutations wait for earlier writes to their file");
+        this.lockTimeouts = Counter.builder("csv.write.lock.timeouts")
+                .description("Single-user mutations that timed out waiting for earlier writes to their file")
+                .register(registry);
+        this.writeBehindFlush = timer("csv.write.behind.flush", "Save of one file's buffered mutations");
+        this.writeBehindFlushSize = DistributionSummary.builder("csv.write.behind.flush.size")
+                .description("Buffered mutations saved per flush")
+                .baseUnit("mutations")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.writeBehindDropped = Counter.builder("csv.write.behind.dropped")
+                .description("Acknowledged mutations given up instead of saved")
+                .register(registry);
+    }
+
+    private Timer timer(String name, String description) {
+        return Timer.builder(name)
+                .description(description)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    private Timer mutationTimer(String type) {
+        return Timer.builder("csv.mutation")
+                .description("Latency of user mutations")
+                .tag("type", type)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    public void recordUpload(long bytes) {
+        uploadSize.record(bytes);
+    }
+
+    public void recordDeduplicated() {
+        deduplicatedUploads.increment();
+    }
+
+    /**
+     * @param nanos time spent parsing one upload
+     * @param rows  users parsed from it
+     */
+    public void recordParse(long nanos, long rows) {
+        parseDuration.record(nanos, TimeUnit.NANOSECONDS);
+        parsedRows.increment(rows);
+        if (nanos > 0) {
+            parseThroughput.record(rows * 1e9 / nanos);
+        }
+    }
+
+    /**
+     * Run a load of a whole CsvFile, timing it
+     */
+    public <T> T timeLoad(Supplier<T> load) {
+        return mongoLoad.record(load);
+    }
+
+    /**
+     * Run a save of a whole CsvFile, timing it and recording its estimated size
+     */
+    public <T> T timeSave(CsvFile csvFile, Supplier<T> save) {
+        documentSize.record(estimateDocumentSize(csvFile));
+        return mongoSave.record(save);
+    }
+
+    /**
+     * @param startNanos System.nanoTime() when the mutation started
+     */
+    public void recordMutation(UserMutation.Type type, long startNanos) {
+        mutations.get(type).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param startNanos System.nanoTime() when the batch started
+     */
+    public void recordBatch(long startNanos) {
+        batch.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param nanos time from queueing a mutation to the start of its write
+     */
+    public void recordLockWait(long nanos) {
+        lockWait.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordLockTimeout() {
+        lockTimeouts.increment();
+    }
+
+    /**
+     * @param nanos     time to save one file's buffered mutations
+     * @param mutations mutations saved by it
+     */
+    public void recordWriteBehindFlush(long nanos, int mutations) {
+        writeBehindFlush.record(nanos, TimeUnit.NANOSECONDS);
+        writeBehindFlushSize.record(mutations);
+    }
+
+    /**
+     * @param mutations acknowledged mutations that will not be saved
+     */
+    public void recordWriteBehindDropped(int mutations) {
+        writeBehindDropped.increment(mutations);
+    }
+
+    /**
+     * Publish the number of acknowledged mutations waiting to be saved
+     */
+    public void gaugeWriteBehindQueue(AtomicInteger buffered) {
+        Gauge.builder("csv.write.behind.queue", buffered, AtomicInteger::get)
+                .description("Acknowledged mutations not saved yet")
+                .register(registry);
+    }
+
+    /**
+     * Count a failed operation under the simple name of its root cause
+     * Wrappers such as DataAccessException or UncheckedIOException would hide
+     * whether it was a timeout, a lost connection or a bad request
+     */
+    public void recordError(String operation, Throwable error) {
+        Counter.builder("csv.errors")
+                .description("Failed operations by cause")
+                .tag("operation", operation)
+                .tag("cause", rootCause(error).getClass().getSimpleName())
+                .register(registry)
+                .increment();
+    }
+
+    static Throwable rootCause(Throwable error) {
+        Throwable cause = error;
+        while (cause.getCause() != null && cause.getCause() != cause) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+    /**
+     * Estimate of the BSON size of a CsvFile, from its string lengths (exact for ASCII)
+     * Linear in the number of users, which is small next to encoding them for the save
+     */
+    static long estimateDocumentSize(CsvFile csvFile) {
+        long size = DOCUMENT_OVERHEAD;
+        List<User> users = csvFile.getUsers();
+        if (users != null) {
+            for (User user : users) {
+                size += USER_OVERHEAD + length(user.getEmail()) + length(user.getName());
+            }
+        }
+        return size;
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.demo.service;
+
+import com.example.demo.model.User;
+import com.example.demo.model.UserIdIndex;
+import com.example.demo.model.UserOperation;
+import com.example.demo.repository.CsvFileRepository;
+
+import java.util.Locale;
+
+/**
+ * A single-user change against a file stored in embedded layout
+ * Can be applied either as one atomic MongoDB update, or to an in-memory
+ * users list when several mutations are merged into one save.
+ *
+ * email/name are null when the field should be left unchanged.
+ */
+public record UserMutation(Type type, int id, String email, String name) {
+
+    public enum Type { CREATE, UPDATE, PATCH, DELETE }
+
+    public static UserMutation create(int id, String email, String name) {
+        return new UserMutation(Type.CREATE, id, email, name);
+    }
+
+    public static UserMutation update(int id, String email, String name) {
+        return new UserMutation(Type.UPDATE, id, email, name);
+    }
+
+    /**
+     * Empty values are treated as "leave unchanged"
+     */
+    public static UserMutation patch(int id, String email, String name) {
+        return new UserMutation(Type.PATCH, id,
+                email != null && !email.isEmpty() ? email : null,
+                name != null && !name.isEmpty() ? name : null);
+    }
+
+    public static UserMutation delete(int id) {
+        return new UserMutation(Type.DELETE, id, null, null);
+    }
+
+    /**
+     * Convert one entry of a batch request, with the same required fields as the single-user endpoints
+     *
+     * @throws IllegalArgumentException if the type is unknown or a required field is missing
+     */
+    public static UserMutation of(UserOperation operation) {
+        if (operation.op() == null) {
+            throw new IllegalArgumentException("Operation type is required");
+        }
+        if (operation.id() == null) {
+            throw new IllegalArgumentException("User ID is required");
+        }
+        int id = operation.id();
+        String email = operation.email();
+        String name = operation.name();
+
+        return switch (operation.op().toLowerCase(Locale.ROOT)) {
+            case "create" -> create(id, required(email, "email", "create"), required(name, "name", "create"));
+            case "update" -> update(id, required(email, "email", "update"), required(name, "name", "update"));
+            case "patch" -> patch(id, email, name);
+            case "delete" -> delete(id);
+            default -> throw new IllegalArgumentException("Unknown operation: " + operation.op()
+                    + " (expected create, update, patch or delete)");
+        };
+    }
+
+    private static String required(String value, String field, String op) {
+        if (value == null) {
+            throw new IllegalArgumentException("Field " + field + " is required for " + op);
+        }
+        return value;
+    }
+
+    /**
+     * Message used when the mutation does not take effect
+     */
+    String failureMessage() {
+        return type == Type.CREATE
+                ? "User with ID " + id + " already exists"
+                : "User with ID " + id + " not found";
+    }
+
+    /**
+     * Apply as one atomic update against an embedded file
+     *
+     * @return true if the mutation took effect (id free for CREATE, user found otherwise)
+     */
+    boolean applyAtomically(CsvFileRepository repository, String filename) {
+        return switch (type) {
+            case CREATE -> repository.pushUser(filename, new User(id, email, name)).getModifiedCount() > 0;
+            case UPDATE, PATCH -> repository.setUser(filename, id, email, name).getMatchedCount() > 0;
+            case DELETE -> repository.pullUser(filename, id).getModifiedCount() > 0;
+        };
+    }
+
+    /**
+     * @return whether applyTo would take effect, without applying it
+     */
+    boolean appliesTo(UserIdIndex index) {
+        return index.contains(id) != (type == Type.CREATE);
+    }
+
+    /**
+     * Apply to an in-memory users list through its id index
+     *
+     * @return true if the mutation took effect, with the same meaning as applyAtomically
+     */
+    boolean applyTo(UserIdIndex index) {
+        return switch (type) {
+            case CREATE -> index.add(new User(id, email, name));
+            case DELETE -> index.remove(id) != null;
+            case UPDATE, PATCH -> {
+                User user = index.get(id);
+                if (user == null) {
+                    yield false;
+                }
+                if (email != null) {
+                    user.setEmail(email);
+                }
+                if (name != null) {
+                    user.setName(name);
+                }
+                yield true;
+            }
+        };
+    }
+}
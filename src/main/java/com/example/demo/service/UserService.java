@@ -1,77 +1,212 @@
 package com.example.demo.service;
 
+import com.example.demo.config.ParserProperties;
+import com.example.demo.config.StorageProperties;
 import com.example.demo.model.User;
+import com.example.demo.exception.CsvFileNotFoundException;
+import com.example.demo.exception.DuplicateUserIdException;
+import com.example.demo.exception.UserAlreadyExistsException;
+import com.example.demo.exception.UserNotFoundException;
 import com.example.demo.model.CsvFile;
+import com.example.demo.model.CsvFileInfo;
+import com.example.demo.model.UserBucket;
+import com.example.demo.model.UserIdIndex;
+import com.example.demo.model.UserMatch;
+import com.example.demo.model.UserOperation;
+import com.example.demo.parser.ParallelUserRecordParser;
+import com.example.demo.parser.UserRecordParser;
+import com.example.demo.parser.UserRecordWriter;
 import com.example.demo.repository.CsvFileRepository;
+import com.example.demo.repository.CsvFileRepositoryCustom.ContentUpload;
+import com.example.demo.util.IntIntHashMap;
+import com.example.demo.util.OptimisticRetry;
+import com.example.demo.util.TeeInputStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
 @Service
 public class UserService {
 
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    public static final int MAX_BATCH_OPERATIONS = 100_000;
+
+    // A delta upload changing more than this share of users replaces the file instead
+    private static final int DELTA_MAX_CHANGED_PERCENT = 25;
+
+    // Chars buffered before encoding, and bytes buffered by the gzip stream, during an export
+    private static final int EXPORT_BUFFER_SIZE = 64 * 1024;
+
     private final CsvFileRepository csvFileRepository;
 
-    public UserService(CsvFileRepository csvFileRepository) {
+    private final StorageProperties storageProperties;
+
+    private final FileWriteCoalescer writeCoalescer;
+
+    private final WriteBehindBuffer writeBehind;
+
+    private final CsvFileCache fileCache;
+
+    private final UserMetrics metrics;
+
+    private final UserRecordParser recordParser = new UserRecordParser();
+
+    private final ParallelUserRecordParser parallelParser;
+
+    @Autowired
+    public UserService(CsvFileRepository csvFileRepository, StorageProperties storageProperties,
+                       ParserProperties parserProperties, FileWriteCoalescer writeCoalescer,
+                       WriteBehindBuffer writeBehind, CsvFileCache fileCache, UserMetrics metrics) {
         this.csvFileRepository = csvFileRepository;
+        this.storageProperties = storageProperties;
+        this.writeCoalescer = writeCoalescer;
+        this.writeBehind = writeBehind;
+        this.fileCache = fileCache;
+        this.metrics = metrics;
+        this.parallelParser = new ParallelUserRecordParser(parserProperties.parallelThreshold().toBytes(),
+                Math.toIntExact(parserProperties.chunkSize().toBytes()));
+    }
+
+    /**
+     * Without write-behind
+     */
+    public UserService(CsvFileRepository csvFileRepository, StorageProperties storageProperties,
+                       ParserProperties parserProperties, FileWriteCoalescer writeCoalescer,
+                       CsvFileCache fileCache, UserMetrics metrics) {
+        this(csvFileRepository, storageProperties, parserProperties, writeCoalescer, WriteBehindBuffer.disabled(),
+                fileCache, metrics);
     }
 
     /**
      * Parse and load users from uploaded CSV file
+     * Uploads of at least app.parser.parallel-threshold are parsed on several cores
      * 
      * @param file the uploaded CSV file
      * @return list of users parsed from the file
      */
     public List<User> parseCSVFile(MultipartFile file) {
-        List<User> users = new ArrayList<>();
+        return parseCSVFile(file, null);
+    }
 
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(file.getInputStream()))) {
-            String line;
+    /**
+     * Parse users from the uploaded CSV file, copying its raw bytes to rawContent on the way
+     * 
+     * @param file       the uploaded CSV file
+     * @param rawContent receives the raw bytes of the upload, or null
+     * @return list of users parsed from the file
+     */
+    private List<User> parseCSVFile(MultipartFile file, OutputStream rawContent) {
+        if (parallelParser.isParallel(file.getSize())) {
+            return parseSpooled(file, rawContent);
+        }
+        return parseSequential(file, rawContent != null ? rawContent : OutputStream.nullOutputStream());
+    }
 
-            while ((line = reader.readLine()) != null) {
-                if (!line.trim().isEmpty()) {
-                    users.add(parseLineToUser(line));
-                }
-            }
+    /**
+     * Parse users from the uploaded CSV file in a single pass over its bytes
+     * Every byte read is also copied to rawContent, so the raw upload is captured
+     * without reading the multipart body a second time
+     * 
+     * @param file       the uploaded CSV file
+     * @param rawContent receives the raw bytes of the upload
+     * @return list of users parsed from the file
+     * @throws DuplicateUserIdException if an ID appears on more than one line
+     */
+    private List<User> parseSequential(MultipartFile file, OutputStream rawContent) {
+        try (InputStream in = new TeeInputStream(file.getInputStream(), rawContent)) {
+            UserCollector users = new UserCollector(user -> { });
+            recordParser.parseWithLineNumbers(new InputStreamReader(in, StandardCharsets.UTF_8), users);
+            return users.users;
         } catch (IOException e) {
-            throw new RuntimeException("Error reading CSV file: " + e.getMessage());
+            throw new RuntimeException("Error reading CSV file: " + e.getMessage(), e);
         }
-
-        return users;
     }
 
     /**
-     * Convert CSV content to string for storage
-     * 
-     * @param file the uploaded CSV file
-     * @return CSV content as string
+     * Spool a large upload to a temp file and parse it in parallel chunks
+     * The parallel parser needs a file it can memory-map and split; the raw
+     * bytes are copied to rawContent (if not null) while spooling
      */
-    private String getCsvContent(MultipartFile file) {
+    private List<User> parseSpooled(MultipartFile file, OutputStream rawContent) {
+        Path spooled = null;
         try {
-            return new String(file.getBytes());
+            spooled = Files.createTempFile("upload-", ".csv");
+            if (rawContent == null) {
+                file.transferTo(spooled);
+            } else {
+                try (InputStream in = new TeeInputStream(file.getInputStream(), rawContent)) {
+                    Files.copy(in, spooled, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            return parseUsers(spooled, user -> { });
         } catch (IOException e) {
-            throw new RuntimeException("Error reading file content: " + e.getMessage());
+            throw new RuntimeException("Error reading CSV file: " + e.getMessage(), e);
+        } finally {
+            if (spooled != null) {
+                try {
+                    Files.deleteIfExists(spooled);
+                } catch (IOException e) {
+                    System.out.println("Could not delete upload temp file " + spooled + ": " + e.getMessage());
+                }
+            }
         }
     }
 
     /**
-     * Write users to CSV string format
+     * Parse users from a UTF-8 CSV file, in parallel chunks when it is large
      * 
-     * @param users the list of users
-     * @return CSV formatted string
+     * @param file     the CSV file
+     * @param onParsed called with every user in file order as soon as it is merged
+     * @return list of users in file order
+     * @throws DuplicateUserIdException if an ID appears on more than one line
      */
-    private String convertUsersToCSV(List<User> users) {
-        StringBuilder csv = new StringBuilder();
-        for (User u : users) {
-            csv.append("id=").append(u.getId())
-                    .append(",email=").append(u.getEmail())
-                    .append(",name=").append(u.getName())
-                    .append("\n");
+    private List<User> parseUsers(Path file, Consumer<User> onParsed) throws IOException {
+        UserCollector users = new UserCollector(onParsed);
+        parallelParser.parseWithLineNumbers(file, users);
+        return users.users;
+    }
+
+    /**
+     * Collects parsed users in file order
+     * Duplicate IDs are rejected in the same pass, using an id -> first line index
+     */
+    private static final class UserCollector implements ObjLongConsumer<User> {
+
+        private final List<User> users = new ArrayList<>();
+        private final IntIntHashMap firstLineById = new IntIntHashMap();
+        private final Consumer<User> onParsed;
+
+        UserCollector(Consumer<User> onParsed) {
+            this.onParsed = onParsed;
+        }
+
+        @Override
+        public void accept(User user, long lineNumber) {
+            int firstLine = firstLineById.putIfAbsent(user.getId(), Math.toIntExact(lineNumber));
+            if (firstLine != IntIntHashMap.MISSING) {
+                throw new DuplicateUserIdException(user.getId(), lineNumber, firstLine);
+            }
+            users.add(user);
+            onParsed.accept(user);
         }
-        return csv.toString();
     }
 
     /* ---------- READ ---------- */
@@ -80,40 +215,571 @@ public class UserService {
      * Uploads file to MongoDB
      * 
      * @param file the uploaded CSV file
-     * @return map with filename, users, and MongoDB ID
+     * @return map with filename, users, MongoDB ID, userCount and deduplicated
      */
     public Map<String, Object> getAllUsers(MultipartFile file) {
+        return getAllUsers(file, true);
+    }
+
+    /**
+     * Get all users from the uploaded CSV file
+     * Uploads file to MongoDB, unless the stored file already holds exactly this upload:
+     * an identical re-upload (same SHA-256, stored users unchanged since) returns the
+     * stored file without a write. The hash is taken while parsing, so the upload is
+     * still read and parsed once; what a re-upload saves is the MongoDB write
+     * 
+     * @param file         the uploaded CSV file
+     * @param includeUsers whether to return the users
+     * @return map with filename, MongoDB ID, userCount, deduplicated, mode (unless deduplicated)
+     *         and (if requested) users
+     */
+    public Map<String, Object> getAllUsers(MultipartFile file, boolean includeUsers) {
+        return upload(file, includeUsers, false);
+    }
+
+    /**
+     * Re-upload a file by writing only what changed
+     * The upload is diffed against the stored users by id and applied as targeted
+     * inserts, updates and deletes, so a feed where few rows change writes (and
+     * replicates) only those rows. Existing users keep their position; new users
+     * are appended. Falls back to a replace when the file is new, stored in the
+     * other layout, or more than DELTA_MAX_CHANGED_PERCENT of its users change.
+     * 
+     * @param file         the uploaded CSV file
+     * @param includeUsers whether to return the users
+     * @return same map as getAllUsers; in delta mode also changes (inserted, updated, deleted, unchanged)
+     */
+    public Map<String, Object> applyUpload(MultipartFile file, boolean includeUsers) {
+        return upload(file, includeUsers, true);
+    }
+
+    private Map<String, Object> upload(MultipartFile file, boolean includeUsers, boolean delta) {
         String filename = file.getOriginalFilename();
-        List<User> users = parseCSVFile(file);
-        String csvContent = getCsvContent(file);
+        metrics.recordUpload(file.getSize());
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("filename", filename);
+        try {
+            // Buffered mutations were acknowledged first, and their save would also clear the stored hash
+            writeBehind.flush(filename);
+
+            // The upload is read once: the SHA-256, and the gzipped original in GridFS if kept,
+            // are computed while parsing. The CSV text itself is rendered from the users on export
+            MessageDigest digest = sha256();
+            ContentUpload original = startOriginal(filename);
+            OutputStream rawContent = new DigestOutputStream(
+                    original != null ? original.out() : OutputStream.nullOutputStream(), digest);
+            long start = System.nanoTime();
+            List<User> users;
+            try {
+                users = parseCSVFile(file, rawContent);
+            } catch (RuntimeException e) {
+                if (original != null) {
+                    original.abort();
+                }
+                throw e;
+            }
+            metrics.recordParse(System.nanoTime() - start, users.size());
+            String contentHash = HexFormat.of().formatHex(digest.digest());
+
+            // Only a stored file of the same size, hashed at upload, can match
+            CsvFileInfo stored = storedUpload(filename, file.getSize());
+            if (stored != null && contentHash.equals(stored.contentHash())) {
+                if (original != null) {
+                    // The stored file already has its original
+                    original.abort();
+                }
+                metrics.recordDeduplicated();
+                System.out.println("✅ Identical re-upload, nothing written: " + filename);
+                result.put("fileId", stored.id());
+                result.put("userCount", stored.userCount());
+                result.put("deduplicated", true);
+                if (includeUsers) {
+                    // Same bytes parse to the stored users
+                    result.put("users", users);
+                }
+                return result;
+            }
+            String contentId = original != null ? original.finish() : null;
+
+            try {
+                AppliedDelta applied = delta
+                        ? applyDelta(filename, users, file.getSize(), contentHash, contentId) : null;
+                if (applied != null) {
+                    result.put("fileId", applied.fileId());
+                    result.put("userCount", users.size());
+                    result.put("deduplicated", false);
+                    result.put("mode", "delta");
+                    result.put("changes", applied.diff().summary());
+                } else {
+                    CsvFile csvFile = saveUpload(filename, users, file.getSize(), contentHash, contentId,
+                            IngestProgress.NONE);
+                    result.put("fileId", csvFile.getId());
+                    result.put("userCount", users.size());
+                    result.put("deduplicated", false);
+                    result.put("mode", "replace");
+                }
+            } catch (RuntimeException e) {
+                discardOriginal(contentId);
+                throw e;
+            }
+            if (includeUsers) {
+                result.put("users", users);
+            }
+            return result;
+        } catch (RuntimeException e) {
+            metrics.recordError("upload", e);
+            throw e;
+        }
+    }
+
+    private record AppliedDelta(String fileId, UserDiff diff) {
+    }
+
+    /**
+     * Apply an upload to the stored file as targeted writes of only what changed
+     * Re-run from a fresh load by OptimisticRetry if another writer gets in between;
+     * the diff is against the upload, so a partly applied attempt is completed by the next
+     * 
+     * @return null if the upload should replace the file instead
+     */
+    private AppliedDelta applyDelta(String filename, List<User> users, long sizeBytes, String contentHash,
+                                    String contentId) {
+        try {
+            AppliedDelta applied = OptimisticRetry.run(
+                    () -> applyDeltaOnce(filename, users, sizeBytes, contentHash, contentId));
+            if (applied != null) {
+                System.out.println("✅ Upload applied as delta to: " + filename + " " + applied.diff().summary());
+            }
+            return applied;
+        } finally {
+            fileCache.invalidate(filename);
+        }
+    }
+
+    private AppliedDelta applyDeltaOnce(String filename, List<User> users, long sizeBytes, String contentHash,
+                                        String contentId) {
+        // Bypassing the cache: the diff must be against the current version
+        CsvFile stored = metrics.timeLoad(() -> csvFileRepository.findByFilename(filename)).orElse(null);
+        int bucketSize = storageProperties.bucketed() ? storageProperties.bucketSize() : 0;
+        if (stored == null || stored.getVersion() == null || stored.getBucketSize() != bucketSize) {
+            return null;
+        }
+
+        List<UserBucket> buckets = stored.isBucketed() ? csvFileRepository.findBuckets(stored.getId()) : null;
+        List<User> current;
+        if (buckets != null) {
+            current = new ArrayList<>(stored.getUserCount());
+            for (UserBucket bucket : buckets) {
+                current.addAll(bucket.getUsers());
+            }
+        } else {
+            current = stored.getUsers() != null ? stored.getUsers() : List.of();
+        }
+
+        UserDiff diff = UserDiff.between(current, users);
+        if (diff.size() * 100L > (long) DELTA_MAX_CHANGED_PERCENT * Math.max(current.size(), users.size())) {
+            return null;
+        }
+
+        if (diff.isEmpty()) {
+            // Users already match: only record the upload, and only if nobody wrote since the load
+            if (!csvFileRepository.stampUpload(filename, stored.getVersion(), sizeBytes, contentHash, contentId)) {
+                throw new OptimisticLockingFailureException("File changed while applying upload: " + filename);
+            }
+        } else if (buckets != null) {
+            BucketBatch batch = new BucketBatch(buckets, stored.getBucketSize(), false);
+            diff.mutations().forEach(batch::apply);
+            Boolean[] written = csvFileRepository.writeBuckets(stored.getId(), stored.getVersion(), batch.writes(),
+                    batch.newBuckets(), batch.userCountDelta(), true);
+            if (!Arrays.stream(written).allMatch(Boolean.TRUE::equals)) {
+                // The next attempt diffs against what did get written
+                throw new OptimisticLockingFailureException("File changed while applying upload: " + filename);
+            }
+            // Bucket writes are not version-chained, so no hash: the next identical upload diffs empty and stores it
+            csvFileRepository.stampUpload(filename, null, sizeBytes, null, contentId);
+        } else if (!csvFileRepository.applyUserDiff(filename, stored.getVersion(), diff.updated(), diff.removed(),
+                diff.added(), sizeBytes, contentHash, contentId)) {
+            throw new OptimisticLockingFailureException("File changed while applying upload: " + filename);
+        }
+        replacedOriginal(stored.getContentId(), contentId);
+        return new AppliedDelta(stored.getId(), diff);
+    }
+
+    /**
+     * The stored file an upload could be an identical re-upload of
+     * 
+     * @return null unless a file with this name, size and the layout new uploads get
+     *         is stored with the hash of its upload
+     */
+    private CsvFileInfo storedUpload(String filename, long sizeBytes) {
+        int bucketSize = storageProperties.bucketed() ? storageProperties.bucketSize() : 0;
+        return fileCache.findInfo(filename)
+                .filter(info -> info.contentHash() != null
+                        && info.sizeBytes() == sizeBytes
+                        && info.bucketSize() == bucketSize)
+                .orElse(null);
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Start keeping the original bytes of an upload
+     * 
+     * @return the GridFS upload to copy the bytes to, or null unless app.storage.keep-original is set
+     */
+    private ContentUpload startOriginal(String filename) {
+        return storageProperties.keepOriginal() ? csvFileRepository.openContentUpload(filename) : null;
+    }
 
-        // Check if file already exists in DB
-        Optional<CsvFile> existingFile = csvFileRepository.findByFilename(filename);
+    /**
+     * Keep the original bytes of an upload spooled to a local file
+     * 
+     * @return id of the stored original, or null if originals are not kept
+     */
+    private String storeOriginal(String filename, Path upload) throws IOException {
+        ContentUpload original = startOriginal(filename);
+        if (original == null) {
+            return null;
+        }
+        try (InputStream in = Files.newInputStream(upload)) {
+            in.transferTo(original.out());
+        } catch (IOException | RuntimeException e) {
+            original.abort();
+            throw e;
+        }
+        return original.finish();
+    }
+
+    /**
+     * Delete the original of an upload that was not stored
+     */
+    private void discardOriginal(String contentId) {
+        if (contentId != null) {
+            csvFileRepository.deleteContent(contentId);
+        }
+    }
+
+    /**
+     * Delete the original of the upload a file held before, once nothing references it
+     */
+    private void replacedOriginal(String previousContentId, String contentId) {
+        if (previousContentId != null && !previousContentId.equals(contentId)) {
+            csvFileRepository.deleteContent(previousContentId);
+        }
+    }
+
+    /**
+     * Parse and store an upload spooled to a local file, for background ingestion jobs
+     * Same rules and result as getAllUsers, without holding an HTTP request
+     * 
+     * @param filename the uploaded filename
+     * @param upload   the spooled CSV file (left in place)
+     * @param progress told of every parsed user, of the users stored so far and of retried writes
+     * @return the saved CsvFile
+     */
+    public CsvFile ingestUpload(String filename, Path upload, IngestProgress progress) {
+        try {
+            writeBehind.flush(filename);
+            List<User> users;
+            long sizeBytes;
+            String contentId;
+            try {
+                sizeBytes = Files.size(upload);
+                metrics.recordUpload(sizeBytes);
+                long start = System.nanoTime();
+                users = parseUsers(upload, progress::parsed);
+                metrics.recordParse(System.nanoTime() - start, users.size());
+                contentId = storeOriginal(filename, upload);
+            } catch (IOException e) {
+                throw new RuntimeException("Error reading CSV file: " + e.getMessage(), e);
+            }
+            try {
+                // Not hashed: ingested files are never deduplicated
+                return saveUpload(filename, users, sizeBytes, null, contentId, progress);
+            } catch (RuntimeException e) {
+                discardOriginal(contentId);
+                throw e;
+            }
+        } catch (RuntimeException e) {
+            metrics.recordError("upload", e);
+            throw e;
+        }
+    }
+
+    /**
+     * Store parsed users under filename, retrying on concurrent writers
+     */
+    private CsvFile saveUpload(String filename, List<User> users, long sizeBytes, String contentHash,
+                               String contentId, IngestProgress progress) {
+        // Concurrent writers to the same file are detected by CsvFile.version; retry from a fresh read
+        try {
+            return OptimisticRetry.run(OptimisticRetry.DEFAULT_MAX_ATTEMPTS,
+                    () -> storeUpload(filename, users, sizeBytes, contentHash, contentId, progress),
+                    progress::retried);
+        } catch (RuntimeException e) {
+            // The header may have been saved before the failure
+            fileCache.invalidate(filename);
+            throw e;
+        }
+    }
+
+    /**
+     * Insert or replace the stored file with freshly parsed users
+     * 
+     * @param filename    the uploaded filename
+     * @param users       parsed users
+     * @param sizeBytes   size of the upload in bytes
+     * @param contentHash SHA-256 of the upload, or null if not hashed
+     * @param contentId   stored original of the upload, or null if not kept
+     * @param progress    told how many users are stored after each write
+     * @return the saved CsvFile
+     */
+    private CsvFile storeUpload(String filename, List<User> users, long sizeBytes, String contentHash,
+                                String contentId, IngestProgress progress) {
+        boolean bucketed = storageProperties.bucketed();
+
+        // Check if file already exists in DB (bypassing the cache: the copy is modified and saved)
+        Optional<CsvFile> existingFile = metrics.timeLoad(() -> csvFileRepository.findByFilename(filename));
 
         CsvFile csvFile;
+        boolean wasBucketed = false;
+        String previousContentId = null;
         if (existingFile.isPresent()) {
             // Update existing file with new content
             csvFile = existingFile.get();
-            csvFile.setUsers(users);
-            csvFile.setCsvContent(csvContent);
+            wasBucketed = csvFile.isBucketed();
+            previousContentId = csvFile.getContentId();
+            csvFile.setUsers(bucketed ? null : users);
             System.out.println("✅ File already exists in DB, updating: " + filename);
         } else {
             // Create new file in DB
-            csvFile = new CsvFile(filename, users, csvContent);
+            csvFile = new CsvFile(filename, bucketed ? null : users);
             System.out.println("✅ New file saved to MongoDB: " + filename);
         }
 
-        csvFileRepository.save(csvFile);
+        int bucketSize = storageProperties.bucketSize();
+        csvFile.setUserCount(users.size());
+        csvFile.setSizeBytes(sizeBytes);
+        csvFile.setContentHash(contentHash);
+        csvFile.setContentId(contentId);
+        csvFile.setBucketSize(bucketed ? bucketSize : 0);
+        csvFile.setBucketCount(bucketed ? (users.size() + bucketSize - 1) / bucketSize : 0);
+
+        metrics.timeSave(csvFile, () -> csvFileRepository.save(csvFile));
 
-        return Map.of(
-                "filename", filename,
-                "fileId", csvFile.getId(),
-                "users", users);
+        // Buckets reference the header id, so they are written after the header
+        if (bucketed) {
+            csvFileRepository.replaceBuckets(csvFile.getId(), users, bucketSize, progress::persisted);
+        } else {
+            progress.persisted(users.size());
+            if (wasBucketed) {
+                csvFileRepository.deleteBuckets(csvFile.getId());
+            }
+        }
+        replacedOriginal(previousContentId, contentId);
+
+        // Write-through: readers of this file get the new metadata without a reload
+        fileCache.put(CsvFileInfo.of(csvFile));
+        return csvFile;
+    }
+
+    /* ---------- LIST ---------- */
+    /**
+     * Read one page of a stored file's users, ordered by id
+     * Keyset pagination: pass the nextAfterId of the previous page to get the next one.
+     * Bucketed files load only the buckets that can hold the page; embedded files scan
+     * their users once in memory per page, but only unwind and return the page
+     * 
+     * @param filename the filename to read
+     * @param afterId  last id of the previous page, null for the first page
+     * @param limit    page size, 1 to MAX_PAGE_SIZE
+     * @return map with filename, users, count and nextAfterId (null on the last page)
+     */
+    public Map<String, Object> listUsers(String filename, Integer afterId, int limit) {
+        requirePageSize(limit);
+        CsvFileInfo info = findInfo(filename);
+
+        // One extra user tells whether another page follows
+        List<User> users = info.isBucketed()
+                ? csvFileRepository.findBucketedUsersPage(info.id(), afterId, limit + 1)
+                : csvFileRepository.findUsersPage(filename, afterId, limit + 1);
+        return pageResult(filename, users, limit);
+    }
+
+    static void requirePageSize(int limit) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("Page size must be between 1 and " + MAX_PAGE_SIZE + ": " + limit);
+        }
+    }
+
+    /**
+     * @param users up to limit + 1 users; the extra one only tells that another page follows
+     */
+    static Map<String, Object> pageResult(String filename, List<User> users, int limit) {
+        boolean more = users.size() > limit;
+        if (more) {
+            users = users.subList(0, limit);
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("filename", filename);
+        result.put("count", users.size());
+        result.put("users", users);
+        result.put("nextAfterId", more ? users.get(users.size() - 1).getId() : null);
+        return result;
+    }
+
+    /**
+     * Stream every user of a stored file in file order, straight from a MongoDB cursor
+     * Fails before any user is read if the file does not exist
+     * 
+     * @param filename the filename to read
+     * @return lazily read users; the caller must close the stream
+     */
+    public Stream<User> streamUsers(String filename) {
+        CsvFileInfo info = findInfo(filename);
+
+        return info.isBucketed()
+                ? csvFileRepository.streamBucketedUsers(info.id())
+                : csvFileRepository.streamUsers(filename);
+    }
+
+    /**
+     * Write users as a CSV export through a bounded buffer, optionally gzip-compressed
+     * Heap use is the buffer size whatever the number of users
+     * 
+     * @param users  users to write, e.g. from streamUsers; closed when done
+     * @param format record format of the export
+     * @param gzip   whether to gzip the output
+     * @param out    destination, left open
+     * @return number of users written
+     */
+    public long writeExport(Stream<User> users, UserRecordWriter.Format format, boolean gzip,
+                            OutputStream out) throws IOException {
+        try (users) {
+            GZIPOutputStream compressed = gzip ? new GZIPOutputStream(out, EXPORT_BUFFER_SIZE) : null;
+            Writer writer = new BufferedWriter(
+                    new OutputStreamWriter(gzip ? compressed : out, StandardCharsets.UTF_8), EXPORT_BUFFER_SIZE);
+
+            long written = new UserRecordWriter(writer, format).writeAll(users.iterator());
+            writer.flush();
+            if (compressed != null) {
+                compressed.finish();
+            }
+            return written;
+        }
+    }
+
+    /**
+     * Open the original upload of a stored file, as it was uploaded
+     * Served from GridFS without loading the file's users; the stored gzip
+     * stream is returned as is when gzip is requested
+     * 
+     * @param filename the filename to read
+     * @param gzip     whether to return the gzip-compressed bytes
+     * @return the original upload, to be closed by the caller
+     */
+    public InputStream openOriginal(String filename, boolean gzip) {
+        CsvFileInfo info = findInfo(filename);
+        if (info.contentId() == null) {
+            throw new RuntimeException("Original upload not stored for: " + filename);
+        }
+        return csvFileRepository.openContent(info.contentId(), !gzip)
+                .orElseThrow(() -> new RuntimeException("Original upload not stored for: " + filename));
+    }
+
+    /* ---------- LOOKUP ---------- */
+    /**
+     * Find which stored files hold a user with an email
+     * An index lookup on users.email in both storage layouts; no file is loaded
+     * 
+     * @param email exact (case-sensitive) email to look for
+     * @param limit max matches, 1 to MAX_PAGE_SIZE
+     * @return map with email, filenames, count, matches and truncated
+     */
+    public Map<String, Object> findUsersByEmail(String email, int limit) {
+        requireLookup("Email", email, limit);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("email", email);
+        result.putAll(lookupResult(csvFileRepository.findUsersByEmail(email, limit + 1), limit));
+        return result;
+    }
+
+    /**
+     * Find users whose name starts with a prefix, across all stored files
+     * An index range scan on users.name in both storage layouts; no file is loaded
+     * 
+     * @param prefix start of the name, matched literally and case-sensitively
+     * @param limit  max matches, 1 to MAX_PAGE_SIZE
+     * @return map with prefix, filenames, count, matches and truncated
+     */
+    public Map<String, Object> findUsersByNamePrefix(String prefix, int limit) {
+        requireLookup("Name prefix", prefix, limit);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("prefix", prefix);
+        result.putAll(lookupResult(csvFileRepository.findUsersByNamePrefix(prefix, limit + 1), limit));
+        return result;
+    }
+
+    static void requireLookup(String what, String value, int limit) {
+        if (value == null || value.isBlank()) {
+            throw new IllegalArgumentException(what + " must not be empty");
+        }
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("Limit must be between 1 and " + MAX_PAGE_SIZE + ": " + limit);
+        }
+    }
+
+    /**
+     * @param matches up to limit + 1 matches; the extra one only tells that more exist
+     */
+    static Map<String, Object> lookupResult(List<UserMatch> matches, int limit) {
+        boolean truncated = matches.size() > limit;
+        if (truncated) {
+            matches = matches.subList(0, limit);
+        }
+
+        Set<String> filenames = new LinkedHashSet<>();
+        for (UserMatch match : matches) {
+            filenames.add(match.filename());
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("filenames", filenames);
+        result.put("count", matches.size());
+        result.put("matches", matches);
+        result.put("truncated", truncated);
+        return result;
+    }
+
+    /**
+     * Apply a single-user mutation to an embedded file: buffered in write-behind mode,
+     * otherwise written through FileWriteCoalescer
+     *
+     * @return false if the file is missing, bucketed, or the mutation does not apply
+     */
+    private boolean applyEmbedded(String filename, UserMutation mutation) {
+        return writeBehind.enabled()
+                ? writeBehind.apply(filename, mutation)
+                : writeCoalescer.apply(filename, mutation);
     }
 
     /* ---------- CREATE ---------- */
     /**
      * Create a new user
+     * Embedded files are changed with a single guarded $push that only ships the new user;
+     * concurrent mutations of the same file are merged by FileWriteCoalescer.
+     * Like every write path, drops the file from CsvFileCache when done
      * 
      * @param filename the filename to fetch from DB
      * @param id       the new user ID
@@ -122,37 +788,32 @@ public class UserService {
      * @return success message
      */
     public String createUser(String filename, int id, String email, String name) {
-        // Fetch from MongoDB
-        Optional<CsvFile> csvFileOpt = csvFileRepository.findByFilename(filename);
-        if (csvFileOpt.isEmpty()) {
-            throw new RuntimeException("File not found in database: " + filename);
-        }
-
-        CsvFile csvFile = csvFileOpt.get();
-        List<User> users = csvFile.getUsers();
-
-        // Check if user with this ID already exists
-        for (User u : users) {
-            if (u.getId() == id) {
-                throw new RuntimeException("User with ID " + id + " already exists");
+        long start = System.nanoTime();
+        try {
+            if (!applyEmbedded(filename, UserMutation.create(id, email, name))) {
+                // Missing file, bucketed file or duplicate id: resolve from the header,
+                // read by projection so the users are neither loaded nor cached
+                CsvFileInfo info = findInfo(filename);
+                if (info.isBucketed()) {
+                    return createBucketedUser(info, id, email, name);
+                }
+                throw new UserAlreadyExistsException(id);
             }
-        }
-
-        // Add new user
-        User newUser = new User(id, email, name);
-        users.add(newUser);
-
-        // Update in MongoDB
-        csvFile.setUsers(users);
-        csvFile.setCsvContent(convertUsersToCSV(users));
-        csvFileRepository.save(csvFile);
 
-        return "User created successfully. Stored in MongoDB: " + filename;
+            return "User created successfully. Stored in MongoDB: " + filename;
+        } catch (RuntimeException e) {
+            metrics.recordError("create", e);
+            throw e;
+        } finally {
+            fileCache.invalidate(filename);
+            metrics.recordMutation(UserMutation.Type.CREATE, start);
+        }
     }
 
     /* ---------- UPDATE ---------- */
     /**
      * Update a user completely (PUT)
+     * Embedded files are changed in place with $set on users.$[u]
      * 
      * @param filename the filename to fetch from DB
      * @param id       the user ID to update
@@ -161,39 +822,29 @@ public class UserService {
      * @return success message
      */
     public String updateUser(String filename, int id, String email, String name) {
-        // Fetch from MongoDB
-        Optional<CsvFile> csvFileOpt = csvFileRepository.findByFilename(filename);
-        if (csvFileOpt.isEmpty()) {
-            throw new RuntimeException("File not found in database: " + filename);
-        }
-
-        CsvFile csvFile = csvFileOpt.get();
-        List<User> users = csvFile.getUsers();
-
-        boolean found = false;
-        for (User u : users) {
-            if (u.getId() == id) {
-                u.setEmail(email);
-                u.setName(name);
-                found = true;
-                break;
+        long start = System.nanoTime();
+        try {
+            if (!applyEmbedded(filename, UserMutation.update(id, email, name))) {
+                CsvFileInfo info = findInfo(filename);
+                if (info.isBucketed()) {
+                    return updateBucketedUser(info, id, email, name);
+                }
+                throw new UserNotFoundException(id);
             }
-        }
 
-        if (!found) {
-            throw new RuntimeException("User with ID " + id + " not found");
+            return "User with ID " + id + " updated successfully. Updated in MongoDB: " + filename;
+        } catch (RuntimeException e) {
+            metrics.recordError("update", e);
+            throw e;
+        } finally {
+            fileCache.invalidate(filename);
+            metrics.recordMutation(UserMutation.Type.UPDATE, start);
         }
-
-        // Update in MongoDB
-        csvFile.setUsers(users);
-        csvFile.setCsvContent(convertUsersToCSV(users));
-        csvFileRepository.save(csvFile);
-
-        return "User with ID " + id + " updated successfully. Updated in MongoDB: " + filename;
     }
 
     /**
      * Partially update a user (PATCH)
+     * Only non-empty fields are sent to MongoDB
      * 
      * @param filename the filename to fetch from DB
      * @param id       the user ID to update
@@ -202,125 +853,311 @@ public class UserService {
      * @return success message
      */
     public String patchUser(String filename, int id, String email, String name) {
-        // Fetch from MongoDB
-        Optional<CsvFile> csvFileOpt = csvFileRepository.findByFilename(filename);
-        if (csvFileOpt.isEmpty()) {
-            throw new RuntimeException("File not found in database: " + filename);
-        }
+        long start = System.nanoTime();
+        UserMutation patch = UserMutation.patch(id, email, name);
 
-        CsvFile csvFile = csvFileOpt.get();
-        List<User> users = csvFile.getUsers();
-
-        boolean found = false;
-        for (User u : users) {
-            if (u.getId() == id) {
-                if (email != null && !email.isEmpty()) {
-                    u.setEmail(email);
-                }
-                if (name != null && !name.isEmpty()) {
-                    u.setName(name);
+        try {
+            if (!applyEmbedded(filename, patch)) {
+                CsvFileInfo info = findInfo(filename);
+                if (info.isBucketed()) {
+                    return patchBucketedUser(info, id, patch.email(), patch.name());
                 }
-                found = true;
-                break;
+                throw new UserNotFoundException(id);
             }
-        }
 
-        if (!found) {
-            throw new RuntimeException("User with ID " + id + " not found");
+            return "User with ID " + id + " partially updated successfully. Updated in MongoDB: " + filename;
+        } catch (RuntimeException e) {
+            metrics.recordError("patch", e);
+            throw e;
+        } finally {
+            fileCache.invalidate(filename);
+            metrics.recordMutation(UserMutation.Type.PATCH, start);
         }
-
-        // Update in MongoDB
-        csvFile.setUsers(users);
-        csvFile.setCsvContent(convertUsersToCSV(users));
-        csvFileRepository.save(csvFile);
-
-        return "User with ID " + id + " partially updated successfully. Updated in MongoDB: " + filename;
     }
 
     /* ---------- DELETE ---------- */
     /**
      * Delete a user by ID
+     * Embedded files are changed with a single $pull
      * 
      * @param filename the filename to fetch from DB
      * @param id       the user ID to delete
      * @return success message
      */
     public String deleteUser(String filename, int id) {
-        // Fetch from MongoDB
-        Optional<CsvFile> csvFileOpt = csvFileRepository.findByFilename(filename);
-        if (csvFileOpt.isEmpty()) {
-            throw new RuntimeException("File not found in database: " + filename);
-        }
-
-        CsvFile csvFile = csvFileOpt.get();
-        List<User> users = csvFile.getUsers();
-
-        boolean found = false;
-        Iterator<User> iterator = users.iterator();
-        while (iterator.hasNext()) {
-            User u = iterator.next();
-            if (u.getId() == id) {
-                iterator.remove();
-                found = true;
-                break;
+        long start = System.nanoTime();
+        try {
+            if (!applyEmbedded(filename, UserMutation.delete(id))) {
+                CsvFileInfo info = findInfo(filename);
+                if (info.isBucketed()) {
+                    return deleteBucketedUser(info, id);
+                }
+                throw new UserNotFoundException(id);
             }
+
+            return "User with ID " + id + " deleted successfully. Updated in MongoDB: " + filename;
+        } catch (RuntimeException e) {
+            metrics.recordError("delete", e);
+            throw e;
+        } finally {
+            fileCache.invalidate(filename);
+            metrics.recordMutation(UserMutation.Type.DELETE, start);
         }
+    }
 
-        if (!found) {
-            throw new RuntimeException("User with ID " + id + " not found");
+    /* ---------- BATCH ---------- */
+    /**
+     * Apply many create/update/patch/delete operations to one file with one load and one write
+     * Embedded files: every operation is applied in memory through the file's UserIdIndex,
+     * then the file is saved once (versioned, retried as a whole on a conflict).
+     * The embedded file is bounded by the 16MB document limit, and one versioned save
+     * applies the batch atomically; a chain of array updates could be cut short half way.
+     * Bucketed files: the buckets are loaded once and each operation becomes one targeted
+     * update in a single bulk write to csv_file_buckets, planned from the header version
+     * and retried from a fresh load if the header moved before anything was written.
+     * A write that a concurrent single-user write invalidated is reported FAILED.
+     * 
+     * Every operation is checked against the users as they stand after the operations
+     * before it. Ordered batches stop at the first operation that fails and skip the rest;
+     * operations before it stay applied. Unordered batches carry on past failures and apply
+     * every operation that can be applied; for bucketed files the operations on one user are
+     * merged into a single write, so MongoDB may apply the writes in any order.
+     * 
+     * @param filename   the file to change
+     * @param operations the operations, in request order
+     * @param ordered    whether to stop at the first failure
+     * @return map with filename, ordered, counts and per-operation results
+     */
+    public Map<String, Object> applyBatch(String filename, List<UserOperation> operations, boolean ordered) {
+        if (operations == null || operations.isEmpty() || operations.size() > MAX_BATCH_OPERATIONS) {
+            throw new IllegalArgumentException("A batch must have between 1 and " + MAX_BATCH_OPERATIONS + " operations");
         }
 
-        // Update in MongoDB
-        csvFile.setUsers(users);
-        csvFile.setCsvContent(convertUsersToCSV(users));
-        csvFileRepository.save(csvFile);
+        List<UserMutation> mutations = new ArrayList<>(operations.size());
+        for (int i = 0; i < operations.size(); i++) {
+            try {
+                mutations.add(UserMutation.of(operations.get(i)));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Operation " + i + ": " + e.getMessage(), e);
+            }
+        }
 
-        return "User with ID " + id + " deleted successfully. Updated in MongoDB: " + filename;
+        long start = System.nanoTime();
+        BatchOutcome outcome;
+        try {
+            writeBehind.flush(filename);
+            outcome = OptimisticRetry.run(() -> applyBatchOnce(filename, mutations, ordered));
+        } catch (RuntimeException e) {
+            metrics.recordError("batch", e);
+            throw e;
+        } finally {
+            fileCache.invalidate(filename);
+            metrics.recordBatch(start);
+        }
+
+        List<Map<String, Object>> results = new ArrayList<>(mutations.size());
+        int appliedCount = 0;
+        int failedCount = 0;
+        for (int i = 0; i < mutations.size(); i++) {
+            UserMutation mutation = mutations.get(i);
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("index", i);
+            result.put("op", mutation.type());
+            result.put("userId", mutation.id());
+            Boolean applied = outcome.applied()[i];
+            if (applied == null) {
+                result.put("status", "SKIPPED");
+            } else if (applied) {
+                result.put("status", "APPLIED");
+                appliedCount++;
+            } else {
+                result.put("status", "FAILED");
+                result.put("error", outcome.conflicts()[i]
+                        ? "User with ID " + mutation.id() + " was changed by a concurrent write; not applied"
+                        : mutation.failureMessage());
+                failedCount++;
+            }
+            results.add(result);
+        }
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("filename", filename);
+        response.put("ordered", ordered);
+        response.put("applied", appliedCount);
+        response.put("failed", failedCount);
+        response.put("skipped", mutations.size() - appliedCount - failedCount);
+        response.put("results", results);
+        return response;
     }
 
-    /* ---------- HELPERS ---------- */
+    /**
+     * Progress of ingestUpload, reported on the ingesting thread
+     */
+    public interface IngestProgress {
+
+        IngestProgress NONE = new IngestProgress() { };
+
+        /**
+         * @param user a parsed user, in file order
+         */
+        default void parsed(User user) {
+        }
+
+        /**
+         * @param users users stored so far by the current write attempt
+         */
+        default void persisted(long users) {
+        }
+
+        /**
+         * A write attempt lost to a concurrent writer; it is retried from scratch,
+         * so the users it stored no longer count
+         * @param conflict the failure of the attempt
+         */
+        default void retried(RuntimeException conflict) {
+        }
+    }
+
+    /**
+     * @param applied   per mutation: true if applied, false if failed, null if skipped
+     * @param conflicts per mutation: failed because a concurrent write invalidated its bucket write
+     */
+    private record BatchOutcome(Boolean[] applied, boolean[] conflicts) {
+    }
 
     /**
-     * Parse a CSV line to a User object
-     * Expected format: id=1,email=test@example.com,name=TestName
+     * One attempt at a batch; re-run from a fresh load by OptimisticRetry on a version conflict
      */
-    private User parseLineToUser(String line) {
-        Map<String, String> map = new HashMap<>();
+    private BatchOutcome applyBatchOnce(String filename, List<UserMutation> mutations, boolean ordered) {
+        // Bypassing the cache: the loaded copy is modified
+        CsvFile csvFile = metrics.timeLoad(() -> csvFileRepository.findByFilename(filename))
+                .orElseThrow(() -> new CsvFileNotFoundException(filename));
+        Boolean[] applied = new Boolean[mutations.size()];
+        boolean[] conflicts = new boolean[mutations.size()];
 
-        String[] pairs = line.split(",");
-        for (String pair : pairs) {
-            String[] kv = pair.split("=", 2);
-            if (kv.length == 2) {
-                map.put(kv[0].trim(), kv[1].trim());
+        if (csvFile.isBucketed()) {
+            // Unordered writes may run in any order: one merged write per user
+            BucketBatch batch = new BucketBatch(csvFileRepository.findBuckets(csvFile.getId()),
+                    csvFile.getBucketSize(), !ordered);
+            applyInOrder(mutations, ordered, applied, batch::apply);
+            if (batch.hasChanges()) {
+                Boolean[] written = csvFileRepository.writeBuckets(csvFile.getId(), csvFile.getVersion(),
+                        batch.writes(), batch.newBuckets(), batch.userCountDelta(), ordered);
+                for (int i = 0; i < applied.length; i++) {
+                    int slot = batch.slot(i);
+                    if (Boolean.TRUE.equals(applied[i]) && slot != BucketBatch.NO_SLOT
+                            && !Boolean.TRUE.equals(written[slot])) {
+                        // Not attempted after an earlier error of an ordered write, or invalidated
+                        applied[i] = written[slot] == null ? null : false;
+                        conflicts[i] = written[slot] != null;
+                    }
+                }
             }
+            return new BatchOutcome(applied, conflicts);
         }
 
-        try {
-            return new User(
-                    Integer.parseInt(map.get("id")),
-                    map.get("email"),
-                    map.get("name"));
-        } catch (Exception e) {
-            throw new RuntimeException("Invalid CSV format in line: " + line);
+        UserIdIndex index = csvFile.userIndex();
+        if (applyInOrder(mutations, ordered, applied, mutation -> mutation.applyTo(index))) {
+            List<User> users = index.compact();
+            csvFile.setUsers(users);
+            csvFile.setUserCount(users.size());
+            metrics.timeSave(csvFile, () -> csvFileRepository.save(csvFile));
         }
+        return new BatchOutcome(applied, conflicts);
+    }
+
+    /**
+     * @return true if any mutation took effect
+     */
+    private static boolean applyInOrder(List<UserMutation> mutations, boolean ordered, Boolean[] applied,
+                                        Predicate<UserMutation> apply) {
+        boolean changed = false;
+        for (int i = 0; i < mutations.size(); i++) {
+            applied[i] = apply.test(mutations.get(i));
+            changed |= applied[i];
+            if (ordered && !applied[i]) {
+                break;
+            }
+        }
+        return changed;
+    }
+
+    /* ---------- BUCKETED LAYOUT ---------- */
+    // Single-user operations on bucketed files touch only the bucket holding the user
+
+    private String createBucketedUser(CsvFileInfo header, int id, String email, String name) {
+        if (!csvFileRepository.pushToBucket(header.id(), header.bucketSize(), new User(id, email, name))) {
+            throw new UserAlreadyExistsException(id);
+        }
+
+        return "User created successfully. Stored in MongoDB: " + header.filename();
+    }
+
+    private String updateBucketedUser(CsvFileInfo header, int id, String email, String name) {
+        if (csvFileRepository.setInBucket(header.id(), id, email, name) == 0) {
+            throw new UserNotFoundException(id);
+        }
+
+        return "User with ID " + id + " updated successfully. Updated in MongoDB: " + header.filename();
+    }
+
+    private String patchBucketedUser(CsvFileInfo header, int id, String email, String name) {
+        if (csvFileRepository.setInBucket(header.id(), id, email, name) == 0) {
+            throw new UserNotFoundException(id);
+        }
+
+        return "User with ID " + id + " partially updated successfully. Updated in MongoDB: " + header.filename();
+    }
+
+    private String deleteBucketedUser(CsvFileInfo header, int id) {
+        if (csvFileRepository.pullFromBucket(header.id(), id) == 0) {
+            throw new UserNotFoundException(id);
+        }
+
+        return "User with ID " + id + " deleted successfully. Updated in MongoDB: " + header.filename();
+    }
+
+    /* ---------- HELPERS ---------- */
+
+    /**
+     * Metadata lookup through the cache, loaded on a miss by a projection that
+     * never loads users
+     */
+    private CsvFileInfo findInfo(String filename) {
+        return fileCache.findInfo(filename)
+                .orElseThrow(() -> new CsvFileNotFoundException(filename));
+    }
+
+    /**
+     * Counters of the file metadata cache, used to size app.cache.max-size
+     * 
+     * @return hits, misses, evictions and current/maximum weight in bytes
+     */
+    public Map<String, Object> getCacheStats() {
+        return fileCache.stats();
     }
 
     /**
      * Get file info from MongoDB
+     * Served from the metadata cache, loaded on a miss by a projection that
+     * never loads users
      * 
      * @param filename the filename to search
      * @return map with file details
      */
     public Map<String, Object> getFileInfo(String filename) {
-        CsvFile csvFile = csvFileRepository.findByFilename(filename)
-                .orElseThrow(() -> new RuntimeException("File not found in database: " + filename));
+        return infoResult(findInfo(filename));
+    }
 
+    static Map<String, Object> infoResult(CsvFileInfo info) {
         Map<String, Object> result = new HashMap<>();
-        result.put("id", csvFile.getId());
-        result.put("filename", csvFile.getFilename());
-        result.put("userCount", csvFile.getUsers().size());
-        result.put("uploadedAt", csvFile.getUploadedAt());
-        result.put("lastModified", csvFile.getLastModified());
+        result.put("id", info.id());
+        result.put("filename", info.filename());
+        result.put("userCount", info.userCount());
+        result.put("sizeBytes", info.sizeBytes());
+        result.put("originalStored", info.contentId() != null);
+        result.put("uploadedAt", info.uploadedAt());
+        result.put("lastModified", info.lastModified());
         return result;
     }
 }
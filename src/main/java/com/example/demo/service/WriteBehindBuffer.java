@@ -0,0 +1,494 @@
+package com.example.demo.service;
+
+import com.example.demo.config.WriteBehindProperties;
+import com.example.demo.model.CsvFile;
+import com.example.demo.model.User;
+import com.example.demo.model.UserIdIndex;
+import com.example.demo.repository.CsvFileRepository;
+import com.example.demo.util.OptimisticRetry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Opt-in write-behind for single-user mutations (app.write-behind.enabled)
+ *
+ * A mutation is applied to an in-memory working copy of its file (loaded on
+ * first use) and acknowledged; a flusher thread saves every file with unsaved
+ * mutations once per maxDelay, or as soon as one file has maxBatch of them,
+ * so a burst of PATCHes to one file costs one versioned save per flush.
+ * The save is of a snapshot, so mutations go on while it is in flight.
+ *
+ * If the stored file changed in between (an upload, a batch), the save fails
+ * its version check and the unsaved mutations are replayed onto the stored
+ * version; if the file is gone they are dropped. A replayed mutation that no
+ * longer applies (its user was deleted, or created with the same id) is
+ * dropped too. Drops are logged and counted in csv.write.behind.dropped.
+ * Uploads and batches flush their file first, so they apply after the
+ * mutations acknowledged before them.
+ * Reads served from MongoDB see a mutation only once it is flushed.
+ *
+ * With a journal, mutations are appended to it before they are acknowledged,
+ * a saved marker follows each save, and whatever is unsaved in it at startup
+ * is replayed (see WriteBehindJournal).
+ * Working copies of files with nothing unsaved are dropped at each flush.
+ *
+ * A working copy is guarded by a ReentrantLock that is never held across a
+ * MongoDB call: loads happen outside it and are installed only if no other
+ * caller installed one first. Unlike synchronized, it does not pin a virtual
+ * thread to its carrier while it waits, including on the journal's fsync.
+ */
+@Component
+public class WriteBehindBuffer {
+
+    private final CsvFileRepository csvFileRepository;
+
+    private final CsvFileCache fileCache;
+
+    private final UserMetrics metrics;
+
+    private final WriteBehindProperties properties;
+
+    private final ConcurrentHashMap<String, WorkingCopy> copies = new ConcurrentHashMap<>();
+
+    // Acknowledged mutations not saved yet, across files
+    private final AtomicInteger buffered = new AtomicInteger();
+
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private ScheduledExecutorService flusher;
+
+    private WriteBehindJournal journal;
+
+    public WriteBehindBuffer(CsvFileRepository csvFileRepository, CsvFileCache fileCache, UserMetrics metrics,
+                             WriteBehindProperties properties) {
+        this.csvFileRepository = csvFileRepository;
+        this.fileCache = fileCache;
+        this.metrics = metrics;
+        this.properties = properties;
+        if (metrics != null) {
+            metrics.gaugeWriteBehindQueue(buffered);
+        }
+    }
+
+    /**
+     * A buffer that is never enabled, for wiring UserService without write-behind
+     */
+    public static WriteBehindBuffer disabled() {
+        return new WriteBehindBuffer(null, null, null, new WriteBehindProperties(false, null, 0, 0, null, false));
+    }
+
+    public boolean enabled() {
+        return properties.enabled();
+    }
+
+    /**
+     * Replay what the journal holds from before, then start flushing
+     */
+    @PostConstruct
+    public void start() {
+        if (!enabled()) {
+            return;
+        }
+        if (properties.journal() != null) {
+            try {
+                journal = new WriteBehindJournal(properties.journal(), properties.journalSync());
+                replay(journal.recover());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open write-behind journal " + properties.journal(), e);
+            }
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "write-behind-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long delayNanos = properties.maxDelay().toNanos();
+        flusher.scheduleWithFixedDelay(this::flushAll, delayNanos, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Save everything still buffered before the application stops
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (flusher == null) {
+            return;
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // A round that hits a version conflict leaves the replayed mutations for the next one
+        for (int round = 0; round < OptimisticRetry.DEFAULT_MAX_ATTEMPTS && !copies.isEmpty(); round++) {
+            flushAll();
+        }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                System.out.println("Could not close write-behind journal: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Apply a mutation to the working copy of an embedded file, to be saved by a later flush
+     *
+     * @return true if the mutation took effect, with the same meaning as FileWriteCoalescer.apply
+     * @throws RejectedExecutionException if maxBuffered mutations are waiting to be saved
+     */
+    public boolean apply(String filename, UserMutation mutation) {
+        if (buffered.get() >= properties.maxBuffered()) {
+            requestFlush();
+            throw new RejectedExecutionException("Too many unsaved writes (" + properties.maxBuffered()
+                    + "), try again later");
+        }
+        while (true) {
+            WorkingCopy copy = copies.computeIfAbsent(filename, key -> new WorkingCopy());
+            CsvFile loaded = null;
+            if (!copy.loaded()) {
+                // Callers resolve missing and bucketed files themselves
+                loaded = metrics.timeLoad(() -> csvFileRepository.findByFilename(filename))
+                        .filter(file -> !file.isBucketed())
+                        .orElse(null);
+            }
+            copy.lock.lock();
+            try {
+                if (copy.evicted) {
+                    continue;
+                }
+                if (copy.file == null) {
+                    if (loaded == null) {
+                        evict(filename, copy);
+                        return false;
+                    }
+                    copy.file = loaded;
+                }
+                // Otherwise another caller installed its load first, with its mutations applied: ours is dropped
+
+                UserIdIndex index = copy.file.userIndex();
+                if (!mutation.appliesTo(index)) {
+                    return false;
+                }
+                if (journal != null) {
+                    copy.lastSequence = journal.append(filename, mutation);
+                }
+                mutation.applyTo(index);
+                copy.pending.add(mutation);
+                buffered.incrementAndGet();
+                if (copy.pending.size() >= properties.maxBatch()) {
+                    requestFlush();
+                }
+                return true;
+            } finally {
+                copy.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Save the buffered mutations of one file now and drop its working copy if nothing is left
+     * Called before writes that replace or rewrite the whole file
+     */
+    public void flush(String filename) {
+        if (!enabled() || filename == null) {
+            return;
+        }
+        for (int attempt = 0; attempt < OptimisticRetry.DEFAULT_MAX_ATTEMPTS; attempt++) {
+            WorkingCopy copy = copies.get(filename);
+            if (copy == null) {
+                return;
+            }
+            if (flush(filename, copy)) {
+                copy.lock.lock();
+                try {
+                    if (copy.pending.isEmpty()) {
+                        evict(filename, copy);
+                    }
+                } finally {
+                    copy.lock.unlock();
+                }
+                return;
+            }
+        }
+        throw new RuntimeException("Could not save buffered writes to " + filename + ", try again later");
+    }
+
+    private void requestFlush() {
+        if (flusher != null && flushRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(this::flushAll);
+            } catch (RejectedExecutionException e) {
+                // Shutting down: the final flush saves everything
+            }
+        }
+    }
+
+    /**
+     * One flush round: save every working copy with unsaved mutations
+     * Runs on the flusher thread, so rounds never overlap
+     */
+    void flushAll() {
+        flushRequested.set(false);
+        if (copies.isEmpty()) {
+            return;
+        }
+        // Entries appended from here on land in the new segment
+        long segment = journal != null && buffered.get() > 0 ? journal.rotate() : 0;
+        boolean saved = true;
+        for (Map.Entry<String, WorkingCopy> entry : copies.entrySet()) {
+            try {
+                saved &= flush(entry.getKey(), entry.getValue());
+            } catch (RuntimeException e) {
+                saved = false;
+                System.out.println("Write-behind flush of " + entry.getKey() + " failed: " + e.getMessage());
+            }
+        }
+        if (saved && segment > 0) {
+            journal.release(segment);
+        }
+    }
+
+    /**
+     * Save one working copy's unsaved mutations, dropping the copy if there are none
+     *
+     * @return false if they are still unsaved (kept for the next round)
+     */
+    private boolean flush(String filename, WorkingCopy copy) {
+        copy.flushLock.lock();
+        try {
+            CsvFile snapshot;
+            List<UserMutation> batch;
+            long sequence;
+            copy.lock.lock();
+            try {
+                if (copy.pending.isEmpty()) {
+                    evict(filename, copy);
+                    return true;
+                }
+                snapshot = snapshot(copy.file);
+                batch = copy.pending;
+                sequence = copy.lastSequence;
+                copy.pending = new ArrayList<>();
+            } finally {
+                copy.lock.unlock();
+            }
+
+            long start = System.nanoTime();
+            try {
+                metrics.timeSave(snapshot, () -> csvFileRepository.save(snapshot));
+            } catch (OptimisticLockingFailureException e) {
+                // Changed by another writer: replay onto the stored version, saved by the next round
+                rebase(filename, copy, batch);
+                requestFlush();
+                return false;
+            } catch (RuntimeException e) {
+                restore(copy, batch);
+                throw e;
+            }
+            copy.lock.lock();
+            try {
+                copy.file.setVersion(snapshot.getVersion());
+            } finally {
+                copy.lock.unlock();
+            }
+            if (journal != null) {
+                // Before the flush lock is released: a flush(filename) ahead of an upload waits for it
+                journal.saved(filename, sequence);
+            }
+            buffered.addAndGet(-batch.size());
+            fileCache.invalidate(filename);
+            metrics.recordWriteBehindFlush(System.nanoTime() - start, batch.size());
+            return true;
+        } finally {
+            copy.flushLock.unlock();
+        }
+    }
+
+    /**
+     * Put a batch that was not saved back in front of the mutations applied since
+     */
+    private static void restore(WorkingCopy copy, List<UserMutation> batch) {
+        copy.lock.lock();
+        try {
+            batch.addAll(copy.pending);
+            copy.pending = batch;
+        } finally {
+            copy.lock.unlock();
+        }
+    }
+
+    /**
+     * Re-apply the unsaved mutations of a copy onto the stored file
+     * The stored file is loaded without the copy's lock; mutations applied
+     * meanwhile are pending by the time it is installed, and replayed with the rest
+     */
+    private void rebase(String filename, WorkingCopy copy, List<UserMutation> batch) {
+        // Kept as unsaved if the load fails: the next save conflicts again and comes back here
+        restore(copy, batch);
+        Optional<CsvFile> stored = metrics.timeLoad(() -> csvFileRepository.findByFilename(filename));
+
+        copy.lock.lock();
+        try {
+            List<UserMutation> unsaved = copy.pending;
+            if (stored.isEmpty() || stored.get().isBucketed()) {
+                System.out.println("⚠️ " + filename + " was deleted or re-stored as buckets, dropping "
+                        + unsaved.size() + " unsaved writes");
+                drop(filename, copy, unsaved.size(), true);
+                copy.pending = new ArrayList<>();
+                evict(filename, copy);
+                return;
+            }
+            CsvFile file = stored.get();
+            UserIdIndex index = file.userIndex();
+            List<UserMutation> kept = new ArrayList<>(unsaved.size());
+            for (UserMutation mutation : unsaved) {
+                if (mutation.applyTo(index)) {
+                    kept.add(mutation);
+                } else {
+                    System.out.println("⚠️ Dropping acknowledged write to " + filename + " after a concurrent change: "
+                            + mutation.failureMessage());
+                }
+            }
+            if (kept.size() < unsaved.size()) {
+                drop(filename, copy, unsaved.size() - kept.size(), kept.isEmpty());
+            }
+            copy.pending = kept;
+            copy.file = file;
+        } finally {
+            copy.lock.unlock();
+        }
+    }
+
+    /**
+     * Account for acknowledged mutations that will never be saved
+     * Caller holds the copy's lock
+     */
+    private void drop(String filename, WorkingCopy copy, int dropped, boolean nothingLeft) {
+        buffered.addAndGet(-dropped);
+        metrics.recordWriteBehindDropped(dropped);
+        if (journal != null && nothingLeft) {
+            // Nothing left to save: the marker keeps a later replay from applying them after all.
+            // Otherwise the next save's marker covers them
+            journal.saved(filename, copy.lastSequence);
+        }
+    }
+
+    /**
+     * Caller holds the copy's lock
+     */
+    private void evict(String filename, WorkingCopy copy) {
+        copy.evicted = true;
+        copies.remove(filename, copy);
+    }
+
+    /**
+     * Save the mutations journaled by a previous run and never saved, file by file, in journal order
+     *
+     * They are applied to the stored file as a rebase would apply them. Saved
+     * mutations are skipped by their marker; only a crash between a save and
+     * its marker replays that save once more, and then nothing else can have
+     * written the file in between: uploads and batches flush it first, which
+     * waits for the marker.
+     */
+    private void replay(List<WriteBehindJournal.Entry> entries) {
+        if (entries.isEmpty()) {
+            journal.release(journal.rotate());
+            return;
+        }
+        Map<String, List<UserMutation>> byFile = new LinkedHashMap<>();
+        for (WriteBehindJournal.Entry entry : entries) {
+            byFile.computeIfAbsent(entry.filename(), key -> new ArrayList<>()).add(entry.mutation());
+        }
+        for (Map.Entry<String, List<UserMutation>> file : byFile.entrySet()) {
+            int dropped = OptimisticRetry.run(() -> {
+                Optional<CsvFile> stored = csvFileRepository.findByFilename(file.getKey());
+                if (stored.isEmpty() || stored.get().isBucketed()) {
+                    System.out.println("⚠️ Journaled writes to " + file.getKey() + " skipped: file not embedded");
+                    return file.getValue().size();
+                }
+                CsvFile csvFile = stored.get();
+                UserIdIndex index = csvFile.userIndex();
+                int notApplied = 0;
+                for (UserMutation mutation : file.getValue()) {
+                    if (!mutation.applyTo(index)) {
+                        System.out.println("⚠️ Journaled write to " + file.getKey() + " no longer applies: "
+                                + mutation.failureMessage());
+                        notApplied++;
+                    }
+                }
+                List<User> users = index.compact();
+                csvFile.setUsers(users);
+                csvFile.setUserCount(users.size());
+                csvFileRepository.save(csvFile);
+                return notApplied;
+            });
+            if (dropped > 0) {
+                metrics.recordWriteBehindDropped(dropped);
+            }
+            fileCache.invalidate(file.getKey());
+        }
+        journal.release(journal.rotate());
+        System.out.println("✅ Replayed " + entries.size() + " journaled writes to " + byFile.size() + " files");
+    }
+
+    /**
+     * Copy of a working copy to save, users included, so mutations can go on during the save
+     */
+    private static CsvFile snapshot(CsvFile file) {
+        List<User> users = file.userIndex().compact();
+        List<User> copies = new ArrayList<>(users.size());
+        for (User user : users) {
+            copies.add(new User(user.getId(), user.getEmail(), user.getName()));
+        }
+        CsvFile snapshot = new CsvFile(file.getFilename(), copies);
+        snapshot.setId(file.getId());
+        snapshot.setVersion(file.getVersion());
+        snapshot.setUploadedAt(file.getUploadedAt());
+        snapshot.setSizeBytes(file.getSizeBytes());
+        snapshot.setContentId(file.getContentId());
+        return snapshot;
+    }
+
+    private static final class WorkingCopy {
+        // Held for a whole flush, so two flushes of one file never overlap
+        private final ReentrantLock flushLock = new ReentrantLock();
+        // Guards the fields below; never held across a MongoDB call
+        private final ReentrantLock lock = new ReentrantLock();
+        private CsvFile file;
+        // Applied to file, not saved yet
+        private List<UserMutation> pending = new ArrayList<>();
+        // Journal sequence number of the last mutation applied to file
+        private long lastSequence;
+        private boolean evicted;
+
+        private boolean loaded() {
+            lock.lock();
+            try {
+                return file != null;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
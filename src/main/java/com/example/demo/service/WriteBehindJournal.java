@@ -0,0 +1,265 @@
+package com.example.demo.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Append-only log of the mutations held by WriteBehindBuffer, replayed after an unclean shutdown
+ *
+ * The journal is a directory of numbered segments (write-behind-N.journal).
+ * Every mutation is appended to the current segment before it is acknowledged,
+ * with a sequence number that grows across files. Once a file's mutations up
+ * to some sequence number are saved, a saved marker for the file is appended,
+ * and recovery skips that file's entries up to it: a segment may outlive the
+ * save of some of its files (another file failed to save), and its entries
+ * must not be applied again over writes that came after the save.
+ *
+ * Each flush round first starts a new segment; once the round has saved every
+ * buffered file, the segments before it hold nothing unsaved and are deleted.
+ * A record cut short by a crash ends its segment: it was never acknowledged.
+ *
+ * Appends are written through to the OS, which survives a process crash;
+ * with sync they are also forced to disk, which survives power loss.
+ * They are serialized with a ReentrantLock rather than synchronized, so a
+ * virtual thread waiting for the disk does not pin its carrier thread.
+ */
+final class WriteBehindJournal implements Closeable {
+
+    /**
+     * @param sequence number given to the mutation by append
+     */
+    record Entry(String filename, long sequence, UserMutation mutation) {
+    }
+
+    private static final String PREFIX = "write-behind-";
+
+    private static final String SUFFIX = ".journal";
+
+    private static final UserMutation.Type[] TYPES = UserMutation.Type.values();
+
+    // Record type of a saved marker; mutation records use the ordinal of their type
+    private static final int SAVED = 0xFF;
+
+    private final Path directory;
+
+    private final boolean sync;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Last sequence number given out; continues from the recovered segments
+    private long sequence;
+
+    private long segment;
+
+    private FileOutputStream file;
+
+    private DataOutputStream out;
+
+    /**
+     * Open the journal in directory, after the segments a previous run left there
+     */
+    WriteBehindJournal(Path directory, boolean sync) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.sync = sync;
+        List<Path> existing = segments();
+        long last = existing.isEmpty() ? 0 : number(existing.get(existing.size() - 1));
+        open(last + 1);
+    }
+
+    /**
+     * @return the entries left by a previous run and not marked saved, in append order
+     */
+    List<Entry> recover() throws IOException {
+        lock.lock();
+        try {
+            List<Entry> entries = new ArrayList<>();
+            Map<String, Long> saved = new HashMap<>();
+            for (Path path : segments()) {
+                if (number(path) < segment) {
+                    read(path, entries, saved);
+                }
+            }
+            for (Entry entry : entries) {
+                sequence = Math.max(sequence, entry.sequence());
+            }
+            for (long marked : saved.values()) {
+                sequence = Math.max(sequence, marked);
+            }
+            return entries.stream()
+                    .filter(entry -> entry.sequence() > saved.getOrDefault(entry.filename(), 0L))
+                    .toList();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Append a mutation; it survives a crash once this returns
+     *
+     * @return its sequence number, greater than that of every earlier append
+     */
+    long append(String filename, UserMutation mutation) {
+        lock.lock();
+        try {
+            out.writeUTF(filename);
+            out.writeByte(mutation.type().ordinal());
+            out.writeLong(++sequence);
+            out.writeInt(mutation.id());
+            writeNullable(mutation.email());
+            writeNullable(mutation.name());
+            flush();
+            return sequence;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not journal mutation for " + filename, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Mark the mutations of a file up to sequence as saved, or as given up
+     * Recovery skips them, even if their segment is kept for another file
+     */
+    void saved(String filename, long sequence) {
+        lock.lock();
+        try {
+            out.writeUTF(filename);
+            out.writeByte(SAVED);
+            out.writeLong(sequence);
+            flush();
+        } catch (IOException e) {
+            // Without the marker the entries are only replayed again, like after a crash
+            System.out.println("Could not journal save of " + filename + ": " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Start a new segment
+     *
+     * @return its number: every entry appended before is in a lower segment
+     */
+    long rotate() {
+        lock.lock();
+        try {
+            out.close();
+            open(segment + 1);
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not rotate write-behind journal in " + directory, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delete the segments numbered below segment, whose entries are all saved
+     */
+    void release(long segment) {
+        try {
+            for (Path path : segments()) {
+                if (number(path) < segment) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        } catch (IOException e) {
+            // Kept segments are only recovered again, and their saved entries skipped
+            System.out.println("Could not delete write-behind journal segments: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            out.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flush() throws IOException {
+        out.flush();
+        if (sync) {
+            file.getFD().sync();
+        }
+    }
+
+    private void open(long number) throws IOException {
+        segment = number;
+        file = new FileOutputStream(directory.resolve(PREFIX + number + SUFFIX).toFile(), true);
+        out = new DataOutputStream(new BufferedOutputStream(file));
+    }
+
+    private void writeNullable(String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static void read(Path path, List<Entry> entries, Map<String, Long> saved) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (true) {
+                String filename;
+                try {
+                    filename = in.readUTF();
+                } catch (EOFException e) {
+                    return;
+                }
+                try {
+                    int type = in.readUnsignedByte();
+                    long sequence = in.readLong();
+                    if (type == SAVED) {
+                        saved.merge(filename, sequence, Math::max);
+                        continue;
+                    }
+                    int id = in.readInt();
+                    String email = in.readBoolean() ? in.readUTF() : null;
+                    String name = in.readBoolean() ? in.readUTF() : null;
+                    entries.add(new Entry(filename, sequence, new UserMutation(TYPES[type], id, email, name)));
+                } catch (EOFException e) {
+                    System.out.println("⚠️ Ignoring incomplete last record of " + path.getFileName());
+                    return;
+                }
+            }
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(WriteBehindJournal::isSegment)
+                    .sorted(Comparator.comparingLong(WriteBehindJournal::number))
+                    .toList();
+        }
+    }
+
+    private static boolean isSegment(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith(PREFIX) && name.endsWith(SUFFIX)
+                && name.length() > PREFIX.length() + SUFFIX.length()
+                && name.substring(PREFIX.length(), name.length() - SUFFIX.length()).chars().allMatch(Character::isDigit);
+    }
+
+    private static long number(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+}
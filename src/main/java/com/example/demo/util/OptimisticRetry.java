@@ -0,0 +1,65 @@
+package com.example.demo.util;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Bounded retry for read-modify-write operations on versioned documents
+ *
+ * Retries on OptimisticLockingFailureException (another writer saved first)
+ * and DuplicateKeyException (two first-time saves of the same filename),
+ * with a small jittered exponential backoff between attempts.
+ */
+public final class OptimisticRetry {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+    private OptimisticRetry() {}
+
+    public static <T> T run(Supplier<T> action) {
+        return run(DEFAULT_MAX_ATTEMPTS, action);
+    }
+
+    /**
+     * @param maxAttempts total attempts, including the first one
+     * @param action      the whole read-modify-write; re-executed from scratch on conflict
+     * @return the action's result
+     */
+    public static <T> T run(int maxAttempts, Supplier<T> action) {
+        return run(maxAttempts, action, conflict -> { });
+    }
+
+    /**
+     * @param maxAttempts total attempts, including the first one
+     * @param action      the whole read-modify-write; re-executed from scratch on conflict
+     * @param onRetry     called with each conflict that is retried
+     * @return the action's result
+     */
+    public static <T> T run(int maxAttempts, Supplier<T> action, Consumer<RuntimeException> onRetry) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return action.get();
+            } catch (OptimisticLockingFailureException | DuplicateKeyException e) {
+                if (attempt >= maxAttempts) {
+                    throw e;
+                }
+                onRetry.accept(e);
+                backoff(attempt);
+            }
+        }
+    }
+
+    private static void backoff(int attempt) {
+        long maxMillis = 1L << Math.min(attempt, 6);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(maxMillis + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while retrying write", e);
+        }
+    }
+}
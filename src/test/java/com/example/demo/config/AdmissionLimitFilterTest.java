@@ -0,0 +1,100 @@
+package com.example.demo.config;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AdmissionLimitFilterTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private AdmissionLimitFilter filter(int maxConcurrentRequests) {
+        return new AdmissionLimitFilter(
+                new AdmissionProperties(maxConcurrentRequests, Duration.ZERO, Duration.ofMillis(1500)), registry);
+    }
+
+    private static MockHttpServletRequest request(String uri) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", uri);
+        request.setAsyncSupported(true);
+        return request;
+    }
+
+    @Test
+    @DisplayName("Should shed requests beyond the limit with 503 and Retry-After, and admit again once a slot frees")
+    void testRejectsBeyondLimit() throws Exception {
+        AdmissionLimitFilter filter = filter(1);
+        MockHttpServletResponse inner = new MockHttpServletResponse();
+        AtomicInteger handled = new AtomicInteger();
+
+        // The first request is still in its handler when the second arrives
+        FilterChain holding = (req, res) -> {
+            handled.incrementAndGet();
+            filter.doFilter(request("/users/list"), inner, (r, s) -> handled.incrementAndGet());
+        };
+        MockHttpServletResponse outer = new MockHttpServletResponse();
+        filter.doFilter(request("/users/list"), outer, holding);
+
+        assertThat(outer.getStatus()).isEqualTo(200);
+        assertThat(inner.getStatus()).isEqualTo(503);
+        assertThat(inner.getHeader("Retry-After")).isEqualTo("2");
+        assertThat(inner.getContentAsString()).contains("Server busy");
+        assertThat(handled).hasValue(1);
+        assertThat(registry.get("http.admission.rejected").counter().count()).isEqualTo(1.0);
+
+        filter.doFilter(request("/users/list"), new MockHttpServletResponse(), (r, s) -> handled.incrementAndGet());
+        assertThat(handled).hasValue(2);
+        assertThat(registry.get("http.admission.active").gauge().value()).isZero();
+    }
+
+    @Test
+    @DisplayName("Should hold the slot of an async response until it completes")
+    void testAsyncHoldsSlot() throws Exception {
+        AdmissionLimitFilter filter = filter(1);
+        MockHttpServletRequest streaming = request("/users/stream");
+
+        filter.doFilter(streaming, new MockHttpServletResponse(), (req, res) -> req.startAsync());
+        assertThat(registry.get("http.admission.active").gauge().value()).isEqualTo(1.0);
+
+        MockHttpServletResponse refused = new MockHttpServletResponse();
+        filter.doFilter(request("/users/list"), refused, new MockFilterChain());
+        assertThat(refused.getStatus()).isEqualTo(503);
+
+        MockAsyncContext async = (MockAsyncContext) streaming.getAsyncContext();
+        for (AsyncListener listener : async.getListeners()) {
+            listener.onComplete(new AsyncEvent(async));
+        }
+        assertThat(registry.get("http.admission.active").gauge().value()).isZero();
+    }
+
+    @Test
+    @DisplayName("Should never limit actuator endpoints, and admit everything when disabled")
+    void testBypass() throws Exception {
+        AdmissionLimitFilter limited = filter(1);
+        MockHttpServletRequest streaming = request("/users/stream");
+        limited.doFilter(streaming, new MockHttpServletResponse(), (req, res) -> req.startAsync());
+
+        MockHttpServletResponse health = new MockHttpServletResponse();
+        limited.doFilter(request("/actuator/health"), health, new MockFilterChain());
+        assertThat(health.getStatus()).isEqualTo(200);
+
+        AdmissionLimitFilter disabled = new AdmissionLimitFilter(
+                new AdmissionProperties(0, Duration.ZERO, Duration.ofSeconds(1)), new SimpleMeterRegistry());
+        MockHttpServletRequest open = request("/users/stream");
+        disabled.doFilter(open, new MockHttpServletResponse(), (req, res) -> req.startAsync());
+        MockHttpServletResponse admitted = new MockHttpServletResponse();
+        disabled.doFilter(request("/users/list"), admitted, new MockFilterChain());
+        assertThat(admitted.getStatus()).isEqualTo(200);
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.demo.config;
+
+import com.example.demo.model.CsvFile;
+import com.example.demo.repository.CsvFileRepository;
+import com.mongodb.client.result.UpdateResult;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class CsvFileMetadataMigrationTest {
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private CsvFileRepository csvFileRepository;
+
+    @BeforeEach
+    void setUp() {
+        when(mongoTemplate.updateMulti(any(Query.class), any(AggregationUpdate.class), eq(CsvFile.class)))
+                .thenReturn(UpdateResult.acknowledged(0, 0L, null));
+    }
+
+    private CsvFileMetadataMigration migration(boolean keepOriginal, boolean dropInlineContent) {
+        return new CsvFileMetadataMigration(mongoTemplate, csvFileRepository,
+                new StorageProperties(0, keepOriginal), new MigrationProperties(dropInlineContent));
+    }
+
+    @Test
+    @DisplayName("keep-original=false alone leaves inline csvContent in place")
+    void testInlineContentKept_WithoutMigrationFlag() {
+        when(mongoTemplate.count(any(Query.class), eq(CsvFile.class))).thenReturn(3L);
+
+        migration(false, false).backfillMetadata();
+
+        verify(mongoTemplate, never()).updateMulti(any(Query.class), any(Update.class), eq(CsvFile.class));
+        verifyNoInteractions(csvFileRepository);
+    }
+
+    @Test
+    @DisplayName("drop-inline-content strips inline csvContent when originals are not kept")
+    void testInlineContentDropped_WithMigrationFlag() {
+        when(mongoTemplate.count(any(Query.class), eq(CsvFile.class))).thenReturn(3L);
+        when(mongoTemplate.updateMulti(any(Query.class), any(Update.class), eq(CsvFile.class)))
+                .thenReturn(UpdateResult.acknowledged(3, 3L, null));
+
+        migration(false, true).backfillMetadata();
+
+        verify(mongoTemplate).updateMulti(any(Query.class), eq(new Update().unset("csvContent")), eq(CsvFile.class));
+    }
+
+    @Test
+    @DisplayName("Nothing to strip: no update is issued even with the migration flag")
+    void testNoInlineContent_NoUpdate() {
+        when(mongoTemplate.count(any(Query.class), eq(CsvFile.class))).thenReturn(0L);
+
+        migration(false, true).backfillMetadata();
+
+        verify(mongoTemplate, never()).updateMulti(any(Query.class), any(Update.class), eq(CsvFile.class));
+    }
+}
@@ -0,0 +1,197 @@
+package com.example.demo.config;
+
+import com.example.demo.config.MongoIndexReconciler.Action;
+import com.example.demo.config.MongoIndexReconciler.Change;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentMatcher;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.PartialIndexFilter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+@ExtendWith(MockitoExtension.class)
+class MongoIndexReconcilerTest {
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private IndexOperations indexOps;
+
+    private MongoIndexReconciler reconciler;
+
+    @BeforeEach
+    void setUp() {
+        when(mongoTemplate.indexOps("csv_files")).thenReturn(indexOps);
+        reconciler = new MongoIndexReconciler(mongoTemplate);
+    }
+
+    /**
+     * An entry as returned by listIndexes
+     */
+    private static IndexInfo existing(String name, Document keys, boolean unique) {
+        Document info = new Document("v", 2).append("key", keys).append("name", name);
+        if (unique) {
+            info.append("unique", true);
+        }
+        return IndexInfo.indexInfoOf(info);
+    }
+
+    private static IndexInfo idIndex() {
+        return existing("_id_", new Document("_id", 1), false);
+    }
+
+    @Test
+    @DisplayName("Should leave an up-to-date collection untouched and report undeclared indexes")
+    void testReconcile_UpToDate() {
+        when(indexOps.getIndexInfo()).thenReturn(List.of(
+                idIndex(),
+                existing("idx_filename_exact", new Document("filename", 1), true),
+                existing("idx_filename_uploadedAt", new Document("filename", 1).append("uploadedAt", -1), false),
+                existing("manual_idx", new Document("sizeBytes", 1), false)));
+
+        List<Change> changes = reconciler.reconcile("csv_files", List.of(
+                new Index().on("filename", Sort.Direction.ASC).unique().named("idx_filename_exact"),
+                new Index().on("filename", Sort.Direction.ASC).on("uploadedAt", Sort.Direction.DESC)
+                        .named("idx_filename_uploadedAt")));
+
+        assertThat(changes).extracting(Change::name, Change::action).containsExactly(
+                tuple("idx_filename_exact", Action.UNCHANGED),
+                tuple("idx_filename_uploadedAt", Action.UNCHANGED),
+                tuple("manual_idx", Action.EXTRA));
+        verify(indexOps, never()).createIndex(any());
+        verify(indexOps, never()).dropIndex(any());
+    }
+
+    @Test
+    @DisplayName("Should create missing indexes and rebuild only those whose spec changed")
+    void testReconcile_CreatesAndRebuilds() {
+        when(indexOps.getIndexInfo()).thenReturn(List.of(
+                idIndex(),
+                // Same name, but not unique
+                existing("idx_filename_exact", new Document("filename", 1), false),
+                // Same name, but key order reversed
+                existing("idx_filename_uploadedAt", new Document("uploadedAt", -1).append("filename", 1), false)));
+
+        Index unique = new Index().on("filename", Sort.Direction.ASC).unique().named("idx_filename_exact");
+        Index compound = new Index().on("filename", Sort.Direction.ASC).on("uploadedAt", Sort.Direction.DESC)
+                .named("idx_filename_uploadedAt");
+        Index missing = new Index().on("lastModified", Sort.Direction.DESC).named("idx_lastModified_desc");
+
+        List<Change> changes = reconciler.reconcile("csv_files", List.of(unique, compound, missing));
+
+        assertThat(changes).extracting(Change::action)
+                .containsExactly(Action.REBUILT, Action.REBUILT, Action.CREATED);
+        assertThat(changes.get(0).detail()).isEqualTo("{\"filename\": 1} -> {\"filename\": 1} unique");
+        // Each old index is covered by a stand-in until the declared one is built
+        InOrder order = inOrder(indexOps);
+        order.verify(indexOps).createIndex(argThat(standIn("idx_filename_exact_rebuild",
+                new Document("filename", 1).append("_id", 1))));
+        order.verify(indexOps).dropIndex("idx_filename_exact");
+        order.verify(indexOps).createIndex(unique);
+        order.verify(indexOps).dropIndex("idx_filename_exact_rebuild");
+        order.verify(indexOps).createIndex(argThat(standIn("idx_filename_uploadedAt_rebuild",
+                new Document("uploadedAt", -1).append("filename", 1).append("_id", 1))));
+        order.verify(indexOps).dropIndex("idx_filename_uploadedAt");
+        order.verify(indexOps).createIndex(compound);
+        order.verify(indexOps).dropIndex("idx_filename_uploadedAt_rebuild");
+        order.verify(indexOps).createIndex(missing);
+    }
+
+    private static ArgumentMatcher<Index> standIn(String name, Document keys) {
+        return index -> index != null && name.equals(index.getIndexOptions().getString("name"))
+                && new ArrayList<>(index.getIndexKeys().entrySet()).equals(new ArrayList<>(keys.entrySet()))
+                && !index.getIndexOptions().containsKey("unique");
+    }
+
+    @Test
+    @DisplayName("Should change only the TTL of an index in place")
+    void testReconcile_TtlChangedInPlace() {
+        IndexInfo ttl = IndexInfo.indexInfoOf(new Document("v", 2).append("key", new Document("uploadedAt", 1))
+                .append("name", "idx_ttl_cleanup").append("expireAfterSeconds", 3600));
+        when(indexOps.getIndexInfo()).thenReturn(List.of(idIndex(), ttl));
+
+        List<Change> changes = reconciler.reconcile("csv_files", List.of(
+                new Index().on("uploadedAt", Sort.Direction.ASC).expire(7200).named("idx_ttl_cleanup")));
+
+        assertThat(changes).extracting(Change::action).containsExactly(Action.MODIFIED);
+        verify(mongoTemplate).executeCommand(new Document("collMod", "csv_files").append("index",
+                new Document("name", "idx_ttl_cleanup").append("expireAfterSeconds", 7200L)));
+        verify(indexOps, never()).createIndex(any());
+        verify(indexOps, never()).dropIndex(any());
+    }
+
+    @Test
+    @DisplayName("Should drop the stand-in left by an interrupted rebuild")
+    void testReconcile_DropsLeftoverStandIn() {
+        when(indexOps.getIndexInfo()).thenReturn(List.of(
+                idIndex(),
+                existing("idx_filename_exact", new Document("filename", 1), true),
+                existing("idx_filename_exact_rebuild", new Document("filename", 1).append("_id", 1), false)));
+
+        List<Change> changes = reconciler.reconcile("csv_files", List.of(
+                new Index().on("filename", Sort.Direction.ASC).unique().named("idx_filename_exact")));
+
+        assertThat(changes).extracting(Change::name, Change::action).containsExactly(
+                tuple("idx_filename_exact", Action.UNCHANGED),
+                tuple("idx_filename_exact_rebuild", Action.EXTRA));
+        verify(indexOps).dropIndex("idx_filename_exact_rebuild");
+        verify(indexOps, never()).createIndex(any());
+    }
+
+    @Test
+    @DisplayName("Should accept an index with the declared spec under another name")
+    void testReconcile_EquivalentUnderOtherName() {
+        when(indexOps.getIndexInfo()).thenReturn(List.of(
+                idIndex(),
+                existing("filename_1", new Document("filename", 1), true)));
+
+        List<Change> changes = reconciler.reconcile("csv_files", List.of(
+                new Index().on("filename", Sort.Direction.ASC).unique().named("idx_filename_exact")));
+
+        assertThat(changes).singleElement().satisfies(change -> {
+            assertThat(change.action()).isEqualTo(Action.UNCHANGED);
+            assertThat(change.detail()).endsWith("(exists as filename_1)");
+        });
+        verifyNoMoreInteractions(indexOps);
+    }
+
+    @Test
+    @DisplayName("Should rebuild an index whose partial filter changed")
+    void testReconcile_PartialFilter() {
+        IndexInfo plain = existing("idx_bucket_file_user", new Document("fileId", 1).append("users._id", 1), true);
+        when(indexOps.getIndexInfo()).thenReturn(List.of(idIndex(), plain));
+
+        Index partial = new Index().on("fileId", Sort.Direction.ASC).on("users._id", Sort.Direction.ASC).unique()
+                .partial(PartialIndexFilter.of(where("count").gt(0))).named("idx_bucket_file_user");
+
+        assertThat(MongoIndexReconciler.matches(plain, partial)).isFalse();
+        assertThat(reconciler.reconcile("csv_files", List.of(partial))).singleElement().satisfies(change -> {
+            assertThat(change.action()).isEqualTo(Action.REBUILT);
+            assertThat(change.detail()).endsWith("unique where {\"count\": {\"$gt\": 0}}");
+        });
+
+        IndexInfo rebuilt = IndexInfo.indexInfoOf(new Document("v", 2)
+                .append("key", new Document("fileId", 1).append("users._id", 1)).append("name", "idx_bucket_file_user")
+                .append("unique", true).append("partialFilterExpression", new Document("count", new Document("$gt", 0))));
+        assertThat(MongoIndexReconciler.matches(rebuilt, partial)).isTrue();
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.demo.model;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UserIdIndexTest {
+
+    private static List<User> users(int... ids) {
+        List<User> users = new ArrayList<>();
+        for (int id : ids) {
+            users.add(new User(id, id + "@x.com", "U" + id));
+        }
+        return users;
+    }
+
+    @Test
+    @DisplayName("Should find users by id and refuse duplicate adds")
+    void testGetAndAdd() {
+        UserIdIndex index = UserIdIndex.of(users(1, 2, 3));
+
+        assertThat(index.get(2).getEmail()).isEqualTo("2@x.com");
+        assertThat(index.get(4)).isNull();
+
+        assertThat(index.add(new User(4, "4@x.com", "U4"))).isTrue();
+        assertThat(index.add(new User(2, "other@x.com", "Other"))).isFalse();
+        assertThat(index.get(4).getName()).isEqualTo("U4");
+        assertThat(index.size()).isEqualTo(4);
+    }
+
+    @Test
+    @DisplayName("compact() should drop removed users in order and keep lookups valid")
+    void testRemoveAndCompact() {
+        List<User> list = users(1, 2, 3, 4, 5);
+        UserIdIndex index = UserIdIndex.of(list);
+
+        assertThat(index.remove(2).getId()).isEqualTo(2);
+        assertThat(index.remove(2)).isNull();
+        assertThat(index.remove(4)).isNotNull();
+        assertThat(index.size()).isEqualTo(3);
+
+        assertThat(index.compact()).isSameAs(list).extracting(User::getId).containsExactly(1, 3, 5);
+
+        assertThat(index.get(5).getId()).isEqualTo(5);
+        assertThat(index.add(new User(2, "2@x.com", "U2"))).isTrue();
+        assertThat(index.remove(5)).isNotNull();
+        assertThat(index.compact()).extracting(User::getId).containsExactly(1, 3, 2);
+    }
+
+    @Test
+    @DisplayName("Legacy duplicate ids: the first occurrence is the indexed one")
+    void testFirstOccurrenceWins() {
+        List<User> list = users(1, 2, 1);
+        list.get(2).setName("Second");
+        UserIdIndex index = UserIdIndex.of(list);
+
+        assertThat(index.get(1).getName()).isEqualTo("U1");
+
+        index.remove(2);
+        index.compact();
+        assertThat(index.get(1).getName()).isEqualTo("U1");
+    }
+
+    @Test
+    @DisplayName("CsvFile keeps its index across mutations and drops it when users are replaced")
+    void testCsvFileIndexLifecycle() {
+        CsvFile csvFile = new CsvFile("f.csv", users(1, 2));
+
+        UserIdIndex index = csvFile.userIndex();
+        index.remove(1);
+        csvFile.setUsers(index.compact());
+        assertThat(csvFile.userIndex()).isSameAs(index);
+
+        csvFile.setUsers(users(7));
+        assertThat(csvFile.userIndex()).isNotSameAs(index);
+        assertThat(csvFile.userIndex().contains(7)).isTrue();
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.demo.parser;
+
+import com.example.demo.exception.CsvParseException;
+import com.example.demo.model.User;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ParallelUserRecordParserTest {
+
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @TempDir
+    Path tempDir;
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdownNow();
+    }
+
+    private Path write(String content) throws IOException {
+        return Files.writeString(tempDir.resolve("users.csv"), content, StandardCharsets.UTF_8);
+    }
+
+    private static List<String> parseParallel(ParallelUserRecordParser parser, Path file) throws IOException {
+        List<String> parsed = new ArrayList<>();
+        long count = parser.parseWithLineNumbers(file, (user, line) -> parsed.add(describe(user, line)));
+        assertThat(count).isEqualTo(parsed.size());
+        return parsed;
+    }
+
+    private static List<String> parseSequential(String content) throws IOException {
+        List<String> parsed = new ArrayList<>();
+        new UserRecordParser().parseWithLineNumbers(new StringReader(content),
+                (user, line) -> parsed.add(describe(user, line)));
+        return parsed;
+    }
+
+    private static String describe(User user, long line) {
+        return line + ":" + user.getId() + "," + user.getEmail() + "," + user.getName();
+    }
+
+    @Test
+    @DisplayName("Should match the sequential parser for any chunk size, in file order")
+    void testParse_MatchesSequential() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (int i = 1; i <= 500; i++) {
+            content.append("id=").append(i).append(",email=u").append(i).append("@ex.com,name=Zoë ").append(i);
+            // Mix terminators, blank lines and multi-byte characters so chunk edges land everywhere
+            content.append(i % 7 == 0 ? "\r\n" : i % 11 == 0 ? "\n\n" : i % 13 == 0 ? "\r" : "\n");
+        }
+        content.append("id=501,name=last line without terminator €");
+        Path file = write(content.toString());
+        List<String> expected = parseSequential(content.toString());
+
+        for (int chunkSize : new int[]{1, 7, 64, 1000, 1 << 20}) {
+            ParallelUserRecordParser parser = new ParallelUserRecordParser(0, chunkSize, pool);
+            assertThat(parseParallel(parser, file)).as("chunk size %d", chunkSize).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    @DisplayName("Should report a malformed line with its line number in the whole file")
+    void testParse_MalformedLineNumber() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (int i = 1; i <= 200; i++) {
+            content.append(i == 150 ? "id=oops,name=X" : "id=" + i).append(i % 3 == 0 ? "\n\n" : "\n");
+        }
+        Path file = write(content.toString());
+        List<User> delivered = new ArrayList<>();
+
+        ParallelUserRecordParser parser = new ParallelUserRecordParser(0, 32, pool);
+
+        assertThatThrownBy(() -> parser.parseWithLineNumbers(file, (user, line) -> delivered.add(user)))
+                .isInstanceOf(CsvParseException.class)
+                .hasMessage("Invalid CSV format in line 199: id=oops,name=X")
+                .extracting(e -> ((CsvParseException) e).getLineNumber())
+                .isEqualTo(199L);
+        // Every user before the bad line reached the sink, in order
+        assertThat(delivered).hasSize(149);
+        assertThat(delivered.get(148).getId()).isEqualTo(149);
+    }
+
+    @Test
+    @DisplayName("Should stop at the first error the sink throws")
+    void testParse_SinkFailure() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (int i = 1; i <= 1000; i++) {
+            content.append("id=").append(i).append('\n');
+        }
+        Path file = write(content.toString());
+        ParallelUserRecordParser parser = new ParallelUserRecordParser(0, 100, pool);
+
+        assertThatThrownBy(() -> parser.parseWithLineNumbers(file, (user, line) -> {
+            if (user.getId() == 500) {
+                throw new IllegalStateException("stop at " + line);
+            }
+        })).isInstanceOf(IllegalStateException.class).hasMessage("stop at 500");
+    }
+
+    @Test
+    @DisplayName("Should parse small files and single-thread pools sequentially")
+    void testIsParallel() throws IOException {
+        ParallelUserRecordParser parser = new ParallelUserRecordParser(1000, 100, pool);
+
+        assertThat(parser.isParallel(999)).isFalse();
+        assertThat(parser.isParallel(1000)).isTrue();
+        assertThat(new ParallelUserRecordParser(0, 100, new ForkJoinPool(1)).isParallel(1 << 20)).isFalse();
+        // The sequential path gives the same result
+        Path file = write("id=1,name=A\r\n\r\nid=2,name=B");
+        assertThat(parseParallel(parser, file)).containsExactly("1:1,null,A", "3:2,null,B");
+    }
+
+    @Test
+    @DisplayName("Should handle an empty file")
+    void testParse_Empty() throws IOException {
+        assertThat(parseParallel(new ParallelUserRecordParser(0, 16, pool), write(""))).isEmpty();
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.demo.parser;
+
+import com.example.demo.model.User;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Speedup of ParallelUserRecordParser over the sequential UserRecordParser on a generated
+ * 5M-line file, parsed from disk with the same sink.
+ * Run with: mvn test -Dtest=ParallelUserRecordParserThroughputTest -Dbenchmark=true
+ */
+@Tag("benchmark")
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class ParallelUserRecordParserThroughputTest {
+
+    private static final int LINES = 5_000_000;
+    private static final int ROUNDS = 5;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    @DisplayName("Parallel chunked parsing vs sequential parsing on 5M lines")
+    void compareThroughput() throws IOException {
+        Path file = tempDir.resolve("users-5m.csv");
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 1; i <= LINES; i++) {
+                writer.write("id=" + i + ",email=user" + i + "@example.com,name=User Number " + i + "\n");
+            }
+        }
+        long bytes = Files.size(file);
+        int cores = Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(cores, 2));
+        // A threshold above the file size forces the sequential path
+        ParallelUserRecordParser sequential = new ParallelUserRecordParser(Long.MAX_VALUE, 1 << 20, pool);
+        ParallelUserRecordParser parallel = new ParallelUserRecordParser(0, 1 << 20, pool);
+
+        for (int i = 0; i < 2; i++) {
+            parse(sequential, file);
+            parse(parallel, file);
+        }
+
+        long sequentialNanos = Long.MAX_VALUE;
+        long parallelNanos = Long.MAX_VALUE;
+        long sequentialChecksum = 0;
+        long parallelChecksum = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            sequentialChecksum = parse(sequential, file);
+            sequentialNanos = Math.min(sequentialNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            parallelChecksum = parse(parallel, file);
+            parallelNanos = Math.min(parallelNanos, System.nanoTime() - start);
+        }
+
+        pool.shutdown();
+        assertThat(parallelChecksum).isEqualTo(sequentialChecksum);
+
+        System.out.printf("%n=== Parallel parser: %,d lines, %,d bytes, %d cores (best of %d) ===%n",
+                LINES, bytes, cores, ROUNDS);
+        report("sequential", sequentialNanos, bytes);
+        report("parallel (1MB chunks)", parallelNanos, bytes);
+        System.out.printf("Speedup: %.2fx%n%n", (double) sequentialNanos / parallelNanos);
+    }
+
+    private static void report(String label, long nanos, long bytes) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%-22s %8.1f ms  %,12.0f lines/s  %8.1f MB/s%n",
+                label, nanos / 1e6, LINES / seconds, bytes / seconds / (1024 * 1024));
+    }
+
+    private static long parse(ParallelUserRecordParser parser, Path file) throws IOException {
+        // Order-sensitive checksum, so a merge out of file order would not match
+        long[] checksum = new long[1];
+        parser.parseWithLineNumbers(file, (user, line) -> checksum[0] = checksum[0] * 31 + checksum(user) + line);
+        return checksum[0];
+    }
+
+    private static long checksum(User user) {
+        return user.getId() + user.getEmail().length() + user.getName().length();
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.demo.parser;
+
+import com.example.demo.exception.CsvParseException;
+import com.example.demo.model.User;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class UserRecordParserTest {
+
+    private final UserRecordParser parser = new UserRecordParser();
+
+    private List<User> parse(String content) throws IOException {
+        return parser.parseAll(new StringReader(content));
+    }
+
+    @Test
+    @DisplayName("Should parse id, email and name from each line")
+    void testParse_ValidLines() throws IOException {
+        List<User> users = parse("id=1,email=a@a.com,name=Alice\nid=2,email=b@b.com,name=Bob\n");
+
+        assertThat(users).hasSize(2);
+        assertThat(users).extracting(User::getId).containsExactly(1, 2);
+        assertThat(users).extracting(User::getEmail).containsExactly("a@a.com", "b@b.com");
+        assertThat(users).extracting(User::getName).containsExactly("Alice", "Bob");
+    }
+
+    @Test
+    @DisplayName("Should accept \\n, \\r and \\r\\n line terminators")
+    void testParse_LineTerminators() throws IOException {
+        List<User> users = parse("id=1,name=A\r\nid=2,name=B\rid=3,name=C\nid=4,name=D");
+
+        assertThat(users).extracting(User::getId).containsExactly(1, 2, 3, 4);
+        assertThat(users).extracting(User::getName).containsExactly("A", "B", "C", "D");
+    }
+
+    @Test
+    @DisplayName("Should trim keys and values, ignore unknown keys and keep the last duplicate")
+    void testParse_TrimAndIgnore() throws IOException {
+        User user = parse("  id = 7 , role=admin, email= x@x.com ,junk,name=First,name= Last ").get(0);
+
+        assertThat(user.getId()).isEqualTo(7);
+        assertThat(user.getEmail()).isEqualTo("x@x.com");
+        assertThat(user.getName()).isEqualTo("Last");
+    }
+
+    @Test
+    @DisplayName("Should leave missing email and name as null")
+    void testParse_MissingOptionalFields() throws IOException {
+        User user = parse("id=-12").get(0);
+
+        assertThat(user.getId()).isEqualTo(-12);
+        assertThat(user.getEmail()).isNull();
+        assertThat(user.getName()).isNull();
+    }
+
+    @Test
+    @DisplayName("Should handle lines longer than the buffer and terminators split across reads")
+    void testParse_SmallBuffer() throws IOException {
+        UserRecordParser tiny = new UserRecordParser(3);
+        String longName = "x".repeat(100);
+
+        List<User> users = tiny.parseAll(new StringReader(
+                "id=1,name=" + longName + "\r\n\r\nid=2,name=B\r\n"));
+
+        assertThat(users).extracting(User::getId).containsExactly(1, 2);
+        assertThat(users.get(0).getName()).isEqualTo(longName);
+    }
+
+    @Test
+    @DisplayName("Should report the line number of a malformed line")
+    void testParse_MalformedLineNumber() {
+        assertThatThrownBy(() -> parse("id=1,name=A\n\nid=abc,name=B\n"))
+                .isInstanceOf(CsvParseException.class)
+                .hasMessage("Invalid CSV format in line 3: id=abc,name=B")
+                .extracting(e -> ((CsvParseException) e).getLineNumber())
+                .isEqualTo(3L);
+    }
+
+    @Test
+    @DisplayName("Should reject missing and overflowing ids")
+    void testParse_InvalidIds() {
+        assertThatThrownBy(() -> UserRecordParser.parseLine("email=a@a.com,name=A", 1))
+                .isInstanceOf(CsvParseException.class);
+        assertThatThrownBy(() -> UserRecordParser.parseLine("id=2147483648", 1))
+                .isInstanceOf(CsvParseException.class);
+        assertThatThrownBy(() -> UserRecordParser.parseLine("id=-", 1))
+                .isInstanceOf(CsvParseException.class);
+
+        assertThat(UserRecordParser.parseLine("id=-2147483648", 1).getId()).isEqualTo(Integer.MIN_VALUE);
+        assertThat(UserRecordParser.parseLine("id=+2147483647", 1).getId()).isEqualTo(Integer.MAX_VALUE);
+    }
+}
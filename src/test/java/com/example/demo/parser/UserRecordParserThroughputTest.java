@@ -0,0 +1,130 @@
+package com.example.demo.parser;
+
+import com.example.demo.model.User;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Throughput comparison between the original split-based line parser and UserRecordParser
+ * on a generated 1M-line file. Run with: mvn test -Dtest=UserRecordParserThroughputTest -Dbenchmark=true
+ */
+@Tag("benchmark")
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class UserRecordParserThroughputTest {
+
+    private static final int LINES = 1_000_000;
+    private static final int ROUNDS = 5;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    @DisplayName("UserRecordParser vs split-based parsing on 1M lines")
+    void compareThroughput() throws IOException {
+        Path file = tempDir.resolve("users-1m.csv");
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 1; i <= LINES; i++) {
+                writer.write("id=" + i + ",email=user" + i + "@example.com,name=User Number " + i + "\n");
+            }
+        }
+        long bytes = Files.size(file);
+        UserRecordParser parser = new UserRecordParser();
+
+        // Warm up both paths before measuring
+        for (int i = 0; i < 2; i++) {
+            parseLegacy(file);
+            parseStreaming(parser, file);
+        }
+
+        long legacyNanos = Long.MAX_VALUE;
+        long streamingNanos = Long.MAX_VALUE;
+        long legacyChecksum = 0;
+        long streamingChecksum = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            legacyChecksum = parseLegacy(file);
+            legacyNanos = Math.min(legacyNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            streamingChecksum = parseStreaming(parser, file);
+            streamingNanos = Math.min(streamingNanos, System.nanoTime() - start);
+        }
+
+        assertThat(streamingChecksum).isEqualTo(legacyChecksum);
+
+        System.out.printf("%n=== Parser throughput: %,d lines, %,d bytes (best of %d) ===%n", LINES, bytes, ROUNDS);
+        report("split + HashMap (legacy)", legacyNanos, bytes);
+        report("UserRecordParser", streamingNanos, bytes);
+        System.out.printf("Speedup: %.2fx%n%n", (double) legacyNanos / streamingNanos);
+    }
+
+    private static void report(String label, long nanos, long bytes) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%-26s %8.1f ms  %,12.0f lines/s  %8.1f MB/s%n",
+                label, nanos / 1e6, LINES / seconds, bytes / seconds / (1024 * 1024));
+    }
+
+    private static long parseStreaming(UserRecordParser parser, Path file) throws IOException {
+        long[] checksum = new long[1];
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            parser.parse(reader, user -> checksum[0] += checksum(user));
+        }
+        return checksum[0];
+    }
+
+    private static long parseLegacy(Path file) throws IOException {
+        long checksum = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    checksum += checksum(legacyParseLineToUser(line));
+                }
+            }
+        }
+        return checksum;
+    }
+
+    private static long checksum(User user) {
+        return user.getId() + user.getEmail().length() + user.getName().length();
+    }
+
+    /**
+     * The original UserService.parseLineToUser implementation, kept as the baseline
+     */
+    private static User legacyParseLineToUser(String line) {
+        Map<String, String> map = new HashMap<>();
+
+        String[] pairs = line.split(",");
+        for (String pair : pairs) {
+            String[] kv = pair.split("=", 2);
+            if (kv.length == 2) {
+                map.put(kv[0].trim(), kv[1].trim());
+            }
+        }
+
+        try {
+            return new User(
+                    Integer.parseInt(map.get("id")),
+                    map.get("email"),
+                    map.get("name"));
+        } catch (Exception e) {
+            throw new RuntimeException("Invalid CSV format in line: " + line);
+        }
+    }
+}
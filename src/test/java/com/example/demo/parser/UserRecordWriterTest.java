@@ -0,0 +1,73 @@
+package com.example.demo.parser;
+
+import com.example.demo.model.User;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class UserRecordWriterTest {
+
+    private static String write(UserRecordWriter.Format format, List<User> users) throws IOException {
+        StringWriter out = new StringWriter();
+        new UserRecordWriter(out, format).writeAll(users.iterator());
+        return out.toString();
+    }
+
+    @Test
+    @DisplayName("Original format should match the upload format and parse back to the same users")
+    void testOriginalRoundTrip() throws IOException {
+        List<User> users = List.of(new User(1, "a@a.com", "Alice"), new User(-7, "ü@x.de", "Zoë"));
+
+        String csv = write(UserRecordWriter.Format.ORIGINAL, users);
+
+        assertThat(csv).isEqualTo("id=1,email=a@a.com,name=Alice\nid=-7,email=ü@x.de,name=Zoë\n");
+        assertThat(new UserRecordParser().parseAll(new StringReader(csv)))
+                .usingRecursiveFieldByFieldElementComparator()
+                .containsExactlyElementsOf(users);
+    }
+
+    @Test
+    @DisplayName("Original format should write null values as empty")
+    void testOriginalNulls() throws IOException {
+        assertThat(write(UserRecordWriter.Format.ORIGINAL, List.of(new User(3, null, null))))
+                .isEqualTo("id=3,email=,name=\n");
+    }
+
+    @Test
+    @DisplayName("RFC 4180 should write a header, CRLF endings and quote only when needed")
+    void testRfc4180() throws IOException {
+        List<User> users = List.of(
+                new User(1, "a@a.com", "Plain"),
+                new User(2, "b@b.com", "Doe, \"JD\" John"),
+                new User(3, null, "two\nlines"));
+
+        assertThat(write(UserRecordWriter.Format.RFC4180, users)).isEqualTo(
+                "id,email,name\r\n"
+                        + "1,a@a.com,Plain\r\n"
+                        + "2,b@b.com,\"Doe, \"\"JD\"\" John\"\r\n"
+                        + "3,,\"two\nlines\"\r\n");
+    }
+
+    @Test
+    @DisplayName("RFC 4180 export of an empty file is just the header")
+    void testRfc4180Empty() throws IOException {
+        assertThat(write(UserRecordWriter.Format.RFC4180, List.of())).isEqualTo("id,email,name\r\n");
+    }
+
+    @Test
+    @DisplayName("Format names should be case-insensitive and unknown ones rejected")
+    void testFromParam() {
+        assertThat(UserRecordWriter.Format.fromParam("RFC4180")).isEqualTo(UserRecordWriter.Format.RFC4180);
+        assertThat(UserRecordWriter.Format.fromParam("original")).isEqualTo(UserRecordWriter.Format.ORIGINAL);
+        assertThatThrownBy(() -> UserRecordWriter.Format.fromParam("xlsx"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("Unknown export format");
+    }
+}
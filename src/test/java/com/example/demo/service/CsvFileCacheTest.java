@@ -0,0 +1,99 @@
+package com.example.demo.service;
+
+import com.example.demo.model.CsvFileInfo;
+import com.example.demo.repository.CsvFileRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class CsvFileCacheTest {
+
+    @Mock
+    private CsvFileRepository csvFileRepository;
+
+    private CsvFileCache cache;
+
+    @BeforeEach
+    void setUp() {
+        cache = new CsvFileCache(csvFileRepository, 64L << 20, Duration.ofMinutes(10), Runnable::run);
+    }
+
+    private static CsvFileInfo info(String filename, int users) {
+        return new CsvFileInfo("id-" + filename, filename, users, users * 30L, 0,
+                LocalDateTime.now(), LocalDateTime.now(), "hash-" + filename, null);
+    }
+
+    @Test
+    @DisplayName("Should load metadata once and serve repeated reads from memory")
+    void testReadThrough() {
+        CsvFileInfo info = info("a.csv", 2);
+        when(csvFileRepository.findInfoByFilename("a.csv")).thenReturn(Optional.of(info));
+
+        assertThat(cache.findInfo("a.csv")).containsSame(info);
+        assertThat(cache.findInfo("a.csv")).containsSame(info);
+
+        verify(csvFileRepository, times(1)).findInfoByFilename("a.csv");
+        verify(csvFileRepository, never()).findByFilename(any());
+        Map<String, Object> stats = cache.stats();
+        assertThat(stats).containsEntry("hits", 1L).containsEntry("misses", 1L).containsEntry("entries", 1L);
+    }
+
+    @Test
+    @DisplayName("Should not cache missing files")
+    void testMissNotCached() {
+        when(csvFileRepository.findInfoByFilename("late.csv"))
+                .thenReturn(Optional.empty())
+                .thenReturn(Optional.of(info("late.csv", 1)));
+
+        assertThat(cache.findInfo("late.csv")).isEmpty();
+        assertThat(cache.findInfo("late.csv")).isPresent();
+    }
+
+    @Test
+    @DisplayName("Should reload after invalidate and serve put() values without loading")
+    void testInvalidateAndPut() {
+        when(csvFileRepository.findInfoByFilename("a.csv")).thenReturn(Optional.of(info("a.csv", 1)));
+
+        cache.findInfo("a.csv");
+        cache.invalidate("a.csv");
+        cache.findInfo("a.csv");
+        verify(csvFileRepository, times(2)).findInfoByFilename("a.csv");
+
+        CsvFileInfo saved = info("b.csv", 3);
+        cache.put(saved);
+        assertThat(cache.findInfo("b.csv")).containsSame(saved);
+        verify(csvFileRepository, never()).findInfoByFilename("b.csv");
+    }
+
+    @Test
+    @DisplayName("Should weigh entries independently of the file's user count and evict by total weight")
+    void testEvictionByWeight() {
+        int one = CsvFileCache.weigh("a.csv", info("a.csv", 1));
+        assertThat(CsvFileCache.weigh("a.csv", info("a.csv", 1_000_000))).isEqualTo(one);
+
+        // Room for about ten entries
+        cache = new CsvFileCache(csvFileRepository, 10L * one, Duration.ofMinutes(10), Runnable::run);
+        for (int i = 0; i < 20; i++) {
+            cache.put(info("f" + i + ".csv", i));
+        }
+        cache.cleanUp();
+
+        Map<String, Object> stats = cache.stats();
+        assertThat((Long) stats.get("evictions")).isPositive();
+        assertThat((Long) stats.get("evictedBytes")).isPositive();
+        assertThat(cache.weightedSize()).isLessThanOrEqualTo(10L * one);
+    }
+}
@@ -0,0 +1,301 @@
+package com.example.demo.service;
+
+import com.example.demo.config.ParserProperties;
+import com.example.demo.config.StorageProperties;
+import com.example.demo.config.WriteProperties;
+import com.example.demo.model.CsvFile;
+import com.example.demo.model.User;
+import com.example.demo.repository.CsvFileRepository;
+import com.example.demo.util.OptimisticRetry;
+import com.mongodb.client.result.UpdateResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Fires thousands of concurrent creates at one file against an in-memory
+ * stand-in for the csv_files document that enforces @Version semantics.
+ */
+class FileWriteCoalescerConcurrencyTest {
+
+    private static final String FILENAME = "hot.csv";
+    private static final int THREADS = 32;
+    private static final int CREATES = 4000;
+
+    // Simulated network + server time of one MongoDB round trip
+    private static final long ROUND_TRIP_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private FakeDocument document;
+    private CsvFileRepository csvFileRepository;
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final UserMetrics metrics = new UserMetrics(registry);
+
+    @BeforeEach
+    void setUp() {
+        document = new FakeDocument();
+        csvFileRepository = mock(CsvFileRepository.class);
+
+        when(csvFileRepository.findByFilename(FILENAME)).thenAnswer(invocation -> Optional.of(document.load()));
+        when(csvFileRepository.save(any(CsvFile.class))).thenAnswer(invocation -> document.save(invocation.getArgument(0)));
+        when(csvFileRepository.pushUser(anyString(), any(User.class)))
+                .thenAnswer(invocation -> document.push(invocation.getArgument(1)));
+    }
+
+    @Test
+    @DisplayName("Concurrent creates on one file through UserService are never lost")
+    void testConcurrentCreates_NoneLost() throws Exception {
+        UserService userService = new UserService(csvFileRepository, new StorageProperties(0, false),
+                new ParserProperties(DataSize.ofMegabytes(4), DataSize.ofMegabytes(1)),
+                new FileWriteCoalescer(csvFileRepository, metrics),
+                new CsvFileCache(csvFileRepository, 64L << 20, Duration.ofMinutes(10), Runnable::run), metrics);
+
+        long nanos = runConcurrently(id -> userService.createUser(FILENAME, id, "u" + id + "@x.com", "U" + id));
+
+        assertThat(document.users).hasSize(CREATES);
+        assertThat(document.users).extracting(User::getId).doesNotHaveDuplicates();
+        assertThat(document.version).isEqualTo(document.atomicWrites.get() + document.saves.get());
+
+        report("coalesced (UserService)", nanos);
+    }
+
+    @Test
+    @DisplayName("A mutation stuck behind a slow write fails fast, unapplied, without holding up other files")
+    void testLockTimeout_FailsFastPerFile() throws Exception {
+        CountDownLatch writeStarted = new CountDownLatch(1);
+        CountDownLatch releaseWrite = new CountDownLatch(1);
+        when(csvFileRepository.pushUser(eq("slow.csv"), any(User.class))).thenAnswer(invocation -> {
+            writeStarted.countDown();
+            releaseWrite.await();
+            return UpdateResult.acknowledged(1, 1L, null);
+        });
+        FileWriteCoalescer coalescer = new FileWriteCoalescer(csvFileRepository, metrics,
+                new WriteProperties(Duration.ofMillis(50)));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> slow = executor.submit(() ->
+                    coalescer.apply("slow.csv", UserMutation.create(1, "a@x.com", "A")));
+            assertThat(writeStarted.await(10, TimeUnit.SECONDS)).isTrue();
+
+            assertThatThrownBy(() -> coalescer.apply("slow.csv", UserMutation.create(2, "b@x.com", "B")))
+                    .isInstanceOf(CannotAcquireLockException.class)
+                    .hasMessageContaining("slow.csv");
+            // Another file has its own lane
+            assertThat(coalescer.apply(FILENAME, UserMutation.create(3, "c@x.com", "C"))).isTrue();
+
+            releaseWrite.countDown();
+            assertThat(slow.get(10, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // The timed-out create was taken out of the lane, never merged into a write
+        verify(csvFileRepository, times(1)).pushUser(eq("slow.csv"), any(User.class));
+        verify(csvFileRepository, times(0)).findByFilename("slow.csv");
+        assertThat(document.users).extracting(User::getId).containsExactly(3);
+        assertThat(registry.get("csv.write.lock.timeouts").counter().count()).isEqualTo(1.0);
+        assertThat(registry.get("csv.write.lock.wait").timer().count()).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("A leader hands the lane over instead of draining a queue that never empties")
+    void testLeaderHandsOver_UnderSustainedLoad() throws Exception {
+        int followers = 20;
+        FileWriteCoalescer coalescer = new FileWriteCoalescer(csvFileRepository, metrics);
+        ExecutorService executor = Executors.newFixedThreadPool(followers + 1);
+        List<Future<Boolean>> queued = new CopyOnWriteArrayList<>();
+        AtomicInteger nextId = new AtomicInteger(1);
+        Thread[] leaderThread = new Thread[1];
+        AtomicInteger leaderWrites = new AtomicInteger();
+
+        // Every write queues one more create, so the lane never runs empty
+        when(csvFileRepository.pushUser(eq(FILENAME), any(User.class))).thenAnswer(invocation -> {
+            if (Thread.currentThread() == leaderThread[0]) {
+                leaderWrites.incrementAndGet();
+            }
+            int id = nextId.getAndIncrement();
+            if (id <= followers) {
+                AtomicReference<Thread> follower = new AtomicReference<>();
+                queued.add(executor.submit(() -> {
+                    follower.set(Thread.currentThread());
+                    return coalescer.apply(FILENAME, UserMutation.create(id, "u" + id + "@x.com", "U" + id));
+                }));
+                awaitQueued(follower);
+            }
+            return document.push(invocation.getArgument(1));
+        });
+
+        try {
+            Future<Boolean> leader = executor.submit(() -> {
+                leaderThread[0] = Thread.currentThread();
+                return coalescer.apply(FILENAME, UserMutation.create(0, "u0@x.com", "U0"));
+            });
+            assertThat(leader.get(10, TimeUnit.SECONDS)).isTrue();
+            assertThat(leaderWrites.get()).isEqualTo(FileWriteCoalescer.MAX_LEADER_BATCHES);
+
+            // The callers it handed over to finish the rest
+            while (queued.size() < followers) {
+                Thread.sleep(10);
+            }
+            for (Future<Boolean> follower : queued) {
+                assertThat(follower.get(10, TimeUnit.SECONDS)).isTrue();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(document.users).hasSize(followers + 1);
+        assertThat(document.users).extracting(User::getId).doesNotHaveDuplicates();
+    }
+
+    /**
+     * Wait until the follower is parked waiting for its write, which it only does once queued
+     */
+    private static void awaitQueued(AtomicReference<Thread> follower) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (follower.get() == null || follower.get().getState() != Thread.State.TIMED_WAITING) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Follower never queued");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    @Tag("benchmark")
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    @DisplayName("Baseline: per-request read-modify-save with optimistic retry")
+    void benchmarkPerRequestRetry() throws Exception {
+        AtomicInteger failed = new AtomicInteger();
+
+        long nanos = runConcurrently(id -> {
+            try {
+                OptimisticRetry.run(() -> {
+                    CsvFile csvFile = csvFileRepository.findByFilename(FILENAME).orElseThrow();
+                    csvFile.getUsers().add(new User(id, "u" + id + "@x.com", "U" + id));
+                    return csvFileRepository.save(csvFile);
+                });
+            } catch (OptimisticLockingFailureException e) {
+                failed.incrementAndGet();
+            }
+        });
+
+        report("per-request retry", nanos);
+        System.out.printf("  failed after %d attempts: %,d%n%n", OptimisticRetry.DEFAULT_MAX_ATTEMPTS, failed.get());
+        assertThat(document.users.size() + failed.get()).isEqualTo(CREATES);
+    }
+
+    private long runConcurrently(IntConsumer create) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>(CREATES);
+            long start = System.nanoTime();
+            for (int i = 1; i <= CREATES; i++) {
+                int id = i;
+                futures.add(executor.submit(() -> create.accept(id)));
+            }
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+            return System.nanoTime() - start;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void report(String label, long nanos) {
+        System.out.printf("%n=== %,d concurrent creates, %d threads, %d us simulated round trip ===%n",
+                CREATES, THREADS, TimeUnit.NANOSECONDS.toMicros(ROUND_TRIP_NANOS));
+        System.out.printf("%-26s %8.1f ms  %,10.0f creates/s%n", label, nanos / 1e6, CREATES / (nanos / 1e9));
+        System.out.printf("  atomic updates: %,d  merged saves: %,d  version conflicts: %,d%n",
+                document.atomicWrites.get(), document.saves.get(), document.conflicts.get());
+    }
+
+    /**
+     * One csv_files document with MongoDB-like semantics for the operations under test
+     */
+    private static final class FakeDocument {
+        private final List<User> users = new ArrayList<>();
+        private long version;
+        private final AtomicLong atomicWrites = new AtomicLong();
+        private final AtomicLong saves = new AtomicLong();
+        private final AtomicLong conflicts = new AtomicLong();
+
+        CsvFile load() {
+            LockSupport.parkNanos(ROUND_TRIP_NANOS);
+            synchronized (this) {
+                List<User> copy = new ArrayList<>();
+                for (User u : users) {
+                    copy.add(new User(u.getId(), u.getEmail(), u.getName()));
+                }
+                CsvFile csvFile = new CsvFile(FILENAME, copy);
+                csvFile.setId("hot-id");
+                csvFile.setVersion(version);
+                return csvFile;
+            }
+        }
+
+        CsvFile save(CsvFile csvFile) {
+            LockSupport.parkNanos(ROUND_TRIP_NANOS);
+            synchronized (this) {
+                if (!Objects.equals(csvFile.getVersion(), version)) {
+                    conflicts.incrementAndGet();
+                    throw new OptimisticLockingFailureException("version " + csvFile.getVersion() + " != " + version);
+                }
+                users.clear();
+                users.addAll(csvFile.getUsers());
+                version++;
+                saves.incrementAndGet();
+                return csvFile;
+            }
+        }
+
+        UpdateResult push(User user) {
+            LockSupport.parkNanos(ROUND_TRIP_NANOS);
+            synchronized (this) {
+                for (User u : users) {
+                    if (u.getId() == user.getId()) {
+                        return UpdateResult.acknowledged(0, 0L, null);
+                    }
+                }
+                users.add(user);
+                version++;
+                atomicWrites.incrementAndGet();
+                return UpdateResult.acknowledged(1, 1L, null);
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.demo.service;
+
+import com.example.demo.config.IngestProperties;
+import com.example.demo.exception.CsvParseException;
+import com.example.demo.model.CsvFile;
+import com.example.demo.model.User;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class IngestionServiceTest {
+
+    private final UserService userService = mock(UserService.class);
+    private IngestionService ingestionService;
+
+    @AfterEach
+    void tearDown() {
+        ingestionService.shutdown();
+    }
+
+    private static MockMultipartFile upload(String name) {
+        return new MockMultipartFile("file", name, "text/csv",
+                "id=1,email=a@a.com,name=A\nid=2,email=b@b.com,name=B".getBytes());
+    }
+
+    /**
+     * Stands in for UserService.ingestUpload: reports every user, stores them and returns a saved file
+     */
+    private static CsvFile parseAndSave(InvocationOnMock invocation) throws Exception {
+        Path upload = invocation.getArgument(1);
+        UserService.IngestProgress progress = invocation.getArgument(2);
+        List<User> users = new ArrayList<>();
+        for (String line : Files.readAllLines(upload)) {
+            User user = new User(users.size() + 1, line, line);
+            users.add(user);
+            progress.parsed(user);
+        }
+        progress.persisted(users.size());
+        CsvFile saved = new CsvFile(invocation.getArgument(0), users);
+        saved.setId("file-id");
+        return saved;
+    }
+
+    private static void awaitFinished(IngestionJob job) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!job.isFinished() && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(job.isFinished()).as("job finished").isTrue();
+    }
+
+    @Test
+    @DisplayName("Should ingest in the background and report rows, file id and throughput")
+    void testSubmit_Succeeds() throws Exception {
+        ingestionService = new IngestionService(userService, new IngestProperties(2, 10, Duration.ofHours(1)));
+        when(userService.ingestUpload(anyString(), any(), any())).thenAnswer(IngestionServiceTest::parseAndSave);
+
+        IngestionJob job = ingestionService.submit(upload("big.csv"));
+        awaitFinished(job);
+
+        Map<String, Object> status = ingestionService.findJob(job.getId()).orElseThrow().toStatus();
+        assertThat(status)
+                .containsEntry("state", IngestionJob.State.SUCCEEDED)
+                .containsEntry("filename", "big.csv")
+                .containsEntry("rowsParsed", 2L)
+                .containsEntry("rowsPersisted", 2L)
+                .containsEntry("errors", 0L)
+                .containsEntry("fileId", "file-id")
+                .containsKeys("elapsedMs", "rowsPerSecond");
+    }
+
+    @Test
+    @DisplayName("Should report rows persisted while the job runs and count retried writes as errors")
+    void testSubmit_ReportsProgress() throws Exception {
+        ingestionService = new IngestionService(userService, new IngestProperties(2, 10, Duration.ofHours(1)));
+        CountDownLatch firstBatchStored = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(userService.ingestUpload(anyString(), any(), any())).thenAnswer(invocation -> {
+            UserService.IngestProgress progress = invocation.getArgument(2);
+            progress.persisted(1);
+            progress.retried(new OptimisticLockingFailureException("concurrent upload"));
+            progress.persisted(1);
+            firstBatchStored.countDown();
+            release.await();
+            progress.persisted(2);
+            CsvFile saved = new CsvFile(invocation.getArgument(0), List.of());
+            saved.setId("file-id");
+            return saved;
+        });
+
+        IngestionJob job = ingestionService.submit(upload("big.csv"));
+        assertThat(firstBatchStored.await(10, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(job.toStatus())
+                .containsEntry("state", IngestionJob.State.RUNNING)
+                .containsEntry("rowsPersisted", 1L)
+                .containsEntry("errors", 1L)
+                .containsKey("rowsPerSecond");
+
+        release.countDown();
+        awaitFinished(job);
+        assertThat(job.toStatus())
+                .containsEntry("state", IngestionJob.State.SUCCEEDED)
+                .containsEntry("rowsPersisted", 2L)
+                .containsEntry("errors", 1L);
+    }
+
+    @Test
+    @DisplayName("Should report a failed job with the parse error")
+    void testSubmit_Fails() throws Exception {
+        ingestionService = new IngestionService(userService, new IngestProperties(2, 10, Duration.ofHours(1)));
+        when(userService.ingestUpload(anyString(), any(), any()))
+                .thenThrow(new CsvParseException(7, "garbage"));
+
+        IngestionJob job = ingestionService.submit(upload("bad.csv"));
+        awaitFinished(job);
+
+        assertThat(job.getState()).isEqualTo(IngestionJob.State.FAILED);
+        assertThat(job.toStatus()).containsEntry("errors", 1L)
+                .containsEntry("error", "Invalid CSV format in line 7: garbage");
+    }
+
+    @Test
+    @DisplayName("Should run at most maxConcurrentJobs at once and refuse uploads beyond maxPendingJobs")
+    void testConcurrencyBounds() throws Exception {
+        ingestionService = new IngestionService(userService, new IngestProperties(1, 2, Duration.ofHours(1)));
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch firstRunning = new CountDownLatch(1);
+        when(userService.ingestUpload(anyString(), any(), any())).thenAnswer(invocation -> {
+            firstRunning.countDown();
+            release.await();
+            return parseAndSave(invocation);
+        });
+
+        IngestionJob first = ingestionService.submit(upload("a.csv"));
+        IngestionJob second = ingestionService.submit(upload("b.csv"));
+        assertThat(firstRunning.await(10, TimeUnit.SECONDS)).isTrue();
+
+        assertThatThrownBy(() -> ingestionService.submit(upload("c.csv")))
+                .isInstanceOf(RejectedExecutionException.class)
+                .hasMessageContaining("Too many ingestion jobs");
+        Thread.sleep(50);
+        assertThat(List.of(first.getState(), second.getState()))
+                .containsExactlyInAnyOrder(IngestionJob.State.RUNNING, IngestionJob.State.QUEUED);
+
+        release.countDown();
+        awaitFinished(first);
+        awaitFinished(second);
+        assertThat(second.getState()).isEqualTo(IngestionJob.State.SUCCEEDED);
+
+        // Slots are free again once jobs finish
+        awaitFinished(ingestionService.submit(upload("d.csv")));
+    }
+}
@@ -0,0 +1,281 @@
+package com.example.demo.service;
+
+import com.example.demo.config.StorageProperties;
+import com.example.demo.exception.CsvFileNotFoundException;
+import com.example.demo.exception.DuplicateUserIdException;
+import com.example.demo.model.CsvFile;
+import com.example.demo.model.CsvFileInfo;
+import com.example.demo.model.User;
+import com.example.demo.model.UserBucket;
+import com.example.demo.repository.CsvFileRepository;
+import com.example.demo.repository.ReactiveCsvFileRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.dao.OptimisticLockingFailureException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ReactiveUserServiceTest {
+
+    private static final String FILENAME = "users.csv";
+
+    @Mock
+    private ReactiveCsvFileRepository csvFileRepository;
+
+    @Mock
+    private CsvFileRepository blockingRepository;
+
+    private CsvFileCache fileCache;
+    private ReactiveUserService service;
+
+    @BeforeEach
+    void setUp() {
+        fileCache = new CsvFileCache(blockingRepository, 64L << 20, Duration.ofMinutes(10), Runnable::run);
+        service = new ReactiveUserService(csvFileRepository, new StorageProperties(2, false), fileCache,
+                new UserMetrics(new SimpleMeterRegistry()));
+    }
+
+    /**
+     * The upload split into buffers of a few bytes, so lines span several buffers
+     */
+    private static Flux<DataBuffer> content(String csv, int chunkSize) {
+        byte[] bytes = csv.getBytes(StandardCharsets.UTF_8);
+        List<DataBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < bytes.length; i += chunkSize) {
+            byte[] chunk = new byte[Math.min(chunkSize, bytes.length - i)];
+            System.arraycopy(bytes, i, chunk, 0, chunk.length);
+            buffers.add(DefaultDataBufferFactory.sharedInstance.wrap(chunk));
+        }
+        return Flux.fromIterable(buffers);
+    }
+
+    private static String csv(int users) {
+        StringBuilder csv = new StringBuilder();
+        for (int id = 1; id <= users; id++) {
+            csv.append("id=").append(id).append(",email=u").append(id).append("@x.com,name=User").append(id).append('\n');
+        }
+        return csv.toString();
+    }
+
+    private static CsvFileInfo bucketedInfo(String id) {
+        CsvFile header = new CsvFile(FILENAME, null);
+        header.setId(id);
+        header.setBucketSize(2);
+        header.setBucketCount(2);
+        header.setUserCount(3);
+        return CsvFileInfo.of(header);
+    }
+
+    @Test
+    @DisplayName("Rejects the embedded layout and kept originals at startup")
+    void rejectsUnsupportedStorage() {
+        UserMetrics metrics = new UserMetrics(new SimpleMeterRegistry());
+        assertThatThrownBy(() -> new ReactiveUserService(csvFileRepository, new StorageProperties(0, false), fileCache, metrics))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("bucket-size");
+        assertThatThrownBy(() -> new ReactiveUserService(csvFileRepository, new StorageProperties(2, true), fileCache, metrics))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("keep-original");
+    }
+
+    @Nested
+    @DisplayName("upload")
+    class Upload {
+
+        @Test
+        @DisplayName("Streams buckets under a staging id, then moves them under the saved header")
+        void stagesAndMovesBuckets() {
+            List<List<UserBucket>> batches = new ArrayList<>();
+            when(csvFileRepository.insertBuckets(anyList())).thenAnswer(invocation -> {
+                batches.add(invocation.getArgument(0));
+                return Mono.empty();
+            });
+            when(csvFileRepository.findHeaderByFilename(FILENAME)).thenReturn(Mono.empty());
+            when(csvFileRepository.save(any(CsvFile.class))).thenAnswer(invocation -> {
+                CsvFile header = invocation.getArgument(0);
+                header.setId("header-1");
+                return Mono.just(header);
+            });
+            when(csvFileRepository.deleteBuckets("header-1")).thenReturn(Mono.just(0L));
+            when(csvFileRepository.moveBuckets(anyString(), eq("header-1"))).thenReturn(Mono.just(3L));
+
+            // Blank line 3 still counts for line numbers
+            Map<String, Object> result = service.upload(FILENAME, content(csv(2) + "\n" + csv(5).substring(csv(2).length()), 7), true)
+                    .block();
+
+            assertThat(result)
+                    .containsEntry("filename", FILENAME)
+                    .containsEntry("fileId", "header-1")
+                    .containsEntry("userCount", 5)
+                    .containsEntry("deduplicated", false)
+                    .containsEntry("mode", "replace");
+            assertThat((List<?>) result.get("users")).hasSize(5);
+
+            // 5 users in buckets of 2, all in one insertMany
+            assertThat(batches).hasSize(1);
+            List<UserBucket> buckets = batches.get(0);
+            assertThat(buckets).extracting(UserBucket::getSeq).containsExactly(0, 1, 2);
+            assertThat(buckets.get(2).getUsers()).extracting(User::getId).containsExactly(5);
+            String stagingId = buckets.get(0).getFileId();
+            assertThat(stagingId).isNotEqualTo("header-1");
+
+            ArgumentCaptor<CsvFile> saved = ArgumentCaptor.forClass(CsvFile.class);
+            InOrder order = inOrder(csvFileRepository);
+            order.verify(csvFileRepository).save(saved.capture());
+            order.verify(csvFileRepository).deleteBuckets("header-1");
+            order.verify(csvFileRepository).moveBuckets(stagingId, "header-1");
+            assertThat(saved.getValue().getUsers()).isNull();
+            assertThat(saved.getValue().getUserCount()).isEqualTo(5);
+            assertThat(saved.getValue().getBucketSize()).isEqualTo(2);
+            assertThat(saved.getValue().getBucketCount()).isEqualTo(3);
+            assertThat(saved.getValue().getContentHash()).hasSize(64);
+
+            // Write-through: the next read needs no metadata query
+            assertThat(fileCache.getIfPresent(FILENAME)).get().extracting(CsvFileInfo::id).isEqualTo("header-1");
+        }
+
+        @Test
+        @DisplayName("Replacing a file drops its stored original and keeps its id")
+        void replacesExistingFile() {
+            CsvFile existing = new CsvFile(FILENAME, List.of(new User(9, "old@x.com", "Old")));
+            existing.setId("header-1");
+            existing.setContentId("content-1");
+            when(csvFileRepository.insertBuckets(anyList())).thenReturn(Mono.empty());
+            when(csvFileRepository.findHeaderByFilename(FILENAME)).thenReturn(Mono.just(existing));
+            when(csvFileRepository.save(existing)).thenReturn(Mono.just(existing));
+            when(csvFileRepository.deleteBuckets("header-1")).thenReturn(Mono.just(0L));
+            when(csvFileRepository.moveBuckets(anyString(), eq("header-1"))).thenReturn(Mono.just(1L));
+            when(csvFileRepository.deleteContent("content-1")).thenReturn(Mono.empty());
+
+            Map<String, Object> result = service.upload(FILENAME, content(csv(2), 64), false).block();
+
+            assertThat(result).containsEntry("fileId", "header-1").containsEntry("userCount", 2).doesNotContainKey("users");
+            assertThat(existing.getUsers()).isNull();
+            assertThat(existing.getContentId()).isNull();
+            verify(csvFileRepository).deleteContent("content-1");
+        }
+
+        @Test
+        @DisplayName("A duplicate id fails the upload and deletes the staged buckets")
+        void duplicateIdDeletesStagedBuckets() {
+            List<String> stagedIds = new ArrayList<>();
+            when(csvFileRepository.insertBuckets(anyList())).thenAnswer(invocation -> {
+                List<UserBucket> buckets = invocation.getArgument(0);
+                stagedIds.add(buckets.get(0).getFileId());
+                return Mono.empty();
+            });
+            when(csvFileRepository.deleteBuckets(anyString())).thenReturn(Mono.just(1L));
+            // 40 users fill more than one insert batch before the duplicate on line 41
+            String csv = csv(40) + "id=7,email=again@x.com,name=Again\n";
+
+            assertThatThrownBy(() -> service.upload(FILENAME, content(csv, 16), false).block())
+                    .isInstanceOf(DuplicateUserIdException.class)
+                    .hasMessageContaining("41");
+
+            assertThat(stagedIds).isNotEmpty();
+            verify(csvFileRepository).deleteBuckets(stagedIds.get(0));
+            verify(csvFileRepository, never()).save(any(CsvFile.class));
+            verify(csvFileRepository, never()).moveBuckets(anyString(), anyString());
+        }
+
+        @Test
+        @DisplayName("A concurrent header write is retried")
+        void retriesConcurrentHeaderWrite() {
+            AtomicInteger saves = new AtomicInteger();
+            when(csvFileRepository.insertBuckets(anyList())).thenReturn(Mono.empty());
+            when(csvFileRepository.findHeaderByFilename(FILENAME)).thenReturn(Mono.empty());
+            when(csvFileRepository.save(any(CsvFile.class))).thenAnswer(invocation -> {
+                if (saves.incrementAndGet() == 1) {
+                    return Mono.error(new OptimisticLockingFailureException("stale version"));
+                }
+                CsvFile header = invocation.getArgument(0);
+                header.setId("header-1");
+                return Mono.just(header);
+            });
+            when(csvFileRepository.deleteBuckets("header-1")).thenReturn(Mono.just(0L));
+            when(csvFileRepository.moveBuckets(anyString(), eq("header-1"))).thenReturn(Mono.just(1L));
+
+            Map<String, Object> result = service.upload(FILENAME, content(csv(1), 64), false).block();
+
+            assertThat(result).containsEntry("fileId", "header-1");
+            assertThat(saves).hasValue(2);
+        }
+    }
+
+    @Nested
+    @DisplayName("reads")
+    class Reads {
+
+        @Test
+        @DisplayName("A cache miss loads the metadata once, then reads from the cache")
+        void listUsesCache() {
+            when(csvFileRepository.findInfoByFilename(FILENAME)).thenReturn(Mono.just(bucketedInfo("header-1")));
+            List<User> users = List.of(new User(1, "a@x.com", "A"), new User(2, "b@x.com", "B"));
+            when(csvFileRepository.findBucketedUsersPage("header-1", null, 3)).thenReturn(Mono.just(users));
+
+            Map<String, Object> first = service.listUsers(FILENAME, null, 2).block();
+            Map<String, Object> second = service.listUsers(FILENAME, null, 2).block();
+
+            assertThat(first).containsEntry("count", 2).containsEntry("nextAfterId", null);
+            assertThat(second).isEqualTo(first);
+            verify(csvFileRepository, times(1)).findInfoByFilename(FILENAME);
+            verifyNoInteractions(blockingRepository);
+        }
+
+        @Test
+        @DisplayName("A missing file fails with CsvFileNotFoundException")
+        void missingFile() {
+            when(csvFileRepository.findInfoByFilename(FILENAME)).thenReturn(Mono.empty());
+
+            assertThatThrownBy(() -> service.getFileInfo(FILENAME).block())
+                    .isInstanceOf(CsvFileNotFoundException.class);
+            assertThat(fileCache.getIfPresent(FILENAME)).isEmpty();
+        }
+
+        @Test
+        @DisplayName("An invalid page size fails before any query")
+        void invalidPageSize() {
+            assertThatThrownBy(() -> service.listUsers(FILENAME, null, 0).block())
+                    .isInstanceOf(IllegalArgumentException.class);
+            verifyNoInteractions(csvFileRepository);
+        }
+
+        @Test
+        @DisplayName("Streams the users of a bucketed file from its cursor")
+        void streamsBucketedUsers() {
+            fileCache.put(bucketedInfo("header-1"));
+            when(csvFileRepository.streamBucketedUsers("header-1"))
+                    .thenReturn(Flux.just(new User(1, "a@x.com", "A"), new User(2, "b@x.com", "B")));
+
+            List<User> users = service.streamUsers(FILENAME).flatMapMany(flux -> flux).collectList().block();
+
+            assertThat(users).extracting(User::getId).containsExactly(1, 2);
+        }
+    }
+}
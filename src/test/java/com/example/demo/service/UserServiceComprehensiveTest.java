@@ -1,25 +1,56 @@
 package com.example.demo.service;
 
+import com.example.demo.config.ParserProperties;
+import com.example.demo.config.StorageProperties;
+import com.example.demo.exception.DuplicateUserIdException;
 import com.example.demo.model.CsvFile;
+import com.example.demo.model.CsvFileInfo;
 import com.example.demo.model.User;
+import com.example.demo.model.UserBucket;
+import com.example.demo.model.UserMatch;
+import com.example.demo.model.UserOperation;
+import com.example.demo.parser.UserRecordWriter;
 import com.example.demo.repository.CsvFileRepository;
+import com.example.demo.repository.CsvFileRepositoryCustom.BucketWrite;
+import com.example.demo.repository.CsvFileRepositoryCustom.ContentUpload;
+import com.example.demo.util.OptimisticRetry;
+import com.mongodb.client.result.UpdateResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -28,23 +59,52 @@ class UserServiceComprehensiveTest {
     @Mock
     private CsvFileRepository csvFileRepository;
 
-    @InjectMocks
     private UserService userService;
 
     private static final String FILENAME = "users.csv";
+    private static final ParserProperties PARSER_PROPERTIES =
+            new ParserProperties(DataSize.ofMegabytes(4), DataSize.ofMegabytes(1));
     private CsvFile existingCsvFile;
+    private SimpleMeterRegistry meterRegistry;
+    private UserMetrics metrics;
 
     @BeforeEach
     void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        metrics = new UserMetrics(meterRegistry);
+        userService = new UserService(csvFileRepository, new StorageProperties(0, false), PARSER_PROPERTIES, new FileWriteCoalescer(csvFileRepository, metrics), newCache(), metrics);
+
         List<User> users = new ArrayList<>();
         users.add(new User(1, "alice@example.com", "Alice"));
         users.add(new User(2, "bob@example.com", "Bob"));
 
-        existingCsvFile = new CsvFile(FILENAME, users,
-                "id=1,email=alice@example.com,name=Alice\nid=2,email=bob@example.com,name=Bob");
+        existingCsvFile = new CsvFile(FILENAME, users);
         existingCsvFile.setId("mongo-id-123");
     }
 
+    private CsvFileCache newCache() {
+        return new CsvFileCache(csvFileRepository, 64L << 20, Duration.ofMinutes(10), Runnable::run);
+    }
+
+    private static UpdateResult modified(long count) {
+        return UpdateResult.acknowledged(count, count, null);
+    }
+
+    /**
+     * writeBuckets outcome where every write and new bucket took effect
+     */
+    private static Boolean[] allWritten(InvocationOnMock invocation) {
+        List<?> writes = invocation.getArgument(2);
+        List<?> newBuckets = invocation.getArgument(3);
+        Boolean[] written = new Boolean[writes.size() + newBuckets.size()];
+        Arrays.fill(written, true);
+        return written;
+    }
+
+    private static UpdateResult matchedOnly() {
+        return UpdateResult.acknowledged(1, 0L, null);
+    }
+
     @Nested
     @DisplayName("parseCSVFile & getAllUsers Tests")
     class ParseAndReadTests {
@@ -97,10 +157,71 @@ class UserServiceComprehensiveTest {
 
             // Verify the existing object was updated
             assertThat(existingCsvFile.getUsers()).hasSize(1);
-            assertThat(existingCsvFile.getCsvContent()).isEqualTo(newContent);
+            // The CSV text is derived from users on export; originals are not kept in this setup
+            assertThat(existingCsvFile.getContentId()).isNull();
+            assertThat(existingCsvFile.getSizeBytes()).isEqualTo(newContent.length());
             verify(csvFileRepository).save(existingCsvFile);
         }
 
+        @Test
+        @DisplayName("Should re-read and retry when a concurrent writer saved first")
+        void testGetAllUsers_RetriesOnVersionConflict() {
+            MockMultipartFile file = new MockMultipartFile("file", FILENAME, "text/csv",
+                    "id=3,email=charlie@c.com,name=Charlie".getBytes());
+
+            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(existingCsvFile));
+            when(csvFileRepository.save(any(CsvFile.class)))
+                    .thenThrow(new OptimisticLockingFailureException("version changed"))
+                    .thenReturn(existingCsvFile);
+
+            Map<String, Object> result = userService.getAllUsers(file);
+
+            assertThat(result).containsEntry("fileId", "mongo-id-123");
+            verify(csvFileRepository, times(2)).findByFilename(FILENAME);
+            verify(csvFileRepository, times(2)).save(existingCsvFile);
+        }
+
+        @Test
+        @DisplayName("Should give up after a bounded number of version conflicts")
+        void testGetAllUsers_RetryIsBounded() {
+            MockMultipartFile file = new MockMultipartFile("file", FILENAME, "text/csv",
+                    "id=3,email=charlie@c.com,name=Charlie".getBytes());
+
+            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(existingCsvFile));
+            when(csvFileRepository.save(any(CsvFile.class)))
+                    .thenThrow(new OptimisticLockingFailureException("version changed"));
+
+            assertThatThrownBy(() -> userService.getAllUsers(file))
+                    .isInstanceOf(OptimisticLockingFailureException.class);
+            verify(csvFileRepository, times(OptimisticRetry.DEFAULT_MAX_ATTEMPTS)).save(existingCsvFile);
+        }
+
+        @Test
+        @DisplayName("Should read the upload once and keep UTF-8 content intact")
+        void testGetAllUsers_SinglePassUtf8() throws IOException {
+            String csvContent = "id=1,email=zoe@a.com,name=Zoë\nid=2,email=jose@b.com,name=José";
+            MockMultipartFile file = spy(new MockMultipartFile("file", FILENAME, "text/csv",
+                    csvContent.getBytes(StandardCharsets.UTF_8)));
+
+            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.empty());
+            when(csvFileRepository.save(any(CsvFile.class))).thenAnswer(invocation -> {
+                CsvFile saved = invocation.getArgument(0);
+                saved.setId("new-mongo-id");
+                return saved;
+            });
+
+            Map<String, Object> result = userService.getAllUsers(file);
+
+            @SuppressWarnings("unchecked")
+            List<User> users = (List<User>) result.get("users");
+            assertThat(users).extracting(User::getName).containsExactly("Zoë", "José");
+
+            verify(file, times(1)).getInputStream();
+            verify(file, never()).getBytes();
+            verify(csvFileRepository).save(argThat(saved -> saved.getContentId() == null
+                    && saved.getSizeBytes() == csvContent.getBytes(StandardCharsets.UTF_8).length));
+        }
+
         @Test
         @DisplayName("Should ignore empty lines in CSV")
         void testParseCSVFile_EmptyLines() {
@@ -122,6 +243,401 @@ class UserServiceComprehensiveTest {
                     .isInstanceOf(RuntimeException.class)
                     .hasMessageContaining("Invalid CSV format");
         }
+
+        @Test
+        @DisplayName("Should reject duplicate IDs naming both lines, without writing to MongoDB")
+        void testGetAllUsers_DuplicateIds() {
+            String csvContent = "id=1,email=a@a.com,name=A\n\nid=2,email=b@b.com,name=B\nid=1,email=c@c.com,name=C\n";
+            MockMultipartFile file = new MockMultipartFile("file", FILENAME, "text/csv", csvContent.getBytes());
+
+            assertThatThrownBy(() -> userService.getAllUsers(file))
+                    .isInstanceOf(DuplicateUserIdException.class)
+                    .hasMessage("Duplicate user ID 1 in line 4 (first seen in line 1)");
+
+            // Rejected while parsing, before the re-upload check or any write
+            verifyNoInteractions(csvFileRepository);
+        }
+
+        @Test
+        @DisplayName("Should parse uploads above the parallel threshold in chunks, in file order, with the same checks")
+        void testParseCSVFile_ParallelChunks() {
+            userService = new UserService(csvFileRepository, new StorageProperties(0, false),
+                    new ParserProperties(DataSize.ofBytes(64), DataSize.ofBytes(16)),
+                    new FileWriteCoalescer(csvFileRepository, metrics), newCache(), metrics);
+            StringBuilder csvContent = new StringBuilder();
+            for (int i = 1; i <= 100; i++) {
+                csvContent.append("id=").append(i).append(",email=u").append(i).append("@x.com,name=U\n");
+            }
+            MockMultipartFile file = new MockMultipartFile("file", FILENAME, "text/csv", csvContent.toString().getBytes());
+
+            assertThat(userService.parseCSVFile(file)).extracting(User::getId)
+                    .containsExactlyElementsOf(IntStream.rangeClosed(1, 100).boxed().toList());
+
+            csvContent.append("id=42\n");
+            MockMultipartFile duplicate = new MockMultipartFile("file", FILENAME, "text/csv", csvContent.toString().getBytes());
+            assertThatThrownBy(() -> userService.parseCSVFile(duplicate))
+                    .isInstanceOf(DuplicateUserIdException.class)
+                    .hasMessage("Duplicate user ID 42 in line 101 (first seen in line 42)");
+        }
+    }
+
+    @Nested
+    @DisplayName("Re-upload deduplication Tests")
+    class DeduplicationTests {
+
+        private static final String CONTENT = "id=1,email=a@a.com,name=A\nid=2,email=b@b.com,name=B";
+
+        private final List<CsvFile> saved = new ArrayList<>();
+
+        /**
+         * findByFilename returns the last saved file, like MongoDB would
+         */
+        private void stubStorage() {
+            when(csvFileRepository.findByFilename(FILENAME))
+                    .thenAnswer(invocation -> saved.isEmpty() ? Optional.empty() : Optional.of(lastSaved()));
+            when(csvFileRepository.save(any(CsvFile.class))).thenAnswer(invocation -> {
+                CsvFile csvFile = invocation.getArgument(0);
+                csvFile.setId("new-mongo-id");
+                saved.add(csvFile);
+                return csvFile;
+            });
+        }
+
+        private CsvFile lastSaved() {
+            return saved.get(saved.size() - 1);
+        }
+
+        private static MockMultipartFile upload(String content) {
+            return new MockMultipartFile("file", FILENAME, "text/csv", content.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static String sha256(String content) throws Exception {
+            return HexFormat.of().formatHex(java.security.MessageDigest.getInstance("SHA-256")
+                    .digest(content.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        @Test
+        @DisplayName("An identical re-upload should return the stored file without writing it again")
+        void testGetAllUsers_IdenticalReupload() throws Exception {
+            stubStorage();
+
+            Map<String, Object> first = userService.getAllUsers(upload(CONTENT));
+            assertThat(first).containsEntry("deduplicated", false);
+            assertThat(lastSaved().getContentHash()).isEqualTo(sha256(CONTENT));
+
+            Map<String, Object> again = userService.getAllUsers(upload(CONTENT));
+            assertThat(again).containsEntry("fileId", "new-mongo-id")
+                    .containsEntry("userCount", 2)
+                    .containsEntry("deduplicated", true);
+            @SuppressWarnings("unchecked")
+            List<User> users = (List<User>) again.get("users");
+            assertThat(users).extracting(User::getId).containsExactly(1, 2);
+
+            assertThat(userService.getAllUsers(upload(CONTENT), false))
+                    .containsEntry("deduplicated", true)
+                    .doesNotContainKey("users");
+
+            verify(csvFileRepository, times(1)).save(any(CsvFile.class));
+            assertThat(meterRegistry.get("csv.upload.deduplicated").counter().count()).isEqualTo(2.0);
+        }
+
+        @Test
+        @DisplayName("A re-upload should be read once, hashed while it is parsed")
+        void testGetAllUsers_ReadsUploadOnce() {
+            stubStorage();
+            userService.getAllUsers(upload(CONTENT));
+            AtomicInteger reads = new AtomicInteger();
+            MockMultipartFile same = new MockMultipartFile("file", FILENAME, "text/csv",
+                    CONTENT.getBytes(StandardCharsets.UTF_8)) {
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    reads.incrementAndGet();
+                    return super.getInputStream();
+                }
+            };
+
+            assertThat(userService.getAllUsers(same, false)).containsEntry("deduplicated", true);
+            assertThat(reads).hasValue(1);
+        }
+
+        @Test
+        @DisplayName("A re-upload of the same size but different content should be stored with its own hash")
+        void testGetAllUsers_ChangedReupload() throws Exception {
+            stubStorage();
+            String changed = CONTENT.replace("name=B", "name=C");
+
+            userService.getAllUsers(upload(CONTENT));
+            Map<String, Object> result = userService.getAllUsers(upload(changed));
+
+            assertThat(result).containsEntry("deduplicated", false);
+            verify(csvFileRepository, times(2)).save(any(CsvFile.class));
+            assertThat(lastSaved().getContentHash()).isEqualTo(sha256(changed));
+            assertThat(lastSaved().getUsers()).extracting(User::getName).containsExactly("A", "C");
+        }
+
+        @Test
+        @DisplayName("Large uploads should be hashed while spooling, to the same digest")
+        void testGetAllUsers_ParallelPathHash() throws Exception {
+            userService = new UserService(csvFileRepository, new StorageProperties(0, false),
+                    new ParserProperties(DataSize.ofBytes(16), DataSize.ofBytes(16)),
+                    new FileWriteCoalescer(csvFileRepository, metrics), newCache(), metrics);
+            stubStorage();
+
+            userService.getAllUsers(upload(CONTENT));
+            assertThat(lastSaved().getContentHash()).isEqualTo(sha256(CONTENT));
+            assertThat(userService.getAllUsers(upload(CONTENT))).containsEntry("deduplicated", true);
+        }
+
+        @Test
+        @DisplayName("A file changed since its upload should be rewritten by the same upload")
+        void testGetAllUsers_EditedSinceUpload() {
+            stubStorage();
+            when(csvFileRepository.findInfoByFilename(FILENAME))
+                    .thenAnswer(invocation -> saved.isEmpty() ? Optional.empty() : Optional.of(CsvFileInfo.of(lastSaved())));
+
+            userService.getAllUsers(upload(CONTENT));
+            userService.applyBatch(FILENAME, List.of(new UserOperation("patch", 1, null, "A2")), true);
+            assertThat(lastSaved().getContentHash()).isNull();
+
+            assertThat(userService.getAllUsers(upload(CONTENT))).containsEntry("deduplicated", false);
+            verify(csvFileRepository, times(3)).save(any(CsvFile.class));
+        }
+    }
+
+    @Nested
+    @DisplayName("Delta upload Tests")
+    class DeltaUploadTests {
+
+        private CsvFile stored;
+
+        /**
+         * An embedded file of users 1..20 at version 3, as a previous upload left it
+         */
+        @BeforeEach
+        void setUpStored() {
+            stored = new CsvFile(FILENAME, users(20));
+            stored.setId("mongo-id-123");
+            stored.setVersion(3L);
+        }
+
+        private static List<User> users(int count) {
+            List<User> users = new ArrayList<>();
+            for (int id = 1; id <= count; id++) {
+                users.add(new User(id, "user" + id + "@example.com", "User " + id));
+            }
+            return users;
+        }
+
+        private static MockMultipartFile upload(List<User> users) {
+            StringBuilder csv = new StringBuilder();
+            for (User user : users) {
+                csv.append("id=").append(user.getId()).append(",email=").append(user.getEmail())
+                        .append(",name=").append(user.getName()).append('\n');
+            }
+            return new MockMultipartFile("file", FILENAME, "text/csv", csv.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Users 1..20 with user 5 renamed, user 7 dropped and user 21 appended
+         */
+        private static List<User> edited() {
+            List<User> users = users(20);
+            users.set(4, new User(5, "user5@example.com", "Renamed"));
+            users.remove(6);
+            users.add(new User(21, "user21@example.com", "User 21"));
+            return users;
+        }
+
+        @Test
+        @DisplayName("Should write only the changed users, chained on the loaded version")
+        void testApplyUpload_Embedded() {
+            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(stored));
+            when(csvFileRepository.applyUserDiff(eq(FILENAME), eq(3L), any(), any(), any(), anyLong(), anyString(), any()))
+                    .thenReturn(true);
+
+            Map<String, Object> result = userService.applyUpload(upload(edited()), false);
+
+            assertThat(result).containsEntry("fileId", "mongo-id-123")
+                    .containsEntry("userCount", 20)
+                    .containsEntry("mode", "delta")
+                    .containsEntry("changes", Map.of("inserted", 1, "updated", 1, "deleted", 1, "unchanged", 18));
+            verify(csvFileRepository).applyUserDiff(eq(FILENAME), eq(3L),
+                    argThat(updated -> updated.size() == 1 && updated.get(0).getName().equals("Renamed")),
+                    eq(List.of(7)),
+                    argThat(added -> added.size() == 1 && added.get(0).getId() == 21),
+                    anyLong(), anyString(), any());
+            verify(csvFileRepository, never()).save(any(CsvFile.class));
+        }
+
+        @Test
+        @DisplayName("Should diff again from a fresh load when another writer got in between")
+        void testApplyUpload_Conflict() {
+            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(stored));
+            when(csvFileRepository.applyUserDiff(eq(FILENAME), eq(3L), any(), any(), any(), anyLong(), anyString(), any()))
+                    .thenReturn(false, true);
+
+            assertThat(userService.applyUpload(upload(edited()), false)).containsEntry("mode", "delta");
+
+            verify(csvFileRepository, times(2)).findByFilename(FILENAME);
+            verify(csvFileRepository, never()).save(any(CsvFile.class));
+        }
+
+        @Test
+        @DisplayName("Should replace the file when more than a quarter of its users changed")
+        void testApplyUpload_TooManyChanges() {
+            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(stored));
+            when(csvFileRepository.save(any(CsvFile.class))).thenAnswer(invocation -> invocation.getArgument(0));
+            List<User> renamed = users(20);
+            for (int i = 0; i < 6; i++) {
+                renamed.set(i, new User(i + 1, "new" + (i + 1) + "@example.com", "New"));
+            }
+
+            assertThat(userService.applyUpload(upload(renamed), false)).containsEntry("mode", "replace");
+
+            verify(csvFileRepository).save(argThat(saved -> saved.getUsers().size() == 20));
+            verify(csvFileRepository, never()).applyUserDiff(any(), anyLong(), any(), any(), any(), anyLong(), any(), any());
+        }
+
+        @Test
+        @DisplayName("Should only record the upload when the users already match")
+        void testApplyUpload_NoChanges() {
+            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(stored));
+            MockMultipartFile file = upload(users(20));
+            when(csvFileRepository.stampUpload(eq(FILENAME), eq(3L), eq(file.getSize()), anyString(), any()))
+                    .thenReturn(true);
+
+            assertThat(userService.applyUpload(file, false))
+                    .containsEntry("mode", "delta")
+                    .containsEntry("changes", Map.of("inserted", 0, "updated", 0, "deleted", 0, "unchanged", 20));
+
+            verify(csvFileRepository, never()).applyUserDiff(any(), anyLong(), any(), any(), any(), anyLong(), any(), any());
+            verify(csvFileRepository, never()).save(any(CsvFile.class));
+        }
+
+        @Test
+        @DisplayName("Should apply the diff to a bucketed file as bucket writes")
+        void testApplyUpload_Bucketed() {
+            userService = new UserService(csvFileRepository, new StorageProperties(10, false), PARSER_PROPERTIES, new FileWriteCoalescer(csvFileRepository, metrics), newCache(), metrics);
+            CsvFile header = new CsvFile(FILENAME, null);
+            header.setId("mongo-id-123");
+            header.setVersion(3L);
+            header.setBucketSize(10);
+            header.setBucketCount(2);
+            header.setUserCount(20);
+            List<User> all = users(20);
+            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(header));
+            when(csvFileRepository.findBuckets("mongo-id-123")).thenReturn(List.of(
+                    new UserBucket("mongo-id-123", 0, new ArrayList<>(all.subList(0, 10))),
+                    new UserBucket("mongo-id-123", 1, new ArrayList<>(all.subList(10, 20)))));
+            when(csvFileRepository.writeBuckets(eq("mongo-id-123"), eq(3L), any(), any(), anyInt(), eq(true)))
+                    .thenAnswer(UserServiceComprehensiveTest::allWritten);
+            MockMultipartFile file = upload(edited());
+
+            assertThat(userService.applyUpload(file, false)).containsEntry("mode", "delta");
+
+            verify(csvFileRepository).writeBuckets(eq("mongo-id-123"), eq(3L), argThat(writes -> !writes.isEmpty()),
+                    any(), eq(0), eq(true));
+            verify(csvFileRepository).stampUpload(FILENAME, null, file.getSize(), null, null);
+            verify(csvFileRepository, never()).save(any(CsvFile.class));
+        }
+    }
+
+    @Nested
+    @DisplayName("Original upload Tests")
+    class OriginalUploadTests {
+
+        /**
+         * Keeps what is written in memory, like a GridFS upload keeps it in chunks
+         */
+        private static final class RecordingUpload implements ContentUpload {
+
+            private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+            private boolean finished;
+
+            private boolean aborted;
+
+            @Override
+            public OutputStream out() {
+                return bytes;
+            }
+
+            @Override
+            public String finish() {
+                finished = true;
+                return "new-content";
+            }
+
+            @Override
+            public void abort() {
+                aborted = true;
+            }
+        }
+
+        private final RecordingUpload original = new RecordingUpload();
+
+        @BeforeEach
+        void setUpKeepOriginal() {
+            userService = new UserService(csvFileRepository, new StorageProperties(0, true), PARSER_PROPERTIES, new FileWriteCoalescer(csvFileRepository, metrics), newCache(), metrics);
+        }
+
+        @Test
+        @DisplayName("Should copy the upload to GridFS while parsing it and drop the replaced original")
+        void testGetAllUsers_KeepsOriginal() throws IOException {
+            String csvContent = "id=1,email=zoe@a.com,name=Zoë\nid=2,email=jose@b.com,name=José";
+            MockMultipartFile file = spy(new MockMultipartFile("file", FILENAME, "text/csv",
+                    csvContent.getBytes(StandardCharsets.UTF_8)));
+            existingCsvFile.setContentId("old-content");
+            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(existingCsvFile));
+            when(csvFileRepository.openContentUpload(FILENAME)).thenReturn(original);
+            when(csvFileRepository.save(any(CsvFile.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+            userService.getAllUsers(file);
+
+            verify(file, times(1)).getInputStream();
+            assertThat(original.bytes.toString(StandardCharsets.UTF_8)).isEqualTo(csvContent);
+            assertThat(original.finished).isTrue();
+            assertThat(existingCsvFile.getContentId()).isEqualTo("new-content");
+            verify(csvFileRepository).deleteContent("old-content");
+        }
+
+        @Test
+        @DisplayName("Should discard the original of an upload that fails to parse or to save")
+        void testGetAllUsers_DiscardsOriginal() {
+            when(csvFileRepository.openContentUpload(FILENAME)).thenReturn(original);
+            MockMultipartFile duplicate = new MockMultipartFile("file", FILENAME, "text/csv",
+                    "id=1,email=a@a.com,name=A\nid=1,email=b@b.com,name=B".getBytes(StandardCharsets.UTF_8));
+
+            assertThatThrownBy(() -> userService.getAllUsers(duplicate)).isInstanceOf(DuplicateUserIdException.class);
+            assertThat(original.aborted).isTrue();
+            assertThat(original.finished).isFalse();
+
+            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.empty());
+            when(csvFileRepository.save(any(CsvFile.class))).thenThrow(new RuntimeException("write failed"));
+            MockMultipartFile valid = new MockMultipartFile("file", FILENAME, "text/csv",
+                    "id=1,email=a@a.com,name=A".getBytes(StandardCharsets.UTF_8));
+
+            assertThatThrownBy(() -> userService.getAllUsers(valid)).hasMessage("write failed");
+            verify(csvFileRepository).deleteContent("new-content");
+        }
+
+        @Test
+        @DisplayName("Should stream the stored original, and fail for a file stored without one")
+        void testOpenOriginal() throws IOException {
+            existingCsvFile.setContentId("content-1");
+            when(csvFileRepository.findInfoByFilename(FILENAME)).thenReturn(Optional.of(CsvFileInfo.of(existingCsvFile)));
+            when(csvFileRepository.openContent("content-1", true))
+                    .thenReturn(Optional.of(new ByteArrayInputStream("id=1,email=a@a.com,name=A".getBytes())));
+
+            try (InputStream in = userService.openOriginal(FILENAME, false)) {
+                assertThat(new String(in.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo("id=1,email=a@a.com,name=A");
+            }
+
+            CsvFile withoutOriginal = new CsvFile("plain.csv", List.of());
+            when(csvFileRepository.findInfoByFilename("plain.csv")).thenReturn(Optional.of(CsvFileInfo.of(withoutOriginal)));
+            assertThatThrownBy(() -> userService.openOriginal("plain.csv", false))
+                    .hasMessage("Original upload not stored for: plain.csv");
+        }
     }
 
     @Nested
@@ -129,25 +645,25 @@ class UserServiceComprehensiveTest {
     class CreateUserTests {
 
         @Test
-        @DisplayName("Should create user successfully when ID is unique")
+        @DisplayName("Should create user with a single $push when ID is unique")
         void testCreateUser_Success() {
-            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(existingCsvFile));
+            when(csvFileRepository.pushUser(eq(FILENAME), any(User.class))).thenReturn(modified(1));
 
             String result = userService.createUser(FILENAME, 3, "charlie@example.com", "Charlie");
 
             assertThat(result).contains("User created successfully");
-            assertThat(existingCsvFile.getUsers()).hasSize(3);
-            assertThat(existingCsvFile.getUsers().get(2).getName()).isEqualTo("Charlie");
-
-            // Verify content string update
-            assertThat(existingCsvFile.getCsvContent()).contains("name=Charlie");
-            verify(csvFileRepository).save(existingCsvFile);
+            verify(csvFileRepository).pushUser(eq(FILENAME), argThat(u -> u.getId() == 3
+                    && "charlie@example.com".equals(u.getEmail())
+                    && "Charlie".equals(u.getName())));
+            verify(csvFileRepository, never()).findByFilename(any());
+            verify(csvFileRepository, never()).save(any());
         }
 
         @Test
         @DisplayName("Should throw exception when creating user with existing ID")
         void testCreateUser_DuplicateId() {
-            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(existingCsvFile));
+            when(csvFileRepository.pushUser(eq(FILENAME), any(User.class))).thenReturn(modified(0));
+            when(csvFileRepository.findInfoByFilename(FILENAME)).thenReturn(Optional.of(CsvFileInfo.of(existingCsvFile)));
 
             assertThatThrownBy(() -> userService.createUser(FILENAME, 1, "new@mail.com", "New"))
                     .isInstanceOf(RuntimeException.class)
@@ -159,7 +675,8 @@ class UserServiceComprehensiveTest {
         @Test
         @DisplayName("Should throw exception when file not found")
         void testCreateUser_FileNotFound() {
-            when(csvFileRepository.findByFilename("missing.csv")).thenReturn(Optional.empty());
+            when(csvFileRepository.pushUser(eq("missing.csv"), any(User.class))).thenReturn(modified(0));
+            when(csvFileRepository.findInfoByFilename("missing.csv")).thenReturn(Optional.empty());
 
             assertThatThrownBy(() -> userService.createUser("missing.csv", 3, "c@c.com", "C"))
                     .isInstanceOf(RuntimeException.class)
@@ -172,25 +689,22 @@ class UserServiceComprehensiveTest {
     class UpdateUserTests {
 
         @Test
-        @DisplayName("Should fully update existing user")
+        @DisplayName("Should fully update existing user in place")
         void testUpdateUser_Success() {
-            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(existingCsvFile));
+            when(csvFileRepository.setUser(FILENAME, 1, "alice_new@example.com", "Alice New"))
+                    .thenReturn(modified(1));
 
             String result = userService.updateUser(FILENAME, 1, "alice_new@example.com", "Alice New");
 
             assertThat(result).contains("User with ID 1 updated successfully");
-            User updatedUser = existingCsvFile.getUsers().stream().filter(u -> u.getId() == 1).findFirst()
-                    .orElseThrow();
-            assertThat(updatedUser.getEmail()).isEqualTo("alice_new@example.com");
-            assertThat(updatedUser.getName()).isEqualTo("Alice New");
-
-            verify(csvFileRepository).save(existingCsvFile);
+            verify(csvFileRepository, never()).save(any());
         }
 
         @Test
         @DisplayName("Should throw exception if user ID does not exist")
         void testUpdateUser_UserNotFound() {
-            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(existingCsvFile));
+            when(csvFileRepository.setUser(FILENAME, 99, "x@x.com", "X")).thenReturn(modified(0));
+            when(csvFileRepository.findInfoByFilename(FILENAME)).thenReturn(Optional.of(CsvFileInfo.of(existingCsvFile)));
 
             assertThatThrownBy(() -> userService.updateUser(FILENAME, 99, "x@x.com", "X"))
                     .isInstanceOf(RuntimeException.class)
@@ -205,40 +719,44 @@ class UserServiceComprehensiveTest {
         @Test
         @DisplayName("Should update only email")
         void testPatchUser_EmailOnly() {
-            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(existingCsvFile));
+            when(csvFileRepository.setUser(FILENAME, 1, "patched@example.com", null)).thenReturn(modified(1));
 
             userService.patchUser(FILENAME, 1, "patched@example.com", null);
 
-            User user = existingCsvFile.getUsers().get(0);
-            assertThat(user.getEmail()).isEqualTo("patched@example.com");
-            assertThat(user.getName()).isEqualTo("Alice"); // Unchanged
+            verify(csvFileRepository).setUser(FILENAME, 1, "patched@example.com", null);
         }
 
         @Test
         @DisplayName("Should update only name")
         void testPatchUser_NameOnly() {
-            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(existingCsvFile));
+            when(csvFileRepository.setUser(FILENAME, 1, null, "Alice Patched")).thenReturn(modified(1));
 
             userService.patchUser(FILENAME, 1, null, "Alice Patched");
 
-            User user = existingCsvFile.getUsers().get(0);
-            assertThat(user.getEmail()).isEqualTo("alice@example.com"); // Unchanged
-            assertThat(user.getName()).isEqualTo("Alice Patched");
+            verify(csvFileRepository).setUser(FILENAME, 1, null, "Alice Patched");
         }
 
         @Test
-        @DisplayName("Should do nothing if fields are null/empty")
+        @DisplayName("Should send no field changes if fields are null/empty")
         void testPatchUser_NoOp() {
-            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(existingCsvFile));
+            when(csvFileRepository.setUser(FILENAME, 1, null, null)).thenReturn(matchedOnly());
 
-            userService.patchUser(FILENAME, 1, "", null);
+            String result = userService.patchUser(FILENAME, 1, "", null);
 
-            User user = existingCsvFile.getUsers().get(0);
-            assertThat(user.getEmail()).isEqualTo("alice@example.com");
-            assertThat(user.getName()).isEqualTo("Alice");
+            assertThat(result).contains("partially updated successfully");
+            verify(csvFileRepository).setUser(FILENAME, 1, null, null);
+            verify(csvFileRepository, never()).save(any());
+        }
 
-            // Still saves because logic doesn't strictly prevent save if no dirty check
-            verify(csvFileRepository).save(existingCsvFile);
+        @Test
+        @DisplayName("Should throw exception if user ID does not exist")
+        void testPatchUser_UserNotFound() {
+            when(csvFileRepository.setUser(FILENAME, 99, "x@x.com", null)).thenReturn(modified(0));
+            when(csvFileRepository.findInfoByFilename(FILENAME)).thenReturn(Optional.of(CsvFileInfo.of(existingCsvFile)));
+
+            assertThatThrownBy(() -> userService.patchUser(FILENAME, 99, "x@x.com", null))
+                    .isInstanceOf(RuntimeException.class)
+                    .hasMessage("User with ID 99 not found");
         }
     }
 
@@ -247,23 +765,22 @@ class UserServiceComprehensiveTest {
     class DeleteUserTests {
 
         @Test
-        @DisplayName("Should delete user successfully")
+        @DisplayName("Should delete user with a single $pull")
         void testDeleteUser_Success() {
-            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(existingCsvFile));
+            when(csvFileRepository.pullUser(FILENAME, 1)).thenReturn(modified(1));
 
             String result = userService.deleteUser(FILENAME, 1);
 
             assertThat(result).contains("deleted successfully");
-            assertThat(existingCsvFile.getUsers()).hasSize(1);
-            assertThat(existingCsvFile.getUsers().get(0).getId()).isEqualTo(2);
-
-            verify(csvFileRepository).save(existingCsvFile);
+            verify(csvFileRepository, never()).findByFilename(any());
+            verify(csvFileRepository, never()).save(any());
         }
 
         @Test
         @DisplayName("Should throw exception if trying to delete non-existent user")
         void testDeleteUser_UserNotFound() {
-            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(existingCsvFile));
+            when(csvFileRepository.pullUser(FILENAME, 99)).thenReturn(modified(0));
+            when(csvFileRepository.findInfoByFilename(FILENAME)).thenReturn(Optional.of(CsvFileInfo.of(existingCsvFile)));
 
             assertThatThrownBy(() -> userService.deleteUser(FILENAME, 99))
                     .isInstanceOf(RuntimeException.class)
@@ -271,31 +788,642 @@ class UserServiceComprehensiveTest {
         }
     }
 
+    @Nested
+    @DisplayName("listUsers & streamUsers Tests")
+    class ListUsersTests {
+
+        @Test
+        @DisplayName("Should return a page and the id to continue after, fetching one extra user")
+        void testListUsers_MorePages() {
+            when(csvFileRepository.findInfoByFilename(FILENAME)).thenReturn(Optional.of(CsvFileInfo.of(existingCsvFile)));
+            when(csvFileRepository.findUsersPage(FILENAME, 10, 3)).thenReturn(new ArrayList<>(List.of(
+                    new User(11, "k@k.com", "K"), new User(12, "l@l.com", "L"), new User(15, "o@o.com", "O"))));
+
+            Map<String, Object> page = userService.listUsers(FILENAME, 10, 2);
+
+            assertThat(page).containsEntry("count", 2).containsEntry("nextAfterId", 12);
+            @SuppressWarnings("unchecked")
+            List<User> users = (List<User>) page.get("users");
+            assertThat(users).extracting(User::getId).containsExactly(11, 12);
+            verify(csvFileRepository, never()).findByFilename(any());
+        }
+
+        @Test
+        @DisplayName("Last page should have no nextAfterId; bucketed files page through buckets")
+        void testListUsers_LastPageBucketed() {
+            existingCsvFile.setBucketSize(2);
+            when(csvFileRepository.findInfoByFilename(FILENAME)).thenReturn(Optional.of(CsvFileInfo.of(existingCsvFile)));
+            when(csvFileRepository.findBucketedUsersPage("mongo-id-123", null, 101))
+                    .thenReturn(List.of(new User(1, "a@a.com", "A")));
+
+            Map<String, Object> page = userService.listUsers(FILENAME, null, 100);
+
+            assertThat(page).containsEntry("count", 1).containsEntry("nextAfterId", null);
+        }
+
+        @Test
+        @DisplayName("Should reject page sizes outside 1..MAX_PAGE_SIZE before reading")
+        void testListUsers_InvalidLimit() {
+            assertThatThrownBy(() -> userService.listUsers(FILENAME, null, 0))
+                    .hasMessageContaining("Page size must be between 1 and");
+            assertThatThrownBy(() -> userService.listUsers(FILENAME, null, UserService.MAX_PAGE_SIZE + 1))
+                    .hasMessageContaining("Page size must be between 1 and");
+            verifyNoInteractions(csvFileRepository);
+        }
+
+        @Test
+        @DisplayName("streamUsers should fail up front for a missing file and pick the layout's cursor")
+        void testStreamUsers() {
+            when(csvFileRepository.findInfoByFilename("missing.csv")).thenReturn(Optional.empty());
+            when(csvFileRepository.findInfoByFilename(FILENAME)).thenReturn(Optional.of(CsvFileInfo.of(existingCsvFile)));
+            when(csvFileRepository.streamUsers(FILENAME)).thenReturn(existingCsvFile.getUsers().stream());
+
+            assertThatThrownBy(() -> userService.streamUsers("missing.csv"))
+                    .hasMessageContaining("File not found");
+            try (var users = userService.streamUsers(FILENAME)) {
+                assertThat(users.map(User::getId)).containsExactly(1, 2);
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("Lookup Tests")
+    class LookupTests {
+
+        @Test
+        @SuppressWarnings("unchecked")
+        @DisplayName("Email lookup should list the files holding the email and flag a truncated result")
+        void testFindUsersByEmail() {
+            when(csvFileRepository.findUsersByEmail("alice@example.com", 3)).thenReturn(List.of(
+                    new UserMatch(FILENAME, new User(1, "alice@example.com", "Alice")),
+                    new UserMatch("other.csv", new User(7, "alice@example.com", "Alice B")),
+                    new UserMatch(FILENAME, new User(9, "alice@example.com", "Alice C"))));
+
+            Map<String, Object> result = userService.findUsersByEmail("alice@example.com", 2);
+
+            assertThat(result).containsEntry("count", 2).containsEntry("truncated", true);
+            assertThat((Set<String>) result.get("filenames")).containsExactly(FILENAME, "other.csv");
+            assertThat((List<UserMatch>) result.get("matches"))
+                    .extracting(match -> match.user().getId()).containsExactly(1, 7);
+            verify(csvFileRepository, never()).findByFilename(any());
+        }
+
+        @Test
+        @DisplayName("Name prefix lookup should return every match when under the limit")
+        void testFindUsersByNamePrefix() {
+            when(csvFileRepository.findUsersByNamePrefix("Bo", 101))
+                    .thenReturn(List.of(new UserMatch(FILENAME, new User(2, "bob@example.com", "Bob"))));
+
+            Map<String, Object> result = userService.findUsersByNamePrefix("Bo", 100);
+
+            assertThat(result).containsEntry("prefix", "Bo").containsEntry("count", 1).containsEntry("truncated", false);
+        }
+
+        @Test
+        @DisplayName("Should reject empty terms and limits outside 1..MAX_PAGE_SIZE before querying")
+        void testLookup_InvalidInput() {
+            assertThatThrownBy(() -> userService.findUsersByEmail(" ", 10))
+                    .hasMessage("Email must not be empty");
+            assertThatThrownBy(() -> userService.findUsersByNamePrefix("", 10))
+                    .hasMessage("Name prefix must not be empty");
+            assertThatThrownBy(() -> userService.findUsersByNamePrefix("A", UserService.MAX_PAGE_SIZE + 1))
+                    .hasMessageContaining("Limit must be between 1 and");
+            verifyNoInteractions(csvFileRepository);
+        }
+    }
+
+    @Nested
+    @DisplayName("writeExport Tests")
+    class ExportTests {
+
+        @Test
+        @DisplayName("Should write every user and close the source stream")
+        void testWriteExport_Plain() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            AtomicBoolean closed = new AtomicBoolean();
+
+            long written = userService.writeExport(existingCsvFile.getUsers().stream().onClose(() -> closed.set(true)),
+                    UserRecordWriter.Format.ORIGINAL, false, out);
+
+            assertThat(written).isEqualTo(2);
+            assertThat(closed).isTrue();
+            assertThat(out.toString(StandardCharsets.UTF_8))
+                    .isEqualTo("id=1,email=alice@example.com,name=Alice\nid=2,email=bob@example.com,name=Bob\n");
+        }
+
+        @Test
+        @DisplayName("Gzip export should decompress to the same CSV")
+        void testWriteExport_Gzip() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            userService.writeExport(existingCsvFile.getUsers().stream(), UserRecordWriter.Format.RFC4180, true, out);
+
+            try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+                assertThat(new String(in.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo(
+                        "id,email,name\r\n1,alice@example.com,Alice\r\n2,bob@example.com,Bob\r\n");
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("CsvFile cache Tests")
+    class CacheTests {
+
+        @Test
+        @DisplayName("Metadata reads should load the header by projection once, never the file")
+        void testHeaderLookup_ThroughCache() {
+            when(csvFileRepository.pullUser(FILENAME, 99)).thenReturn(modified(0));
+            when(csvFileRepository.findInfoByFilename(FILENAME)).thenReturn(Optional.of(CsvFileInfo.of(existingCsvFile)));
+
+            // A rejected delete reads only the header's metadata, then drops it like every write
+            assertThatThrownBy(() -> userService.deleteUser(FILENAME, 99)).hasMessage("User with ID 99 not found");
+            userService.getFileInfo(FILENAME);
+            userService.getFileInfo(FILENAME);
+
+            verify(csvFileRepository, never()).findByFilename(FILENAME);
+            verify(csvFileRepository, times(2)).findInfoByFilename(FILENAME);
+            assertThat(userService.getCacheStats()).containsEntry("hits", 1L).containsEntry("entries", 1L);
+        }
+
+        @Test
+        @DisplayName("A single-user write should invalidate the cached file")
+        void testMutation_Invalidates() {
+            MockMultipartFile file = new MockMultipartFile("file", FILENAME, "text/csv",
+                    "id=7,email=g@g.com,name=G".getBytes());
+            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(existingCsvFile));
+            when(csvFileRepository.save(any(CsvFile.class))).thenAnswer(invocation -> invocation.getArgument(0));
+            when(csvFileRepository.pullUser(FILENAME, 7)).thenReturn(modified(1));
+            when(csvFileRepository.findInfoByFilename(FILENAME)).thenReturn(Optional.of(CsvFileInfo.of(existingCsvFile)));
+
+            // The upload's re-upload check reads the metadata once; getFileInfo is served from the cache
+            userService.getAllUsers(file);
+            userService.getFileInfo(FILENAME);
+            verify(csvFileRepository, times(1)).findInfoByFilename(FILENAME);
+
+            userService.deleteUser(FILENAME, 7);
+            userService.getFileInfo(FILENAME);
+            verify(csvFileRepository, times(2)).findInfoByFilename(FILENAME);
+        }
+
+        @Test
+        @DisplayName("An upload should write the saved file through to the cache")
+        void testUpload_WritesThrough() {
+            MockMultipartFile file = new MockMultipartFile("file", FILENAME, "text/csv",
+                    "id=7,email=g@g.com,name=G".getBytes());
+            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(existingCsvFile));
+            when(csvFileRepository.save(any(CsvFile.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+            userService.getAllUsers(file);
+            Map<String, Object> info = userService.getFileInfo(FILENAME);
+
+            assertThat(info).containsEntry("userCount", 1).containsEntry("sizeBytes", (long) file.getSize());
+            // Only the upload's own reads: getFileInfo was served from the cache
+            verify(csvFileRepository, times(1)).findByFilename(FILENAME);
+            verify(csvFileRepository, times(1)).findInfoByFilename(FILENAME);
+        }
+    }
+
     @Nested
     @DisplayName("getFileInfo Tests")
     class GetFileInfoTests {
 
         @Test
-        @DisplayName("Should return correct file metadata")
+        @DisplayName("Should return file metadata from the projection, never loading the document")
         void testGetFileInfo_Success() {
-            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(existingCsvFile));
+            existingCsvFile.setSizeBytes(79);
+            when(csvFileRepository.findInfoByFilename(FILENAME)).thenReturn(Optional.of(CsvFileInfo.of(existingCsvFile)));
 
             Map<String, Object> info = userService.getFileInfo(FILENAME);
 
             assertThat(info)
+                    .containsEntry("id", "mongo-id-123")
                     .containsEntry("filename", FILENAME)
                     .containsEntry("userCount", 2)
+                    .containsEntry("sizeBytes", 79L)
                     .containsKey("uploadedAt");
+            verify(csvFileRepository, never()).findByFilename(any());
         }
 
         @Test
         @DisplayName("Should throw exception if file not found")
         void testGetFileInfo_NotFound() {
-            when(csvFileRepository.findByFilename("missing.csv")).thenReturn(Optional.empty());
+            when(csvFileRepository.findInfoByFilename("missing.csv")).thenReturn(Optional.empty());
 
             assertThatThrownBy(() -> userService.getFileInfo("missing.csv"))
                     .isInstanceOf(RuntimeException.class)
                     .hasMessageContaining("File not found");
         }
     }
+
+    @Nested
+    @DisplayName("Bucketed storage Tests")
+    class BucketedStorageTests {
+
+        private CsvFile header;
+
+        @BeforeEach
+        void setUpBucketed() {
+            userService = new UserService(csvFileRepository, new StorageProperties(2, false), PARSER_PROPERTIES, new FileWriteCoalescer(csvFileRepository, metrics), newCache(), metrics);
+
+            header = new CsvFile(FILENAME, null);
+            header.setId("mongo-id-123");
+            header.setBucketSize(2);
+            header.setBucketCount(2);
+            header.setUserCount(3);
+            header.setVersion(7L);
+        }
+
+        @Test
+        @DisplayName("Should save a header without users and write users to buckets")
+        void testGetAllUsers_Bucketed() {
+            String csvContent = "id=1,email=a@a.com,name=A\nid=2,email=b@b.com,name=B\nid=3,email=c@c.com,name=C";
+            MockMultipartFile file = new MockMultipartFile("file", FILENAME, "text/csv", csvContent.getBytes());
+
+            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.empty());
+            when(csvFileRepository.save(any(CsvFile.class))).thenAnswer(invocation -> {
+                CsvFile saved = invocation.getArgument(0);
+                saved.setId("new-mongo-id");
+                return saved;
+            });
+
+            Map<String, Object> result = userService.getAllUsers(file);
+
+            assertThat(result).containsEntry("fileId", "new-mongo-id");
+            verify(csvFileRepository).save(argThat(saved -> saved.getUsers() == null
+                    && saved.getUserCount() == 3
+                    && saved.getBucketSize() == 2
+                    && saved.getBucketCount() == 2));
+            verify(csvFileRepository).replaceBuckets(eq("new-mongo-id"), argThat(users -> users.size() == 3), eq(2), any());
+        }
+
+        @Test
+        @DisplayName("Should apply a batch to a bucketed file as one bulk write of targeted bucket changes")
+        void testApplyBatch_Bucketed() {
+            UserBucket full = new UserBucket("mongo-id-123", 0,
+                    new ArrayList<>(List.of(new User(1, "a@a.com", "A"), new User(2, "b@b.com", "B"))));
+            full.setId("bucket-0");
+            UserBucket withRoom = new UserBucket("mongo-id-123", 1, new ArrayList<>(List.of(new User(3, "c@c.com", "C"))));
+            withRoom.setId("bucket-1");
+            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(header));
+            when(csvFileRepository.findBuckets("mongo-id-123")).thenReturn(List.of(full, withRoom));
+            when(csvFileRepository.writeBuckets(eq("mongo-id-123"), eq(7L), any(), any(), anyInt(), anyBoolean()))
+                    .thenAnswer(UserServiceComprehensiveTest::allWritten);
+
+            // Unordered, with two operations on user 5: each is checked after the ones before it
+            Map<String, Object> result = userService.applyBatch(FILENAME, List.of(
+                    new UserOperation("create", 4, "d@d.com", "D"),
+                    new UserOperation("create", 5, "e@e.com", "E"),
+                    new UserOperation("patch", 5, null, "E2"),
+                    new UserOperation("delete", 1, null, null),
+                    new UserOperation("create", 6, "f@f.com", "F"),
+                    new UserOperation("update", 3, "c2@c.com", "C2"),
+                    new UserOperation("create", 2, "x@x.com", "X")), false);
+
+            assertThat(result).containsEntry("applied", 6).containsEntry("failed", 1);
+            verify(csvFileRepository).writeBuckets(eq("mongo-id-123"), eq(7L),
+                    argThat(writes -> writes.equals(List.of(
+                            new BucketWrite(BucketWrite.Kind.PUSH, "bucket-1", writes.get(0).user()),
+                            new BucketWrite(BucketWrite.Kind.PULL, "bucket-0", writes.get(1).user()),
+                            new BucketWrite(BucketWrite.Kind.PUSH, "bucket-0", writes.get(2).user()),
+                            new BucketWrite(BucketWrite.Kind.SET, "bucket-1", writes.get(3).user())))
+                            && writes.get(0).user().getId() == 4
+                            && writes.get(1).user().getId() == 1
+                            && writes.get(2).user().getId() == 6
+                            && writes.get(3).user().getEmail().equals("c2@c.com")),
+                    argThat(newBuckets -> newBuckets.size() == 1 && newBuckets.get(0).size() == 1
+                            && newBuckets.get(0).get(0).getName().equals("E2")),
+                    eq(2), eq(false));
+            verify(csvFileRepository, never()).save(any(CsvFile.class));
+        }
+
+        @Test
+        @DisplayName("Unordered bucketed batch should merge the operations on one user into a single write")
+        void testApplyBatch_BucketedUnorderedMerges() {
+            UserBucket full = new UserBucket("mongo-id-123", 0,
+                    new ArrayList<>(List.of(new User(1, "a@a.com", "A"), new User(2, "b@b.com", "B"))));
+            full.setId("bucket-0");
+            UserBucket withRoom = new UserBucket("mongo-id-123", 1, new ArrayList<>(List.of(new User(3, "c@c.com", "C"))));
+            withRoom.setId("bucket-1");
+            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(header));
+            when(csvFileRepository.findBuckets("mongo-id-123")).thenReturn(List.of(full, withRoom));
+            when(csvFileRepository.writeBuckets(eq("mongo-id-123"), eq(7L), any(), any(), anyInt(), eq(false)))
+                    .thenAnswer(UserServiceComprehensiveTest::allWritten);
+
+            Map<String, Object> result = userService.applyBatch(FILENAME, List.of(
+                    new UserOperation("delete", 1, null, null),
+                    new UserOperation("create", 1, "a2@a.com", "A2"),
+                    new UserOperation("patch", 3, "c2@c.com", null),
+                    new UserOperation("patch", 3, null, "C2"),
+                    new UserOperation("create", 4, "d@d.com", "D"),
+                    new UserOperation("patch", 4, null, "D2"),
+                    new UserOperation("create", 7, "g@g.com", "G"),
+                    new UserOperation("delete", 7, null, null)), false);
+
+            assertThat(result).containsEntry("applied", 8).containsEntry("failed", 0);
+            // Delete + create: set in place; patch + patch: one set; create + patch: one push; create + delete: nothing
+            verify(csvFileRepository).writeBuckets(eq("mongo-id-123"), eq(7L),
+                    argThat(writes -> writes.size() == 3
+                            && writes.get(0).equals(new BucketWrite(BucketWrite.Kind.SET, "bucket-0", writes.get(0).user()))
+                            && writes.get(0).user().getEmail().equals("a2@a.com")
+                            && writes.get(1).equals(new BucketWrite(BucketWrite.Kind.SET, "bucket-1", writes.get(1).user()))
+                            && writes.get(1).user().getEmail().equals("c2@c.com")
+                            && writes.get(1).user().getName().equals("C2")
+                            && writes.get(2).equals(new BucketWrite(BucketWrite.Kind.PUSH, "bucket-1", writes.get(2).user()))
+                            && writes.get(2).user().getName().equals("D2")),
+                    argThat(List::isEmpty), eq(1), eq(false));
+        }
+
+        @Test
+        @DisplayName("Should report bucket writes invalidated by a concurrent write as failed")
+        void testApplyBatch_BucketedConcurrentWrite() {
+            UserBucket bucket = new UserBucket("mongo-id-123", 0,
+                    new ArrayList<>(List.of(new User(1, "a@a.com", "A"), new User(2, "b@b.com", "B"))));
+            bucket.setId("bucket-0");
+            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(header));
+            when(csvFileRepository.findBuckets("mongo-id-123")).thenReturn(List.of(bucket));
+            // User 2 was deleted between the load and the bulk write
+            when(csvFileRepository.writeBuckets(eq("mongo-id-123"), eq(7L), any(), any(), anyInt(), eq(false)))
+                    .thenReturn(new Boolean[]{true, false});
+
+            Map<String, Object> result = userService.applyBatch(FILENAME, List.of(
+                    new UserOperation("patch", 1, null, "A2"),
+                    new UserOperation("patch", 2, null, "B2")), false);
+
+            assertThat(result).containsEntry("applied", 1).containsEntry("failed", 1);
+            @SuppressWarnings("unchecked")
+            List<Map<String, Object>> results = (List<Map<String, Object>>) result.get("results");
+            assertThat(results.get(1))
+                    .containsEntry("status", "FAILED")
+                    .containsEntry("error", "User with ID 2 was changed by a concurrent write; not applied");
+        }
+
+        @Test
+        @DisplayName("Should re-plan a bucketed batch when the header moved before the bulk write")
+        void testApplyBatch_BucketedStaleHeader() {
+            UserBucket bucket = new UserBucket("mongo-id-123", 0, new ArrayList<>(List.of(new User(1, "a@a.com", "A"))));
+            bucket.setId("bucket-0");
+            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(header));
+            when(csvFileRepository.findBuckets("mongo-id-123"))
+                    .thenReturn(List.of(bucket))
+                    .thenReturn(List.of());
+            when(csvFileRepository.writeBuckets(eq("mongo-id-123"), eq(7L), any(), any(), anyInt(), eq(true)))
+                    .thenThrow(new OptimisticLockingFailureException("version changed"));
+
+            // User 1 was deleted by the time of the second load
+            Map<String, Object> result = userService.applyBatch(FILENAME,
+                    List.of(new UserOperation("delete", 1, null, null)), true);
+
+            assertThat(result).containsEntry("applied", 0).containsEntry("failed", 1);
+            verify(csvFileRepository, times(1)).writeBuckets(any(), anyLong(), any(), any(), anyInt(), anyBoolean());
+        }
+
+        @Test
+        @DisplayName("Should drop buckets when a bucketed file is re-uploaded in embedded mode")
+        void testGetAllUsers_BucketedToEmbedded() {
+            userService = new UserService(csvFileRepository, new StorageProperties(0, false), PARSER_PROPERTIES, new FileWriteCoalescer(csvFileRepository, metrics), newCache(), metrics);
+            MockMultipartFile file = new MockMultipartFile("file", FILENAME, "text/csv", "id=1,email=a@a.com,name=A".getBytes());
+
+            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(header));
+
+            userService.getAllUsers(file);
+
+            assertThat(header.isBucketed()).isFalse();
+            assertThat(header.getUsers()).hasSize(1);
+            verify(csvFileRepository).deleteBuckets("mongo-id-123");
+        }
+
+        @Test
+        @DisplayName("Should create user in a bucket without loading or caching the file")
+        void testCreateUser_Bucketed() {
+            when(csvFileRepository.pushUser(eq(FILENAME), any(User.class))).thenReturn(modified(0));
+            when(csvFileRepository.findInfoByFilename(FILENAME)).thenReturn(Optional.of(CsvFileInfo.of(header)));
+            when(csvFileRepository.pushToBucket(eq("mongo-id-123"), eq(2), any(User.class))).thenReturn(true);
+
+            String result = userService.createUser(FILENAME, 4, "d@d.com", "D");
+
+            assertThat(result).contains("User created successfully");
+            verify(csvFileRepository).pushToBucket(eq("mongo-id-123"), eq(2), argThat(u -> u.getId() == 4));
+            verify(csvFileRepository, never()).save(any());
+            verify(csvFileRepository, never()).findByFilename(any());
+            verify(csvFileRepository, never()).findBucketedUsers(any());
+        }
+
+        @Test
+        @DisplayName("Should reject duplicate id in bucketed file")
+        void testCreateUser_BucketedDuplicate() {
+            when(csvFileRepository.pushUser(eq(FILENAME), any(User.class))).thenReturn(modified(0));
+            when(csvFileRepository.findInfoByFilename(FILENAME)).thenReturn(Optional.of(CsvFileInfo.of(header)));
+            // The conditional push finds the id in a bucket
+            when(csvFileRepository.pushToBucket(eq("mongo-id-123"), eq(2), argThat(u -> u.getId() == 1))).thenReturn(false);
+
+            assertThatThrownBy(() -> userService.createUser(FILENAME, 1, "a@a.com", "A"))
+                    .isInstanceOf(RuntimeException.class)
+                    .hasMessage("User with ID 1 already exists");
+
+            verify(csvFileRepository, never()).existsInBuckets(any(), anyInt());
+        }
+
+        @Test
+        @DisplayName("Should patch only non-empty fields in the user's bucket")
+        void testPatchUser_Bucketed() {
+            when(csvFileRepository.setUser(FILENAME, 2, null, "Bobby")).thenReturn(modified(0));
+            when(csvFileRepository.findInfoByFilename(FILENAME)).thenReturn(Optional.of(CsvFileInfo.of(header)));
+            when(csvFileRepository.setInBucket("mongo-id-123", 2, null, "Bobby")).thenReturn(1L);
+
+            String result = userService.patchUser(FILENAME, 2, "", "Bobby");
+
+            assertThat(result).contains("partially updated successfully");
+        }
+
+        @Test
+        @DisplayName("Should report missing user when no bucket matches")
+        void testUpdateAndDeleteUser_BucketedNotFound() {
+            when(csvFileRepository.setUser(FILENAME, 99, "x@x.com", "X")).thenReturn(modified(0));
+            when(csvFileRepository.pullUser(FILENAME, 99)).thenReturn(modified(0));
+            when(csvFileRepository.findInfoByFilename(FILENAME)).thenReturn(Optional.of(CsvFileInfo.of(header)));
+
+            assertThatThrownBy(() -> userService.updateUser(FILENAME, 99, "x@x.com", "X"))
+                    .hasMessage("User with ID 99 not found");
+            assertThatThrownBy(() -> userService.deleteUser(FILENAME, 99))
+                    .hasMessage("User with ID 99 not found");
+        }
+
+        @Test
+        @DisplayName("Should report user count from the header")
+        void testGetFileInfo_Bucketed() {
+            when(csvFileRepository.findInfoByFilename(FILENAME)).thenReturn(Optional.of(CsvFileInfo.of(header)));
+
+            assertThat(userService.getFileInfo(FILENAME)).containsEntry("userCount", 3);
+        }
+    }
+
+    @Nested
+    @DisplayName("applyBatch Tests")
+    class BatchTests {
+
+        @Test
+        @DisplayName("Ordered batch should load once, save once and skip everything after the first failure")
+        void testApplyBatch_Ordered() {
+            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(existingCsvFile));
+
+            Map<String, Object> result = userService.applyBatch(FILENAME, List.of(
+                    new UserOperation("create", 3, "c@c.com", "Charlie"),
+                    new UserOperation("UPDATE", 1, "alice2@example.com", "Alice2"),
+                    new UserOperation("delete", 99, null, null),
+                    new UserOperation("patch", 2, null, "Bobby")), true);
+
+            assertThat(result)
+                    .containsEntry("applied", 2)
+                    .containsEntry("failed", 1)
+                    .containsEntry("skipped", 1);
+            @SuppressWarnings("unchecked")
+            List<Map<String, Object>> results = (List<Map<String, Object>>) result.get("results");
+            assertThat(results).extracting(r -> r.get("status"))
+                    .containsExactly("APPLIED", "APPLIED", "FAILED", "SKIPPED");
+            assertThat(results.get(2)).containsEntry("error", "User with ID 99 not found");
+
+            assertThat(existingCsvFile.getUsers()).extracting(User::getName).containsExactly("Alice2", "Bob", "Charlie");
+            assertThat(existingCsvFile.getUserCount()).isEqualTo(3);
+            verify(csvFileRepository, times(1)).findByFilename(FILENAME);
+            verify(csvFileRepository, times(1)).save(existingCsvFile);
+            verify(csvFileRepository, never()).pushUser(anyString(), any(User.class));
+        }
+
+        @Test
+        @DisplayName("Unordered batch should apply every operation that can be applied")
+        void testApplyBatch_Unordered() {
+            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(existingCsvFile));
+
+            Map<String, Object> result = userService.applyBatch(FILENAME, List.of(
+                    new UserOperation("create", 1, "dup@x.com", "Dup"),
+                    new UserOperation("delete", 2, null, null),
+                    new UserOperation("create", 3, "c@c.com", "Charlie")), false);
+
+            assertThat(result)
+                    .containsEntry("applied", 2)
+                    .containsEntry("failed", 1)
+                    .containsEntry("skipped", 0);
+            assertThat(existingCsvFile.getUsers()).extracting(User::getId).containsExactly(1, 3);
+            verify(csvFileRepository, times(1)).save(existingCsvFile);
+        }
+
+        @Test
+        @DisplayName("Should not save when no operation takes effect")
+        void testApplyBatch_NothingApplied() {
+            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.of(existingCsvFile));
+
+            Map<String, Object> result = userService.applyBatch(FILENAME,
+                    List.of(new UserOperation("delete", 42, null, null)), true);
+
+            assertThat(result).containsEntry("failed", 1);
+            verify(csvFileRepository, never()).save(any(CsvFile.class));
+        }
+
+        @Test
+        @DisplayName("Should re-apply the whole batch on a fresh load after a version conflict")
+        void testApplyBatch_RetriesOnVersionConflict() {
+            CsvFile reloaded = new CsvFile(FILENAME, new ArrayList<>(List.of(new User(1, "a@a.com", "A"))));
+            when(csvFileRepository.findByFilename(FILENAME))
+                    .thenReturn(Optional.of(existingCsvFile))
+                    .thenReturn(Optional.of(reloaded));
+            when(csvFileRepository.save(any(CsvFile.class)))
+                    .thenThrow(new OptimisticLockingFailureException("version changed"))
+                    .thenAnswer(invocation -> invocation.getArgument(0));
+
+            Map<String, Object> result = userService.applyBatch(FILENAME, List.of(
+                    new UserOperation("delete", 2, null, null),
+                    new UserOperation("create", 5, "e@e.com", "E")), false);
+
+            // User 2 only existed in the first load
+            assertThat(result).containsEntry("applied", 1).containsEntry("failed", 1);
+            assertThat(reloaded.getUsers()).extracting(User::getId).containsExactly(1, 5);
+        }
+
+        @Test
+        @DisplayName("Should reject invalid operations before touching MongoDB")
+        void testApplyBatch_Validation() {
+            assertThatThrownBy(() -> userService.applyBatch(FILENAME,
+                    List.of(new UserOperation("delete", 1, null, null), new UserOperation("upsert", 2, null, null)), true))
+                    .hasMessage("Operation 1: Unknown operation: upsert (expected create, update, patch or delete)");
+            assertThatThrownBy(() -> userService.applyBatch(FILENAME,
+                    List.of(new UserOperation("create", 2, "b@b.com", null)), true))
+                    .hasMessage("Operation 0: Field name is required for create");
+            assertThatThrownBy(() -> userService.applyBatch(FILENAME, List.of(), true))
+                    .hasMessageContaining("between 1 and");
+
+            verifyNoInteractions(csvFileRepository);
+        }
+    }
+
+    @Nested
+    @DisplayName("Metrics Tests")
+    class MetricsTests {
+
+        @Test
+        @DisplayName("Should record upload size, parsed rows, load, save and document size of an upload")
+        void testGetAllUsers_RecordsPipelineMetrics() {
+            MockMultipartFile file = new MockMultipartFile("file", FILENAME, "text/csv",
+                    "id=1,email=a@a.com,name=A\nid=2,email=b@b.com,name=B".getBytes());
+            when(csvFileRepository.findByFilename(FILENAME)).thenReturn(Optional.empty());
+            when(csvFileRepository.save(any(CsvFile.class))).thenAnswer(invocation -> {
+                CsvFile saved = invocation.getArgument(0);
+                saved.setId("new-mongo-id");
+                return saved;
+            });
+
+            userService.getAllUsers(file);
+
+            assertThat(meterRegistry.get("csv.upload.size").summary().totalAmount()).isEqualTo(file.getSize());
+            assertThat(meterRegistry.get("csv.parse.rows").counter().count()).isEqualTo(2);
+            assertThat(meterRegistry.get("csv.parse.duration").timer().count()).isEqualTo(1);
+            assertThat(meterRegistry.get("csv.mongo.load").timer().count()).isEqualTo(1);
+            assertThat(meterRegistry.get("csv.mongo.save").timer().count()).isEqualTo(1);
+            assertThat(meterRegistry.get("csv.document.size").summary().totalAmount()).isEqualTo(
+                    UserMetrics.estimateDocumentSize(new CsvFile(FILENAME, List.of(
+                            new User(1, "a@a.com", "A"), new User(2, "b@b.com", "B")))));
+        }
+
+        @Test
+        @DisplayName("Should time mutations by type and count failures by cause")
+        void testMutations_RecordLatencyAndErrors() {
+            when(csvFileRepository.pullUser(FILENAME, 1)).thenReturn(modified(1));
+            when(csvFileRepository.pullUser(FILENAME, 99)).thenReturn(modified(0));
+            when(csvFileRepository.findInfoByFilename(FILENAME)).thenReturn(Optional.of(CsvFileInfo.of(existingCsvFile)));
+
+            userService.deleteUser(FILENAME, 1);
+            assertThatThrownBy(() -> userService.deleteUser(FILENAME, 99));
+
+            assertThat(meterRegistry.get("csv.mutation").tag("type", "delete").timer().count()).isEqualTo(2);
+            assertThat(meterRegistry.get("csv.mutation").tag("type", "create").timer().count()).isZero();
+            assertThat(meterRegistry.get("csv.errors")
+                    .tag("operation", "delete").tag("cause", "UserNotFoundException").counter().count()).isEqualTo(1);
+        }
+
+        @Test
+        @DisplayName("Should count a wrapped failure under its root cause")
+        void testMutations_CountsRootCause() {
+            when(csvFileRepository.pullUser(FILENAME, 1)).thenThrow(
+                    new DataAccessResourceFailureException("MongoDB unreachable", new SocketTimeoutException("Read timed out")));
+
+            assertThatThrownBy(() -> userService.deleteUser(FILENAME, 1))
+                    .isInstanceOf(DataAccessResourceFailureException.class);
+
+            assertThat(meterRegistry.get("csv.errors")
+                    .tag("operation", "delete").tag("cause", "SocketTimeoutException").counter().count()).isEqualTo(1);
+        }
+
+        @Test
+        @DisplayName("Should count a rejected upload under its parse error")
+        void testGetAllUsers_CountsParseErrors() {
+            MockMultipartFile file = new MockMultipartFile("file", FILENAME, "text/csv",
+                    "id=1,email=a@a.com,name=A\nid=1,email=b@b.com,name=B".getBytes());
+
+            assertThatThrownBy(() -> userService.getAllUsers(file)).isInstanceOf(DuplicateUserIdException.class);
+
+            assertThat(meterRegistry.get("csv.errors")
+                    .tag("operation", "upload").tag("cause", "DuplicateUserIdException").counter().count())
+                    .isEqualTo(1);
+            verify(csvFileRepository, never()).save(any(CsvFile.class));
+        }
+    }
 }
@@ -2,6 +2,7 @@ package com.example.demo.service;
 
 import com.example.demo.model.CsvFile;
 import com.example.demo.model.User;
+import com.example.demo.model.UserMatch;
 import com.example.demo.repository.CsvFileRepository;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Disabled;
@@ -16,13 +17,20 @@ import org.testcontainers.containers.MongoDBContainer;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
+@SuppressWarnings("unchecked")
 @SpringBootTest
 @Testcontainers
 @Tag("integration")
@@ -80,10 +88,72 @@ class UserServiceMongoIntegrationTest {
         assertThat(savedFile.get().getUsers()).hasSize(1);
         assertThat(savedFile.get().getUsers().get(0).getId()).isEqualTo(1);
 
-        // 5. Verify CSV Content String was updated (Persistence check)
-        String csvContent = savedFile.get().getCsvContent();
-        assertThat(csvContent).contains("name=Updated Name");
-        assertThat(csvContent).doesNotContain("name=Second User");
+        // 5. Verify targeted updates kept metadata in sync; the original upload is kept outside the document
+        assertThat(savedFile.get().getUserCount()).isEqualTo(1);
+        assertThat(savedFile.get().getContentId()).isNotNull();
+        assertThat(savedFile.get().getSizeBytes()).isEqualTo(initialContent.length());
+    }
+
+    @Test
+    @DisplayName("Keyset pages and the NDJSON stream should cover every user exactly once")
+    void testListAndStream() {
+        String content = "id=5,email=e@x.com,name=E\nid=2,email=b@x.com,name=B\nid=9,email=i@x.com,name=I\n"
+                + "id=1,email=a@x.com,name=A\nid=7,email=g@x.com,name=G";
+        userService.getAllUsers(new MockMultipartFile("file", FILENAME, "text/csv", content.getBytes()));
+
+        Map<String, Object> first = userService.listUsers(FILENAME, null, 2);
+        assertThat((List<User>) first.get("users")).extracting(User::getId).containsExactly(1, 2);
+        assertThat(first.get("nextAfterId")).isEqualTo(2);
+
+        Map<String, Object> last = userService.listUsers(FILENAME, 5, 2);
+        assertThat((List<User>) last.get("users")).extracting(User::getId).containsExactly(7, 9);
+        assertThat(last.get("nextAfterId")).isNull();
+
+        try (Stream<User> users = userService.streamUsers(FILENAME)) {
+            assertThat(users.map(User::getId)).containsExactly(5, 2, 9, 1, 7);
+        }
+    }
+
+    @Test
+    @DisplayName("Email and name prefix lookups should find users in every file")
+    void testLookups() {
+        userService.getAllUsers(new MockMultipartFile("file", FILENAME, "text/csv",
+                "id=1,email=shared@x.com,name=Ann (Ops)\nid=2,email=b@x.com,name=Bob".getBytes()));
+        userService.getAllUsers(new MockMultipartFile("file", "other.csv", "text/csv",
+                "id=4,email=shared@x.com,name=Annie\nid=5,email=c@x.com,name=Carl".getBytes()));
+
+        Map<String, Object> byEmail = userService.findUsersByEmail("shared@x.com", 10);
+        assertThat((Set<String>) byEmail.get("filenames")).containsExactlyInAnyOrder(FILENAME, "other.csv");
+        assertThat((List<UserMatch>) byEmail.get("matches")).extracting(match -> match.user().getId())
+                .containsExactlyInAnyOrder(1, 4);
+
+        // Regex metacharacters in the prefix are literal
+        Map<String, Object> byName = userService.findUsersByNamePrefix("Ann (", 10);
+        assertThat((List<UserMatch>) byName.get("matches")).singleElement()
+                .satisfies(match -> assertThat(match.filename()).isEqualTo(FILENAME));
+        assertThat(userService.findUsersByNamePrefix("Ann", 10)).containsEntry("count", 2);
+    }
+
+    @Test
+    @DisplayName("The original upload should be kept in GridFS and replaced with the next upload")
+    void testOriginalUpload() throws IOException {
+        String first = "id=1,email=a@x.com,name=A\nid=2,email=b@x.com,name=B\n";
+        userService.getAllUsers(new MockMultipartFile("file", FILENAME, "text/csv", first.getBytes()));
+        String firstContentId = csvFileRepository.findByFilename(FILENAME).orElseThrow().getContentId();
+
+        try (InputStream original = userService.openOriginal(FILENAME, false)) {
+            assertThat(new String(original.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo(first);
+        }
+        try (InputStream gzipped = new GZIPInputStream(userService.openOriginal(FILENAME, true))) {
+            assertThat(new String(gzipped.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo(first);
+        }
+
+        String second = "id=1,email=a@x.com,name=A2";
+        userService.getAllUsers(new MockMultipartFile("file", FILENAME, "text/csv", second.getBytes()));
+        try (InputStream original = userService.openOriginal(FILENAME, false)) {
+            assertThat(new String(original.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo(second);
+        }
+        assertThat(csvFileRepository.openContent(firstContentId, true)).isEmpty();
     }
 
     @Test
@@ -0,0 +1,234 @@
+package com.example.demo.service;
+
+import com.example.demo.config.WriteBehindProperties;
+import com.example.demo.model.CsvFile;
+import com.example.demo.model.User;
+import com.example.demo.repository.CsvFileRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class WriteBehindBufferTest {
+
+    private static final String FILENAME = "hot.csv";
+
+    // Long enough that only the test triggers flushes
+    private static final Duration NEVER = Duration.ofHours(1);
+
+    @TempDir
+    Path journalDir;
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final UserMetrics metrics = new UserMetrics(registry);
+    private StoredFile stored;
+    private CsvFileRepository csvFileRepository;
+    private final List<WriteBehindBuffer> buffers = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        stored = new StoredFile();
+        csvFileRepository = mock(CsvFileRepository.class);
+        when(csvFileRepository.findByFilename(FILENAME)).thenAnswer(invocation -> Optional.of(stored.load()));
+        when(csvFileRepository.save(any(CsvFile.class))).thenAnswer(invocation -> stored.save(invocation.getArgument(0)));
+    }
+
+    @AfterEach
+    void tearDown() {
+        buffers.forEach(WriteBehindBuffer::shutdown);
+    }
+
+    private WriteBehindBuffer buffer(int maxBatch, int maxBuffered, Path journal) {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(csvFileRepository,
+                new CsvFileCache(csvFileRepository, 64L << 20, Duration.ofMinutes(10), Runnable::run), metrics,
+                new WriteBehindProperties(true, NEVER, maxBatch, maxBuffered, journal, false));
+        buffer.start();
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    @Test
+    @DisplayName("Mutations are acknowledged from memory and saved together by one flush")
+    void testCoalescesIntoOneSave() {
+        WriteBehindBuffer buffer = buffer(10_000, 10_000, null);
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(buffer.apply(FILENAME, UserMutation.patch(1 + i % 2, null, "Name " + i))).isTrue();
+        }
+        assertThat(buffer.apply(FILENAME, UserMutation.create(3, "c@x.com", "C"))).isTrue();
+        // Checked against the working copy, like the atomic updates would be
+        assertThat(buffer.apply(FILENAME, UserMutation.create(1, "dup@x.com", "Dup"))).isFalse();
+        assertThat(buffer.apply(FILENAME, UserMutation.delete(42))).isFalse();
+
+        assertThat(stored.saves).isZero();
+        assertThat(registry.get("csv.write.behind.queue").gauge().value()).isEqualTo(101.0);
+
+        buffer.flushAll();
+
+        assertThat(stored.saves).isEqualTo(1);
+        assertThat(stored.users).extracting(User::getName).containsExactly("Name 98", "Name 99", "C");
+        assertThat(registry.get("csv.write.behind.queue").gauge().value()).isZero();
+        assertThat(registry.get("csv.write.behind.flush.size").summary().totalAmount()).isEqualTo(101.0);
+
+        // Nothing left to save: the working copy is dropped and the next mutation reloads
+        buffer.flushAll();
+        assertThat(stored.saves).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Buffered mutations are replayed onto a version saved by another writer")
+    void testRebasesOnConflict() {
+        WriteBehindBuffer buffer = buffer(10_000, 10_000, null);
+        buffer.apply(FILENAME, UserMutation.patch(1, null, "Patched"));
+
+        // Another writer adds a user behind the buffer's back
+        CsvFile other = stored.load();
+        other.getUsers().add(new User(7, "g@x.com", "G"));
+        stored.save(other);
+
+        buffer.flushAll();
+        assertThat(stored.conflicts).isEqualTo(1);
+        buffer.flushAll();
+
+        assertThat(stored.users).extracting(User::getId, User::getName)
+                .containsExactly(tuple(1, "Patched"), tuple(2, "B"), tuple(7, "G"));
+    }
+
+    @Test
+    @DisplayName("Replayed mutations that no longer apply are dropped, logged and counted")
+    void testRebaseCountsDropped() {
+        WriteBehindBuffer buffer = buffer(10_000, 10_000, null);
+        buffer.apply(FILENAME, UserMutation.create(3, "c@x.com", "C"));
+        buffer.apply(FILENAME, UserMutation.patch(2, null, "B2"));
+
+        // Another writer creates user 3 first
+        CsvFile other = stored.load();
+        other.getUsers().add(new User(3, "other@x.com", "Other"));
+        stored.save(other);
+
+        buffer.flushAll();
+        buffer.flushAll();
+
+        assertThat(stored.users).extracting(User::getId, User::getName)
+                .containsExactly(tuple(1, "A"), tuple(2, "B2"), tuple(3, "Other"));
+        assertThat(registry.get("csv.write.behind.dropped").counter().count()).isEqualTo(1.0);
+        assertThat(registry.get("csv.write.behind.queue").gauge().value()).isZero();
+    }
+
+    @Test
+    @DisplayName("Should refuse mutations beyond maxBuffered, and flush one file on demand")
+    void testBoundedAndFlushOnDemand() {
+        WriteBehindBuffer buffer = buffer(10_000, 2, null);
+        buffer.apply(FILENAME, UserMutation.patch(1, null, "X"));
+        buffer.apply(FILENAME, UserMutation.patch(2, null, "Y"));
+
+        assertThatThrownBy(() -> buffer.apply(FILENAME, UserMutation.patch(1, null, "Z")))
+                .isInstanceOf(RejectedExecutionException.class);
+
+        buffer.flush(FILENAME);
+        assertThat(stored.users).extracting(User::getName).containsExactly("X", "Y");
+        assertThat(buffer.apply(FILENAME, UserMutation.patch(1, null, "Z"))).isTrue();
+    }
+
+    @Test
+    @DisplayName("Acknowledged mutations survive a crash through the journal and are replayed at startup")
+    void testJournalReplay() throws Exception {
+        WriteBehindBuffer crashed = new WriteBehindBuffer(csvFileRepository,
+                new CsvFileCache(csvFileRepository, 64L << 20, Duration.ofMinutes(10), Runnable::run), metrics,
+                new WriteBehindProperties(true, NEVER, 10_000, 10_000, journalDir, false));
+        crashed.start();
+        crashed.apply(FILENAME, UserMutation.create(3, "c@x.com", "C"));
+        crashed.apply(FILENAME, UserMutation.patch(1, null, "A2"));
+        crashed.apply(FILENAME, UserMutation.delete(2));
+        // No flush and no shutdown: the process dies here
+        assertThat(stored.saves).isZero();
+
+        buffer(10_000, 10_000, journalDir);
+
+        assertThat(stored.saves).isEqualTo(1);
+        assertThat(stored.users).extracting(User::getId, User::getName)
+                .containsExactly(tuple(1, "A2"), tuple(3, "C"));
+        try (Stream<Path> segments = Files.list(journalDir)) {
+            // Only the segment the new buffer appends to is left
+            assertThat(segments).hasSize(1);
+        }
+    }
+
+    @Test
+    @DisplayName("Mutations saved before a crash are not replayed over later writes")
+    void testJournalSkipsSaved() {
+        WriteBehindBuffer crashed = new WriteBehindBuffer(csvFileRepository,
+                new CsvFileCache(csvFileRepository, 64L << 20, Duration.ofMinutes(10), Runnable::run), metrics,
+                new WriteBehindProperties(true, NEVER, 10_000, 10_000, journalDir, false));
+        crashed.start();
+        crashed.apply(FILENAME, UserMutation.patch(1, null, "Buffered"));
+        // Saved without a flush round, so its segment is kept
+        crashed.flush(FILENAME);
+
+        // An upload rewrites the file after the save
+        CsvFile uploaded = stored.load();
+        uploaded.getUsers().get(0).setName("Uploaded");
+        stored.save(uploaded);
+        crashed.apply(FILENAME, UserMutation.patch(2, null, "B2"));
+        // The process dies here
+
+        buffer(10_000, 10_000, journalDir);
+
+        assertThat(stored.users).extracting(User::getId, User::getName)
+                .containsExactly(tuple(1, "Uploaded"), tuple(2, "B2"));
+        // The save, the upload and the replay of the unsaved patch
+        assertThat(stored.saves).isEqualTo(3);
+    }
+
+    /**
+     * One csv_files document with @Version semantics
+     */
+    private static final class StoredFile {
+        private List<User> users = new ArrayList<>(List.of(new User(1, "a@x.com", "A"), new User(2, "b@x.com", "B")));
+        private long version;
+        private int saves;
+        private int conflicts;
+
+        synchronized CsvFile load() {
+            List<User> copy = new ArrayList<>();
+            for (User u : users) {
+                copy.add(new User(u.getId(), u.getEmail(), u.getName()));
+            }
+            CsvFile csvFile = new CsvFile(FILENAME, copy);
+            csvFile.setId("hot-id");
+            csvFile.setVersion(version);
+            return csvFile;
+        }
+
+        synchronized CsvFile save(CsvFile csvFile) {
+            if (!Objects.equals(csvFile.getVersion(), version)) {
+                conflicts++;
+                throw new OptimisticLockingFailureException("version " + csvFile.getVersion() + " != " + version);
+            }
+            users = new ArrayList<>(csvFile.getUsers());
+            csvFile.setVersion(++version);
+            saves++;
+            return csvFile;
+        }
+    }
+}
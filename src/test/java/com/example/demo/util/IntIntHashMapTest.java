@@ -0,0 +1,84 @@
+package com.example.demo.util;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class IntIntHashMapTest {
+
+    @Test
+    @DisplayName("Should put, get, overwrite and remove keys")
+    void testBasicOperations() {
+        IntIntHashMap map = new IntIntHashMap();
+
+        assertThat(map.put(7, 1)).isEqualTo(IntIntHashMap.MISSING);
+        assertThat(map.put(-3, 2)).isEqualTo(IntIntHashMap.MISSING);
+        assertThat(map.put(7, 5)).isEqualTo(1);
+
+        assertThat(map.get(7)).isEqualTo(5);
+        assertThat(map.get(-3)).isEqualTo(2);
+        assertThat(map.get(8)).isEqualTo(IntIntHashMap.MISSING);
+        assertThat(map.size()).isEqualTo(2);
+
+        assertThat(map.remove(7)).isEqualTo(5);
+        assertThat(map.remove(7)).isEqualTo(IntIntHashMap.MISSING);
+        assertThat(map.containsKey(7)).isFalse();
+        assertThat(map.size()).isEqualTo(1);
+
+        map.clear();
+        assertThat(map.isEmpty()).isTrue();
+        assertThat(map.get(-3)).isEqualTo(IntIntHashMap.MISSING);
+    }
+
+    @Test
+    @DisplayName("putIfAbsent should keep the first value")
+    void testPutIfAbsent() {
+        IntIntHashMap map = new IntIntHashMap();
+
+        assertThat(map.putIfAbsent(42, 1)).isEqualTo(IntIntHashMap.MISSING);
+        assertThat(map.putIfAbsent(42, 9)).isEqualTo(1);
+        assertThat(map.get(42)).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Should reject negative values")
+    void testNegativeValue() {
+        IntIntHashMap map = new IntIntHashMap();
+
+        assertThatThrownBy(() -> map.put(1, -1))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    @DisplayName("Should behave like HashMap under random puts and removes across resizes")
+    void testMatchesHashMap() {
+        Random random = new Random(42);
+        IntIntHashMap map = new IntIntHashMap(4);
+        Map<Integer, Integer> expected = new HashMap<>();
+
+        for (int i = 0; i < 200_000; i++) {
+            // Small key range so probe chains collide and removals shift entries back
+            int key = random.nextInt(5_000) - 2_500;
+            if (random.nextInt(3) == 0) {
+                Integer removed = expected.remove(key);
+                assertThat(map.remove(key)).isEqualTo(removed == null ? IntIntHashMap.MISSING : removed);
+            } else {
+                int value = random.nextInt(Integer.MAX_VALUE);
+                Integer previous = expected.put(key, value);
+                assertThat(map.put(key, value)).isEqualTo(previous == null ? IntIntHashMap.MISSING : previous);
+            }
+        }
+
+        assertThat(map.size()).isEqualTo(expected.size());
+        for (int key = -2_500; key < 2_500; key++) {
+            Integer value = expected.get(key);
+            assertThat(map.get(key)).isEqualTo(value == null ? IntIntHashMap.MISSING : value);
+        }
+    }
+}